@@ -0,0 +1,46 @@
+package com.example.android.quakereport;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Runs {@link HotPathBenchmark} on a background thread of the app's process and logs the report.
+ * Only part of debug builds. Start it with:
+ * <pre>
+ * adb shell am broadcast -a com.example.android.quakereport.RUN_BENCHMARK
+ * adb logcat -s BenchmarkReceiver
+ * </pre>
+ * To also compare the parsers on a real response, record a large one first:
+ * <pre>
+ * curl -o feed.geojson "https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson&amp;starttime=2017-01-01&amp;endtime=2017-02-01"
+ * adb push feed.geojson /sdcard/Android/data/com.example.android.quakereport/files/recorded_feed.geojson
+ * </pre>
+ */
+public class BenchmarkReceiver extends BroadcastReceiver {
+
+    private static final String LOG_TAG = BenchmarkReceiver.class.getSimpleName();
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final PendingResult result = goAsync();
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (String line : HotPathBenchmark.run(appContext).split("\n")) {
+                        Log.i(LOG_TAG, line);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Benchmark failed", e);
+                } finally {
+                    result.finish();
+                }
+            }
+        }, LOG_TAG).start();
+    }
+}
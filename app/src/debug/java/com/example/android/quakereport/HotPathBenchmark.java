@@ -0,0 +1,648 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.widget.ListView;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Micro-benchmarks for the hot paths of the app that depend on Android: parsing a USGS response
+ * with android.util.JsonReader and the platform's org.json, opening its cached snapshot, fetching
+ * over HttpURLConnection, the heap retained on ART, the dataset files, binding recycled rows and
+ * applying an update of the first page on the main thread. Each benchmark runs against synthetic feeds of
+ * {@link #FEED_SIZES} earthquakes and reports throughput, bytes allocated per operation and the
+ * p99 latency of one operation. The parsers are also compared on a recorded feed, if there is one.
+ * <p>
+ * This runs on a device (see {@link BenchmarkReceiver}). The plain Java hot paths (formatting,
+ * the row cache, the indexes, the list diff) are benchmarked with JMH in the benchmark module.
+ */
+public final class HotPathBenchmark {
+
+    /**
+     * Number of earthquakes in each synthetic feed
+     */
+    static final int[] FEED_SIZES = {10, 1000, 100000};
+    /**
+     * File name of a real USGS response that the parse benchmarks also run against, if it was
+     * pushed to the app's external files directory (see {@link BenchmarkReceiver})
+     */
+    static final String RECORDED_FEED_NAME = "recorded_feed.geojson";
+    /**
+     * Size of the feed of the parallel parse benchmark, and the parallelisms it is parsed with
+     */
+    static final int PARALLEL_FEED_SIZE = 100000;
+    static final int[] PARALLELISMS = {1, 2, 4, 8};
+    /**
+     * Size of the feed of the cancel benchmark, and after how many parsed features it cancels
+     */
+    static final int CANCEL_FEED_SIZE = 100000;
+    static final int CANCEL_AFTER_FEATURES = 1000;
+    /**
+     * Size of the feed whose parsed result the retained heap benchmark measures
+     */
+    static final int RETAINED_FEED_SIZE = 100000;
+    /**
+     * Rows of the dataset exported and imported by the dataset benchmark, and the throughput
+     * (rows/s, on all cores for imports) each direction should reach
+     */
+    static final int DATASET_SIZE = 100000;
+    static final int EXPORT_CSV_TARGET_ROWS_PER_SECOND = 150000;
+    static final int EXPORT_GEOJSON_TARGET_ROWS_PER_SECOND = 100000;
+    static final int IMPORT_CSV_TARGET_ROWS_PER_SECOND = 250000;
+    static final int IMPORT_GEOJSON_TARGET_ROWS_PER_SECOND = 100000;
+    /**
+     * Rows of the first page replaced by the first page update benchmark, and the size in pixels of
+     * the list showing it
+     */
+    static final int FIRST_PAGE_UPDATE_SIZE = 10000;
+    static final int LIST_WIDTH = 1080;
+    static final int LIST_HEIGHT = 1920;
+    /**
+     * Rows rebound per operation of the bind benchmark: about a screen
+     */
+    static final int BIND_ROWS = 20;
+
+    private static final int WARMUP_ITERATIONS = 3;
+    /**
+     * Minimum number of measured iterations, and minimum measured time
+     */
+    private static final int MIN_ITERATIONS = 5;
+    private static final long MIN_MEASURE_NANOS = 2000L * 1000000;
+
+    /**
+     * One benchmarked operation, run against a feed.
+     */
+    private interface Operation {
+        /**
+         * @return a value depending on the work done, so it cannot be optimized away
+         */
+        long run() throws IOException;
+    }
+
+    private static long sBlackhole;
+
+    private HotPathBenchmark() {
+    }
+
+    /**
+     * Run every benchmark against every feed size and return a report, one line per result.
+     * Not on the main thread, which the first page update benchmark posts to.
+     */
+    public static String run(Context context) throws IOException {
+        StringBuilder report = new StringBuilder();
+        for (int size : FEED_SIZES) {
+            byte[] feed = SyntheticFeed.build(size);
+            report.append(measureParse(feed, size));
+            report.append(measureSnapshotOpen(feed, size)).append('\n');
+        }
+        File recorded = getRecordedFeed(context);
+        if (recorded != null) {
+            byte[] feed = readFile(recorded);
+            report.append("recorded feed ").append(recorded).append(", ").append(feed.length).append(" bytes\n");
+            report.append(measureParse(feed, parse(feed).size()));
+        }
+        report.append(measureParallelParse());
+        report.append(measureCancel()).append('\n');
+        report.append(measureRetainedHeap()).append('\n');
+        report.append(measureDataset());
+        report.append(measureBind(context)).append('\n');
+        report.append(measureFirstPageUpdate(context));
+        return report.toString();
+    }
+
+    /**
+     * Parse the feed with the streaming parser, and with the original whole-document path: read
+     * it into a String, then build the org.json tree.
+     */
+    private static String measureParse(final byte[] feed, int featureCount) throws IOException {
+        StringBuilder report = new StringBuilder();
+        report.append(measure("streamParse", featureCount, new Operation() {
+            @Override
+            public long run() throws IOException {
+                final long[] count = new long[1];
+                QueryUtils.extractFeaturesFromStream(new ByteArrayInputStream(feed),
+                        new QueryUtils.EarthquakeCallback() {
+                            @Override
+                            public void onEarthquake(Earthquake earthquake) {
+                                count[0]++;
+                            }
+                        });
+                return count[0];
+            }
+        })).append('\n');
+
+        report.append(measure("readFromStream", featureCount, new Operation() {
+            @Override
+            public long run() throws IOException {
+                return QueryUtils.readFromStream(new ByteArrayInputStream(feed), feed.length).length();
+            }
+        })).append('\n');
+
+        final String json = QueryUtils.readFromStream(new ByteArrayInputStream(feed), feed.length);
+        report.append(measure("extractFeatureFromJson", featureCount, new Operation() {
+            @Override
+            public long run() {
+                return QueryUtils.extractFeatureFromJson(json).size();
+            }
+        })).append('\n');
+        return report.toString();
+    }
+
+    /**
+     * Returns the USGS response recorded with {@link #RECORDED_FEED_NAME} in the app's external
+     * files directory, or null if none was pushed there.
+     */
+    private static File getRecordedFeed(Context context) {
+        File dir = context.getExternalFilesDir(null);
+        File feed = dir == null ? null : new File(dir, RECORDED_FEED_NAME);
+        return feed != null && feed.isFile() ? feed : null;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Open the snapshot of a parsed feed, as EarthquakeCache does on a cold start, and read the rows
+     * of the first page, as the list binds them: the cached counterpart of extractFeatureFromJson.
+     */
+    private static String measureSnapshotOpen(byte[] feed, int featureCount) throws IOException {
+        final File file = File.createTempFile("benchmark", ".snapshot");
+        try {
+            final String requestUrl = "https://earthquake.usgs.gov/fdsnws/event/1/query?limit=" + featureCount;
+            EarthquakeSnapshot.write(file, requestUrl, parse(feed).asList());
+            return measure("snapshotOpen", featureCount, new Operation() {
+                @Override
+                public long run() throws IOException {
+                    EarthquakeStore store = EarthquakeSnapshot.open(file, requestUrl);
+                    long length = 0;
+                    for (int i = 0; i < Math.min(store.size(), EarthquakePager.PAGE_SIZE); i++) {
+                        length += store.getName(i).length();
+                    }
+                    return length;
+                }
+            });
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Parse a {@link #PARALLEL_FEED_SIZE}-feature feed with {@link ParallelFeatureParser} on
+     * 1 to 8 threads (1 being the sequential streaming parser), to show how parsing scales with
+     * cores. Parallelisms above the number of cores of the device are capped by its pool.
+     */
+    private static String measureParallelParse() throws IOException {
+        final byte[] feed = SyntheticFeed.build(PARALLEL_FEED_SIZE);
+        StringBuilder report = new StringBuilder();
+        for (final int parallelism : PARALLELISMS) {
+            report.append(measure("parallelParse/" + parallelism, PARALLEL_FEED_SIZE, new Operation() {
+                @Override
+                public long run() throws IOException {
+                    final long[] count = new long[1];
+                    ParallelFeatureParser.parse(new ByteArrayInputStream(feed), parallelism,
+                            new QueryUtils.EarthquakeCallback() {
+                                @Override
+                                public void onEarthquake(Earthquake earthquake) {
+                                    count[0]++;
+                                }
+                            });
+                    return count[0];
+                }
+            })).append(String.format(Locale.US, "  (%d cores)", ParallelFeatureParser.getDefaultParallelism()))
+                    .append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * Fetch a {@link #CANCEL_FEED_SIZE}-feature feed from a local {@link ReplayServer}, canceling
+     * from another thread (as the main thread cancels a loader) once {@link #CANCEL_AFTER_FEATURES}
+     * features are parsed, and report the work wasted after the cancel: features still parsed, body
+     * bytes the server still sent, and how long the fetch took to return. The fetching thread's CPU
+     * time is compared to that of the complete fetch.
+     */
+    private static String measureCancel() throws IOException {
+        ReplayServer server = ReplayServer.withSyntheticFeed(CANCEL_FEED_SIZE, 0);
+        try {
+            long fullCpuNanos = Debug.threadCpuTimeNanos();
+            final int[] fullCount = new int[1];
+            new HttpEarthquakeSource().fetch(server.getUrl(), null, null, new QueryUtils.EarthquakeCallback() {
+                @Override
+                public void onEarthquake(Earthquake earthquake) {
+                    fullCount[0]++;
+                }
+            });
+            fullCpuNanos = Debug.threadCpuTimeNanos() - fullCpuNanos;
+            sBlackhole += fullCount[0];
+            long fullBytes = server.getBodyBytesSent();
+
+            final FetchCancellation cancellation = new FetchCancellation();
+            final AtomicInteger parsed = new AtomicInteger();
+            final CountDownLatch reachedCancelPoint = new CountDownLatch(1);
+            final long[] atCancel = new long[3];
+            final ReplayServer replayServer = server;
+            Thread canceler = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reachedCancelPoint.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    atCancel[0] = parsed.get();
+                    atCancel[1] = replayServer.getBodyBytesSent();
+                    atCancel[2] = System.nanoTime();
+                    cancellation.cancel();
+                }
+            });
+            canceler.start();
+
+            long cpuNanos = Debug.threadCpuTimeNanos();
+            FetchCancellation.setCurrent(cancellation);
+            try {
+                new HttpEarthquakeSource().fetch(server.getUrl(), null, null, new QueryUtils.EarthquakeCallback() {
+                    @Override
+                    public void onEarthquake(Earthquake earthquake) {
+                        if (parsed.incrementAndGet() == CANCEL_AFTER_FEATURES) {
+                            reachedCancelPoint.countDown();
+                        }
+                    }
+                });
+            } finally {
+                FetchCancellation.setCurrent(null);
+            }
+            long returnedAt = System.nanoTime();
+            cpuNanos = Debug.threadCpuTimeNanos() - cpuNanos;
+            try {
+                canceler.join();
+                // Let the server notice the closed connection
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long bytesAfterCancel = server.getBodyBytesSent() - atCancel[1];
+
+            return String.format(Locale.US, "%-22s %7d features: %d features and %d B (of %d) after cancel,"
+                            + " returned after %.3f ms, cpu %.1f ms vs %.1f ms for the full fetch",
+                    "cancel", CANCEL_FEED_SIZE, parsed.get() - atCancel[0], bytesAfterCancel, fullBytes,
+                    (returnedAt - atCancel[2]) / 1e6, cpuNanos / 1e6, fullCpuNanos / 1e6);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Parse a {@link #RETAINED_FEED_SIZE}-feature feed and report the heap retained per event, by
+     * the parsed {@link Earthquake} objects, by an {@link EarthquakeStore} of them and by the store
+     * mapped from their snapshot (whose rows stay in the file), measured as the growth of the used
+     * heap after a GC.
+     */
+    private static String measureRetainedHeap() throws IOException {
+        byte[] feed = SyntheticFeed.build(RETAINED_FEED_SIZE);
+        long before = getUsedHeapAfterGc();
+        final ArrayList<Earthquake> earthquakes = new ArrayList<>(RETAINED_FEED_SIZE);
+        QueryUtils.extractFeaturesFromStream(new ByteArrayInputStream(feed),
+                new QueryUtils.EarthquakeCallback() {
+                    @Override
+                    public void onEarthquake(Earthquake earthquake) {
+                        earthquakes.add(earthquake);
+                    }
+                });
+        long objectBytes = getUsedHeapAfterGc() - before;
+
+        before = getUsedHeapAfterGc();
+        EarthquakeStore store = new EarthquakeStore();
+        store.addAll(earthquakes);
+        long storeBytes = getUsedHeapAfterGc() - before;
+
+        File file = File.createTempFile("benchmark", ".snapshot");
+        long snapshotBytes;
+        EarthquakeStore snapshot;
+        try {
+            EarthquakeSnapshot.write(file, "retainedHeap", store.asList());
+            before = getUsedHeapAfterGc();
+            snapshot = EarthquakeSnapshot.open(file, "retainedHeap");
+            snapshotBytes = getUsedHeapAfterGc() - before;
+        } finally {
+            file.delete();
+        }
+        sBlackhole += earthquakes.size() + store.size() + snapshot.size();
+
+        return String.format(Locale.US, "%-22s %7d features: %8.1f B/event as objects, %8.1f B/event in a store,"
+                        + " %8.1f B/event mapped from a snapshot",
+                "retainedHeap", RETAINED_FEED_SIZE, (double) objectBytes / RETAINED_FEED_SIZE,
+                (double) storeBytes / RETAINED_FEED_SIZE, (double) snapshotBytes / RETAINED_FEED_SIZE);
+    }
+
+    private static EarthquakeStore parse(byte[] feed) throws IOException {
+        final EarthquakeStore store = new EarthquakeStore();
+        QueryUtils.extractFeaturesFromStream(new ByteArrayInputStream(feed),
+                new QueryUtils.EarthquakeCallback() {
+                    @Override
+                    public void onEarthquake(Earthquake earthquake) {
+                        store.add(earthquake);
+                    }
+                });
+        return store;
+    }
+
+    /**
+     * Export a {@link #DATASET_SIZE}-row store to a CSV and a GeoJSON file, and import them back
+     * on all cores, reporting every direction against its throughput target.
+     */
+    private static String measureDataset() throws IOException {
+        final List<Earthquake> rows = parse(SyntheticFeed.build(DATASET_SIZE)).asList();
+        final int parallelism = Runtime.getRuntime().availableProcessors();
+        final File csv = File.createTempFile("dataset", ".csv");
+        final File geoJson = File.createTempFile("dataset", ".geojson");
+        try {
+            StringBuilder report = new StringBuilder();
+            report.append(withTarget(measure("exportCsv", DATASET_SIZE, new Operation() {
+                @Override
+                public long run() throws IOException {
+                    return export(rows, EarthquakeDataset.Format.CSV, csv);
+                }
+            }), EXPORT_CSV_TARGET_ROWS_PER_SECOND)).append('\n');
+            report.append(withTarget(measure("exportGeoJson", DATASET_SIZE, new Operation() {
+                @Override
+                public long run() throws IOException {
+                    return export(rows, EarthquakeDataset.Format.GEOJSON, geoJson);
+                }
+            }), EXPORT_GEOJSON_TARGET_ROWS_PER_SECOND)).append('\n');
+            report.append(withTarget(measure("importCsv", DATASET_SIZE, new Operation() {
+                @Override
+                public long run() throws IOException {
+                    return EarthquakeDataset.importFile(csv, EarthquakeDataset.Format.CSV, parallelism).size();
+                }
+            }), IMPORT_CSV_TARGET_ROWS_PER_SECOND)).append('\n');
+            report.append(withTarget(measure("importGeoJson", DATASET_SIZE, new Operation() {
+                @Override
+                public long run() throws IOException {
+                    return EarthquakeDataset.importFile(geoJson, EarthquakeDataset.Format.GEOJSON, parallelism).size();
+                }
+            }), IMPORT_GEOJSON_TARGET_ROWS_PER_SECOND)).append('\n');
+            return report.toString();
+        } finally {
+            csv.delete();
+            geoJson.delete();
+        }
+    }
+
+    /**
+     * Rebind a recycled row to {@link #BIND_ROWS} positions of a first page, as the list does
+     * while scrolling, on the main thread: some rows come from the row cache, others are formatted
+     * anew. Binding should not allocate, which the JVM tests cannot check through Robolectric's
+     * TextView.
+     */
+    private static String measureBind(final Context context) throws IOException {
+        final EarthquakePager pager = new EarthquakePager();
+        pager.setFirstPage(parse(SyntheticFeed.build(EarthquakePager.PAGE_SIZE)).asList(), true);
+        final EarthquakeAdapter[] adapter = new EarthquakeAdapter[1];
+        final ListView[] listView = new ListView[1];
+        final View[] row = new View[1];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                adapter[0] = new EarthquakeAdapter(context, pager);
+                listView[0] = new ListView(context);
+                row[0] = adapter[0].getView(0, null, listView[0]);
+            }
+        });
+        try {
+            return measure("bindRecycledRow", BIND_ROWS, null, new Operation() {
+                private int mFirst;
+
+                @Override
+                public long run() {
+                    for (int i = 0; i < BIND_ROWS; i++) {
+                        adapter[0].getView((mFirst + i) % EarthquakePager.PAGE_SIZE, row[0], listView[0]);
+                    }
+                    mFirst = (mFirst + 7) % EarthquakePager.PAGE_SIZE;
+                    return mFirst;
+                }
+            }, true);
+        } finally {
+            pager.shutdown();
+        }
+    }
+
+    /**
+     * Replace a {@link #FIRST_PAGE_UPDATE_SIZE}-row first page with a new result of its query, and
+     * measure the work left to the main thread once the diff is computed: the pager taking the new
+     * page, and the adapter rebinding the changed visible rows or, if rows were inserted and
+     * removed, refreshing the list around its first visible row. Measured for revised magnitudes
+     * (every 10th row) and for new events at the top with as many deleted further down. The list
+     * is laid out off screen again before each iteration; the layout pass that follows a refresh
+     * is not measured.
+     */
+    private static String measureFirstPageUpdate(final Context context) throws IOException {
+        final EarthquakeStore oldPage = parse(SyntheticFeed.build(FIRST_PAGE_UPDATE_SIZE));
+        EarthquakeStore revised = new EarthquakeStore();
+        EarthquakeStore shifted = new EarthquakeStore();
+        int inserted = FIRST_PAGE_UPDATE_SIZE / 100;
+        for (int i = 0; i < inserted; i++) {
+            shifted.add(5.0, "New place", oldPage.getTimeInMillSeconds(0) + (inserted - i) * 1000L, null,
+                    "new" + i, 0, 0);
+        }
+        for (int i = 0; i < FIRST_PAGE_UPDATE_SIZE; i++) {
+            if (i % 10 == 0) {
+                revised.add(oldPage.getMag(i) + 0.1, oldPage.getName(i), oldPage.getTimeInMillSeconds(i),
+                        oldPage.getUrl(i), oldPage.getId(i), oldPage.getLongitude(i), oldPage.getLatitude(i));
+            } else {
+                revised.add(oldPage, i);
+            }
+            if (i % 100 != 50) {
+                shifted.add(oldPage, i);
+            }
+        }
+
+        final EarthquakePager pager = new EarthquakePager();
+        final ListView[] listView = new ListView[1];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                EarthquakeAdapter adapter = new EarthquakeAdapter(context, pager);
+                listView[0] = new ListView(context);
+                listView[0].setAdapter(adapter);
+                adapter.setListView(listView[0]);
+            }
+        });
+        try {
+            return measureFirstPageUpdate("firstPageUpdate/values", pager, listView[0], oldPage, revised) + '\n'
+                    + measureFirstPageUpdate("firstPageUpdate/shift", pager, listView[0], oldPage, shifted) + '\n';
+        } finally {
+            pager.shutdown();
+        }
+    }
+
+    private static String measureFirstPageUpdate(String name, final EarthquakePager pager, final ListView listView,
+                                                 final EarthquakeStore oldPage, final EarthquakeStore newPage)
+            throws IOException {
+        final EarthquakeListDiff diff = EarthquakeListDiff.compute(oldPage, newPage);
+        return measure(name, FIRST_PAGE_UPDATE_SIZE, new Operation() {
+            @Override
+            public long run() {
+                pager.setFirstPage(oldPage.asList(), true);
+                listView.setSelection(0);
+                listView.measure(View.MeasureSpec.makeMeasureSpec(LIST_WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(LIST_HEIGHT, View.MeasureSpec.EXACTLY));
+                listView.layout(0, 0, LIST_WIDTH, LIST_HEIGHT);
+                return listView.getChildCount();
+            }
+        }, new Operation() {
+            @Override
+            public long run() {
+                pager.applyFirstPageDiff(newPage, diff);
+                return pager.getCount();
+            }
+        }, true);
+    }
+
+    private static int export(List<Earthquake> rows, EarthquakeDataset.Format format, File file)
+            throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            return EarthquakeDataset.export(rows, format, outputStream);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static String withTarget(String result, int targetRowsPerSecond) {
+        return result + String.format(Locale.US, "  (target %d rows/s)", targetRowsPerSecond);
+    }
+
+    private static long getUsedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            runtime.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String measure(String name, int featureCount, Operation operation) throws IOException {
+        return measure(name, featureCount, null, operation, false);
+    }
+
+    /**
+     * Warm up, then run the operation until both the minimum iterations and time are reached. Each
+     * iteration first runs the set up, if any, which is not measured, and on the main thread
+     * if asked to, as a message of its own like the main thread work it stands for.
+     */
+    private static String measure(String name, int featureCount, Operation setUp, Operation operation,
+                                  boolean onMainThread) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(setUp, operation, onMainThread);
+        }
+
+        long[] samples = new long[MIN_ITERATIONS];
+        int iterations = 0;
+        long totalNanos = 0;
+        long allocatedBytes = 0;
+        while (iterations < MIN_ITERATIONS || totalNanos < MIN_MEASURE_NANOS) {
+            long[] iteration = runIteration(setUp, operation, onMainThread);
+            if (iterations == samples.length) {
+                samples = Arrays.copyOf(samples, iterations * 2);
+            }
+            samples[iterations++] = iteration[0];
+            totalNanos += iteration[0];
+            allocatedBytes += iteration[1];
+        }
+
+        Arrays.sort(samples, 0, iterations);
+        long p99Nanos = samples[Math.min(iterations - 1, (int) Math.ceil(iterations * 0.99) - 1)];
+        double opsPerSecond = iterations * 1e9 / totalNanos;
+        return String.format(Locale.US, "%-22s %7d features: %10.1f ops/s %12.0f features/s"
+                        + " %12d B/op  p99 %8.3f ms",
+                name, featureCount, opsPerSecond, opsPerSecond * featureCount,
+                allocatedBytes / iterations, p99Nanos / 1e6);
+    }
+
+    /**
+     * @return the nanoseconds the operation took, and the bytes it allocated
+     */
+    private static long[] runIteration(final Operation setUp, final Operation operation, boolean onMainThread)
+            throws IOException {
+        if (!onMainThread) {
+            return timeIteration(setUp, operation);
+        }
+        final long[][] result = new long[1][];
+        final IOException[] failure = new IOException[1];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = timeIteration(setUp, operation);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return result[0];
+    }
+
+    private static long[] timeIteration(Operation setUp, Operation operation) throws IOException {
+        if (setUp != null) {
+            sBlackhole += setUp.run();
+        }
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        sBlackhole += operation.run();
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        return new long[]{elapsed, Debug.getThreadAllocSize()};
+    }
+
+    /**
+     * Run on the main thread and wait until done.
+     */
+    private static void runOnMainThread(final Runnable runnable) throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the main thread");
+        }
+    }
+}
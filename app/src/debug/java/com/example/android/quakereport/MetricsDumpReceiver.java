@@ -0,0 +1,46 @@
+package com.example.android.quakereport;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes the app's {@link Metrics} to files/metrics.txt in its private storage.
+ * Only part of debug builds. Dump and read them with:
+ * <pre>
+ * adb shell am broadcast -a com.example.android.quakereport.DUMP_METRICS
+ * adb shell run-as com.example.android.quakereport cat files/metrics.txt
+ * </pre>
+ */
+public class MetricsDumpReceiver extends BroadcastReceiver {
+
+    private static final String LOG_TAG = MetricsDumpReceiver.class.getSimpleName();
+
+    /**
+     * Name of the dump file in the app's files directory
+     */
+    static final String DUMP_FILE_NAME = "metrics.txt";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final File file = new File(context.getFilesDir(), DUMP_FILE_NAME);
+        final PendingResult result = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Metrics.dump(file);
+                    Log.i(LOG_TAG, "Metrics written to " + file);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Could not write the metrics", e);
+                } finally {
+                    result.finish();
+                }
+            }
+        }, LOG_TAG).start();
+    }
+}
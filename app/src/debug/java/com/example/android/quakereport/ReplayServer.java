@@ -0,0 +1,276 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Minimal local HTTP server that answers every request with the same recorded (or synthetic) USGS
+ * GeoJSON feed, after a configurable latency. Point an {@link HttpEarthquakeSource} at
+ * {@link #getUrl()} to run the whole fetch → parse → display pipeline repeatably, without the
+ * USGS server. The benchmarks and the unit tests of debug builds share it.
+ * <p>
+ * It supports what the app's transport uses: keep-alive, gzip, and revalidation with ETag or
+ * Last-Modified (304). The body can be trickled, and the requests and the body bytes written are
+ * recorded, so a test can see what the client asked for and how much of a response it received
+ * before going away. Only part of debug builds.
+ */
+public final class ReplayServer {
+
+    private static final String LOG_TAG = ReplayServer.class.getSimpleName();
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    /**
+     * Bodies are written in chunks of this size, so {@link #getBodyBytesSent()} follows the client
+     */
+    private static final int WRITE_CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * Last-Modified of the first feed served; every later feed is a second newer
+     */
+    private static final long FIRST_LAST_MODIFIED_MILLIS = 1488787200000L;
+
+    /**
+     * One version of the feed with its validators.
+     */
+    private static final class Feed {
+        final byte[] body;
+        final byte[] gzipBody;
+        final String eTag;
+        final String lastModified;
+        final int version;
+
+        Feed(byte[] body, int version) throws IOException {
+            this.body = body;
+            this.version = version;
+            eTag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "-" + version + "\"";
+            SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+            lastModified = httpDate.format(new Date(FIRST_LAST_MODIFIED_MILLIS + version * 1000L));
+            ByteArrayOutputStream gzip = new ByteArrayOutputStream(body.length / 4);
+            GZIPOutputStream out = new GZIPOutputStream(gzip);
+            out.write(body);
+            out.close();
+            gzipBody = gzip.toByteArray();
+        }
+    }
+
+    private final long mLatencyMillis;
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final AtomicLong mBodyBytesSent = new AtomicLong();
+    private final List<Map<String, String>> mRequests =
+            Collections.synchronizedList(new ArrayList<Map<String, String>>());
+    private volatile Feed mFeed;
+    private volatile long mChunkDelayMillis;
+
+    /**
+     * Start serving the given feed on a free local port.
+     *
+     * @param feed          the response body, e.g. a recorded USGS response
+     * @param latencyMillis delay before each response is sent
+     */
+    public ReplayServer(byte[] feed, long latencyMillis) throws IOException {
+        mFeed = new Feed(feed, 0);
+        mLatencyMillis = latencyMillis;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    /**
+     * Start serving a synthetic feed of the given number of earthquakes.
+     */
+    public static ReplayServer withSyntheticFeed(int featureCount, long latencyMillis) throws IOException {
+        return new ReplayServer(SyntheticFeed.build(featureCount), latencyMillis);
+    }
+
+    /**
+     * Returns the query URL to request, with the same path as the USGS service.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/fdsnws/event/1/query";
+    }
+
+    /**
+     * Serve another version of the feed from now on, with new validators.
+     */
+    public synchronized void setFeed(byte[] feed) throws IOException {
+        mFeed = new Feed(feed, mFeed.version + 1);
+    }
+
+    /**
+     * Returns the ETag of the feed served now.
+     */
+    public String getETag() {
+        return mFeed.eTag;
+    }
+
+    /**
+     * Returns the Last-Modified of the feed served now.
+     */
+    public String getLastModified() {
+        return mFeed.lastModified;
+    }
+
+    /**
+     * Wait this long before writing each chunk of a body, to trickle it.
+     */
+    public void setChunkDelayMillis(long chunkDelayMillis) {
+        mChunkDelayMillis = chunkDelayMillis;
+    }
+
+    /**
+     * Returns the headers of every request received so far, oldest first, by lower case name.
+     */
+    public List<Map<String, String>> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    /**
+     * Returns the number of response body bytes written to clients so far.
+     */
+    public long getBodyBytesSent() {
+        return mBodyBytesSent.get();
+    }
+
+    /**
+     * Stop accepting connections.
+     */
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error closing server socket", e);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // The socket was closed by shutdown()
+                return;
+            }
+        }
+    }
+
+    /**
+     * Answer the requests of one (keep-alive) connection until the client closes it.
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = readLine(in)) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Map<String, String> headers = new HashMap<>();
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                mRequests.add(headers);
+                if (mLatencyMillis > 0) {
+                    Thread.sleep(mLatencyMillis);
+                }
+                Feed feed = mFeed;
+                String validators = "ETag: " + feed.eTag + "\r\nLast-Modified: " + feed.lastModified + "\r\n";
+                String ifNoneMatch = headers.get("if-none-match");
+                boolean notModified = ifNoneMatch != null
+                        ? ifNoneMatch.equals(feed.eTag)
+                        : feed.lastModified.equals(headers.get("if-modified-since"));
+                if (notModified) {
+                    out.write(("HTTP/1.1 304 Not Modified\r\n" + validators + "Content-Length: 0\r\n\r\n")
+                            .getBytes(US_ASCII));
+                } else {
+                    String acceptEncoding = headers.get("accept-encoding");
+                    boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+                    byte[] body = gzip ? feed.gzipBody : feed.body;
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n" + validators
+                            + (gzip ? "Content-Encoding: gzip\r\n" : "")
+                            + "Content-Length: " + body.length + "\r\n\r\n").getBytes(US_ASCII));
+                    for (int offset = 0; offset < body.length; offset += WRITE_CHUNK_SIZE) {
+                        if (mChunkDelayMillis > 0) {
+                            Thread.sleep(mChunkDelayMillis);
+                        }
+                        int count = Math.min(WRITE_CHUNK_SIZE, body.length - offset);
+                        out.write(body, offset, count);
+                        out.flush();
+                        mBodyBytesSent.addAndGet(count);
+                    }
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Connection failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing socket", e);
+            }
+        }
+    }
+
+    /**
+     * Read a CRLF-terminated line, or return null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+}
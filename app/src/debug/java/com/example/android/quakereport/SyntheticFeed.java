@@ -0,0 +1,108 @@
+package com.example.android.quakereport;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Synthetic USGS GeoJSON feeds for {@link ReplayServer} and the benchmarks. Plain Java, so the
+ * JVM benchmarks of the benchmark module build the same feeds as the ones run on a device.
+ * Only part of debug builds.
+ */
+public final class SyntheticFeed {
+
+    private SyntheticFeed() {
+    }
+
+    /**
+     * Build a USGS-shaped GeoJSON feed of the given number of earthquakes, with the properties,
+     * geometry and metadata a real response carries, so parsing costs are realistic.
+     */
+    public static byte[] build(int featureCount) {
+        String[] regions = {"Alaska", "CA", "Japan", "Indonesia", "Chile", "Nevada", "Hawaii", "Tonga"};
+        StringBuilder feed = new StringBuilder(featureCount * 900 + 512);
+        feed.append("{\"type\":\"FeatureCollection\",\"metadata\":{\"generated\":1488787200000,")
+                .append("\"url\":\"https://earthquake.usgs.gov/fdsnws/event/1/query\",")
+                .append("\"title\":\"USGS Earthquakes\",\"status\":200,\"api\":\"1.5.4\",\"count\":")
+                .append(featureCount).append("},\"features\":[");
+        long time = 1488787200000L;
+        for (int i = 0; i < featureCount; i++) {
+            String id = String.format(Locale.US, "us%08d", i);
+            double mag = (i * 37 % 80) / 10.0;
+            time -= 60000 + i % 7 * 1000;
+            if (i > 0) {
+                feed.append(',');
+            }
+            feed.append("{\"type\":\"Feature\",\"properties\":{\"mag\":").append(mag)
+                    .append(",\"place\":\"").append(i % 50 + 1).append("km ESE of Somewhere, ")
+                    .append(regions[i % regions.length]).append("\",\"time\":").append(time)
+                    .append(",\"updated\":").append(time + 3600000)
+                    .append(",\"tz\":-540,\"url\":\"https://earthquake.usgs.gov/earthquakes/eventpage/").append(id)
+                    .append("\",\"detail\":\"https://earthquake.usgs.gov/fdsnws/event/1/query?eventid=").append(id)
+                    .append("&format=geojson\",\"felt\":null,\"cdi\":null,\"mmi\":null,\"alert\":null,")
+                    .append("\"status\":\"reviewed\",\"tsunami\":0,\"sig\":").append(i % 900)
+                    .append(",\"net\":\"us\",\"code\":\"").append(id.substring(2))
+                    .append("\",\"ids\":\",").append(id).append(",\",\"sources\":\",us,\",")
+                    .append("\"types\":\",geoserve,origin,phase-data,\",\"nst\":null,\"dmin\":1.2,")
+                    .append("\"rms\":0.9,\"gap\":45,\"magType\":\"mb\",\"type\":\"earthquake\",")
+                    .append("\"title\":\"M ").append(mag).append(" - Somewhere\"},")
+                    .append("\"geometry\":{\"type\":\"Point\",\"coordinates\":[")
+                    .append((i * 7 % 360) - 180).append(".25,").append((i * 3 % 180) - 90)
+                    .append(".5,10]},\"id\":\"").append(id).append("\"}");
+        }
+        feed.append("],\"bbox\":[-180,-90,0,180,90,700]}");
+        return feed.toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Build a GeoJSON feed of the given earthquakes, e.g. to serve a known result. Missing
+     * coordinates are left out of the geometry, as USGS does for events it could not locate.
+     */
+    public static byte[] build(List<Earthquake> earthquakes) {
+        StringBuilder feed = new StringBuilder(earthquakes.size() * 300 + 256);
+        feed.append("{\"type\":\"FeatureCollection\",\"metadata\":{\"generated\":1488787200000,")
+                .append("\"title\":\"USGS Earthquakes\",\"status\":200,\"count\":")
+                .append(earthquakes.size()).append("},\"features\":[");
+        for (int i = 0; i < earthquakes.size(); i++) {
+            Earthquake earthquake = earthquakes.get(i);
+            if (i > 0) {
+                feed.append(',');
+            }
+            feed.append("{\"type\":\"Feature\",\"properties\":{\"mag\":").append(earthquake.getMag())
+                    .append(",\"place\":");
+            appendString(feed, earthquake.getName());
+            feed.append(",\"time\":").append(earthquake.getTimeInMillSeconds())
+                    .append(",\"updated\":").append(earthquake.getTimeInMillSeconds() + 60000)
+                    .append(",\"url\":");
+            appendString(feed, earthquake.getUrl());
+            feed.append(",\"status\":\"reviewed\",\"tsunami\":0,\"magType\":\"ml\"},\"geometry\":");
+            if (Double.isNaN(earthquake.getLongitude()) || Double.isNaN(earthquake.getLatitude())) {
+                feed.append("null");
+            } else {
+                feed.append("{\"type\":\"Point\",\"coordinates\":[").append(earthquake.getLongitude())
+                        .append(',').append(earthquake.getLatitude()).append(",10]}");
+            }
+            feed.append(",\"id\":");
+            appendString(feed, earthquake.getId());
+            feed.append('}');
+        }
+        feed.append("],\"bbox\":[-180,-90,0,180,90,700]}");
+        return feed.toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static void appendString(StringBuilder feed, String value) {
+        if (value == null) {
+            feed.append("null");
+            return;
+        }
+        feed.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                feed.append('\\');
+            }
+            feed.append(c);
+        }
+        feed.append('"');
+    }
+}
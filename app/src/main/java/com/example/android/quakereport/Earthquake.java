@@ -5,13 +5,36 @@ package com.example.android.quakereport;
  */
 
 public class Earthquake {
+    /**
+     * USGS event id of the earthquake (e.g. "us10007q2w"), stable across queries
+     */
+    private String mId;
     private double mag;
-    private String name;
+    /**
+     * The place split the way the list displays it ("74km NW of " / "Rumoi, Japan"), the primary
+     * location shared through {@link EarthquakeStrings}. The offset is null if the place has none.
+     */
+    private String mLocationOffset;
+    private String mPrimaryLocation;
+    /**
+     * The place itself, only kept if it is not offset + primary location (it has a second " of ")
+     */
+    private String mIrregularPlace;
     private long mTimeInMillSeconds;
     /**
-     * Website URL of the earthquake
+     * Website URL of the earthquake, null if it is the event page of mId and rebuilt when asked for
      */
     private String mUrl;
+    private boolean mUrlFromId;
+    /**
+     * Epicenter in degrees (WGS84), NaN if the feed did not provide a geometry
+     */
+    private double mLongitude = Double.NaN;
+    private double mLatitude = Double.NaN;
+    /**
+     * True if USGS reports the event as deleted (only returned when deleted events are requested)
+     */
+    private boolean mDeleted;
 
     /**
      * Constructs a new {@link Earthquake} object.
@@ -24,17 +47,124 @@ public class Earthquake {
      */
     public Earthquake(double mag, String name, long timeInMillSeconds, String url) {
         this.mag = mag;
-        this.name = name;
+        setPlace(name);
         this.mTimeInMillSeconds = timeInMillSeconds;
         this.mUrl = url;
     }
 
+    /**
+     * Split the place into location offset and primary location once, instead of on every bind.
+     */
+    private void setPlace(String place) {
+        if (place == null) {
+            return;
+        }
+        int primaryStart = EarthquakeStrings.getPrimaryLocationStart(place);
+        int primaryEnd = EarthquakeStrings.getPrimaryLocationEnd(place, primaryStart);
+        if (primaryStart > 0) {
+            mLocationOffset = place.substring(0, primaryStart);
+        }
+        mPrimaryLocation = EarthquakeStrings.intern(primaryStart == 0 && primaryEnd == place.length()
+                ? place : place.substring(primaryStart, primaryEnd));
+        if (primaryEnd < place.length()) {
+            mIrregularPlace = place;
+        }
+    }
+
+    /**
+     * Returns the USGS event id, or null if the feed did not provide one.
+     */
+    public String getId() {
+        return mId;
+    }
+
+    /**
+     * Set the USGS event id. If the URL is the event's page, only the id is kept. Only for
+     * building the earthquake from a feed, it does not change afterwards.
+     */
+    void setId(String id) {
+        if (mUrlFromId) {
+            mUrl = EarthquakeStrings.getEventPageUrl(mId);
+            mUrlFromId = false;
+        }
+        mId = id;
+        if (EarthquakeStrings.isEventPageUrl(mUrl, id)) {
+            mUrl = null;
+            mUrlFromId = true;
+        }
+    }
+
+    /**
+     * Set the epicenter, in degrees. Only for building the earthquake from a feed.
+     */
+    void setCoordinates(double longitude, double latitude) {
+        mLongitude = longitude;
+        mLatitude = latitude;
+    }
+
+    /**
+     * Returns the longitude of the epicenter in degrees, or NaN if unknown.
+     */
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * Returns the latitude of the epicenter in degrees, or NaN if unknown.
+     */
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public boolean isDeleted() {
+        return mDeleted;
+    }
+
+    /**
+     * Mark the earthquake as deleted by USGS. Only for building the earthquake from a feed.
+     */
+    void setDeleted(boolean deleted) {
+        mDeleted = deleted;
+    }
+
     public double getMag() {
         return mag;
     }
 
     public String getName() {
-        return name;
+        if (mIrregularPlace != null) {
+            return mIrregularPlace;
+        }
+        return mLocationOffset == null ? mPrimaryLocation : mLocationOffset + mPrimaryLocation;
+    }
+
+    /**
+     * Returns the distance and direction part of the place (i.e. "74km NW of "),
+     * or null if the place does not have one.
+     */
+    public String getLocationOffset() {
+        return mLocationOffset;
+    }
+
+    /**
+     * Returns the place without its location offset (i.e. "Rumoi, Japan").
+     */
+    public String getPrimaryLocation() {
+        return mPrimaryLocation;
+    }
+
+    /**
+     * Returns the place if it cannot be rebuilt from location offset and primary location, else null.
+     */
+    String getIrregularPlace() {
+        return mIrregularPlace;
+    }
+
+    /**
+     * Returns true if the URL is the USGS event page of the event id.
+     */
+    boolean hasEventPageUrl() {
+        return mUrlFromId;
     }
 
     public long getTimeInMillSeconds() {
@@ -45,6 +175,6 @@ public class Earthquake {
      * Returns the website URL to find more information about the earthquake.
      */
     public String getUrl() {
-        return mUrl;
+        return mUrlFromId ? EarthquakeStrings.getEventPageUrl(mId) : mUrl;
     }
 }
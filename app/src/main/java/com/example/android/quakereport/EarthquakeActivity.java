@@ -5,19 +5,24 @@ package com.example.android.quakereport;
 
 import android.app.LoaderManager;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.support.v4.view.MenuItemCompat;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
-import android.util.Log;
+import android.support.v7.widget.SearchView;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.ProgressBar;
@@ -26,7 +31,8 @@ import android.widget.TextView;
 import java.util.ArrayList;
 import java.util.List;
 
-public class EarthquakeActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<List<Earthquake>> {
+public class EarthquakeActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<List<Earthquake>>,
+        EarthquakeLoader.OnBatchLoadedListener, EarthquakeSyncService.OnSyncListener {
 
     /**
      * URL for earthquake data from the USGS dataset was earlier...
@@ -44,10 +50,28 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
      * This really only comes into play if you're using multiple loaders.
      */
     private static final int EARTHQUAKE_LOADER_ID = 1;
+    /**
+     * Number of regions listed in the summary
+     */
+    private static final int SUMMARY_REGIONS = 5;
+    /**
+     * Number of best matches shown for a place search
+     */
+    private static final int SEARCH_RESULTS = 50;
+    /**
+     * Distance around a long-pressed earthquake within which the cached earthquakes are shown,
+     * and at most how many
+     */
+    private static final int NEARBY_RADIUS_KM = 300;
+    private static final int NEARBY_RESULTS = 50;
     /**
      * Adapter for the list of earthquakes
      */
     private EarthquakeAdapter mAdapter;
+    /**
+     * Pages of the query that are currently in memory; the adapter displays them
+     */
+    private EarthquakePager mPager;
     /**
      * TextView that is displayed when the list is empty
      */
@@ -75,11 +99,32 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
         /** Find a reference to the {@link ProgressBar} in the layout */
         mProgressBar = (ProgressBar) findViewById(R.id.progress);
 
-        /** Create a new adapter that takes the list of earthquakes as input */
-        mAdapter = new EarthquakeAdapter(this, new ArrayList<Earthquake>());
+        /** Create a new adapter that displays the pages of earthquakes held by the pager */
+        mPager = new EarthquakePager();
+        mAdapter = new EarthquakeAdapter(this, mPager);
 
         /** Set the adapter on the {@link ListView} so the list can be populated in the user interface */
         earthquakeListView.setAdapter(mAdapter);
+        // Let the adapter rebind only the rows that changed when the list is updated
+        mAdapter.setListView(earthquakeListView);
+
+        /** Let the pager know which rows are visible, so it can fetch the next page in time
+         * and drop pages the user has scrolled far away from, and the adapter format the rows
+         * about to scroll into view
+         */
+        earthquakeListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (visibleItemCount > 0) {
+                    mPager.onVisibleRangeChanged(firstVisibleItem, firstVisibleItem + visibleItemCount - 1);
+                    mAdapter.prefetchRows(firstVisibleItem, firstVisibleItem + visibleItemCount - 1);
+                }
+            }
+        });
 
         /** Set an item click listener on the ListView, which sends an intent to a web browser
          * to open a website with more information about the selected earthquake
@@ -88,43 +133,58 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
                 // Find the current earthquake that was clicked on
-                Earthquake currentEarthquake = (Earthquake) mAdapter.getItem(position);
-
-                // Convert the String URL into a URI object (to pass into the Intent constructor)
-                Uri earthquakeUri = Uri.parse(currentEarthquake.getUrl());
-
-                // Create a new intent to view the earthquake URI
-                Intent websiteIntent = new Intent(Intent.ACTION_VIEW, earthquakeUri);
+                Earthquake currentEarthquake = mAdapter.getItem(position);
+                if (currentEarthquake == null) {
+                    // Its page is still being fetched
+                    return;
+                }
+                openEventPage(currentEarthquake);
+            }
+        });
 
-                // Send the intent to launch a new activity
-                startActivity(websiteIntent);
+        /** Show the cached earthquakes near a long-pressed one, without a network round trip */
+        earthquakeListView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> adapterView, View view, int position, long l) {
+                Earthquake earthquake = mAdapter.getItem(position);
+                if (earthquake == null || Double.isNaN(earthquake.getLatitude())
+                        || Double.isNaN(earthquake.getLongitude())) {
+                    return false;
+                }
+                showNearby(earthquake);
+                return true;
             }
         });
 
         // Get a reference to the LoaderManager, in order to interact with loaders.
         LoaderManager loaderManager = getLoaderManager();
-        Log.i("inside Eqact.", "initLoader() will b called");
         /**
-         * To query the active network and determine if it has Internet connectivity.
+         * Initialize the loader. Pass in the int ID constant defined above and pass in null for
+         * the bundle. Pass in this activity for the LoaderCallbacks parameter (which is valid
+         * because this activity implements the LoaderCallbacks interface).
+         * The loader serves cached earthquakes even when there is no Internet connection.
          */
+        Loader<List<Earthquake>> loader = loaderManager.initLoader(EARTHQUAKE_LOADER_ID, null, this);
+        // The loader survives configuration changes, so (re)attach this activity for partial results
+        ((EarthquakeLoader) loader).setOnBatchLoadedListener(this);
+        // The following pages are fetched by the pager, with the query and source of the loader
+        mPager.setQuery(((EarthquakeLoader) loader).getUrl(), ((EarthquakeLoader) loader).getSource());
+
+        // Keep the cached queries fresh in the background, and show what the sync changes
+        EarthquakeSyncService.schedule(this);
+        EarthquakeSyncService.setOnSyncListener(this);
+    }
+
+    /**
+     * To query the active network and determine if it has Internet connectivity.
+     */
+    private boolean isConnected() {
         ConnectivityManager cm =
                 (ConnectivityManager) this.getSystemService(Context.CONNECTIVITY_SERVICE);
 
         NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-        boolean isConnected = activeNetwork != null &&
+        return activeNetwork != null &&
                 activeNetwork.isConnectedOrConnecting();
-        if (isConnected)
-        /**
-         * Initialize the loader. Pass in the int ID constant defined above and pass in null for
-         * the bundle. Pass in this activity for the LoaderCallbacks parameter (which is valid
-         * because this activity implements the LoaderCallbacks interface).
-         */
-            loaderManager.initLoader(EARTHQUAKE_LOADER_ID, null, this);
-        else {
-            mEmptyStateTextView.setText(R.string.no_internet);
-            // Hide loading indicator when there's no internet connection
-            mProgressBar.setVisibility(View.GONE);
-        }
     }
 
     /**
@@ -136,7 +196,6 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
      */
     @Override
     public Loader<List<Earthquake>> onCreateLoader(int id, Bundle args) {
-        Log.i("inside Eqact.", "onCreateLoader()");
         // getDefaultSharedPreferences() uses a default preference-file name (like com.example.something)
         // This default is set per application, so all activities in the same app context can access it easily
         SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
@@ -150,36 +209,109 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
         Uri.Builder uriBuilder = baseUri.buildUpon();
         // use UriBuilder.appendQueryParameter() methods to add additional parameters to the URI
         uriBuilder.appendQueryParameter("format", "geojson");
-        uriBuilder.appendQueryParameter("limit", "10");
+        // Only the first page is loaded here, EarthquakePager fetches the following ones
+        uriBuilder.appendQueryParameter("limit", String.valueOf(EarthquakePager.PAGE_SIZE));
         uriBuilder.appendQueryParameter("minmag", minMagnitude);
         uriBuilder.appendQueryParameter("orderby", orderBy);
         // create a new Loader for that URI
         return new EarthquakeLoader(this, uriBuilder.toString());
     }
 
+    /**
+     * Show the earthquakes parsed so far while the rest of the response is still downloading.
+     */
+    @Override
+    public void onBatchLoaded(List<Earthquake> batch, int offset) {
+        if (offset == 0) {
+            // A new load has started, replace whatever the previous one displayed
+            mPager.setFirstPage(batch, false);
+        } else if (offset == mPager.getCount()) {
+            mPager.appendToFirstPage(batch, false);
+        } else {
+            // We missed earlier batches (e.g. the activity was recreated), wait for the full result
+            return;
+        }
+        // Hide loading indicator as soon as the first rows are on screen
+        mProgressBar.setVisibility(View.GONE);
+    }
+
+    /**
+     * A background sync found changes to a query; if it is the one on screen, show its new
+     * result, if that changed, and bring the summaries up to date. The pager diffs the new result
+     * against the rows on screen, which may not be the cached ones.
+     */
+    @Override
+    public void onQuerySynced(String requestUrl, EarthquakeCache.SyncResult result) {
+        Loader<List<Earthquake>> loader = getLoaderManager().getLoader(EARTHQUAKE_LOADER_ID);
+        if (loader != null && requestUrl.equals(((EarthquakeLoader) loader).getUrl())) {
+            if (result.changed) {
+                mPager.updateFirstPage(result.earthquakes);
+            }
+            mPager.applySyncChanges(result.updated, result.removedIds);
+        }
+    }
+
     //This method updates the UI with the result
     @Override
     public void onLoadFinished(Loader<List<Earthquake>> loader, List<Earthquake> earthquakes) {
-        Log.i("inside Eqact.", "onLoadFinished()");
-        // Set empty state text to display "No earthquakes found."
-        mEmptyStateTextView.setText(R.string.msg);
-        // Clear the adapter of previous earthquake data
-        mAdapter.clear();
-
-        // If there is a valid list of {@link Earthquake}s, then add them to the adapter's
-        // data set. This will trigger the ListView to update.
+        // Set empty state text to display "No earthquakes found.", or explain why nothing could be loaded
+        mEmptyStateTextView.setText(getEmptyStateMessage(((EarthquakeLoader) loader).getLastFailure()));
+        // If there is a valid list of {@link Earthquake}s, then show it as the first page instead of
+        // the previous earthquake data. It is diffed against the rows on screen (e.g. the cached
+        // result), so only what changed is rebound and the scroll position is kept.
         if (earthquakes != null && !earthquakes.isEmpty()) {
-            mAdapter.addAll(earthquakes);
+            mPager.updateFirstPage(earthquakes);
+        } else {
+            mPager.clear();
         }
         // Hide loading indicator because the data has been loaded
         mProgressBar.setVisibility(View.GONE);
     }
 
+    /**
+     * Returns the message explaining an empty list: nothing matched the query, or why nothing
+     * could be fetched.
+     *
+     * @param failure why the last load could not fetch the earthquakes, or null
+     */
+    private String getEmptyStateMessage(QueryUtils.FetchResult failure) {
+        if (!isConnected()) {
+            return getString(R.string.no_internet);
+        }
+        if (failure == null) {
+            return getString(R.string.msg);
+        }
+        switch (failure.error) {
+            case TIMEOUT:
+                return getString(R.string.error_timeout);
+            case HTTP:
+                return getString(failure.responseCode >= 500 ? R.string.error_server : R.string.error_request,
+                        failure.responseCode);
+            case MALFORMED:
+                return getString(R.string.error_malformed);
+            case NETWORK:
+                return getString(R.string.error_network);
+            default:
+                return getString(R.string.msg);
+        }
+    }
+
     @Override
     public void onLoaderReset(Loader<List<Earthquake>> loader) {
-        Log.i("inside Eqact.", "onLoaderReset()");
         // Loader reset, so we can clear out our existing data.
-        mAdapter.clear();
+        mPager.clear();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPager.shutdown();
+        EarthquakeSyncService.setOnSyncListener(null);
+        // Don't let the retained loader keep a reference to this activity
+        Loader<List<Earthquake>> loader = getLoaderManager().getLoader(EARTHQUAKE_LOADER_ID);
+        if (loader != null) {
+            ((EarthquakeLoader) loader).setOnBatchLoadedListener(null);
+        }
     }
 
     /**
@@ -188,6 +320,22 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
+
+        // Search the places of the loaded earthquakes when the query is submitted
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(menu.findItem(R.id.action_search));
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                showSearchResults(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                return false;
+            }
+        });
         return true;
     }
 
@@ -202,6 +350,176 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
             startActivity(settingsIntent);
             return true;
         }
+        if (id == R.id.action_summary) {
+            showSummary();
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
+
+    /**
+     * Show the earthquakes of the query whose place matches the search, best match first; picking
+     * one opens its page like a click on the list does. The pager loads the complete result of the
+     * query and its search index in the background the first time.
+     */
+    private void showSearchResults(final String query) {
+        mPager.loadSummaries(new EarthquakePager.OnSummariesLoadedListener() {
+            @Override
+            public void onSummariesLoaded(EarthquakeAggregates aggregates, PlaceSearchIndex searchIndex) {
+                final List<Earthquake> results = searchIndex.search(query, SEARCH_RESULTS);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing()) {
+                            showEarthquakes(query, results, getString(R.string.search_no_results, query));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Show the cached earthquakes (of every cached query) within {@link #NEARBY_RADIUS_KM} of the
+     * given one, most recent first. The cache's spatial index is loaded, and built the first time,
+     * in the background.
+     */
+    private void showNearby(final Earthquake center) {
+        final EarthquakeCache cache = EarthquakeCache.getInstance(this);
+        new AsyncTask<Void, Void, List<Earthquake>>() {
+            @Override
+            protected List<Earthquake> doInBackground(Void... params) {
+                EarthquakeSpatialIndex index = cache.loadSpatialIndex();
+                List<Earthquake> earthquakes = index.getEarthquakes();
+                int[] rows = index.queryRadius(center.getLatitude(), center.getLongitude(), NEARBY_RADIUS_KM);
+                ArrayList<Earthquake> nearby = new ArrayList<>();
+                for (int i = 0; i < rows.length && nearby.size() < NEARBY_RESULTS; i++) {
+                    Earthquake earthquake = earthquakes.get(rows[i]);
+                    if (center.getId() == null || !center.getId().equals(earthquake.getId())) {
+                        nearby.add(earthquake);
+                    }
+                }
+                return nearby;
+            }
+
+            @Override
+            protected void onPostExecute(List<Earthquake> nearby) {
+                if (!isFinishing()) {
+                    showEarthquakes(getString(R.string.nearby_title, NEARBY_RADIUS_KM, center.getPrimaryLocation()),
+                            nearby, getString(R.string.nearby_no_results, NEARBY_RADIUS_KM));
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Show a list of earthquakes in a dialog, or the message if there are none; picking one
+     * opens its page like a click on the list does.
+     */
+    private void showEarthquakes(String title, final List<Earthquake> results, String emptyMessage) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this).setTitle(title);
+        if (results.isEmpty()) {
+            builder.setMessage(emptyMessage);
+        } else {
+            CharSequence[] items = new CharSequence[results.size()];
+            for (int i = 0; i < items.length; i++) {
+                Earthquake earthquake = results.get(i);
+                items[i] = getString(R.string.search_result, mAdapter.formatMag(earthquake.getMag()),
+                        earthquake.getName());
+            }
+            builder.setItems(items, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    openEventPage(results.get(which));
+                }
+            });
+        }
+        builder.show();
+    }
+
+    /**
+     * Open the web page of the earthquake in a browser. Nothing happens for an earthquake that
+     * has no URL, see {@link #getEventPageIntent(Earthquake)}.
+     */
+    private void openEventPage(Earthquake earthquake) {
+        Intent websiteIntent = getEventPageIntent(earthquake);
+        if (websiteIntent != null) {
+            startActivity(websiteIntent);
+        }
+    }
+
+    /**
+     * Returns the intent to view the web page of the earthquake, or null if it has no URL: a
+     * feature with neither a url nor an id, or an imported row without an id.
+     */
+    static Intent getEventPageIntent(Earthquake earthquake) {
+        String url = earthquake.getUrl();
+        if (url == null) {
+            return null;
+        }
+
+        // Convert the String URL into a URI object (to pass into the Intent constructor)
+        Uri earthquakeUri = Uri.parse(url);
+
+        // Create a new intent to view the earthquake URI
+        return new Intent(Intent.ACTION_VIEW, earthquakeUri);
+    }
+
+    /**
+     * Show the summary of the complete result of the query, which the pager loads in the
+     * background the first time.
+     */
+    private void showSummary() {
+        mPager.loadSummaries(new EarthquakePager.OnSummariesLoadedListener() {
+            @Override
+            public void onSummariesLoaded(EarthquakeAggregates aggregates, PlaceSearchIndex searchIndex) {
+                final String title = getString(R.string.summary_title, aggregates.getCount());
+                final CharSequence message = formatSummary(aggregates);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing()) {
+                            new AlertDialog.Builder(EarthquakeActivity.this)
+                                    .setTitle(title)
+                                    .setMessage(message)
+                                    .setPositiveButton(android.R.string.ok, null)
+                                    .show();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the text of the summary. Runs on the pager's background thread, which keeps the
+     * aggregates up to date.
+     */
+    private CharSequence formatSummary(EarthquakeAggregates aggregates) {
+        StringBuilder message = new StringBuilder(getString(R.string.summary_bands));
+        message.append('\n').append(getString(R.string.summary_band_below, 0, aggregates.getBandCount(0)));
+        message.append('\n').append(getString(R.string.summary_band, 0, 2, aggregates.getBandCount(1)));
+        for (int band = 2; band < 10; band++) {
+            message.append('\n').append(getString(R.string.summary_band, band, band + 1,
+                    aggregates.getBandCount(band)));
+        }
+        message.append('\n').append(getString(R.string.summary_band_above, 10, aggregates.getBandCount(10)));
+
+        long now = System.currentTimeMillis();
+        message.append("\n\n").append(getString(R.string.summary_periods,
+                aggregates.getEventCount(EarthquakeAggregates.Period.HOUR, now),
+                aggregates.getEventCount(EarthquakeAggregates.Period.DAY, now),
+                aggregates.getEventCount(EarthquakeAggregates.Period.WEEK, now)));
+
+        List<String> regions = aggregates.getRegionsByMaxMagnitude();
+        if (!regions.isEmpty()) {
+            message.append("\n\n").append(getString(R.string.summary_regions));
+            for (String region : regions.subList(0, Math.min(SUMMARY_REGIONS, regions.size()))) {
+                message.append('\n').append(getString(R.string.summary_region, region,
+                        aggregates.getMaxMagnitude(region)));
+            }
+        }
+
+        return message;
+    }
 }
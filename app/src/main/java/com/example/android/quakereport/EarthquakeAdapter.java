@@ -1,120 +1,271 @@
 package com.example.android.quakereport;
 
 import android.content.Context;
+import android.graphics.Color;
 import android.graphics.drawable.GradientDrawable;
 import android.support.v4.content.ContextCompat;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 
 /**
  * Created by vineet on 23-Jan-17.
  */
 
-public class EarthquakeAdapter extends ArrayAdapter {
+public class EarthquakeAdapter extends BaseAdapter {
 
-    ArrayList mArrayList;
+    /**
+     * Time spent in getView() per row, including inflating a new row
+     */
+    private static final Metrics.Histogram BIND = Metrics.histogram("adapter.bind.nanos");
+    private static final Metrics.Counter INFLATES = Metrics.counter("adapter.inflates");
+    private static final Metrics.Counter PLACEHOLDERS = Metrics.counter("adapter.placeholders");
+
+    /**
+     * Number of formatted rows kept: a few screens of rows, including those formatted ahead
+     */
+    static final int FORMATTED_ROWS = 128;
+    /**
+     * Rows formatted ahead on each side of the visible ones
+     */
+    static final int PREFETCH_ROWS = 16;
+
+    private final Context mContext;
+    /**
+     * The displayed earthquakes, one {@link EarthquakeStore} per page
+     */
+    private final EarthquakePager mPager;
+
+    /**
+     * Reusable formatters, only ever used on the main thread
+     */
+    private final EarthquakeFormatter mFormatter = new EarthquakeFormatter();
+    /**
+     * Text of the rows shown last, and of the rows around them
+     */
+    private final FormattedRowCache mFormattedRows = new FormattedRowCache(mFormatter, FORMATTED_ROWS);
+    /**
+     * Buffer the format helpers format into before copying the text into their String
+     */
+    private final char[] mFormatChars = new char[Math.max(mFormatter.getDateBufferSize(),
+            EarthquakeFormatter.SHORT_BUFFER_SIZE)];
+    /**
+     * Color of every magnitude band, resolved once
+     */
+    private final int[] mMagnitudeColors;
+    /**
+     * Location offset shown for places without a distance ("Near the")
+     */
+    private final String mNearThe;
+    /**
+     * The list showing this adapter, so updates can rebind rows in place
+     */
+    private ListView mListView;
+
+    public EarthquakeAdapter(Context context, EarthquakePager pager) {
+        mContext = context;
+        mPager = pager;
+        mMagnitudeColors = buildMagnitudeColors(context);
+        mNearThe = context.getString(R.string.near_the);
+        mPager.setOnPagesChangedListener(new EarthquakePager.OnPagesChangedListener() {
+            @Override
+            public void onPagesChanged() {
+                notifyDataSetChanged();
+            }
 
-    public EarthquakeAdapter(Context context, ArrayList arrayList) {
-        super(context, 0, arrayList);
+            @Override
+            public void onFirstPageChanged(EarthquakeListDiff diff) {
+                applyDiff(diff);
+            }
+        });
+    }
 
-        this.mArrayList = arrayList;
+    /**
+     * Set the list showing this adapter. Without it, every update rebinds all visible rows.
+     */
+    public void setListView(ListView listView) {
+        mListView = listView;
+    }
+
+    /**
+     * Show a new version of the first page: nothing is rebound if it did not change, only the
+     * changed visible rows if no row moved, and otherwise the list is refreshed with its first
+     * visible earthquake kept at the same place on screen.
+     */
+    private void applyDiff(EarthquakeListDiff diff) {
+        ListView listView = mListView;
+        if (diff.isEmpty()) {
+            return;
+        }
+        if (listView == null) {
+            notifyDataSetChanged();
+            return;
+        }
+        int first = listView.getFirstVisiblePosition();
+        int childCount = listView.getChildCount();
+        if (!diff.isStructural()) {
+            for (int position : diff.getChangedPositions()) {
+                if (position >= first && position < first + childCount) {
+                    View child = listView.getChildAt(position - first);
+                    getView(position, child, listView);
+                }
+            }
+            return;
+        }
+
+        // Anchor on the first visible row that is still there
+        int anchor = -1;
+        int anchorTop = 0;
+        for (int i = 0; i < childCount && anchor < 0; i++) {
+            anchor = diff.getNewPosition(first + i);
+            anchorTop = listView.getChildAt(i).getTop();
+        }
+        notifyDataSetChanged();
+        if (anchor >= 0) {
+            listView.setSelectionFromTop(anchor, anchorTop);
+        }
+    }
+
+    /**
+     * Format the loaded rows just above and below the visible ones, so they are bound by copying
+     * their text when they scroll into view. Rows are only ever materialized from their page's
+     * columns for the visible positions and this window.
+     */
+    public void prefetchRows(int firstVisiblePosition, int lastVisiblePosition) {
+        int count = getCount();
+        for (int position = lastVisiblePosition + 1;
+             position <= lastVisiblePosition + PREFETCH_ROWS && position < count; position++) {
+            prefetchRow(position);
+        }
+        for (int position = firstVisiblePosition - 1;
+             position >= firstVisiblePosition - PREFETCH_ROWS && position >= 0; position--) {
+            prefetchRow(position);
+        }
+    }
+
+    private void prefetchRow(int position) {
+        EarthquakeStore page = mPager.getPageForPosition(position);
+        int row = EarthquakePager.getRowInPage(position);
+        if (page != null && row < page.size()) {
+            mFormattedRows.prefetch(position, page, row);
+        }
+    }
+
+    public Context getContext() {
+        return mContext;
+    }
+
+    @Override
+    public int getCount() {
+        return mPager.getCount();
+    }
+
+    /**
+     * Returns a flyweight {@link Earthquake} reading the row at the given position,
+     * or null if its page is not loaded.
+     */
+    @Override
+    public Earthquake getItem(int position) {
+        EarthquakeStore page = mPager.getPageForPosition(position);
+        int row = EarthquakePager.getRowInPage(position);
+        return page != null && row < page.size() ? page.asList().get(row) : null;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
+        long bindStart = Metrics.ENABLED ? System.nanoTime() : 0;
         View listItemView = convertView;
+        ViewHolder holder;
 
         // Check if there is an existing list item view (called convertView) that we can reuse,
         // otherwise, if convertView is null, then inflate a new list item layout.
+        // The views of a list item are looked up once and kept in its ViewHolder.
         if (listItemView == null) {
             listItemView = LayoutInflater.from(getContext()).inflate(
                     R.layout.earthquake_list_item, parent, false);
-        }
-
-        // Find the earthquake at the given position in the list of earthquakes
-        Earthquake earthquake = (Earthquake) getItem(position);
-
-        // Find the TextView with view ID magnitude
-        TextView magTextView = (TextView) listItemView.findViewById(R.id.magnitude);
-        // Format the magnitude to show 1 decimal place
-        String formatMagnitude = formatMag(earthquake.getMag());
-        // Display the magnitude of the current earthquake in that TextView
-        magTextView.setText(formatMagnitude);
-
-        String originalLocation = earthquake.getName();
-        String primaryLocation;
-        String locationOffset;
-
-        if (originalLocation.contains(" of ")) {
-            String[] parts = originalLocation.split(" of ");
-            locationOffset = parts[0] + " of ";
-            primaryLocation = parts[1];
+            holder = new ViewHolder(listItemView, mFormatter.getDateBufferSize());
+            listItemView.setTag(holder);
+            if (Metrics.ENABLED) {
+                INFLATES.increment();
+            }
         } else {
-            locationOffset = getContext().getString(R.string.near_the);
-            primaryLocation = originalLocation;
+            holder = (ViewHolder) listItemView.getTag();
         }
 
-        TextView primaryLocationView = (TextView) listItemView.findViewById(R.id.primary_location);
-        primaryLocationView.setText(primaryLocation);
-
-        TextView locationOffsetView = (TextView) listItemView.findViewById(R.id.location_offset);
-        locationOffsetView.setText(locationOffset);
-
+        EarthquakeStore page = mPager.getPageForPosition(position);
+        int row = EarthquakePager.getRowInPage(position);
+        if (page == null || row >= page.size()) {
+            // The page of this row is still being fetched, show an empty row until it arrives
+            bindPlaceholder(holder);
+            if (Metrics.ENABLED) {
+                PLACEHOLDERS.increment();
+                BIND.recordSince(bindStart);
+            }
+            return listItemView;
+        }
 
-        // Display the location of the current earthquake in that TextView
-        /////nameTextView.setText(earthquake.getName());
+        // Read the earthquake at the given position straight from the page's columns.
+        // Nothing below allocates: strings come pre-split from the store, and numbers are
+        // formatted once into the row cache, then copied into the holder's own char buffers
+        // (a TextView keeps the array it was given).
+        double mag = page.getMag(row);
+        int formatted = mFormattedRows.get(position, page, row);
 
-        // Create a new Date object from the time in milliseconds of the earthquake
-        Date dateObject = new Date(earthquake.getTimeInMillSeconds());
+        // Display the magnitude with 1 decimal place
+        holder.magnitude.setText(holder.magChars, 0, mFormattedRows.copyMag(formatted, holder.magChars));
 
-        // Find the TextView with view ID date
-        TextView dateTextView = (TextView) listItemView.findViewById(R.id.date);
-        // Format the date string
-        String formattedDate = formatDate(dateObject);
-        // Display the date of the current earthquake in that TextView
-        dateTextView.setText(formattedDate);
+        String locationOffset = page.getLocationOffset(row);
+        holder.locationOffset.setText(locationOffset != null ? locationOffset : mNearThe);
+        holder.primaryLocation.setText(page.getPrimaryLocation(row));
 
-        // Find the TextView with view ID time
-        TextView timeView = (TextView) listItemView.findViewById(R.id.time);
-        // Format the time string
-        String formattedTime = formatTime(dateObject);
-        // Display the time of the current earthquake in that TextView
-        timeView.setText(formattedTime);
+        // Display the date and time of the current earthquake
+        holder.date.setText(holder.dateChars, 0, mFormattedRows.copyDate(formatted, holder.dateChars));
+        holder.time.setText(holder.timeChars, 0, mFormattedRows.copyTime(formatted, holder.timeChars));
 
-        // Set the proper background color on the magnitude circle.
-        // Fetch the background from the TextView, which is a GradientDrawable.
-        GradientDrawable magnitudeCircle = (GradientDrawable) magTextView.getBackground();
-        // Get the appropriate background color based on the current earthquake magnitude
-        int magnitudeColor = getMagnitudeColor(earthquake.getMag());
-        // Set the color on the magnitude circle
-        magnitudeCircle.setColor(magnitudeColor);
+        // Set the proper background color on the magnitude circle (a GradientDrawable).
+        holder.magnitudeCircle.setColor(getMagnitudeColor(mag));
 
+        if (Metrics.ENABLED) {
+            BIND.recordSince(bindStart);
+        }
         // Return the list item view that is now showing the appropriate data
         return listItemView;
     }
 
+    /**
+     * Clear a row whose earthquake is not loaded yet.
+     */
+    private void bindPlaceholder(ViewHolder holder) {
+        holder.magnitude.setText(null);
+        holder.magnitudeCircle.setColor(Color.TRANSPARENT);
+        holder.locationOffset.setText(null);
+        holder.primaryLocation.setText(null);
+        holder.date.setText(null);
+        holder.time.setText(null);
+    }
+
     /**
      * Return the formatted date string (i.e. "Mar 3, 1984") from a Date object.
      */
     public String formatDate(Date dateObject) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat(" MMM d, yyyy");
-        return dateFormat.format(dateObject);
+        return new String(mFormatChars, 0, mFormatter.formatDate(dateObject.getTime(), mFormatChars));
     }
 
     /**
-     * Return the formatted date string (i.e. "4:30 PM") from a Date object.
+     * Return the formatted time string (i.e. "16:30") from a Date object.
      */
     public String formatTime(Date dateObject) {
-        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:MM");
-        return timeFormat.format(dateObject);
+        return new String(mFormatChars, 0, mFormatter.formatTime(dateObject.getTime(), mFormatChars));
     }
 
     /**
@@ -122,87 +273,61 @@ public class EarthquakeAdapter extends ArrayAdapter {
      * from a decimal magnitude value.
      */
     public String formatMag(double mag) {
-        DecimalFormat formatter = new DecimalFormat("0.0");
-        return formatter.format(mag);
+        return new String(mFormatChars, 0, mFormatter.formatMag(mag, mFormatChars));
     }
 
+    /**
+     * Return the background color of the magnitude circle, from the table built in the constructor.
+     */
     public int getMagnitudeColor(double magnitude) {
-        int color = (int) magnitude;
-        switch (color) {
-            case 0:
-            case 1:
-                int magnitude1Color = ContextCompat.getColor(getContext(), R.color.magnitude1);
-                return magnitude1Color;
-
-            case 2:
-                int magnitude2Color = ContextCompat.getColor(getContext(), R.color.magnitude2);
-                return magnitude2Color;
-            case 3:
-                int magnitude3Color = ContextCompat.getColor(getContext(), R.color.magnitude3);
-                return magnitude3Color;
-            case 4:
-                int magnitude4Color = ContextCompat.getColor(getContext(), R.color.magnitude4);
-                return magnitude4Color;
-            case 5:
-                int magnitude5Color = ContextCompat.getColor(getContext(), R.color.magnitude5);
-                return magnitude5Color;
-            case 6:
-                int magnitude6Color = ContextCompat.getColor(getContext(), R.color.magnitude6);
-                return magnitude6Color;
-            case 7:
-                int magnitude7Color = ContextCompat.getColor(getContext(), R.color.magnitude7);
-                return magnitude7Color;
-            case 8:
-                int magnitude8Color = ContextCompat.getColor(getContext(), R.color.magnitude8);
-                return magnitude8Color;
-            case 9:
-                int magnitude9Color = ContextCompat.getColor(getContext(), R.color.magnitude9);
-                return magnitude9Color;
-            default:
-                int magnitude10Color = ContextCompat.getColor(getContext(), R.color.magnitude10plus);
-                return magnitude10Color;
+        return mMagnitudeColors[EarthquakeFormatter.getMagnitudeBand(magnitude)];
+    }
+
+    /**
+     * Resolve the color of every magnitude band once, indexed by EarthquakeFormatter.getMagnitudeBand().
+     */
+    private static int[] buildMagnitudeColors(Context context) {
+        int[] colorResourceIds = {
+                R.color.magnitude1, // negative magnitudes, colored like those below 2
+                R.color.magnitude1,
+                R.color.magnitude2,
+                R.color.magnitude3,
+                R.color.magnitude4,
+                R.color.magnitude5,
+                R.color.magnitude6,
+                R.color.magnitude7,
+                R.color.magnitude8,
+                R.color.magnitude9,
+                R.color.magnitude10plus};
+        int[] colors = new int[colorResourceIds.length];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = ContextCompat.getColor(context, colorResourceIds[i]);
         }
+        return colors;
     }
+
     /**
-    NOTE: Another Way to Implement this switch case is as follows
-
-    private int getMagnitudeColor(double magnitude) {
-    int magnitudeColorResourceId;
-    int magnitudeFloor = (int) Math.floor(magnitude);
-    switch (magnitudeFloor) {
-        case 0:
-        case 1:
-            magnitudeColorResourceId = R.color.magnitude1;
-            break;
-        case 2:
-            magnitudeColorResourceId = R.color.magnitude2;
-            break;
-        case 3:
-            magnitudeColorResourceId = R.color.magnitude3;
-            break;
-        case 4:
-            magnitudeColorResourceId = R.color.magnitude4;
-            break;
-        case 5:
-            magnitudeColorResourceId = R.color.magnitude5;
-            break;
-        case 6:
-            magnitudeColorResourceId = R.color.magnitude6;
-            break;
-        case 7:
-            magnitudeColorResourceId = R.color.magnitude7;
-            break;
-        case 8:
-            magnitudeColorResourceId = R.color.magnitude8;
-            break;
-        case 9:
-            magnitudeColorResourceId = R.color.magnitude9;
-            break;
-        default:
-            magnitudeColorResourceId = R.color.magnitude10plus;
-            break;
-    }
-    return ContextCompat.getColor(getContext(), magnitudeColorResourceId);
- }
-    */
+     * Caches the views of a list item, and the char buffers their text is formatted into.
+     */
+    private static final class ViewHolder {
+        final TextView magnitude;
+        final GradientDrawable magnitudeCircle;
+        final TextView locationOffset;
+        final TextView primaryLocation;
+        final TextView date;
+        final TextView time;
+        final char[] magChars = new char[EarthquakeFormatter.SHORT_BUFFER_SIZE];
+        final char[] dateChars;
+        final char[] timeChars = new char[EarthquakeFormatter.SHORT_BUFFER_SIZE];
+
+        ViewHolder(View listItemView, int dateBufferSize) {
+            magnitude = (TextView) listItemView.findViewById(R.id.magnitude);
+            magnitudeCircle = (GradientDrawable) magnitude.getBackground();
+            locationOffset = (TextView) listItemView.findViewById(R.id.location_offset);
+            primaryLocation = (TextView) listItemView.findViewById(R.id.primary_location);
+            date = (TextView) listItemView.findViewById(R.id.date);
+            time = (TextView) listItemView.findViewById(R.id.time);
+            dateChars = new char[dateBufferSize];
+        }
+    }
 }
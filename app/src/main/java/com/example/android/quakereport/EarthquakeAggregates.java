@@ -0,0 +1,550 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Summary of a set of earthquakes, kept up to date as events are put into it or removed from it
+ * instead of being recomputed from every event: how many events fall in each magnitude band (the
+ * bands of {@link EarthquakeFormatter#getMagnitudeBand}, i.e. the colors of the list), in each
+ * hour, day and week, and the largest magnitude of each region.
+ * <p>
+ * Events are identified by their id, so putting an event again updates it; events without an id
+ * are ignored, like {@link EarthquakeCache#sync} does. Putting or removing an event takes
+ * constant time however many events there are. Hours, days and weeks (starting on Monday) are those
+ * of the time zone the aggregates were created in, and the region of an event is the last part of
+ * its primary location ("Japan" for "Rumoi, Japan"). Maximum magnitudes are kept to the tenth, as
+ * the list shows them.
+ * <p>
+ * Buckets, regions and locations are dropped when their last event is removed, so the memory used
+ * follows the events currently put, not all those ever put.
+ * <p>
+ * Not thread-safe.
+ */
+public final class EarthquakeAggregates {
+
+    /**
+     * Length of the time buckets events are counted in.
+     */
+    public enum Period {
+        HOUR, DAY, WEEK
+    }
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+    /**
+     * Day 0 (1 January 1970) was a Thursday, this many days after the Monday starting its week
+     */
+    private static final int EPOCH_DAY_OF_WEEK = 3;
+
+    /**
+     * Range of the magnitudes, in tenths, whose maximum is tracked per region; magnitudes out of it
+     * are counted at its ends
+     */
+    static final int MIN_MAG_TENTHS = -20;
+    static final int MAX_MAG_TENTHS = 120;
+
+    private static final int NO_BIN = -1;
+
+    /**
+     * Events of one region, counted per tenth of magnitude so that the maximum can be found again
+     * in a bounded number of steps when the event holding it is removed.
+     */
+    private static final class Region {
+        final String name;
+        final int[] counts = new int[MAX_MAG_TENTHS - MIN_MAG_TENTHS + 1];
+        int count;
+        int maxBin = NO_BIN;
+
+        Region(String name) {
+            this.name = name;
+        }
+
+        void add(int bin) {
+            counts[bin]++;
+            count++;
+            if (bin > maxBin) {
+                maxBin = bin;
+            }
+        }
+
+        void remove(int bin) {
+            counts[bin]--;
+            count--;
+            if (bin == maxBin) {
+                while (maxBin >= 0 && counts[maxBin] == 0) {
+                    maxBin--;
+                }
+            }
+        }
+
+        double getMaxMagnitude() {
+            return maxBin == NO_BIN ? Double.NaN : (maxBin + MIN_MAG_TENTHS) / 10.0;
+        }
+    }
+
+    /**
+     * A primary location and its region, with the number of events at the location.
+     */
+    private static final class Location {
+        final String name;
+        final Region region;
+        int count;
+
+        Location(String name, Region region) {
+            this.name = name;
+            this.region = region;
+        }
+    }
+
+    /**
+     * Event counts keyed by bucket number, in an open addressing table of primitives (with linear
+     * probing) so that counting an event does not allocate. Buckets whose count drops to zero are
+     * deleted.
+     */
+    private static final class BucketCounts {
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        private long[] mKeys = newKeys(64);
+        private int[] mCounts = new int[64];
+        private int mSize;
+
+        void add(long key, int delta) {
+            int slot = find(mKeys, key);
+            if (mKeys[slot] == EMPTY) {
+                if ((mSize + 1) * 2 > mKeys.length) {
+                    grow();
+                    slot = find(mKeys, key);
+                }
+                mKeys[slot] = key;
+                mSize++;
+            }
+            mCounts[slot] += delta;
+            if (mCounts[slot] == 0) {
+                delete(slot);
+            }
+        }
+
+        int get(long key) {
+            int slot = find(mKeys, key);
+            return mKeys[slot] == EMPTY ? 0 : mCounts[slot];
+        }
+
+        void clear() {
+            mKeys = newKeys(64);
+            mCounts = new int[64];
+            mSize = 0;
+        }
+
+        /**
+         * Empty the slot, moving back the following keys of its probe run that could not be
+         * found past it anymore.
+         */
+        private void delete(int slot) {
+            int mask = mKeys.length - 1;
+            mKeys[slot] = EMPTY;
+            mSize--;
+            for (int next = (slot + 1) & mask; mKeys[next] != EMPTY; next = (next + 1) & mask) {
+                int home = getHome(mKeys[next], mask);
+                // The key can move to the empty slot if that slot is between its home and it
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    mKeys[slot] = mKeys[next];
+                    mCounts[slot] = mCounts[next];
+                    mKeys[next] = EMPTY;
+                    mCounts[next] = 0;
+                    slot = next;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = mKeys;
+            int[] oldCounts = mCounts;
+            mKeys = newKeys(oldKeys.length * 2);
+            mCounts = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = find(mKeys, oldKeys[i]);
+                    mKeys[slot] = oldKeys[i];
+                    mCounts[slot] = oldCounts[i];
+                }
+            }
+        }
+
+        /**
+         * Returns the slot holding the key, or the empty slot where it belongs.
+         */
+        private static int find(long[] keys, long key) {
+            int mask = keys.length - 1;
+            int slot = getHome(key, mask);
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private static int getHome(long key, int mask) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        private static long[] newKeys(int capacity) {
+            long[] keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+    }
+
+    private final TimeZone mTimeZone;
+    private final int[] mBandCounts = new int[11];
+    private final BucketCounts[] mBucketCounts = new BucketCounts[Period.values().length];
+    private final HashMap<String, Region> mRegions = new HashMap<>();
+    /**
+     * The primary locations of the events, so that most events find their region without a substring
+     */
+    private final HashMap<String, Location> mLocations = new HashMap<>();
+
+    /**
+     * What each event contributed, by slot, so that it can be taken back when the event is
+     * updated or removed; freed slots are reused
+     */
+    private final HashMap<String, Integer> mSlotsById = new HashMap<>();
+    private double[] mMags = new double[16];
+    private long[] mTimes = new long[16];
+    private Location[] mSlotLocations = new Location[16];
+    private int mSlotCount;
+    private int[] mFreeSlots = new int[16];
+    private int mFreeSlotCount;
+
+    /**
+     * Aggregates with time buckets in the default time zone.
+     */
+    public EarthquakeAggregates() {
+        this(TimeZone.getDefault());
+    }
+
+    public EarthquakeAggregates(TimeZone timeZone) {
+        mTimeZone = timeZone;
+        for (int i = 0; i < mBucketCounts.length; i++) {
+            mBucketCounts[i] = new BucketCounts();
+        }
+    }
+
+    /**
+     * Add the earthquake, or update it if an earthquake with the same id was put before.
+     */
+    public void put(Earthquake earthquake) {
+        put(earthquake.getId(), earthquake.getMag(), earthquake.getTimeInMillSeconds(),
+                earthquake.getPrimaryLocation());
+    }
+
+    /**
+     * Add or update the earthquake at the given position of a store.
+     */
+    public void put(EarthquakeStore store, int position) {
+        put(store.getId(position), store.getMag(position), store.getTimeInMillSeconds(position),
+                store.getPrimaryLocation(position));
+    }
+
+    /**
+     * Add or update every earthquake of the store.
+     */
+    public void putAll(EarthquakeStore store) {
+        for (int i = 0; i < store.size(); i++) {
+            put(store, i);
+        }
+    }
+
+    /**
+     * Add or update every earthquake of the list.
+     */
+    public void putAll(List<Earthquake> earthquakes) {
+        EarthquakeStore store = EarthquakeStore.from(earthquakes);
+        if (store != null) {
+            putAll(store);
+            return;
+        }
+        for (int i = 0; i < earthquakes.size(); i++) {
+            put(earthquakes.get(i));
+        }
+    }
+
+    /**
+     * Remove every earthquake of the store.
+     */
+    public void removeAll(EarthquakeStore store) {
+        for (int i = 0; i < store.size(); i++) {
+            String id = store.getId(i);
+            if (id != null) {
+                remove(id);
+            }
+        }
+    }
+
+    /**
+     * Apply a new version of a set of earthquakes: the earthquakes of the old version that are not
+     * in the new one are removed, the others are added or updated.
+     */
+    public void replace(EarthquakeStore oldEarthquakes, EarthquakeStore newEarthquakes) {
+        HashSet<String> newIds = new HashSet<>();
+        for (int i = 0; i < newEarthquakes.size(); i++) {
+            String id = newEarthquakes.getId(i);
+            if (id != null) {
+                newIds.add(id);
+            }
+        }
+        for (int i = 0; i < oldEarthquakes.size(); i++) {
+            String id = oldEarthquakes.getId(i);
+            if (id != null && !newIds.contains(id)) {
+                remove(id);
+            }
+        }
+        putAll(newEarthquakes);
+    }
+
+    /**
+     * Remove the earthquake with the given id, if it was put.
+     */
+    public void remove(String id) {
+        Integer slot = mSlotsById.remove(id);
+        if (slot == null) {
+            return;
+        }
+        subtract(slot);
+        mSlotLocations[slot] = null;
+        if (mFreeSlotCount == mFreeSlots.length) {
+            mFreeSlots = Arrays.copyOf(mFreeSlots, mFreeSlotCount * 2);
+        }
+        mFreeSlots[mFreeSlotCount++] = slot;
+    }
+
+    public void clear() {
+        Arrays.fill(mBandCounts, 0);
+        for (BucketCounts counts : mBucketCounts) {
+            counts.clear();
+        }
+        mRegions.clear();
+        mLocations.clear();
+        mSlotsById.clear();
+        Arrays.fill(mSlotLocations, 0, mSlotCount, null);
+        mSlotCount = 0;
+        mFreeSlotCount = 0;
+    }
+
+    /**
+     * Returns the number of earthquakes.
+     */
+    public int getCount() {
+        return mSlotsById.size();
+    }
+
+    /**
+     * Returns the number of earthquakes in the given magnitude band (0 for negative magnitudes,
+     * then 1 to 10, see {@link EarthquakeFormatter#getMagnitudeBand}).
+     */
+    public int getBandCount(int band) {
+        return band >= 0 && band < mBandCounts.length ? mBandCounts[band] : 0;
+    }
+
+    /**
+     * Returns the number of earthquakes in the hour, day or week containing the given time.
+     */
+    public int getEventCount(Period period, long timeInMillis) {
+        return mBucketCounts[period.ordinal()].get(getBucket(period, timeInMillis));
+    }
+
+    /**
+     * Returns the number of earthquakes in each of the given number of hours, days or weeks up to
+     * the one containing the given time, oldest first.
+     */
+    public int[] getEventCounts(Period period, long timeInMillis, int buckets) {
+        BucketCounts counts = mBucketCounts[period.ordinal()];
+        long last = getBucket(period, timeInMillis);
+        int[] result = new int[buckets];
+        for (int i = 0; i < buckets; i++) {
+            result[i] = counts.get(last - buckets + 1 + i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the largest magnitude (to the tenth) of the earthquakes of a region, or NaN if it has none.
+     */
+    public double getMaxMagnitude(String region) {
+        Region stats = mRegions.get(region);
+        return stats == null ? Double.NaN : stats.getMaxMagnitude();
+    }
+
+    /**
+     * Returns the regions that have earthquakes, largest maximum magnitude first. Unlike the
+     * other queries this sorts every region, so it is meant for showing a summary, not for every event.
+     */
+    public List<String> getRegionsByMaxMagnitude() {
+        ArrayList<Region> regions = new ArrayList<>();
+        for (Region region : mRegions.values()) {
+            if (region.count > 0) {
+                regions.add(region);
+            }
+        }
+        Collections.sort(regions, new Comparator<Region>() {
+            @Override
+            public int compare(Region a, Region b) {
+                if (a.maxBin != b.maxBin) {
+                    return a.maxBin > b.maxBin ? -1 : 1;
+                }
+                return a.name.compareTo(b.name);
+            }
+        });
+        ArrayList<String> names = new ArrayList<>(regions.size());
+        for (Region region : regions) {
+            names.add(region.name);
+        }
+        return names;
+    }
+
+    private void put(String id, double mag, long time, String primaryLocation) {
+        if (id == null) {
+            return;
+        }
+        Integer existing = mSlotsById.get(id);
+        int slot;
+        if (existing != null) {
+            slot = existing;
+            if (Double.compare(mMags[slot], mag) == 0 && mTimes[slot] == time
+                    && isAt(mSlotLocations[slot], primaryLocation)) {
+                return;
+            }
+            // Taken back first, so that a location or region it leaves empty is dropped
+            subtract(slot);
+        } else {
+            slot = allocateSlot();
+            mSlotsById.put(id, slot);
+        }
+        mMags[slot] = mag;
+        mTimes[slot] = time;
+        mSlotLocations[slot] = getLocation(primaryLocation);
+        add(slot, 1);
+    }
+
+    private void subtract(int slot) {
+        add(slot, -1);
+    }
+
+    /**
+     * Add (delta 1) or take back (delta -1) the contribution of the event in the slot.
+     */
+    private void add(int slot, int delta) {
+        double mag = mMags[slot];
+        long time = mTimes[slot];
+        mBandCounts[EarthquakeFormatter.getMagnitudeBand(mag)] += delta;
+        long localTime = time + mTimeZone.getOffset(time);
+        long day = floorDiv(localTime, DAY_MILLIS);
+        mBucketCounts[Period.HOUR.ordinal()].add(floorDiv(localTime, HOUR_MILLIS), delta);
+        mBucketCounts[Period.DAY.ordinal()].add(day, delta);
+        mBucketCounts[Period.WEEK.ordinal()].add(floorDiv(day + EPOCH_DAY_OF_WEEK, 7), delta);
+        Location location = mSlotLocations[slot];
+        if (location == null) {
+            return;
+        }
+        Region region = location.region;
+        location.count += delta;
+        if (delta > 0) {
+            region.add(getMagBin(mag));
+            return;
+        }
+        region.remove(getMagBin(mag));
+        if (location.count == 0) {
+            mLocations.remove(location.name);
+        }
+        if (region.count == 0) {
+            mRegions.remove(region.name);
+        }
+    }
+
+    private int allocateSlot() {
+        if (mFreeSlotCount > 0) {
+            return mFreeSlots[--mFreeSlotCount];
+        }
+        if (mSlotCount == mMags.length) {
+            int capacity = mSlotCount * 2;
+            mMags = Arrays.copyOf(mMags, capacity);
+            mTimes = Arrays.copyOf(mTimes, capacity);
+            mSlotLocations = Arrays.copyOf(mSlotLocations, capacity);
+        }
+        return mSlotCount++;
+    }
+
+    /**
+     * Returns a primary location and its region, creating them if they have no event yet.
+     */
+    private Location getLocation(String primaryLocation) {
+        if (primaryLocation == null || primaryLocation.isEmpty()) {
+            return null;
+        }
+        Location location = mLocations.get(primaryLocation);
+        if (location == null) {
+            String name = getRegionName(primaryLocation);
+            Region region = mRegions.get(name);
+            if (region == null) {
+                region = new Region(name);
+                mRegions.put(name, region);
+            }
+            location = new Location(primaryLocation, region);
+            mLocations.put(primaryLocation, location);
+        }
+        return location;
+    }
+
+    private static boolean isAt(Location location, String primaryLocation) {
+        if (location == null) {
+            return primaryLocation == null || primaryLocation.isEmpty();
+        }
+        return location.name.equals(primaryLocation);
+    }
+
+    private long getBucket(Period period, long time) {
+        long localTime = time + mTimeZone.getOffset(time);
+        switch (period) {
+            case HOUR:
+                return floorDiv(localTime, HOUR_MILLIS);
+            case DAY:
+                return floorDiv(localTime, DAY_MILLIS);
+            default:
+                return floorDiv(floorDiv(localTime, DAY_MILLIS) + EPOCH_DAY_OF_WEEK, 7);
+        }
+    }
+
+    /**
+     * Returns the region of a primary location: what follows its last comma ("Japan" for
+     * "Rumoi, Japan"), or the whole location ("Alaska").
+     */
+    static String getRegionName(String primaryLocation) {
+        int comma = primaryLocation.lastIndexOf(',');
+        if (comma < 0) {
+            return primaryLocation;
+        }
+        return EarthquakeStrings.intern(primaryLocation.substring(comma + 1).trim());
+    }
+
+    /**
+     * Returns the index of the tenth of magnitude of a region's counts.
+     */
+    static int getMagBin(double mag) {
+        if (Double.isNaN(mag)) {
+            return 0;
+        }
+        long tenths = Math.round(mag * 10);
+        return (int) (Math.max(MIN_MAG_TENTHS, Math.min(MAX_MAG_TENTHS, tenths)) - MIN_MAG_TENTHS);
+    }
+
+    private static long floorDiv(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        return dividend % divisor < 0 ? quotient - 1 : quotient;
+    }
+}
@@ -0,0 +1,673 @@
+package com.example.android.quakereport;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Persistent cache of parsed earthquakes, keyed by USGS event id.
+ * <p>
+ * Cached results are served from a memory-mapped {@link EarthquakeSnapshot} of the query (falling
+ * back to the database if there is none or it is corrupt), and refreshed with a conditional request
+ * (If-None-Match / If-Modified-Since) so an unchanged query costs a 304 instead of the full feed.
+ * Queries expire after {@link #TTL_MILLIS}, and the least recently fetched queries are evicted
+ * once more than {@link #MAX_EVENTS} events are stored.
+ */
+public final class EarthquakeCache {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = EarthquakeCache.class.getSimpleName();
+
+    /**
+     * Cached queries older than this are dropped
+     */
+    static final long TTL_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    /**
+     * Upper bound on the number of cached events
+     */
+    static final int MAX_EVENTS = 20000;
+    /**
+     * Most changes a sync merges; USGS does not return more per request
+     */
+    static final int MAX_SYNC_CHANGES = 20000;
+    /**
+     * A sync asks for changes since a bit before the previous one started, to allow for clock skew
+     */
+    private static final long SYNC_OVERLAP_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Outcome of a successful {@link #sync}: the merged result of the query, whether it differs
+     * from the cached one, and the changes the sync found over the whole query, beyond its limit.
+     */
+    public static final class SyncResult {
+        /**
+         * The result of the query after the sync, a view of an {@link EarthquakeStore}
+         */
+        public final List<Earthquake> earthquakes;
+        public final boolean changed;
+        /**
+         * Events added to or revised within the query, a view of an {@link EarthquakeStore}
+         */
+        public final List<Earthquake> updated;
+        /**
+         * Ids of the events deleted, revised out of the query or older than its time window
+         */
+        public final List<String> removedIds;
+
+        SyncResult(List<Earthquake> earthquakes, boolean changed, List<Earthquake> updated,
+                   List<String> removedIds) {
+            this.earthquakes = earthquakes;
+            this.changed = changed;
+            this.updated = updated;
+            this.removedIds = removedIds;
+        }
+
+        /**
+         * Returns true if the sync found changes to the query, whether or not they reached its result.
+         */
+        public boolean hasChanges() {
+            return !updated.isEmpty() || !removedIds.isEmpty();
+        }
+    }
+
+    private static EarthquakeCache sInstance;
+
+    private final EarthquakeDbHelper mDbHelper;
+    /**
+     * Directory holding one binary snapshot per cached query
+     */
+    private final File mSnapshotDir;
+    /**
+     * Spatial index over all cached events, dropped whenever the cached events change
+     */
+    private volatile EarthquakeSpatialIndex mSpatialIndex;
+
+    /**
+     * Use {@link #getInstance(Context)}; tests create their own cache.
+     */
+    EarthquakeCache(Context context) {
+        mDbHelper = new EarthquakeDbHelper(context);
+        mSnapshotDir = new File(context.getCacheDir(), "snapshots");
+    }
+
+    /**
+     * Returns the process-wide cache. A single instance keeps a single database connection.
+     */
+    public static synchronized EarthquakeCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EarthquakeCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Return the earthquakes cached for the given request URL, in their original order,
+     * or null if the query has never been fetched or was last fetched more than {@link #TTL_MILLIS}
+     * ago (it is then only dropped by the next eviction). Must not be called on the main thread.
+     */
+    public List<Earthquake> load(String requestUrl) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        long expiry = System.currentTimeMillis() - TTL_MILLIS;
+        if (DatabaseUtils.queryNumEntries(db, EarthquakeDbHelper.TABLE_QUERIES,
+                EarthquakeDbHelper.COLUMN_QUERY_URL + "=? AND " + EarthquakeDbHelper.COLUMN_QUERY_FETCHED_AT + ">?",
+                new String[]{requestUrl, String.valueOf(expiry)}) == 0) {
+            return null;
+        }
+
+        // The snapshot only needs to be mapped, rows are read from it when they are displayed
+        File snapshotFile = getSnapshotFile(requestUrl);
+        try {
+            EarthquakeStore snapshot = EarthquakeSnapshot.open(snapshotFile, requestUrl);
+            if (snapshot != null) {
+                return snapshot.asList();
+            }
+        } catch (IOException e) {
+            // Read the database instead, which also writes a new snapshot
+            Log.e(LOG_TAG, "Problem reading the earthquake snapshot", e);
+            snapshotFile.delete();
+        }
+
+        EarthquakeStore earthquakes = new EarthquakeStore();
+        Cursor cursor = db.rawQuery("SELECT e." + EarthquakeDbHelper.COLUMN_EVENT_ID
+                + ", e." + EarthquakeDbHelper.COLUMN_EVENT_MAG
+                + ", e." + EarthquakeDbHelper.COLUMN_EVENT_PLACE
+                + ", e." + EarthquakeDbHelper.COLUMN_EVENT_TIME
+                + ", e." + EarthquakeDbHelper.COLUMN_EVENT_URL
+                + ", e." + EarthquakeDbHelper.COLUMN_EVENT_LONGITUDE
+                + ", e." + EarthquakeDbHelper.COLUMN_EVENT_LATITUDE
+                + " FROM " + EarthquakeDbHelper.TABLE_RESULTS + " r JOIN " + EarthquakeDbHelper.TABLE_EVENTS
+                + " e ON r." + EarthquakeDbHelper.COLUMN_RESULT_EVENT_ID + " = e." + EarthquakeDbHelper.COLUMN_EVENT_ID
+                + " WHERE r." + EarthquakeDbHelper.COLUMN_RESULT_URL + " = ?"
+                + " ORDER BY r." + EarthquakeDbHelper.COLUMN_RESULT_POSITION, new String[]{requestUrl});
+        try {
+            while (cursor.moveToNext()) {
+                earthquakes.add(cursor.getDouble(1), cursor.getString(2), cursor.getLong(3),
+                        cursor.getString(4), cursor.getString(0),
+                        cursor.isNull(5) ? Double.NaN : cursor.getDouble(5),
+                        cursor.isNull(6) ? Double.NaN : cursor.getDouble(6));
+            }
+        } finally {
+            cursor.close();
+        }
+        // Next time, skip the database
+        writeSnapshot(requestUrl, earthquakes.asList());
+        return earthquakes.asList();
+    }
+
+    /**
+     * Returns a spatial index over every cached event (of all cached queries, most recent first),
+     * for "events near X" lookups without a network round trip. The index is built on first use
+     * and kept until the cache changes. Must not be called on the main thread.
+     */
+    public EarthquakeSpatialIndex loadSpatialIndex() {
+        EarthquakeSpatialIndex index = mSpatialIndex;
+        if (index != null) {
+            return index;
+        }
+        EarthquakeStore earthquakes = new EarthquakeStore();
+        Cursor cursor = mDbHelper.getReadableDatabase().query(EarthquakeDbHelper.TABLE_EVENTS,
+                new String[]{EarthquakeDbHelper.COLUMN_EVENT_ID, EarthquakeDbHelper.COLUMN_EVENT_MAG,
+                        EarthquakeDbHelper.COLUMN_EVENT_PLACE, EarthquakeDbHelper.COLUMN_EVENT_TIME,
+                        EarthquakeDbHelper.COLUMN_EVENT_URL, EarthquakeDbHelper.COLUMN_EVENT_LONGITUDE,
+                        EarthquakeDbHelper.COLUMN_EVENT_LATITUDE},
+                EarthquakeDbHelper.COLUMN_EVENT_LONGITUDE + " IS NOT NULL", null, null, null,
+                EarthquakeDbHelper.COLUMN_EVENT_TIME + " DESC");
+        try {
+            while (cursor.moveToNext()) {
+                earthquakes.add(cursor.getDouble(1), cursor.getString(2), cursor.getLong(3),
+                        cursor.getString(4), cursor.getString(0), cursor.getDouble(5), cursor.getDouble(6));
+            }
+        } finally {
+            cursor.close();
+        }
+        index = EarthquakeSpatialIndex.build(earthquakes.asList());
+        mSpatialIndex = index;
+        return index;
+    }
+
+    /**
+     * Revalidate the cached result of the given request URL against the server (the source).
+     * If the server reports it unchanged, the cached earthquakes are returned without downloading
+     * them again; otherwise the new response is parsed (earthquakes are also handed to the callback,
+     * if any, as they arrive), stored and returned. Returns null if the request failed.
+     */
+    public List<Earthquake> refresh(String requestUrl, EarthquakeSource source,
+                                    final QueryUtils.EarthquakeCallback callback) {
+        String eTag = null;
+        String lastModified = null;
+        Cursor cursor = mDbHelper.getReadableDatabase().query(EarthquakeDbHelper.TABLE_QUERIES,
+                new String[]{EarthquakeDbHelper.COLUMN_QUERY_ETAG, EarthquakeDbHelper.COLUMN_QUERY_LAST_MODIFIED},
+                EarthquakeDbHelper.COLUMN_QUERY_URL + "=?", new String[]{requestUrl}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                eTag = cursor.getString(0);
+                lastModified = cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        long fetchStart = System.currentTimeMillis();
+        if (QueryUtils.shouldShard(requestUrl)) {
+            // Large queries are fetched as parallel time-window shards, which cannot be revalidated
+            List<Earthquake> sharded = QueryUtils.fetchEarthquakeDataSharded(source, requestUrl,
+                    QueryUtils.SHARD_COUNT, QueryUtils.SHARD_CONCURRENCY);
+            if (sharded == null) {
+                return null;
+            }
+            if (callback != null) {
+                for (Earthquake earthquake : sharded) {
+                    callback.onEarthquake(earthquake);
+                }
+            }
+            store(requestUrl, sharded, new QueryUtils.FetchResult(HttpURLConnection.HTTP_OK, null, null), fetchStart);
+            writeSnapshot(requestUrl, sharded);
+            return sharded;
+        }
+
+        final EarthquakeStore earthquakes = new EarthquakeStore();
+        QueryUtils.FetchResult result = source.fetch(requestUrl, eTag, lastModified,
+                new QueryUtils.EarthquakeCallback() {
+                    @Override
+                    public void onEarthquake(Earthquake earthquake) {
+                        earthquakes.add(earthquake);
+                        if (callback != null) {
+                            callback.onEarthquake(earthquake);
+                        }
+                    }
+                });
+
+        if (result.isNotModified()) {
+            Log.i(LOG_TAG, "Cached result still current: " + requestUrl);
+            touch(requestUrl);
+            return load(requestUrl);
+        }
+        if (!result.isSuccessful()) {
+            return null;
+        }
+        List<Earthquake> list = earthquakes.asList();
+        store(requestUrl, list, result, fetchStart);
+        writeSnapshot(requestUrl, list);
+        return list;
+    }
+
+    /**
+     * Returns the request URLs of all cached queries.
+     */
+    public List<String> getCachedQueries() {
+        ArrayList<String> queries = new ArrayList<>();
+        Cursor cursor = mDbHelper.getReadableDatabase().query(EarthquakeDbHelper.TABLE_QUERIES,
+                new String[]{EarthquakeDbHelper.COLUMN_QUERY_URL}, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                queries.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return queries;
+    }
+
+    /**
+     * Bring the cached result of a query up to date by asking the source only for the events
+     * updated (or deleted) since the last fetch or sync, and merging them into the result by
+     * event id. The changes are asked for with the query's own filters; events revised below its
+     * minimum magnitude are found by a second request for the changes below it, however far,
+     * among the cached events' times (which keeps it small). Events that fell out of the query's
+     * time window are dropped.
+     * The changes themselves are returned too, for whoever keeps more of the query than its
+     * cached result (see {@link EarthquakePager#applySyncChanges}).
+     * Must not be called on the main thread.
+     *
+     * @return the merged result and whether it changed, or null if the query is not cached or the
+     * changes could not be merged; in the latter case the next refresh fetches the whole query
+     */
+    public SyncResult sync(String requestUrl, EarthquakeSource source) {
+        String eTag;
+        String lastModified;
+        long syncedAt;
+        Cursor cursor = mDbHelper.getReadableDatabase().query(EarthquakeDbHelper.TABLE_QUERIES,
+                new String[]{EarthquakeDbHelper.COLUMN_QUERY_ETAG, EarthquakeDbHelper.COLUMN_QUERY_LAST_MODIFIED,
+                        EarthquakeDbHelper.COLUMN_QUERY_SYNCED_AT},
+                EarthquakeDbHelper.COLUMN_QUERY_URL + "=?", new String[]{requestUrl}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            eTag = cursor.getString(0);
+            lastModified = cursor.getString(1);
+            syncedAt = cursor.getLong(2);
+        } finally {
+            cursor.close();
+        }
+        List<Earthquake> current = load(requestUrl);
+        if (current == null) {
+            return null;
+        }
+
+        Uri uri = Uri.parse(requestUrl);
+        double minMag = parseMinMag(uri);
+        int limit = parseLimit(uri);
+        String orderBy = uri.getQueryParameter("orderby");
+        SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+        isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String updatedAfter = isoFormat.format(new Date(syncedAt - SYNC_OVERLAP_MILLIS));
+
+        long syncStart = System.currentTimeMillis();
+        final ArrayList<Earthquake> changes = new ArrayList<>();
+        QueryUtils.EarthquakeCallback collector = new QueryUtils.EarthquakeCallback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                changes.add(earthquake);
+            }
+        };
+        String deltaUrl = buildChangesQuery(uri, updatedAfter).build().toString();
+        if (!fetchChanges(source, deltaUrl, changes, collector)) {
+            return null;
+        }
+
+        // An event revised below minmag is not in the changes of the query, look for the changes
+        // below it over the cached events' times. No lower bound, a revision may be of any size.
+        if (minMag != Double.NEGATIVE_INFINITY && !current.isEmpty()) {
+            long oldest = Long.MAX_VALUE;
+            long newest = Long.MIN_VALUE;
+            for (Earthquake earthquake : current) {
+                oldest = Math.min(oldest, earthquake.getTimeInMillSeconds());
+                newest = Math.max(newest, earthquake.getTimeInMillSeconds());
+            }
+            String downgradesUrl = buildChangesQuery(uri, updatedAfter,
+                    "minmag", "minmagnitude", "maxmagnitude", "starttime", "endtime")
+                    .appendQueryParameter("maxmagnitude", String.valueOf(minMag))
+                    .appendQueryParameter("starttime", isoFormat.format(new Date(oldest)))
+                    .appendQueryParameter("endtime", isoFormat.format(new Date(newest + 1000)))
+                    .build().toString();
+            if (!fetchChanges(source, downgradesUrl, changes, collector)) {
+                return null;
+            }
+        }
+
+        // Replace changed events, drop deleted ones and those no longer matching the query,
+        // including those older than its time window (30 days back by default)
+        long[] timeRange = QueryUtils.getTimeRange(uri);
+        long startTime = timeRange == null ? Long.MIN_VALUE : timeRange[0];
+        LinkedHashMap<String, Earthquake> merged = new LinkedHashMap<>();
+        // The changes by id; both requests return the events at minmag
+        LinkedHashMap<String, Earthquake> updated = new LinkedHashMap<>();
+        LinkedHashSet<String> removedIds = new LinkedHashSet<>();
+        for (Earthquake earthquake : current) {
+            if (earthquake.getId() == null) {
+                continue;
+            }
+            if (earthquake.getTimeInMillSeconds() >= startTime) {
+                merged.put(earthquake.getId(), earthquake);
+            } else {
+                removedIds.add(earthquake.getId());
+            }
+        }
+        for (Earthquake change : changes) {
+            String id = change.getId();
+            if (id == null) {
+                continue;
+            }
+            merged.remove(id);
+            if (!change.isDeleted() && change.getMag() >= minMag && change.getTimeInMillSeconds() >= startTime) {
+                merged.put(id, change);
+                updated.put(id, change);
+                removedIds.remove(id);
+            } else {
+                updated.remove(id);
+                removedIds.add(id);
+            }
+        }
+        ArrayList<Earthquake> mergedList = new ArrayList<>(merged.values());
+        sortByOrder(mergedList, orderBy);
+        if (mergedList.size() > limit) {
+            mergedList.subList(limit, mergedList.size()).clear();
+        } else if (current.size() >= limit && mergedList.size() < limit) {
+            // Events dropped out of a full page; the ones that move up into it are not known here
+            return null;
+        }
+
+        EarthquakeStore earthquakes = new EarthquakeStore();
+        earthquakes.addAll(mergedList);
+        boolean changed = !sameRows(current, earthquakes);
+        if (!changed) {
+            // The cached result is as fresh as a fetch, it must not expire or be evicted first
+            ContentValues values = new ContentValues();
+            values.put(EarthquakeDbHelper.COLUMN_QUERY_FETCHED_AT, System.currentTimeMillis());
+            values.put(EarthquakeDbHelper.COLUMN_QUERY_SYNCED_AT, syncStart);
+            mDbHelper.getWritableDatabase().update(EarthquakeDbHelper.TABLE_QUERIES, values,
+                    EarthquakeDbHelper.COLUMN_QUERY_URL + "=?", new String[]{requestUrl});
+        } else {
+            // The validators are kept: if the query changed, the server no longer matches them anyway
+            store(requestUrl, earthquakes.asList(), new QueryUtils.FetchResult(HttpURLConnection.HTTP_OK,
+                    eTag, lastModified), syncStart);
+            writeSnapshot(requestUrl, earthquakes.asList());
+        }
+        Log.i(LOG_TAG, "Synced " + changes.size() + " changes into " + requestUrl
+                + (changed ? ", its result changed" : ", its result is the same"));
+        EarthquakeStore updatedStore = new EarthquakeStore();
+        updatedStore.addAll(new ArrayList<>(updated.values()));
+        return new SyncResult(earthquakes.asList(), changed, updatedStore.asList(), new ArrayList<>(removedIds));
+    }
+
+    /**
+     * Returns true if the cached result has the same rows, in the same order, as the merged one.
+     * Where the rows moved to is left to whoever displays them (see EarthquakePager).
+     */
+    private static boolean sameRows(List<Earthquake> cached, EarthquakeStore merged) {
+        EarthquakeStore store = EarthquakeStore.from(cached);
+        if (store == null) {
+            store = new EarthquakeStore();
+            store.addAll(cached);
+        }
+        if (store.size() != merged.size()) {
+            return false;
+        }
+        for (int i = 0; i < merged.size(); i++) {
+            String id = merged.getId(i);
+            if (id == null || !id.equals(store.getId(i)) || !EarthquakeListDiff.sameValues(store, i, merged, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the query asking only for the events updated since the given time, deleted ones
+     * included, most recent first, without the paging parameters and the given ones.
+     */
+    private static Uri.Builder buildChangesQuery(Uri uri, String updatedAfter, String... excludedParameters) {
+        List<String> excluded = Arrays.asList(excludedParameters);
+        Uri.Builder builder = uri.buildUpon().clearQuery();
+        for (String name : uri.getQueryParameterNames()) {
+            if ("orderby".equals(name) || "limit".equals(name) || "offset".equals(name)
+                    || excluded.contains(name)) {
+                continue;
+            }
+            for (String value : uri.getQueryParameters(name)) {
+                builder.appendQueryParameter(name, value);
+            }
+        }
+        return builder.appendQueryParameter("updatedafter", updatedAfter)
+                .appendQueryParameter("includedeleted", "true")
+                .appendQueryParameter("orderby", "time")
+                .appendQueryParameter("limit", String.valueOf(MAX_SYNC_CHANGES));
+    }
+
+    /**
+     * Fetch changes into the list through the collector.
+     *
+     * @return false if the request failed or hit the limit, so that some changes may be missing
+     */
+    private static boolean fetchChanges(EarthquakeSource source, String changesUrl, List<Earthquake> changes,
+                                        QueryUtils.EarthquakeCallback collector) {
+        int before = changes.size();
+        QueryUtils.FetchResult result = source.fetch(changesUrl, null, null, collector);
+        return result.isSuccessful() && changes.size() - before < MAX_SYNC_CHANGES;
+    }
+
+    /**
+     * Sort merged earthquakes the way USGS orders the query ("time" if not given).
+     */
+    private static void sortByOrder(List<Earthquake> earthquakes, String orderBy) {
+        final boolean byMagnitude = orderBy != null && orderBy.startsWith("magnitude");
+        final boolean ascending = orderBy != null && orderBy.endsWith("-asc");
+        Collections.sort(earthquakes, new Comparator<Earthquake>() {
+            @Override
+            public int compare(Earthquake a, Earthquake b) {
+                int result;
+                if (byMagnitude) {
+                    result = Double.compare(a.getMag(), b.getMag());
+                } else {
+                    long timeA = a.getTimeInMillSeconds();
+                    long timeB = b.getTimeInMillSeconds();
+                    result = timeA < timeB ? -1 : (timeA == timeB ? 0 : 1);
+                }
+                return ascending ? result : -result;
+            }
+        });
+    }
+
+    private static double parseMinMag(Uri uri) {
+        String minMag = uri.getQueryParameter("minmag");
+        if (minMag == null) {
+            minMag = uri.getQueryParameter("minmagnitude");
+        }
+        try {
+            return minMag == null ? Double.NEGATIVE_INFINITY : Double.parseDouble(minMag);
+        } catch (NumberFormatException e) {
+            return Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    private static int parseLimit(Uri uri) {
+        String limit = uri.getQueryParameter("limit");
+        try {
+            return limit == null ? MAX_SYNC_CHANGES : Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            return MAX_SYNC_CHANGES;
+        }
+    }
+
+    /**
+     * Returns the snapshot file of the given query.
+     */
+    private File getSnapshotFile(String requestUrl) {
+        return new File(mSnapshotDir, Integer.toHexString(requestUrl.hashCode()) + ".snapshot");
+    }
+
+    /**
+     * Save the earthquakes of a query as a binary snapshot, so the next cold start can map them
+     * instead of reading them back from the database. A failed write only costs that speed-up.
+     */
+    private void writeSnapshot(String requestUrl, List<Earthquake> earthquakes) {
+        File snapshotFile = getSnapshotFile(requestUrl);
+        try {
+            if (!mSnapshotDir.isDirectory() && !mSnapshotDir.mkdirs()) {
+                throw new IOException("Could not create " + mSnapshotDir);
+            }
+            EarthquakeSnapshot.write(snapshotFile, requestUrl, earthquakes);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem writing the earthquake snapshot", e);
+            // Never leave a stale snapshot behind
+            snapshotFile.delete();
+        }
+        deleteExpiredSnapshots();
+    }
+
+    /**
+     * Snapshots are only served for queries that are still in the database, so files that outlived
+     * the TTL can never be used again.
+     */
+    private void deleteExpiredSnapshots() {
+        File[] files = mSnapshotDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long expiry = System.currentTimeMillis() - TTL_MILLIS;
+        for (File file : files) {
+            if (file.lastModified() < expiry) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Replace the cached result of a query with the given earthquakes and validators.
+     *
+     * @param syncedAt when the request the earthquakes come from was started
+     */
+    private void store(String requestUrl, List<Earthquake> earthquakes, QueryUtils.FetchResult result,
+                       long syncedAt) {
+        long now = System.currentTimeMillis();
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(EarthquakeDbHelper.TABLE_RESULTS,
+                    EarthquakeDbHelper.COLUMN_RESULT_URL + "=?", new String[]{requestUrl});
+
+            ContentValues query = new ContentValues();
+            query.put(EarthquakeDbHelper.COLUMN_QUERY_URL, requestUrl);
+            query.put(EarthquakeDbHelper.COLUMN_QUERY_ETAG, result.eTag);
+            query.put(EarthquakeDbHelper.COLUMN_QUERY_LAST_MODIFIED, result.lastModified);
+            query.put(EarthquakeDbHelper.COLUMN_QUERY_FETCHED_AT, now);
+            query.put(EarthquakeDbHelper.COLUMN_QUERY_SYNCED_AT, syncedAt);
+            db.insertWithOnConflict(EarthquakeDbHelper.TABLE_QUERIES, null, query, SQLiteDatabase.CONFLICT_REPLACE);
+
+            ContentValues event = new ContentValues();
+            ContentValues membership = new ContentValues();
+            int position = 0;
+            for (Earthquake earthquake : earthquakes) {
+                // Without an event id there is nothing to key the record on
+                if (earthquake.getId() == null) {
+                    continue;
+                }
+                event.put(EarthquakeDbHelper.COLUMN_EVENT_ID, earthquake.getId());
+                event.put(EarthquakeDbHelper.COLUMN_EVENT_MAG, earthquake.getMag());
+                event.put(EarthquakeDbHelper.COLUMN_EVENT_PLACE, earthquake.getName());
+                event.put(EarthquakeDbHelper.COLUMN_EVENT_TIME, earthquake.getTimeInMillSeconds());
+                event.put(EarthquakeDbHelper.COLUMN_EVENT_URL, earthquake.getUrl());
+                if (Double.isNaN(earthquake.getLongitude()) || Double.isNaN(earthquake.getLatitude())) {
+                    event.putNull(EarthquakeDbHelper.COLUMN_EVENT_LONGITUDE);
+                    event.putNull(EarthquakeDbHelper.COLUMN_EVENT_LATITUDE);
+                } else {
+                    event.put(EarthquakeDbHelper.COLUMN_EVENT_LONGITUDE, earthquake.getLongitude());
+                    event.put(EarthquakeDbHelper.COLUMN_EVENT_LATITUDE, earthquake.getLatitude());
+                }
+                event.put(EarthquakeDbHelper.COLUMN_EVENT_CACHED_AT, now);
+                db.insertWithOnConflict(EarthquakeDbHelper.TABLE_EVENTS, null, event, SQLiteDatabase.CONFLICT_REPLACE);
+
+                membership.put(EarthquakeDbHelper.COLUMN_RESULT_URL, requestUrl);
+                membership.put(EarthquakeDbHelper.COLUMN_RESULT_POSITION, position++);
+                membership.put(EarthquakeDbHelper.COLUMN_RESULT_EVENT_ID, earthquake.getId());
+                db.insert(EarthquakeDbHelper.TABLE_RESULTS, null, membership);
+            }
+
+            evict(db, now);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mSpatialIndex = null;
+        }
+    }
+
+    /**
+     * Mark a query as freshly validated so it does not expire.
+     */
+    private void touch(String requestUrl) {
+        ContentValues values = new ContentValues();
+        values.put(EarthquakeDbHelper.COLUMN_QUERY_FETCHED_AT, System.currentTimeMillis());
+        mDbHelper.getWritableDatabase().update(EarthquakeDbHelper.TABLE_QUERIES, values,
+                EarthquakeDbHelper.COLUMN_QUERY_URL + "=?", new String[]{requestUrl});
+    }
+
+    /**
+     * Drop expired queries, then the least recently fetched ones while the cache holds too many
+     * events, and finally every event no remaining query refers to.
+     */
+    private static void evict(SQLiteDatabase db, long now) {
+        db.delete(EarthquakeDbHelper.TABLE_QUERIES, EarthquakeDbHelper.COLUMN_QUERY_FETCHED_AT + "<?",
+                new String[]{String.valueOf(now - TTL_MILLIS)});
+        deleteOrphans(db);
+
+        while (DatabaseUtils.queryNumEntries(db, EarthquakeDbHelper.TABLE_EVENTS) > MAX_EVENTS
+                && DatabaseUtils.queryNumEntries(db, EarthquakeDbHelper.TABLE_QUERIES) > 1) {
+            db.execSQL("DELETE FROM " + EarthquakeDbHelper.TABLE_QUERIES + " WHERE " + EarthquakeDbHelper.COLUMN_QUERY_URL
+                    + " = (SELECT " + EarthquakeDbHelper.COLUMN_QUERY_URL + " FROM " + EarthquakeDbHelper.TABLE_QUERIES
+                    + " ORDER BY " + EarthquakeDbHelper.COLUMN_QUERY_FETCHED_AT + " LIMIT 1)");
+            deleteOrphans(db);
+        }
+    }
+
+    /**
+     * Remove result rows of deleted queries, and events that are no longer part of any result.
+     */
+    private static void deleteOrphans(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + EarthquakeDbHelper.TABLE_RESULTS + " WHERE " + EarthquakeDbHelper.COLUMN_RESULT_URL
+                + " NOT IN (SELECT " + EarthquakeDbHelper.COLUMN_QUERY_URL + " FROM " + EarthquakeDbHelper.TABLE_QUERIES + ")");
+        db.execSQL("DELETE FROM " + EarthquakeDbHelper.TABLE_EVENTS + " WHERE " + EarthquakeDbHelper.COLUMN_EVENT_ID
+                + " NOT IN (SELECT " + EarthquakeDbHelper.COLUMN_RESULT_EVENT_ID + " FROM " + EarthquakeDbHelper.TABLE_RESULTS + ")");
+    }
+}
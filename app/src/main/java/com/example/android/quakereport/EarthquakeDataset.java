@@ -0,0 +1,1011 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk import and export of earthquake catalogues kept in local files, for datasets far larger
+ * than a USGS query returns (years of events, millions of rows).
+ * <p>
+ * Files are USGS CSV (as served by a "format=csv" query) or GeoJSON (like a query response).
+ * An import memory-maps the file, cuts it into chunks at record boundaries, parses the chunks on
+ * several threads into one {@link EarthquakeStore} each, and concatenates them in file order.
+ * An export streams the rows out one at a time. An exported file imports back into the same rows.
+ * <p>
+ * Records of a CSV file must not contain line breaks, which USGS catalogues never do. Deleted
+ * events are skipped on import. Both directions stop with an {@link InterruptedIOException} when
+ * the calling thread's {@link FetchCancellation} is canceled.
+ */
+public final class EarthquakeDataset {
+
+    /**
+     * File formats of a dataset
+     */
+    public enum Format {
+        CSV,
+        GEOJSON;
+
+        /**
+         * Returns the format of the given file by its extension: CSV for ".csv", else GeoJSON.
+         */
+        public static Format of(File file) {
+            return file.getName().toLowerCase(Locale.US).endsWith(".csv") ? CSV : GEOJSON;
+        }
+    }
+
+    /**
+     * Files are not cut into chunks smaller than this, nor mapped in chunks larger than this
+     * (address space is scarce on 32-bit devices)
+     */
+    static final long MIN_CHUNK_BYTES = 1024 * 1024;
+    static final long MAX_CHUNK_BYTES = 64L * 1024 * 1024;
+    /**
+     * Chunks per import thread, so threads finishing early pick up the remaining work
+     */
+    static final int CHUNKS_PER_THREAD = 2;
+
+    /**
+     * Header of exported CSV files; the columns are named like those of USGS catalogues, plus url
+     */
+    static final String CSV_HEADER = "time,latitude,longitude,mag,id,place,url";
+
+    /**
+     * How many records are parsed or written between two checks for cancellation
+     */
+    private static final int CANCEL_CHECK_INTERVAL = 1024;
+    /**
+     * Size of the windows the GeoJSON features are located in, and of the copies scanned
+     */
+    private static final long SCAN_WINDOW_BYTES = 16L * 1024 * 1024;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    /**
+     * The CSV header must be within this many bytes of the start of the file
+     */
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Powers of ten that are exact doubles, for parsing decimals without allocating
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+    private static final Metrics.Counter IMPORTED = Metrics.counter("dataset.imported");
+    private static final Metrics.Counter EXPORTED = Metrics.counter("dataset.exported");
+    private static final Metrics.Histogram IMPORT_NANOS = Metrics.histogram("dataset.import.nanos");
+
+    private EarthquakeDataset() {
+    }
+
+    /**
+     * Import the given file, in the format given by its extension, on all cores.
+     */
+    public static EarthquakeStore importFile(File file) throws IOException {
+        return importFile(file, Format.of(file), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Import the given file into a new store, in file order.
+     *
+     * @param parallelism how many threads parse the file
+     * @throws IOException if the file could not be read or is malformed
+     */
+    public static EarthquakeStore importFile(File file, Format format, int parallelism) throws IOException {
+        long startNanos = Metrics.ENABLED ? System.nanoTime() : 0;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            long chunkCount = Math.max((size + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES,
+                    Math.min((long) parallelism * CHUNKS_PER_THREAD, size / MIN_CHUNK_BYTES));
+            int targetChunkCount = (int) Math.max(1, chunkCount);
+
+            CsvColumns columns = null;
+            List<long[]> chunks;
+            if (format == Format.CSV) {
+                columns = readCsvHeader(channel, size);
+                chunks = findCsvChunks(channel, columns.dataStart, size, targetChunkCount);
+            } else {
+                chunks = findFeatureChunks(channel, size, targetChunkCount);
+            }
+            EarthquakeStore store = parseChunks(channel, chunks, columns, parallelism);
+            if (Metrics.ENABLED) {
+                IMPORTED.add(store.size());
+                IMPORT_NANOS.recordSince(startNanos);
+            }
+            return store;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Parse the chunks on a pool of threads, and concatenate their stores in order while the
+     * later chunks are still being parsed.
+     *
+     * @param columns the CSV header, or null for GeoJSON chunks
+     */
+    private static EarthquakeStore parseChunks(final FileChannel channel, List<long[]> chunks,
+                                               final CsvColumns columns, int parallelism) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, chunks.size())));
+        // The chunks are parsed on other threads, hand them the caller's cancellation
+        final FetchCancellation cancellation = FetchCancellation.current();
+        List<Future<EarthquakeStore>> futures = new ArrayList<>();
+        for (final long[] chunk : chunks) {
+            futures.add(executor.submit(new Callable<EarthquakeStore>() {
+                @Override
+                public EarthquakeStore call() throws IOException {
+                    FetchCancellation.setCurrent(cancellation);
+                    try {
+                        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+                        return columns != null ? parseCsvChunk(buffer, columns) : parseFeatureChunk(buffer);
+                    } finally {
+                        FetchCancellation.setCurrent(null);
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+
+        EarthquakeStore store = new EarthquakeStore();
+        try {
+            for (Future<EarthquakeStore> future : futures) {
+                store.addAll(future.get().asList());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+        return store;
+    }
+
+    /**
+     * Write the earthquakes to the given file, in the format given by its extension.
+     *
+     * @return the number of rows written
+     */
+    public static int exportFile(List<Earthquake> earthquakes, File file) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            return export(earthquakes, Format.of(file), outputStream);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Stream the earthquakes to the given output, skipping deleted ones. Rows of a store (see
+     * {@link EarthquakeStore#asList()}) are read column by column, without creating
+     * {@link Earthquake} objects. The stream is flushed but left open for the caller to close.
+     *
+     * @return the number of rows written
+     */
+    public static int export(List<Earthquake> earthquakes, Format format, OutputStream outputStream)
+            throws IOException {
+        FetchCancellation cancellation = FetchCancellation.current();
+        Writer out = new BufferedWriter(new OutputStreamWriter(outputStream, UTF_8), 64 * 1024);
+        RowWriter rowWriter = format == Format.CSV ? new CsvRowWriter(out) : new FeatureRowWriter(out);
+        EarthquakeStore store = EarthquakeStore.from(earthquakes);
+        int count = 0;
+        rowWriter.begin();
+        for (int i = 0; i < earthquakes.size(); i++) {
+            if (i % CANCEL_CHECK_INTERVAL == 0) {
+                cancellation.throwIfCanceled();
+            }
+            if (store != null) {
+                rowWriter.write(store.getMag(i), store.getName(i), store.getTimeInMillSeconds(i),
+                        store.getUrl(i), store.getId(i), store.getLongitude(i), store.getLatitude(i));
+            } else {
+                Earthquake earthquake = earthquakes.get(i);
+                if (earthquake.isDeleted()) {
+                    continue;
+                }
+                rowWriter.write(earthquake.getMag(), earthquake.getName(), earthquake.getTimeInMillSeconds(),
+                        earthquake.getUrl(), earthquake.getId(), earthquake.getLongitude(),
+                        earthquake.getLatitude());
+            }
+            count++;
+        }
+        rowWriter.end();
+        out.flush();
+        if (Metrics.ENABLED) {
+            EXPORTED.add(count);
+        }
+        return count;
+    }
+
+    /*
+     * CSV import
+     */
+
+    /**
+     * Positions of the columns of a CSV file, -1 if it does not have the column
+     */
+    private static final class CsvColumns {
+        int time = -1;
+        int latitude = -1;
+        int longitude = -1;
+        int mag = -1;
+        int place = -1;
+        int id = -1;
+        int url = -1;
+        int status = -1;
+        /**
+         * Number of fields a record must have to hold every column we read
+         */
+        int required;
+        /**
+         * Offset of the first record after the header
+         */
+        long dataStart;
+    }
+
+    private static CsvColumns readCsvHeader(FileChannel channel, long size) throws IOException {
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAX_HEADER_BYTES));
+        int end = 0;
+        while (end < buffer.limit() && buffer.get(end) != '\n') {
+            end++;
+        }
+        if (end == buffer.limit() && end < size) {
+            throw new IOException("No CSV header in the first " + MAX_HEADER_BYTES + " bytes");
+        }
+        byte[] bytes = new byte[end];
+        buffer.get(bytes);
+        String header = new String(bytes, UTF_8).trim();
+        if (header.startsWith("\uFEFF")) {
+            header = header.substring(1);
+        }
+
+        CsvColumns columns = new CsvColumns();
+        String[] names = header.split(",");
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim();
+            if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) {
+                name = name.substring(1, name.length() - 1);
+            }
+            switch (name) {
+                case "time":
+                    columns.time = i;
+                    break;
+                case "latitude":
+                    columns.latitude = i;
+                    break;
+                case "longitude":
+                    columns.longitude = i;
+                    break;
+                case "mag":
+                    columns.mag = i;
+                    break;
+                case "place":
+                    columns.place = i;
+                    break;
+                case "id":
+                    columns.id = i;
+                    break;
+                case "url":
+                    columns.url = i;
+                    break;
+                case "status":
+                    columns.status = i;
+                    break;
+                default:
+                    continue;
+            }
+            columns.required = i + 1;
+        }
+        if (columns.time < 0 || columns.mag < 0) {
+            throw new IOException("Not an earthquake CSV file, it has no time or mag column: " + header);
+        }
+        columns.dataStart = Math.min(size, end + 1);
+        return columns;
+    }
+
+    /**
+     * Cut the records between start and size into about chunkCount chunks of {start, end}
+     * offsets, each ending after a line break.
+     */
+    private static List<long[]> findCsvChunks(FileChannel channel, long start, long size, int chunkCount)
+            throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        long chunkStart = start;
+        for (int i = 1; i < chunkCount && chunkStart < size; i++) {
+            long target = start + (size - start) * i / chunkCount;
+            if (target <= chunkStart) {
+                continue;
+            }
+            long chunkEnd = findLineEnd(channel, target, size);
+            chunks.add(new long[]{chunkStart, chunkEnd});
+            chunkStart = chunkEnd;
+        }
+        if (chunkStart < size || chunks.isEmpty()) {
+            chunks.add(new long[]{chunkStart, size});
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns the offset after the first line break at or after position, or size if there is none.
+     */
+    private static long findLineEnd(FileChannel channel, long position, long size) throws IOException {
+        byte[] bytes = new byte[SCAN_BUFFER_SIZE];
+        while (position < size) {
+            int length = (int) Math.min(SCAN_BUFFER_SIZE, size - position);
+            ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            window.get(bytes, 0, length);
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += length;
+        }
+        return size;
+    }
+
+    /**
+     * Parse the records of a chunk of a CSV file.
+     */
+    private static EarthquakeStore parseCsvChunk(ByteBuffer buffer, CsvColumns columns) throws IOException {
+        FetchCancellation cancellation = FetchCancellation.current();
+        EarthquakeStore store = new EarthquakeStore();
+        int[] starts = new int[columns.required];
+        int[] ends = new int[columns.required];
+        boolean[] quoted = new boolean[columns.required];
+        byte[] scratch = new byte[256];
+        int limit = buffer.limit();
+        int position = 0;
+        int records = 0;
+        while (position < limit) {
+            if (records++ % CANCEL_CHECK_INTERVAL == 0) {
+                cancellation.throwIfCanceled();
+            }
+            int recordStart = position;
+            int fields = 0;
+            boolean recordEnded = false;
+            while (!recordEnded) {
+                int start = position;
+                int end;
+                boolean isQuoted = position < limit && buffer.get(position) == '"';
+                if (isQuoted) {
+                    start = ++position;
+                    while (true) {
+                        if (position >= limit) {
+                            throw new IOException("Unterminated quoted CSV field: " + describe(buffer, recordStart));
+                        }
+                        if (buffer.get(position) == '"') {
+                            if (position + 1 < limit && buffer.get(position + 1) == '"') {
+                                position += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        position++;
+                    }
+                    end = position++;
+                } else {
+                    while (position < limit) {
+                        byte b = buffer.get(position);
+                        if (b == ',' || b == '\n' || b == '\r') {
+                            break;
+                        }
+                        position++;
+                    }
+                    end = position;
+                }
+                if (fields < starts.length) {
+                    starts[fields] = start;
+                    ends[fields] = end;
+                    quoted[fields] = isQuoted;
+                }
+                fields++;
+
+                if (position >= limit) {
+                    recordEnded = true;
+                } else {
+                    byte separator = buffer.get(position++);
+                    if (separator == '\r' && position < limit && buffer.get(position) == '\n') {
+                        position++;
+                    }
+                    if (separator != ',') {
+                        recordEnded = separator == '\n' || separator == '\r';
+                        if (!recordEnded) {
+                            throw new IOException("Malformed CSV record: " + describe(buffer, recordStart));
+                        }
+                    }
+                }
+            }
+
+            if (fields == 1 && starts[0] == ends[0] && !quoted[0]) {
+                // Blank line
+                continue;
+            }
+            if (fields < columns.required) {
+                throw new IOException("CSV record with " + fields + " fields, expected at least "
+                        + columns.required + ": " + describe(buffer, recordStart));
+            }
+            if (columns.status >= 0 && equalsAscii(buffer, starts[columns.status], ends[columns.status], "deleted")) {
+                continue;
+            }
+
+            long time = parseIsoTime(buffer, starts[columns.time], ends[columns.time]);
+            double mag = parseDouble(buffer, starts[columns.mag], ends[columns.mag], 0);
+            double latitude = columns.latitude < 0 ? Double.NaN
+                    : parseDouble(buffer, starts[columns.latitude], ends[columns.latitude], Double.NaN);
+            double longitude = columns.longitude < 0 ? Double.NaN
+                    : parseDouble(buffer, starts[columns.longitude], ends[columns.longitude], Double.NaN);
+            if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+                latitude = Double.NaN;
+                longitude = Double.NaN;
+            }
+            String place = "";
+            if (columns.place >= 0) {
+                place = decode(buffer, starts[columns.place], ends[columns.place], quoted[columns.place], scratch);
+            }
+            String id = null;
+            if (columns.id >= 0 && ends[columns.id] > starts[columns.id]) {
+                id = decode(buffer, starts[columns.id], ends[columns.id], quoted[columns.id], scratch);
+            }
+            if (columns.url >= 0 && (columns.id < 0 || !isEventPageUrl(buffer, starts[columns.url],
+                    ends[columns.url], starts[columns.id], ends[columns.id]))) {
+                String url = null;
+                if (ends[columns.url] > starts[columns.url]) {
+                    url = decode(buffer, starts[columns.url], ends[columns.url], quoted[columns.url], scratch);
+                }
+                store.add(mag, place, time, url, id, longitude, latitude);
+            } else {
+                // USGS catalogues have no URL column; the event page of the id is the URL
+                // (and an exported URL that is the event page is not decoded only to be dropped)
+                store.addWithEventPageUrl(mag, place, time, id, longitude, latitude);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Decode a field as UTF-8, turning the doubled quotes of a quoted field into single ones.
+     */
+    private static String decode(ByteBuffer buffer, int start, int end, boolean quoted, byte[] scratch) {
+        int length = end - start;
+        if (scratch.length < length) {
+            scratch = new byte[length];
+        }
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            scratch[count++] = b;
+            if (quoted && b == '"') {
+                // Skip the second quote of the pair
+                i++;
+            }
+        }
+        return new String(scratch, 0, count, UTF_8);
+    }
+
+    /**
+     * Returns true if the URL field is the USGS event page of the id field, comparing their bytes.
+     */
+    private static boolean isEventPageUrl(ByteBuffer buffer, int start, int end, int idStart, int idEnd) {
+        String prefix = EarthquakeStrings.EVENT_PAGE_URL_PREFIX;
+        int idLength = idEnd - idStart;
+        if (idLength == 0 || end - start != prefix.length() + idLength
+                || !equalsAscii(buffer, start, start + prefix.length(), prefix)) {
+            return false;
+        }
+        for (int i = 0; i < idLength; i++) {
+            if (buffer.get(start + prefix.length() + i) != buffer.get(idStart + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsAscii(ByteBuffer buffer, int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (buffer.get(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse a decimal number without allocating. Numbers of up to 15 significant digits are
+     * exact after a single division by an exact power of ten; anything else (exponents, more
+     * digits) goes through {@link Double#parseDouble}.
+     *
+     * @param empty the value of an empty field
+     */
+    static double parseDouble(ByteBuffer buffer, int start, int end, double empty) throws IOException {
+        if (start == end) {
+            return empty;
+        }
+        int position = start;
+        boolean negative = false;
+        byte b = buffer.get(position);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            position++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        for (; position < end; position++) {
+            b = buffer.get(position);
+            if (b >= '0' && b <= '9') {
+                if (digits == 15) {
+                    return parseDoubleSlowly(buffer, start, end);
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (point) {
+                    scale++;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                return parseDoubleSlowly(buffer, start, end);
+            }
+        }
+        if (digits == 0) {
+            return parseDoubleSlowly(buffer, start, end);
+        }
+        double value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    private static double parseDoubleSlowly(ByteBuffer buffer, int start, int end) throws IOException {
+        String text = ascii(buffer, start, end);
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a number in CSV: " + text);
+        }
+    }
+
+    /**
+     * Parse a UTC time like "2017-03-06T08:13:42.560Z" (the fraction and the Z are optional)
+     * into milliseconds since the epoch, without allocating.
+     */
+    static long parseIsoTime(ByteBuffer buffer, int start, int end) throws IOException {
+        int length = end - start;
+        if (length < 19 || buffer.get(start + 4) != '-' || buffer.get(start + 7) != '-'
+                || (buffer.get(start + 10) != 'T' && buffer.get(start + 10) != ' ')
+                || buffer.get(start + 13) != ':' || buffer.get(start + 16) != ':') {
+            throw new IOException("Not an ISO 8601 time in CSV: " + ascii(buffer, start, end));
+        }
+        int year = parseDigits(buffer, start, 4);
+        int month = parseDigits(buffer, start + 5, 2);
+        int day = parseDigits(buffer, start + 8, 2);
+        int hour = parseDigits(buffer, start + 11, 2);
+        int minute = parseDigits(buffer, start + 14, 2);
+        int second = parseDigits(buffer, start + 17, 2);
+        int millis = 0;
+        int position = start + 19;
+        if (position < end && buffer.get(position) == '.') {
+            position++;
+            int digits = 0;
+            while (position < end && buffer.get(position) >= '0' && buffer.get(position) <= '9') {
+                if (digits < 3) {
+                    millis = millis * 10 + (buffer.get(position) - '0');
+                }
+                digits++;
+                position++;
+            }
+            for (; digits < 3; digits++) {
+                millis *= 10;
+            }
+        }
+        if (position < end && buffer.get(position) == 'Z') {
+            position++;
+        }
+        if (position != end || year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            throw new IOException("Not an ISO 8601 UTC time in CSV: " + ascii(buffer, start, end));
+        }
+        return (((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millis;
+    }
+
+    /**
+     * Returns the non-negative number of the given number of digits, or -1 if they are not all digits.
+     */
+    private static int parseDigits(ByteBuffer buffer, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Returns the days since 1970-01-01 of a date of the proleptic Gregorian calendar
+     * (H. Hinnant's days_from_civil).
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static String ascii(ByteBuffer buffer, int start, int end) {
+        StringBuilder text = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            text.append((char) (buffer.get(i) & 0xff));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the start of the record at the given offset of a chunk, for error messages.
+     */
+    private static String describe(ByteBuffer buffer, int recordStart) {
+        int end = recordStart;
+        while (end < buffer.limit() && end - recordStart < 80 && buffer.get(end) != '\n') {
+            end++;
+        }
+        return ascii(buffer, recordStart, end);
+    }
+
+    /*
+     * GeoJSON import
+     */
+
+    /**
+     * Cut the features array of a GeoJSON file into about chunkCount chunks of whole features, as
+     * {start, end} offsets, in one pass over the mapped file with a {@link FeatureScanner}.
+     */
+    private static List<long[]> findFeatureChunks(FileChannel channel, long size, int chunkCount)
+            throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        long targetChunkBytes = Math.max(1, size / chunkCount);
+        FeatureScanner scanner = new FeatureScanner();
+        byte[] bytes = new byte[SCAN_BUFFER_SIZE];
+        for (long windowStart = 0; windowStart < size; windowStart += SCAN_WINDOW_BYTES) {
+            ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                    Math.min(SCAN_WINDOW_BYTES, size - windowStart));
+            FetchCancellation.current().throwIfCanceled();
+            while (window.hasRemaining()) {
+                long bytesStart = windowStart + window.position();
+                int length = Math.min(bytes.length, window.remaining());
+                window.get(bytes, 0, length);
+                int scanned = 0;
+                while (scanned < length) {
+                    scanned += scanner.scan(bytes, scanned, length - scanned, bytesStart + scanned, targetChunkBytes);
+                    long[] chunk = scanner.takeChunk();
+                    if (chunk != null) {
+                        chunks.add(chunk);
+                    }
+                }
+            }
+        }
+        scanner.finish();
+        return chunks;
+    }
+
+    /**
+     * Parse a chunk of whole features, cut from the features array.
+     */
+    private static EarthquakeStore parseFeatureChunk(ByteBuffer buffer) throws IOException {
+        final EarthquakeStore store = new EarthquakeStore();
+        QueryUtils.extractFeatureElementsFromStream(new ByteBufferInputStream(buffer),
+                new QueryUtils.EarthquakeCallback() {
+                    @Override
+                    public void onEarthquake(Earthquake earthquake) {
+                        if (!earthquake.isDeleted()) {
+                            store.add(earthquake);
+                        }
+                    }
+                });
+        return store;
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer, e.g. a mapped chunk of a file.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            count = Math.min(count, mBuffer.remaining());
+            mBuffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+
+    /*
+     * Export
+     */
+
+    /**
+     * Writes the rows of an export in one format.
+     */
+    private abstract static class RowWriter {
+        final Writer mOut;
+        /**
+         * Holds a formatted time, "yyyy-MM-ddTHH:mm:ss.SSSZ" with up to 11 digits of year
+         */
+        final char[] mTimeBuffer = new char[32];
+
+        RowWriter(Writer out) {
+            mOut = out;
+        }
+
+        abstract void begin() throws IOException;
+
+        abstract void write(double mag, String place, long timeInMillSeconds, String url, String id,
+                            double longitude, double latitude) throws IOException;
+
+        abstract void end() throws IOException;
+    }
+
+    private static final class CsvRowWriter extends RowWriter {
+        CsvRowWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        void begin() throws IOException {
+            mOut.write(CSV_HEADER);
+            mOut.write('\n');
+        }
+
+        @Override
+        void write(double mag, String place, long timeInMillSeconds, String url, String id,
+                   double longitude, double latitude) throws IOException {
+            mOut.write(mTimeBuffer, 0, formatIsoTime(timeInMillSeconds, mTimeBuffer));
+            mOut.write(',');
+            if (!Double.isNaN(latitude)) {
+                mOut.write(Double.toString(latitude));
+            }
+            mOut.write(',');
+            if (!Double.isNaN(longitude)) {
+                mOut.write(Double.toString(longitude));
+            }
+            mOut.write(',');
+            mOut.write(Double.toString(mag));
+            mOut.write(',');
+            writeField(id);
+            mOut.write(',');
+            writeField(place);
+            mOut.write(',');
+            writeField(url);
+            mOut.write('\n');
+        }
+
+        @Override
+        void end() {
+        }
+
+        /**
+         * Write a field, quoted if it contains a separator, quote or line break.
+         */
+        private void writeField(String value) throws IOException {
+            if (value == null) {
+                return;
+            }
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                mOut.write(value);
+                return;
+            }
+            mOut.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    mOut.write('"');
+                }
+                mOut.write(c);
+            }
+            mOut.write('"');
+        }
+    }
+
+    /**
+     * Writes a FeatureCollection with one feature per line, carrying the properties and epicenter
+     * the parser reads.
+     */
+    private static final class FeatureRowWriter extends RowWriter {
+        private boolean mFirst = true;
+
+        FeatureRowWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        void begin() throws IOException {
+            mOut.write("{\"type\":\"FeatureCollection\",\"features\":[");
+        }
+
+        @Override
+        void write(double mag, String place, long timeInMillSeconds, String url, String id,
+                   double longitude, double latitude) throws IOException {
+            if (!mFirst) {
+                mOut.write(',');
+            }
+            mFirst = false;
+            mOut.write("\n{\"type\":\"Feature\",\"properties\":{\"mag\":");
+            mOut.write(Double.toString(mag));
+            mOut.write(",\"place\":");
+            writeString(place);
+            mOut.write(",\"time\":");
+            mOut.write(Long.toString(timeInMillSeconds));
+            mOut.write(",\"url\":");
+            writeString(url);
+            mOut.write("},\"geometry\":");
+            if (Double.isNaN(longitude) || Double.isNaN(latitude)) {
+                mOut.write("null");
+            } else {
+                mOut.write("{\"type\":\"Point\",\"coordinates\":[");
+                mOut.write(Double.toString(longitude));
+                mOut.write(',');
+                mOut.write(Double.toString(latitude));
+                mOut.write("]}");
+            }
+            if (id != null) {
+                mOut.write(",\"id\":");
+                writeString(id);
+            }
+            mOut.write('}');
+        }
+
+        @Override
+        void end() throws IOException {
+            mOut.write("\n]}\n");
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                mOut.write("null");
+                return;
+            }
+            mOut.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    mOut.write('\\');
+                    mOut.write(c);
+                } else if (c < 0x20) {
+                    mOut.write(String.format(Locale.US, "\\u%04x", (int) c));
+                } else {
+                    mOut.write(c);
+                }
+            }
+            mOut.write('"');
+        }
+    }
+
+    /**
+     * Write the time as an ISO 8601 UTC time like "2017-03-06T08:13:42.560Z" into the buffer,
+     * the format of USGS catalogues.
+     *
+     * @return the number of chars written
+     */
+    static int formatIsoTime(long timeInMillSeconds, char[] out) {
+        long millisPerDay = 24L * 60 * 60 * 1000;
+        long days = timeInMillSeconds / millisPerDay;
+        long millisOfDay = timeInMillSeconds % millisPerDay;
+        if (millisOfDay < 0) {
+            days--;
+            millisOfDay += millisPerDay;
+        }
+        // H. Hinnant's civil_from_days
+        long shifted = days + 719468;
+        long era = (shifted >= 0 ? shifted : shifted - 146096) / 146097;
+        long dayOfEra = shifted - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        int length = 0;
+        if (year < 0) {
+            out[length++] = '-';
+            year = -year;
+        }
+        length = writeNumber(year, out, length, 4);
+        out[length++] = '-';
+        length = writeNumber(month, out, length, 2);
+        out[length++] = '-';
+        length = writeNumber(day, out, length, 2);
+        out[length++] = 'T';
+        length = writeNumber(millisOfDay / 3600000, out, length, 2);
+        out[length++] = ':';
+        length = writeNumber(millisOfDay / 60000 % 60, out, length, 2);
+        out[length++] = ':';
+        length = writeNumber(millisOfDay / 1000 % 60, out, length, 2);
+        out[length++] = '.';
+        length = writeNumber(millisOfDay % 1000, out, length, 3);
+        out[length++] = 'Z';
+        return length;
+    }
+
+    /**
+     * Write a non-negative number, left-padded with zeros to at least minDigits digits.
+     *
+     * @return the position after the last char written
+     */
+    private static int writeNumber(long value, char[] out, int start, int minDigits) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        for (int i = start + digits - 1; i >= start; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return start + digits;
+    }
+}
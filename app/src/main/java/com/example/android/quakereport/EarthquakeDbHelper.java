@@ -0,0 +1,108 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Database helper for the on-disk earthquake cache. Manages database creation and version management.
+ * <p>
+ * The database holds three tables:
+ * <ul>
+ * <li>{@link #TABLE_EVENTS}: one row per parsed earthquake, keyed by USGS event id</li>
+ * <li>{@link #TABLE_QUERIES}: one row per request URL, with the HTTP validators of its last response</li>
+ * <li>{@link #TABLE_RESULTS}: which events (and in which order) a query returned</li>
+ * </ul>
+ */
+public class EarthquakeDbHelper extends SQLiteOpenHelper {
+
+    /**
+     * Name of the database file
+     */
+    private static final String DATABASE_NAME = "earthquakes.db";
+    /**
+     * Database version. If you change the database schema, you must increment the database version.
+     */
+    private static final int DATABASE_VERSION = 3;
+
+    static final String TABLE_EVENTS = "events";
+    static final String COLUMN_EVENT_ID = "_id";
+    static final String COLUMN_EVENT_MAG = "mag";
+    static final String COLUMN_EVENT_PLACE = "place";
+    static final String COLUMN_EVENT_TIME = "time";
+    static final String COLUMN_EVENT_URL = "url";
+    /**
+     * Epicenter in degrees, NULL if unknown
+     */
+    static final String COLUMN_EVENT_LONGITUDE = "longitude";
+    static final String COLUMN_EVENT_LATITUDE = "latitude";
+    /**
+     * When the event was last written, used for size-based eviction
+     */
+    static final String COLUMN_EVENT_CACHED_AT = "cached_at";
+
+    static final String TABLE_QUERIES = "queries";
+    static final String COLUMN_QUERY_URL = "_id";
+    static final String COLUMN_QUERY_ETAG = "etag";
+    static final String COLUMN_QUERY_LAST_MODIFIED = "last_modified";
+    /**
+     * When the query was last fetched, revalidated or synced, used for TTL eviction
+     */
+    static final String COLUMN_QUERY_FETCHED_AT = "fetched_at";
+    /**
+     * Start time of the last full fetch or background sync; the next sync asks for events updated since
+     */
+    static final String COLUMN_QUERY_SYNCED_AT = "synced_at";
+
+    static final String TABLE_RESULTS = "query_results";
+    static final String COLUMN_RESULT_URL = "query_url";
+    static final String COLUMN_RESULT_POSITION = "position";
+    static final String COLUMN_RESULT_EVENT_ID = "event_id";
+
+    public EarthquakeDbHelper(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    /**
+     * This is called when the database is created for the first time.
+     */
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_EVENTS + " ("
+                + COLUMN_EVENT_ID + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_EVENT_MAG + " REAL NOT NULL, "
+                + COLUMN_EVENT_PLACE + " TEXT, "
+                + COLUMN_EVENT_TIME + " INTEGER NOT NULL, "
+                + COLUMN_EVENT_URL + " TEXT, "
+                + COLUMN_EVENT_LONGITUDE + " REAL, "
+                + COLUMN_EVENT_LATITUDE + " REAL, "
+                + COLUMN_EVENT_CACHED_AT + " INTEGER NOT NULL);");
+
+        db.execSQL("CREATE TABLE " + TABLE_QUERIES + " ("
+                + COLUMN_QUERY_URL + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_QUERY_ETAG + " TEXT, "
+                + COLUMN_QUERY_LAST_MODIFIED + " TEXT, "
+                + COLUMN_QUERY_FETCHED_AT + " INTEGER NOT NULL, "
+                + COLUMN_QUERY_SYNCED_AT + " INTEGER NOT NULL);");
+
+        db.execSQL("CREATE TABLE " + TABLE_RESULTS + " ("
+                + COLUMN_RESULT_URL + " TEXT NOT NULL, "
+                + COLUMN_RESULT_POSITION + " INTEGER NOT NULL, "
+                + COLUMN_RESULT_EVENT_ID + " TEXT NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_RESULT_URL + ", " + COLUMN_RESULT_POSITION + "));");
+        db.execSQL("CREATE INDEX " + TABLE_RESULTS + "_event ON " + TABLE_RESULTS
+                + " (" + COLUMN_RESULT_EVENT_ID + ");");
+    }
+
+    /**
+     * This is called when the database needs to be upgraded.
+     * The database only holds cached data, so the simplest upgrade policy is to start over.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_RESULTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_QUERIES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_EVENTS);
+        onCreate(db);
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.android.quakereport;
+
+import java.text.DateFormatSymbols;
+import java.util.Calendar;
+
+/**
+ * Formats magnitudes, dates and times of earthquakes into caller-provided char buffers, so that
+ * binding a recycled list row does not allocate.
+ * <p>
+ * An instance reuses one {@link Calendar} and is therefore confined to a single thread
+ * (for EarthquakeAdapter, the main thread).
+ */
+public final class EarthquakeFormatter {
+
+    /**
+     * Size of a buffer large enough for any output of {@link #formatMag(double, char[])}
+     * and {@link #formatTime(long, char[])}
+     */
+    public static final int SHORT_BUFFER_SIZE = 24;
+
+    private final Calendar mCalendar = Calendar.getInstance();
+    /**
+     * Abbreviated month names of the default locale, as SimpleDateFormat's "MMM" would print them
+     */
+    private final String[] mShortMonths = DateFormatSymbols.getInstance().getShortMonths();
+    private final int mDateBufferSize;
+
+    public EarthquakeFormatter() {
+        int longestMonth = 0;
+        for (String month : mShortMonths) {
+            longestMonth = Math.max(longestMonth, month.length());
+        }
+        // " " + month + " " + day (2) + ", " + year (up to 11 digits with sign)
+        mDateBufferSize = longestMonth + 16;
+    }
+
+    /**
+     * Size of a buffer large enough for any output of {@link #formatDate(long, char[])}.
+     */
+    public int getDateBufferSize() {
+        return mDateBufferSize;
+    }
+
+    /**
+     * Write the magnitude with 1 decimal place (i.e. "3.2") into the buffer.
+     *
+     * @return the number of chars written
+     */
+    public int formatMag(double mag, char[] out) {
+        long tenths = Math.round(mag * 10);
+        int length = 0;
+        if (tenths < 0) {
+            out[length++] = '-';
+            tenths = -tenths;
+        }
+        length = writeNumber(tenths / 10, out, length, 1);
+        out[length++] = '.';
+        out[length++] = (char) ('0' + tenths % 10);
+        return length;
+    }
+
+    /**
+     * Write the date (i.e. " Mar 3, 1984") into the buffer.
+     *
+     * @return the number of chars written
+     */
+    public int formatDate(long timeInMillSeconds, char[] out) {
+        mCalendar.setTimeInMillis(timeInMillSeconds);
+        int length = 0;
+        out[length++] = ' ';
+        String month = mShortMonths[mCalendar.get(Calendar.MONTH)];
+        month.getChars(0, month.length(), out, length);
+        length += month.length();
+        out[length++] = ' ';
+        length = writeNumber(mCalendar.get(Calendar.DAY_OF_MONTH), out, length, 1);
+        out[length++] = ',';
+        out[length++] = ' ';
+        return writeNumber(mCalendar.get(Calendar.YEAR), out, length, 4);
+    }
+
+    /**
+     * Write the time of day on a 24-hour clock (i.e. "16:30") into the buffer.
+     *
+     * @return the number of chars written
+     */
+    public int formatTime(long timeInMillSeconds, char[] out) {
+        mCalendar.setTimeInMillis(timeInMillSeconds);
+        int length = writeNumber(mCalendar.get(Calendar.HOUR_OF_DAY), out, 0, 2);
+        out[length++] = ':';
+        return writeNumber(mCalendar.get(Calendar.MINUTE), out, length, 2);
+    }
+
+    /**
+     * Returns the color band of a magnitude: 0 for negative magnitudes (very small events measured
+     * close to a sensor), 1 for magnitudes from 0 to below 2, then one band per whole magnitude up
+     * to 9, and 10 for 10 and above.
+     */
+    public static int getMagnitudeBand(double magnitude) {
+        if (magnitude < 0) {
+            return 0;
+        }
+        int floor = (int) magnitude;
+        if (floor >= 10) {
+            return 10;
+        }
+        return Math.max(floor, 1);
+    }
+
+    /**
+     * Write a non-negative number, left-padded with zeros to at least minDigits digits.
+     *
+     * @return the position after the last char written
+     */
+    private static int writeNumber(long value, char[] out, int start, int minDigits) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        for (int i = start + digits - 1; i >= start; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return start + digits;
+    }
+}
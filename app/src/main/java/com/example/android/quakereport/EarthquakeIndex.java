@@ -0,0 +1,410 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Process-wide, in-memory copy of every earthquake of a query down to some minimum magnitude,
+ * with sorted index arrays on magnitude and time, so that changing the order or raising the
+ * minimum magnitude in the settings is answered without a network round trip.
+ * <p>
+ * The index "covers" a query when it holds all of its results: it is filled from a complete
+ * (not truncated by limit) result of the loader, and a query asking for lower magnitudes is
+ * covered again by fetching only the missing magnitude band, see {@link #extend}. Queries are
+ * matched on everything but minmag, orderby, limit and offset, and the coverage expires after
+ * {@link #MAX_AGE_MILLIS}.
+ * <p>
+ * Thread-safe; network requests are made without holding the lock.
+ */
+public final class EarthquakeIndex {
+
+    private static final String LOG_TAG = EarthquakeIndex.class.getSimpleName();
+
+    /**
+     * The index is not used for queries after this long, so new events show up
+     */
+    static final long MAX_AGE_MILLIS = 15 * 60 * 1000;
+    /**
+     * Limit of a delta request; USGS does not return more than this per request
+     */
+    static final int DELTA_LIMIT = 20000;
+
+    private static final String PARAM_MIN_MAG = "minmag";
+    private static final String PARAM_MIN_MAGNITUDE = "minmagnitude";
+    private static final String PARAM_ORDER_BY = "orderby";
+    private static final String PARAM_LIMIT = "limit";
+    private static final String PARAM_OFFSET = "offset";
+
+    private static final EarthquakeIndex sInstance = new EarthquakeIndex();
+
+    private EarthquakeStore mStore = new EarthquakeStore();
+    private final HashMap<String, Integer> mRowsById = new HashMap<>();
+    /**
+     * Rows by ascending magnitude (equal magnitudes by ascending time), and their magnitudes for
+     * binary search
+     */
+    private int[] mByMag = new int[0];
+    private double[] mSortedMags = new double[0];
+    /**
+     * Rows by descending time, and the position of each row in it
+     */
+    private int[] mByTime = new int[0];
+    private int[] mTimeRanks = new int[0];
+
+    /**
+     * The query the index holds, without the parameters it can answer itself
+     */
+    private String mBaseQuery;
+    /**
+     * All events of the query with at least this magnitude are in the index
+     */
+    private double mCoveredMinMag = Double.POSITIVE_INFINITY;
+    private long mCoveredAt;
+
+    /**
+     * Use {@link #getInstance()}; tests create their own index so they start empty.
+     */
+    EarthquakeIndex() {
+    }
+
+    public static EarthquakeIndex getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Answer the given request URL from memory.
+     *
+     * @return the requested page of earthquakes, or null if the index does not cover the query
+     */
+    public List<Earthquake> query(String requestUrl) {
+        Uri uri = Uri.parse(requestUrl);
+        double minMag = getMinMag(uri);
+        String orderBy = uri.getQueryParameter(PARAM_ORDER_BY);
+        int offset = getIntParameter(uri, PARAM_OFFSET, 1);
+        int limit = getIntParameter(uri, PARAM_LIMIT, DELTA_LIMIT);
+        if (Double.isNaN(minMag) || offset < 1 || limit < 0) {
+            return null;
+        }
+        if (orderBy == null) {
+            orderBy = "time";
+        }
+        String baseQuery = getBaseQuery(uri);
+
+        EarthquakeStore result = new EarthquakeStore();
+        synchronized (this) {
+            if (!covers(baseQuery, minMag)) {
+                return null;
+            }
+            int size = mByMag.length;
+            int first = lowerBound(mSortedMags, minMag);
+            int matching = size - first;
+            int skip = offset - 1;
+            int wanted = Math.min(limit, Math.max(0, matching - skip));
+            switch (orderBy) {
+                case "magnitude":
+                    for (int i = size - 1 - skip; i > size - 1 - skip - wanted; i--) {
+                        result.add(mStore, mByMag[i]);
+                    }
+                    break;
+                case "magnitude-asc":
+                    for (int i = first + skip; i < first + skip + wanted; i++) {
+                        result.add(mStore, mByMag[i]);
+                    }
+                    break;
+                case "time":
+                case "time-asc":
+                    addByTime(result, first, minMag, skip, wanted, "time".equals(orderBy));
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return result.asList();
+    }
+
+    /**
+     * Add the rows of the magnitude range starting at first in time order. Either the range is
+     * sorted by time (O(k log k) for k matching rows), or the time index is scanned for matching
+     * rows until enough are found, whichever is expected to be cheaper.
+     */
+    private void addByTime(EarthquakeStore result, int first, double minMag, int skip, int wanted,
+                           boolean descending) {
+        if (wanted == 0) {
+            return;
+        }
+        int size = mByTime.length;
+        int matching = size - first;
+        double sortCost = matching * (Math.log(matching) + 1);
+        double scanCost = (double) (skip + wanted) * size / matching;
+        if (sortCost <= scanCost) {
+            // Time ranks are distinct ints, so sorting them is a plain primitive sort
+            int[] ranks = new int[matching];
+            for (int i = 0; i < matching; i++) {
+                ranks[i] = mTimeRanks[mByMag[first + i]];
+            }
+            Arrays.sort(ranks);
+            for (int i = 0; i < wanted; i++) {
+                int rank = descending ? ranks[skip + i] : ranks[matching - 1 - skip - i];
+                result.add(mStore, mByTime[rank]);
+            }
+        } else {
+            int skipped = 0;
+            for (int i = 0; i < size && result.size() < wanted; i++) {
+                int row = mByTime[descending ? i : size - 1 - i];
+                if (mStore.getMag(row) >= minMag) {
+                    if (skipped < skip) {
+                        skipped++;
+                    } else {
+                        result.add(mStore, row);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Offer the complete result of a request URL to the index. Results truncated by the limit,
+     * or pages other than the first, are ignored, since they do not cover their query.
+     */
+    public void update(String requestUrl, List<Earthquake> earthquakes) {
+        Uri uri = Uri.parse(requestUrl);
+        double minMag = getMinMag(uri);
+        if (Double.isNaN(minMag) || getIntParameter(uri, PARAM_OFFSET, 1) != 1
+                || earthquakes.size() >= getIntParameter(uri, PARAM_LIMIT, DELTA_LIMIT)) {
+            return;
+        }
+        String baseQuery = getBaseQuery(uri);
+        synchronized (this) {
+            if (covers(baseQuery, minMag) && minMag > mCoveredMinMag) {
+                // A subset of what we have, keep the wider coverage
+                return;
+            }
+            // Start over with this (fresher, and at least as wide) result
+            mStore = new EarthquakeStore();
+            mRowsById.clear();
+            mBaseQuery = baseQuery;
+            mCoveredMinMag = minMag;
+            mCoveredAt = SystemClock.elapsedRealtime();
+            append(earthquakes);
+        }
+    }
+
+    /**
+     * If the given query asks for lower magnitudes than the index covers, fetch only the missing
+     * magnitude band from the source and add it to the index.
+     *
+     * @return true if the index now covers the query
+     */
+    public boolean extend(String requestUrl, EarthquakeSource source) {
+        Uri uri = Uri.parse(requestUrl);
+        double minMag = getMinMag(uri);
+        String baseQuery = getBaseQuery(uri);
+        double coveredMinMag;
+        long coveredAt;
+        synchronized (this) {
+            if (Double.isNaN(minMag) || !covers(baseQuery, mCoveredMinMag)) {
+                return false;
+            }
+            if (minMag >= mCoveredMinMag) {
+                return true;
+            }
+            if (uri.getQueryParameter("maxmagnitude") != null || uri.getQueryParameter("maxmag") != null) {
+                // The query already has an upper bound of its own
+                return false;
+            }
+            coveredMinMag = mCoveredMinMag;
+            coveredAt = mCoveredAt;
+        }
+
+        // Everything from the new minimum up to what we already have; the boundary magnitude
+        // is fetched again and deduplicated by event id
+        String deltaUrl = Uri.parse(baseQuery).buildUpon()
+                .appendQueryParameter(PARAM_MIN_MAG, String.valueOf(minMag))
+                .appendQueryParameter("maxmagnitude", String.valueOf(coveredMinMag))
+                .appendQueryParameter(PARAM_ORDER_BY, "time")
+                .appendQueryParameter(PARAM_LIMIT, String.valueOf(DELTA_LIMIT))
+                .build().toString();
+        final EarthquakeStore delta = new EarthquakeStore();
+        QueryUtils.FetchResult result = source.fetch(deltaUrl, null, null, new QueryUtils.EarthquakeCallback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                delta.add(earthquake);
+            }
+        });
+        if (!result.isSuccessful() || delta.size() >= DELTA_LIMIT) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (coveredAt != mCoveredAt || !baseQuery.equals(mBaseQuery)) {
+                // The index was replaced while the delta was being fetched
+                return false;
+            }
+            Log.i(LOG_TAG, "Fetched " + delta.size() + " events between magnitude " + minMag
+                    + " and " + coveredMinMag + " instead of the whole query");
+            append(delta.asList());
+            mCoveredMinMag = Math.min(mCoveredMinMag, minMag);
+            return true;
+        }
+    }
+
+    /**
+     * Forget everything, e.g. after the cached events were changed behind the index's back.
+     */
+    public synchronized void invalidate() {
+        mBaseQuery = null;
+        mCoveredMinMag = Double.POSITIVE_INFINITY;
+    }
+
+    private boolean covers(String baseQuery, double minMag) {
+        return baseQuery.equals(mBaseQuery) && minMag >= mCoveredMinMag
+                && SystemClock.elapsedRealtime() - mCoveredAt < MAX_AGE_MILLIS;
+    }
+
+    /**
+     * Add the earthquakes not in the index yet, then rebuild the sorted indexes.
+     */
+    private void append(List<Earthquake> earthquakes) {
+        EarthquakeStore source = EarthquakeStore.from(earthquakes);
+        if (source == null) {
+            source = new EarthquakeStore();
+            source.addAll(earthquakes);
+        }
+        for (int i = 0; i < source.size(); i++) {
+            String id = source.getId(i);
+            if (id != null) {
+                if (mRowsById.containsKey(id)) {
+                    continue;
+                }
+                mRowsById.put(id, mStore.size());
+            }
+            mStore.add(source, i);
+        }
+        rebuildIndexes();
+    }
+
+    private void rebuildIndexes() {
+        int size = mStore.size();
+        double[] mags = new double[size];
+        double[] negatedTimes = new double[size];
+        for (int i = 0; i < size; i++) {
+            mags[i] = mStore.getMag(i);
+            // Times in milliseconds are exact as doubles
+            negatedTimes[i] = -mStore.getTimeInMillSeconds(i);
+        }
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = i;
+        }
+        mByTime = sortRows(rows, negatedTimes);
+        mTimeRanks = new int[size];
+        for (int rank = 0; rank < size; rank++) {
+            mTimeRanks[mByTime[rank]] = rank;
+            // Oldest first, so that equal magnitudes end up in time order below
+            rows[size - 1 - rank] = mByTime[rank];
+        }
+        mByMag = sortRows(rows, mags);
+        mSortedMags = new double[size];
+        for (int i = 0; i < size; i++) {
+            mSortedMags[i] = mags[mByMag[i]];
+        }
+    }
+
+    /**
+     * Returns the given rows sorted by ascending key, with a stable merge sort on primitive arrays.
+     * The array passed in is not modified.
+     */
+    private static int[] sortRows(int[] initialRows, double[] keys) {
+        int size = initialRows.length;
+        int[] rows = Arrays.copyOf(initialRows, size);
+        int[] buffer = new int[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int start = 0; start < size; start += 2 * width) {
+                int middle = Math.min(start + width, size);
+                int end = Math.min(start + 2 * width, size);
+                int left = start;
+                int right = middle;
+                for (int i = start; i < end; i++) {
+                    if (left < middle && (right >= end || keys[rows[left]] <= keys[rows[right]])) {
+                        buffer[i] = rows[left++];
+                    } else {
+                        buffer[i] = rows[right++];
+                    }
+                }
+            }
+            int[] swap = rows;
+            rows = buffer;
+            buffer = swap;
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the first position whose value is at least the given one.
+     */
+    private static int lowerBound(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the query without the parameters the index answers itself.
+     */
+    private static String getBaseQuery(Uri uri) {
+        Uri.Builder builder = uri.buildUpon().clearQuery();
+        for (String name : uri.getQueryParameterNames()) {
+            if (PARAM_MIN_MAG.equals(name) || PARAM_MIN_MAGNITUDE.equals(name) || PARAM_ORDER_BY.equals(name)
+                    || PARAM_LIMIT.equals(name) || PARAM_OFFSET.equals(name)) {
+                continue;
+            }
+            for (String value : uri.getQueryParameters(name)) {
+                builder.appendQueryParameter(name, value);
+            }
+        }
+        return builder.build().toString();
+    }
+
+    /**
+     * Returns the minimum magnitude of the query, -Infinity if it has none, or NaN if it cannot be parsed.
+     */
+    private static double getMinMag(Uri uri) {
+        String minMag = uri.getQueryParameter(PARAM_MIN_MAG);
+        if (minMag == null) {
+            minMag = uri.getQueryParameter(PARAM_MIN_MAGNITUDE);
+        }
+        if (minMag == null) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        try {
+            return Double.parseDouble(minMag);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static int getIntParameter(Uri uri, String name, int defaultValue) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Positional difference between two versions of a displayed list of earthquakes, matched by
+ * event id: which rows were inserted, removed, moved or changed their values.
+ * <p>
+ * Computing it is O(n log n) and meant for a background thread; applying it on the main thread
+ * only touches the rows that actually changed.
+ */
+public final class EarthquakeListDiff {
+
+    /**
+     * Old position of every new row, -1 for inserted rows
+     */
+    private final int[] mNewToOld;
+    /**
+     * New position of every old row, -1 for removed rows
+     */
+    private final int[] mOldToNew;
+    /**
+     * New positions of matched rows whose values changed, ascending
+     */
+    private final int[] mChanged;
+    private final int mInsertedCount;
+    private final int mRemovedCount;
+    private final int mMovedCount;
+
+    private EarthquakeListDiff(int[] newToOld, int[] oldToNew, int[] changed, int insertedCount,
+                               int removedCount, int movedCount) {
+        mNewToOld = newToOld;
+        mOldToNew = oldToNew;
+        mChanged = changed;
+        mInsertedCount = insertedCount;
+        mRemovedCount = removedCount;
+        mMovedCount = movedCount;
+    }
+
+    /**
+     * Compare two lists by event id. Rows without an id only match the row at the same position
+     * of the other list, if it has no id either.
+     */
+    public static EarthquakeListDiff compute(EarthquakeStore oldRows, EarthquakeStore newRows) {
+        int oldSize = oldRows.size();
+        int newSize = newRows.size();
+        HashMap<String, Integer> oldPositions = new HashMap<>(oldSize * 2);
+        for (int i = 0; i < oldSize; i++) {
+            String id = oldRows.getId(i);
+            if (id != null) {
+                oldPositions.put(id, i);
+            }
+        }
+
+        int[] newToOld = new int[newSize];
+        int[] oldToNew = new int[oldSize];
+        Arrays.fill(oldToNew, -1);
+        int[] changed = new int[newSize];
+        int changedCount = 0;
+        int insertedCount = 0;
+        for (int i = 0; i < newSize; i++) {
+            String id = newRows.getId(i);
+            Integer oldPosition;
+            if (id != null) {
+                oldPosition = oldPositions.get(id);
+            } else {
+                oldPosition = i < oldSize && oldRows.getId(i) == null ? i : null;
+            }
+            if (oldPosition == null || oldToNew[oldPosition] >= 0) {
+                newToOld[i] = -1;
+                insertedCount++;
+                continue;
+            }
+            newToOld[i] = oldPosition;
+            oldToNew[oldPosition] = i;
+            if (!sameValues(oldRows, oldPosition, newRows, i)) {
+                changed[changedCount++] = i;
+            }
+        }
+        int matchedCount = newSize - insertedCount;
+        int removedCount = oldSize - matchedCount;
+        // Rows keeping their relative order form the longest increasing run of old positions;
+        // every other matched row has moved
+        int movedCount = matchedCount - longestIncreasingSubsequence(newToOld);
+        return new EarthquakeListDiff(newToOld, oldToNew, Arrays.copyOf(changed, changedCount),
+                insertedCount, removedCount, movedCount);
+    }
+
+    static boolean sameValues(EarthquakeStore a, int rowA, EarthquakeStore b, int rowB) {
+        return Double.compare(a.getMag(rowA), b.getMag(rowB)) == 0
+                && a.getTimeInMillSeconds(rowA) == b.getTimeInMillSeconds(rowB)
+                && a.sameNameAndUrl(rowA, b, rowB)
+                && Double.compare(a.getLongitude(rowA), b.getLongitude(rowB)) == 0
+                && Double.compare(a.getLatitude(rowA), b.getLatitude(rowB)) == 0;
+    }
+
+    /**
+     * Returns the length of the longest strictly increasing subsequence of the non-negative values,
+     * in O(n log n) (patience sorting).
+     */
+    private static int longestIncreasingSubsequence(int[] values) {
+        int[] tails = new int[values.length];
+        int length = 0;
+        for (int value : values) {
+            if (value < 0) {
+                continue;
+            }
+            int position = Arrays.binarySearch(tails, 0, length, value);
+            if (position < 0) {
+                position = -position - 1;
+            }
+            tails[position] = value;
+            if (position == length) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns true if nothing changed at all.
+     */
+    public boolean isEmpty() {
+        return !isStructural() && mChanged.length == 0;
+    }
+
+    /**
+     * Returns true if rows were inserted, removed or moved, i.e. positions changed.
+     */
+    public boolean isStructural() {
+        return mInsertedCount > 0 || mRemovedCount > 0 || mMovedCount > 0;
+    }
+
+    /**
+     * Returns the new positions of rows that are in both lists but whose values changed.
+     */
+    public int[] getChangedPositions() {
+        return mChanged;
+    }
+
+    /**
+     * Returns the new position of the row at the given old position, or -1 if it was removed.
+     */
+    public int getNewPosition(int oldPosition) {
+        return oldPosition >= 0 && oldPosition < mOldToNew.length ? mOldToNew[oldPosition] : -1;
+    }
+
+    /**
+     * Returns the old position of the row at the given new position, or -1 if it was inserted.
+     */
+    public int getOldPosition(int newPosition) {
+        return newPosition >= 0 && newPosition < mNewToOld.length ? mNewToOld[newPosition] : -1;
+    }
+
+    @Override
+    public String toString() {
+        return mInsertedCount + " inserted, " + mRemovedCount + " removed, " + mMovedCount + " moved, "
+                + mChanged.length + " changed";
+    }
+}
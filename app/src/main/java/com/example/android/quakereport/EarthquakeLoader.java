@@ -2,9 +2,16 @@ package com.example.android.quakereport;
 
 import android.content.AsyncTaskLoader;
 import android.content.Context;
-import android.util.Log;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by vineet on 02-Mar-17.
@@ -12,13 +19,90 @@ import java.util.List;
 
 /**
  * Loads a list of earthquakes by using an AsyncTask to perform the
- * network request to the given URL.
+ * network request to the given URL. Results are cached on disk by {@link EarthquakeCache},
+ * so a previous result is available immediately and without a network connection.
+ * <p>
+ * A canceled load (stopped, reset or replaced by a newer one) aborts its request and stops
+ * parsing through its {@link FetchCancellation}, and at most {@link #MAX_CONCURRENT_LOADS}
+ * loads run at once.
  */
 public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>> {
+    /**
+     * Time from forceLoad() until the load actually starts on the loader's background thread
+     */
+    private static final Metrics.Histogram QUEUE = Metrics.histogram("loader.queue.nanos");
+    /**
+     * Time spent in loadInBackground()
+     */
+    private static final Metrics.Histogram LOAD = Metrics.histogram("loader.load.nanos");
+    private static final Metrics.Counter FROM_INDEX = Metrics.counter("loader.result.index");
+    private static final Metrics.Counter FROM_RECENT = Metrics.counter("loader.result.recent");
+    private static final Metrics.Counter FROM_CACHE = Metrics.counter("loader.result.cache");
+    private static final Metrics.Counter FROM_SOURCE = Metrics.counter("loader.result.source");
+
+    /**
+     * Publish a batch once this many earthquakes have been parsed...
+     */
+    private static final int BATCH_SIZE = 50;
+    /**
+     * ...or once this much time has passed since the last batch, whichever comes first.
+     */
+    private static final long BATCH_INTERVAL_MILLIS = 300;
+    /**
+     * At most this many loads run at the same time, the others wait for a slot
+     */
+    static final int MAX_CONCURRENT_LOADS = 2;
+    /**
+     * How often a load waiting for a slot checks whether it was canceled
+     */
+    private static final long SLOT_POLL_MILLIS = 100;
+    private static final Semaphore sLoadSlots = new Semaphore(MAX_CONCURRENT_LOADS, true);
+
     /**
      * Query URL
      */
     private String mUrl;
+    /**
+     * Where the earthquakes are fetched from
+     */
+    private final EarthquakeSource mSource;
+    /**
+     * Receives partial results while the download is still in flight (streaming mode)
+     */
+    private volatile OnBatchLoadedListener mBatchListener;
+    /**
+     * Batches are handed to the listener on the main thread
+     */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * {@link System#nanoTime()} of the last forceLoad(), for the queue latency metric
+     */
+    private volatile long mForceLoadNanos;
+    /**
+     * Cancellation of the next or running load; replaced by a fresh one whenever it is canceled
+     */
+    private volatile FetchCancellation mCancellation = new FetchCancellation();
+    /**
+     * The last result delivered, redelivered when the loader is started again
+     */
+    private List<Earthquake> mResult;
+    /**
+     * Why the last load could not fetch fresh earthquakes, or null
+     */
+    private volatile QueryUtils.FetchResult mLastFailure;
+
+    /**
+     * Callback for the streaming mode of the loader. Batches arrive on the main thread, in order,
+     * before the complete list is delivered through onLoadFinished().
+     */
+    public interface OnBatchLoadedListener {
+        /**
+         * @param batch  the earthquakes parsed since the previous batch
+         * @param offset position of the first earthquake of the batch in the complete result;
+         *               0 means a new load has started
+         */
+        void onBatchLoaded(List<Earthquake> batch, int offset);
+    }
 
     /**
      * Constructs a new {@link EarthquakeLoader}.
@@ -27,19 +111,113 @@ public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>> {
      * @param url     to load data from
      */
     public EarthquakeLoader(Context context, String url) {
+        this(context, url, new HttpEarthquakeSource());
+    }
+
+    /**
+     * Constructs a new {@link EarthquakeLoader} that fetches from the given source,
+     * e.g. a fake instead of the USGS server in tests.
+     *
+     * @param context of the activity
+     * @param url     to load data from
+     * @param source  to fetch the url's earthquakes from
+     */
+    public EarthquakeLoader(Context context, String url, EarthquakeSource source) {
         super(context);
         mUrl = url;
+        mSource = source;
+    }
+
+    /**
+     * Returns the source this loader fetches from.
+     */
+    public EarthquakeSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * Returns why the last load could not fetch fresh earthquakes (its result then is the cached
+     * one, if any), or null if it could or did not need to. Read it in onLoadFinished().
+     */
+    public QueryUtils.FetchResult getLastFailure() {
+        return mLastFailure;
+    }
+
+    /**
+     * Returns the query URL this loader loads.
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Switch the loader to streaming mode: parsed earthquakes are published in batches while
+     * the response is still downloading. Pass null to go back to all-at-once delivery.
+     */
+    public void setOnBatchLoadedListener(OnBatchLoadedListener listener) {
+        mBatchListener = listener;
     }
 
     /**
      * This method is called implicitly by the LoaderManager.
-     * we can also write as getLoaderManager.initLoader(EARTHQUAKE_LOADER_ID, null, this).forceLoad();
-     * in EarthquakeActivity.java instead of writing here
+     * A result we already have is delivered again right away; it is only reloaded if there is
+     * none yet or the loader was told its content changed.
      */
     @Override
     protected void onStartLoading() {
-        Log.i("inside earthquakeloader", "onstartloading()");
-        forceLoad();
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+        if (takeContentChanged() || mResult == null) {
+            forceLoad();
+        }
+    }
+
+    /**
+     * Nobody is waiting for the result any more, stop downloading it.
+     */
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        mResult = null;
+    }
+
+    @Override
+    public void deliverResult(List<Earthquake> data) {
+        if (isReset()) {
+            return;
+        }
+        mResult = data;
+        if (isStarted()) {
+            super.deliverResult(data);
+        }
+    }
+
+    /**
+     * Besides dropping the result of the running load, abort its network request and parsing.
+     * Also called by forceLoad() for the load it replaces.
+     */
+    @Override
+    public boolean cancelLoad() {
+        boolean canceled = super.cancelLoad();
+        FetchCancellation cancellation = mCancellation;
+        mCancellation = new FetchCancellation();
+        cancellation.cancel();
+        return canceled;
+    }
+
+    @Override
+    protected void onForceLoad() {
+        if (Metrics.ENABLED) {
+            mForceLoadNanos = System.nanoTime();
+        }
+        super.onForceLoad();
     }
 
     /**
@@ -47,13 +225,185 @@ public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>> {
      */
     @Override
     public List<Earthquake> loadInBackground() {
-        Log.i("inside earthquakeloader", "loadInBackground()");
+        FetchCancellation cancellation = mCancellation;
+        if (!acquireSlot(cancellation)) {
+            return null;
+        }
+        long loadStart = Metrics.ENABLED ? System.nanoTime() : 0;
+        if (Metrics.ENABLED) {
+            QUEUE.record(loadStart - mForceLoadNanos);
+        }
+        // Everything below fetches with this load's cancellation
+        FetchCancellation.setCurrent(cancellation);
+        try {
+            return asStoreList(load(cancellation));
+        } finally {
+            FetchCancellation.setCurrent(null);
+            sLoadSlots.release();
+            if (Metrics.ENABLED) {
+                LOAD.recordSince(loadStart);
+            }
+        }
+    }
+
+    /**
+     * Wait for one of the {@link #MAX_CONCURRENT_LOADS} slots, unless the load is canceled meanwhile.
+     */
+    private static boolean acquireSlot(FetchCancellation cancellation) {
+        try {
+            while (!cancellation.isCanceled()) {
+                if (sLoadSlots.tryAcquire(SLOT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private List<Earthquake> load(FetchCancellation cancellation) {
+        mLastFailure = null;
         if (mUrl == null) {
             return null;
         }
-        // Perform the HTTP request for earthquake data and process the response.
-        List<Earthquake> result = QueryUtils.fetchEarthquakeData(mUrl);
+        // A new order or a higher minimum magnitude of a recently loaded query is answered from memory
+        final EarthquakeIndex index = EarthquakeIndex.getInstance();
+        List<Earthquake> indexed = index.query(mUrl);
+        if (indexed != null) {
+            if (Metrics.ENABLED) {
+                FROM_INDEX.increment();
+            }
+            return indexed;
+        }
+        // An identical query answered moments ago (e.g. by the loader of a previous activity)
+        EarthquakeQueryManager queries = EarthquakeQueryManager.getInstance();
+        List<Earthquake> recent = queries.getRecent(mUrl);
+        if (recent != null) {
+            if (Metrics.ENABLED) {
+                FROM_RECENT.increment();
+            }
+            return recent;
+        }
+        final EarthquakeCache cache = EarthquakeCache.getInstance(getContext());
+        // Whatever we already have on disk can be shown right away
+        List<Earthquake> cached = asStoreList(cache.load(mUrl));
+        boolean haveCached = cached != null && !cached.isEmpty();
+        if (cancellation.isCanceled() || mSource instanceof HttpEarthquakeSource && !isConnected()) {
+            if (Metrics.ENABLED) {
+                FROM_CACHE.increment();
+            }
+            return cached;
+        }
+        // Remember why fetching failed, so the activity can tell the user
+        final EarthquakeSource source = new EarthquakeSource() {
+            @Override
+            public QueryUtils.FetchResult fetch(String requestUrl, String eTag, String lastModified,
+                                                QueryUtils.EarthquakeCallback callback) {
+                QueryUtils.FetchResult result = mSource.fetch(requestUrl, eTag, lastModified, callback);
+                boolean failed = !result.isSuccessful() && !result.isNotModified()
+                        && result.error != QueryUtils.FetchResult.Error.CANCELED;
+                mLastFailure = failed ? result : null;
+                return result;
+            }
+        };
+        // A lower minimum magnitude only needs the events the index is missing
+        if (index.extend(mUrl, source) && (indexed = index.query(mUrl)) != null) {
+            if (Metrics.ENABLED) {
+                FROM_INDEX.increment();
+            }
+            return indexed;
+        }
+        if (haveCached) {
+            publishBatch(cached, 0);
+        }
+
+        // Revalidate against the server. Stream batches only if there was nothing cached to show,
+        // otherwise the cached rows stay on screen until the complete fresh result is delivered.
+        QueryUtils.EarthquakeCallback batcher = null;
+        if (mBatchListener != null && !haveCached) {
+            batcher = new QueryUtils.EarthquakeCallback() {
+                private EarthquakeStore mBatch = new EarthquakeStore();
+                private int mBatchStart = 0;
+                private long mLastPublish = SystemClock.elapsedRealtime();
+
+                @Override
+                public void onEarthquake(Earthquake earthquake) {
+                    mBatch.add(earthquake);
+                    long now = SystemClock.elapsedRealtime();
+                    if (mBatch.size() >= BATCH_SIZE || now - mLastPublish >= BATCH_INTERVAL_MILLIS) {
+                        publishBatch(mBatch.asList(), mBatchStart);
+                        mBatchStart += mBatch.size();
+                        mBatch = new EarthquakeStore();
+                        mLastPublish = now;
+                    }
+                }
+            };
+        }
+        // The tail of the result is not published as a batch, onLoadFinished() delivers everything.
+        // If the same query is already being fetched, wait for that fetch instead of starting another.
+        final QueryUtils.EarthquakeCallback callback = batcher;
+        List<Earthquake> result = queries.load(mUrl, new Callable<List<Earthquake>>() {
+            @Override
+            public List<Earthquake> call() {
+                List<Earthquake> fresh = cache.refresh(mUrl, source, callback);
+                if (fresh != null) {
+                    index.update(mUrl, fresh);
+                }
+                return fresh;
+            }
+        });
+        if (result == null) {
+            // If the request failed, fall back to the cached result
+            if (Metrics.ENABLED) {
+                FROM_CACHE.increment();
+            }
+            return cached;
+        }
+        if (Metrics.ENABLED) {
+            FROM_SOURCE.increment();
+        }
         return result;
     }
+
+    /**
+     * Returns the earthquakes as a view of an {@link EarthquakeStore}, copying them into one if
+     * they are not. Every result is already a store view (cached results are mapped as stores),
+     * but EarthquakePager adopts store views as they are, so any copy is made here, on the loader's
+     * thread, rather than on the main thread.
+     */
+    private static List<Earthquake> asStoreList(List<Earthquake> earthquakes) {
+        if (earthquakes == null || EarthquakeStore.from(earthquakes) != null) {
+            return earthquakes;
+        }
+        EarthquakeStore store = new EarthquakeStore();
+        store.addAll(earthquakes);
+        return store.asList();
+    }
+
+    /**
+     * Returns true if the device currently has a network connection.
+     */
+    private boolean isConnected() {
+        ConnectivityManager cm =
+                (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        return activeNetwork != null && activeNetwork.isConnectedOrConnecting();
+    }
+
+    /**
+     * Post a batch to the listener on the main thread, unless the loader has been reset meanwhile.
+     */
+    private void publishBatch(final List<Earthquake> batch, final int offset) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                OnBatchLoadedListener listener = mBatchListener;
+                if (listener != null && !isReset() && !isAbandoned()) {
+                    listener.onBatchLoaded(batch, offset);
+                }
+            }
+        });
+    }
 }
 
@@ -0,0 +1,620 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pages through a USGS query with the offset/limit parameters, keeping only the pages around the
+ * visible part of the list in memory.
+ * <p>
+ * The first page comes from the {@link EarthquakeLoader} (and its cache); the following pages are
+ * fetched here, in the background, when the list scrolls close to the end of what is loaded.
+ * Pages further than {@link #WINDOW_PAGES} pages from the visible rows are dropped and fetched
+ * again if the user scrolls back to them, so memory stays constant however far the list goes.
+ * <p>
+ * The summary and the place search of the query cover its complete result instead, and are
+ * kept up to date as new first pages and syncs arrive, see {@link #loadSummaries}.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public final class EarthquakePager {
+
+    private static final String LOG_TAG = EarthquakePager.class.getSimpleName();
+
+    /**
+     * Number of earthquakes requested per page (the "limit" query parameter)
+     */
+    public static final int PAGE_SIZE = 100;
+    /**
+     * Start fetching the next page when the last visible row is this close to the end
+     */
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+    /**
+     * Number of pages kept on each side of the visible ones
+     */
+    private static final int WINDOW_PAGES = 2;
+    /**
+     * Number of earthquakes per request for the complete result of the query
+     */
+    static final int COMPLETE_RESULT_PAGE_SIZE = EarthquakeIndex.DELTA_LIMIT;
+
+    /**
+     * Notified on the main thread whenever pages were added or the row count changed.
+     */
+    public interface OnPagesChangedListener {
+        void onPagesChanged();
+
+        /**
+         * The first page was replaced by a new result of the query (see {@link #updateFirstPage}).
+         * The pager already holds the new rows; the list still shows the old ones.
+         *
+         * @param diff maps the old rows of the first page to the new ones
+         */
+        void onFirstPageChanged(EarthquakeListDiff diff);
+    }
+
+    /**
+     * Receives the summary of and the place search over the complete result of the query, on the
+     * background thread that keeps them up to date: they must be read there, and not kept.
+     */
+    public interface OnSummariesLoadedListener {
+        void onSummariesLoaded(EarthquakeAggregates aggregates, PlaceSearchIndex searchIndex);
+    }
+
+    private final SparseArray<EarthquakeStore> mPages = new SparseArray<>();
+    /**
+     * The latest first page, kept when page 0 is dropped from memory so that a new result can
+     * always be diffed against it
+     */
+    private EarthquakeStore mFirstPage;
+    private final HashSet<Integer> mLoadingPages = new HashSet<>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * Diffs first pages, separately from page fetches so it never waits for the network
+     */
+    private final ExecutorService mDiffExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * Loads and updates the summaries, separately from page fetches so scrolling never waits
+     * for the complete result
+     */
+    private final ExecutorService mSummaryExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Summary of and place search over the complete result of the query, built the first time
+     * they are asked for and then updated in place; null until then. Only touched on
+     * mSummaryExecutor.
+     */
+    private EarthquakeAggregates mAggregates;
+    private PlaceSearchIndex mSearchIndex;
+    /**
+     * The last complete first page handed to the summaries
+     */
+    private EarthquakeStore mSummarizedPage;
+    private EarthquakeSource mSource;
+
+    private OnPagesChangedListener mListener;
+    private String mQueryUrl;
+    /**
+     * Number of rows known to exist, loaded or not
+     */
+    private int mCount;
+    /**
+     * True once the first page is complete, so further pages can be requested
+     */
+    private boolean mFirstPageComplete;
+    private boolean mEndReached;
+    /**
+     * Incremented on every reset, so pages of a previous query are dropped when they arrive
+     */
+    private int mGeneration;
+    /**
+     * True while the first page is being diffed against a new version; it must not be modified
+     */
+    private boolean mDiffPending;
+    /**
+     * Incremented whenever the first page is replaced, so outdated diffs are dropped
+     */
+    private int mFirstPageVersion;
+
+    public void setOnPagesChangedListener(OnPagesChangedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set the query to page through. It must request {@link #PAGE_SIZE} earthquakes per page.
+     *
+     * @param source where the pages after the first one are fetched from
+     */
+    public void setQuery(String queryUrl, EarthquakeSource source) {
+        if (mQueryUrl != null && !mQueryUrl.equals(queryUrl)) {
+            // The summaries are those of the previous query
+            mSummarizedPage = null;
+            mSummaryExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mAggregates = null;
+                    mSearchIndex = null;
+                }
+            });
+        }
+        mQueryUrl = queryUrl;
+        mSource = source;
+    }
+
+    /**
+     * Start over with the given (possibly partial) first page. A view of an {@link EarthquakeStore}
+     * (what EarthquakeLoader delivers) becomes the page as it is; any other list is copied, so
+     * large results should be turned into a store off the main thread.
+     *
+     * @param complete true if no more earthquakes will be appended to the first page
+     */
+    public void setFirstPage(List<Earthquake> earthquakes, boolean complete) {
+        mGeneration++;
+        mFirstPageVersion++;
+        mDiffPending = false;
+        mPages.clear();
+        mLoadingPages.clear();
+        mEndReached = false;
+        mFirstPageComplete = false;
+        EarthquakeStore firstPage = EarthquakeStore.from(earthquakes);
+        if (firstPage == null) {
+            firstPage = new EarthquakeStore();
+            firstPage.addAll(earthquakes);
+        }
+        mFirstPage = firstPage;
+        mPages.put(0, firstPage);
+        mCount = firstPage.size();
+        setFirstPageComplete(complete);
+        notifyPagesChanged();
+    }
+
+    /**
+     * Append earthquakes to the first page while it is still being loaded.
+     */
+    public void appendToFirstPage(List<Earthquake> earthquakes, boolean complete) {
+        EarthquakeStore firstPage = mFirstPage;
+        if (firstPage == null) {
+            setFirstPage(earthquakes, complete);
+            return;
+        }
+        if (mDiffPending || mFirstPageComplete) {
+            // The first page is being read by a diff, which is outdated by this batch anyway,
+            // or it is a complete result that may be shared (see EarthquakeQueryManager)
+            if (mDiffPending) {
+                mFirstPageVersion++;
+                mDiffPending = false;
+            }
+            EarthquakeStore copy = new EarthquakeStore();
+            copy.addAll(firstPage.asList());
+            firstPage = copy;
+            mFirstPage = firstPage;
+        }
+        mPages.put(0, firstPage);
+        firstPage.addAll(earthquakes);
+        mCount = firstPage.size();
+        setFirstPageComplete(complete);
+        notifyPagesChanged();
+    }
+
+    /**
+     * Replace the first page with a new, complete result of the same query, e.g. after a reload
+     * or a sync. The new rows are diffed against the displayed ones on a background thread, and
+     * only what changed is handed to the listener: nothing if the result is the same, the changed
+     * rows if only values changed (the other pages are kept), or the whole diff if rows were
+     * inserted, removed or moved (pages after the first are dropped, since their offsets shifted).
+     * The previous first page is kept for this even after it was dropped from memory, so the list
+     * keeps its position however far it was scrolled. A list that is not a view of an
+     * {@link EarthquakeStore} is copied into one on the diff thread.
+     */
+    public void updateFirstPage(final List<Earthquake> earthquakes) {
+        final EarthquakeStore oldPage = mFirstPage;
+        if (oldPage == null || oldPage.size() == 0 || mListener == null) {
+            setFirstPage(earthquakes, true);
+            return;
+        }
+        final int version = ++mFirstPageVersion;
+        mDiffPending = true;
+        mDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                EarthquakeStore store = EarthquakeStore.from(earthquakes);
+                if (store == null) {
+                    store = new EarthquakeStore();
+                    store.addAll(earthquakes);
+                }
+                final EarthquakeStore newPage = store;
+                final EarthquakeListDiff diff = EarthquakeListDiff.compute(oldPage, newPage);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFirstPageDiffed(newPage, diff, version);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Take a new first page diffed against the current one right away, as the main thread does
+     * once {@link #updateFirstPage} diffed them. Lets the benchmark time that step on its own.
+     */
+    void applyFirstPageDiff(EarthquakeStore newPage, EarthquakeListDiff diff) {
+        onFirstPageDiffed(newPage, diff, mFirstPageVersion);
+    }
+
+    private void onFirstPageDiffed(EarthquakeStore newPage, EarthquakeListDiff diff, int version) {
+        if (version != mFirstPageVersion) {
+            // Another first page was set meanwhile
+            return;
+        }
+        mDiffPending = false;
+        mFirstPage = newPage;
+        if (diff.isStructural()) {
+            // Offsets of the following pages shifted, they are fetched again when scrolled to
+            mGeneration++;
+            mPages.clear();
+            mLoadingPages.clear();
+            mEndReached = false;
+            // The rows after a full first page are still there, only shifted: keep the count, so
+            // that a list scrolled past the first page stays where it is while they are fetched
+            // again. A short first page is the whole result.
+            mCount = newPage.size() < PAGE_SIZE ? newPage.size() : Math.max(mCount, newPage.size());
+        }
+        mPages.put(0, newPage);
+        setFirstPageComplete(true);
+        if (mListener != null) {
+            mListener.onFirstPageChanged(diff);
+        }
+    }
+
+    /**
+     * Drop all pages, e.g. when the loader is reset.
+     */
+    public void clear() {
+        setFirstPage(new EarthquakeStore().asList(), false);
+    }
+
+    private void setFirstPageComplete(boolean complete) {
+        mFirstPageComplete = complete;
+        if (complete && mCount < PAGE_SIZE) {
+            mEndReached = true;
+        }
+        if (complete && mFirstPage != mSummarizedPage) {
+            summarizeFirstPage(mSummarizedPage, mFirstPage);
+            mSummarizedPage = mFirstPage;
+        }
+    }
+
+    /**
+     * Returns the number of rows of the list, including rows of pages that are not in memory.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Hand the summary of and the place search over the complete result of the query (every page,
+     * not only those in memory) to the listener, on their own background thread, so page fetches
+     * never wait for them. The first time, the result is fetched in requests of
+     * {@link #COMPLETE_RESULT_PAGE_SIZE} earthquakes, the most USGS returns at once, unless
+     * {@link EarthquakeIndex} already covers the query or the first page is the whole result, and
+     * both are built from it; a result that fits in one request is also offered to the
+     * EarthquakeIndex, which then answers the following pages from memory. Afterwards they are
+     * only updated, with each new first page and each sync (see {@link #applySyncChanges}), in
+     * constant time per changed event.
+     * If the complete result cannot be fetched, the pages in memory are summarized instead, and
+     * the complete result is asked for again the next time.
+     */
+    public void loadSummaries(final OnSummariesLoadedListener listener) {
+        final String queryUrl = mQueryUrl;
+        final EarthquakeSource source = mSource;
+        final List<EarthquakeStore> pages = getPagesInMemory();
+        // A short first page is the whole result
+        final EarthquakeStore firstPage = mFirstPageComplete && mFirstPage.size() < PAGE_SIZE ? mFirstPage : null;
+        mSummaryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mAggregates == null) {
+                    EarthquakeStore result = firstPage != null ? firstPage : loadCompleteResult(queryUrl, source);
+                    if (result == null) {
+                        // Events in two pages (the result shifted between their fetches) are put once
+                        EarthquakeAggregates aggregates = new EarthquakeAggregates();
+                        PlaceSearchIndex searchIndex = new PlaceSearchIndex();
+                        for (EarthquakeStore page : pages) {
+                            aggregates.putAll(page);
+                            searchIndex.putAll(page);
+                        }
+                        listener.onSummariesLoaded(aggregates, searchIndex);
+                        return;
+                    }
+                    mAggregates = new EarthquakeAggregates();
+                    mSearchIndex = new PlaceSearchIndex();
+                    mAggregates.putAll(result);
+                    mSearchIndex.putAll(result);
+                }
+                listener.onSummariesLoaded(mAggregates, mSearchIndex);
+            }
+        });
+    }
+
+    /**
+     * Apply the changes a sync of the query found (see {@link EarthquakeCache#sync}) to the
+     * summaries, if they were built: they cover the whole query, beyond the first page.
+     *
+     * @param updated    events added to or revised within the query
+     * @param removedIds ids of the events that left it
+     */
+    public void applySyncChanges(List<Earthquake> updated, final List<String> removedIds) {
+        EarthquakeStore store = EarthquakeStore.from(updated);
+        if (store == null) {
+            store = new EarthquakeStore();
+            store.addAll(updated);
+        }
+        final EarthquakeStore updatedStore = store;
+        mSummaryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mAggregates == null) {
+                    // Built from a fresh result when they are first asked for
+                    return;
+                }
+                for (String id : removedIds) {
+                    mAggregates.remove(id);
+                    mSearchIndex.remove(id);
+                }
+                mAggregates.putAll(updatedStore);
+                mSearchIndex.putAll(updatedStore);
+            }
+        });
+    }
+
+    /**
+     * Apply a new complete first page to the summaries, if they were built. Its events are put,
+     * which only changes the new and revised ones. Events of the previous first page missing from
+     * it have only left the result for sure if it is short, i.e. the whole result; otherwise they
+     * may just have moved to the next page, and deleted ones are removed by the next sync instead.
+     */
+    private void summarizeFirstPage(final EarthquakeStore oldPage, final EarthquakeStore newPage) {
+        mSummaryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mAggregates == null) {
+                    return;
+                }
+                if (oldPage != null && newPage.size() < PAGE_SIZE) {
+                    mAggregates.replace(oldPage, newPage);
+                    mSearchIndex.replace(oldPage, newPage);
+                } else {
+                    mAggregates.putAll(newPage);
+                    mSearchIndex.putAll(newPage);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the pages in memory, copying the first page if it may still be appended to.
+     */
+    private List<EarthquakeStore> getPagesInMemory() {
+        ArrayList<EarthquakeStore> pages = new ArrayList<>();
+        for (int i = 0; i < mPages.size(); i++) {
+            EarthquakeStore page = mPages.valueAt(i);
+            if (page == mFirstPage && !mFirstPageComplete) {
+                EarthquakeStore copy = new EarthquakeStore();
+                copy.addAll(page.asList());
+                page = copy;
+            }
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    /**
+     * Returns every earthquake of the query, from the EarthquakeIndex if it covers the query,
+     * otherwise fetched from the source one {@link #COMPLETE_RESULT_PAGE_SIZE} request at a time
+     * until a short one; or null if a request failed. Events moved from one request to the next
+     * by new events are kept once. Runs on the summary thread.
+     */
+    private static EarthquakeStore loadCompleteResult(String queryUrl, EarthquakeSource source) {
+        if (queryUrl == null || source == null) {
+            return null;
+        }
+        Uri uri = Uri.parse(queryUrl);
+        Uri.Builder builder = uri.buildUpon().clearQuery();
+        for (String name : uri.getQueryParameterNames()) {
+            if (!"limit".equals(name) && !"offset".equals(name)) {
+                for (String value : uri.getQueryParameters(name)) {
+                    builder.appendQueryParameter(name, value);
+                }
+            }
+        }
+        String completeUrl = builder
+                .appendQueryParameter("limit", String.valueOf(COMPLETE_RESULT_PAGE_SIZE))
+                .build().toString();
+        EarthquakeIndex index = EarthquakeIndex.getInstance();
+        EarthquakeStore result = new EarthquakeStore();
+        HashSet<String> ids = new HashSet<>();
+        // USGS offsets are 1-based
+        for (int offset = 1; ; offset += COMPLETE_RESULT_PAGE_SIZE) {
+            String requestUrl = offset == 1 ? completeUrl : Uri.parse(completeUrl).buildUpon()
+                    .appendQueryParameter("offset", String.valueOf(offset))
+                    .build().toString();
+            List<Earthquake> earthquakes = index.query(requestUrl);
+            if (earthquakes == null) {
+                earthquakes = fetch(requestUrl, source);
+                if (earthquakes == null) {
+                    return null;
+                }
+                // Ignored unless it is the whole result
+                index.update(requestUrl, earthquakes);
+            }
+            if (offset == 1 && earthquakes.size() < COMPLETE_RESULT_PAGE_SIZE) {
+                EarthquakeStore store = EarthquakeStore.from(earthquakes);
+                if (store != null) {
+                    // The whole result came at once, no need to copy it
+                    return store;
+                }
+            }
+            for (int i = 0; i < earthquakes.size(); i++) {
+                Earthquake earthquake = earthquakes.get(i);
+                if (earthquake.getId() == null || ids.add(earthquake.getId())) {
+                    result.add(earthquake);
+                }
+            }
+            if (earthquakes.size() < COMPLETE_RESULT_PAGE_SIZE) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Fetch the given request URL from the source, sharing the download with an identical request
+     * in flight, if any. Returns a store view, or null if the request failed.
+     */
+    private static List<Earthquake> fetch(final String requestUrl, final EarthquakeSource source) {
+        return EarthquakeQueryManager.getInstance().load(requestUrl, new Callable<List<Earthquake>>() {
+            @Override
+            public List<Earthquake> call() {
+                final EarthquakeStore store = new EarthquakeStore();
+                QueryUtils.FetchResult fetchResult = source.fetch(requestUrl, null, null,
+                        new QueryUtils.EarthquakeCallback() {
+                            @Override
+                            public void onEarthquake(Earthquake earthquake) {
+                                store.add(earthquake);
+                            }
+                        });
+                return fetchResult.isSuccessful() ? store.asList() : null;
+            }
+        });
+    }
+
+    /**
+     * Returns the page holding the given row, or null if it is not in memory (yet).
+     * Use {@link #getRowInPage(int)} to find the row within the page.
+     */
+    public EarthquakeStore getPageForPosition(int position) {
+        return mPages.get(position / PAGE_SIZE);
+    }
+
+    public static int getRowInPage(int position) {
+        return position % PAGE_SIZE;
+    }
+
+    /**
+     * Tell the pager which rows are on screen: pages covering them (and the next page, near the
+     * end of the list) are requested, and pages far away from them are dropped.
+     */
+    public void onVisibleRangeChanged(int firstPosition, int lastPosition) {
+        if (mCount == 0) {
+            return;
+        }
+        int firstPage = firstPosition / PAGE_SIZE;
+        int lastPage = lastPosition / PAGE_SIZE;
+
+        // Drop pages that are far away from the visible ones
+        for (int i = mPages.size() - 1; i >= 0; i--) {
+            int page = mPages.keyAt(i);
+            if (page < firstPage - WINDOW_PAGES || page > lastPage + WINDOW_PAGES) {
+                mPages.removeAt(i);
+            }
+        }
+
+        // Reload visible pages that were dropped before
+        for (int page = firstPage; page <= lastPage && page * PAGE_SIZE < mCount; page++) {
+            requestPage(page);
+        }
+
+        // Prefetch the next page before the user reaches the end of the list
+        if (!mEndReached && lastPosition + PREFETCH_DISTANCE >= mCount) {
+            requestPage((mCount + PAGE_SIZE - 1) / PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Fetch the given page in the background, unless it is loaded or already being fetched.
+     */
+    private void requestPage(final int page) {
+        if (mQueryUrl == null || mSource == null || !mFirstPageComplete || mPages.get(page) != null
+                || mLoadingPages.contains(page)) {
+            return;
+        }
+        mLoadingPages.add(page);
+        final int generation = mGeneration;
+        final EarthquakeSource source = mSource;
+        // USGS offsets are 1-based
+        final String pageUrl = Uri.parse(mQueryUrl).buildUpon()
+                .appendQueryParameter("offset", String.valueOf(page * PAGE_SIZE + 1))
+                .build().toString();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                EarthquakeStore result = null;
+                List<Earthquake> indexed = EarthquakeIndex.getInstance().query(pageUrl);
+                if (indexed != null) {
+                    // The page is answered from memory
+                    result = EarthquakeStore.from(indexed);
+                } else {
+                    List<Earthquake> fetched = fetch(pageUrl, source);
+                    if (fetched != null) {
+                        result = EarthquakeStore.from(fetched);
+                    }
+                }
+                final EarthquakeStore pageStore = result;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageLoaded(page, pageStore, generation);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPageLoaded(int page, EarthquakeStore store, int generation) {
+        if (generation != mGeneration) {
+            // The query changed while this page was being fetched
+            return;
+        }
+        mLoadingPages.remove(page);
+        if (store == null) {
+            Log.e(LOG_TAG, "Could not load page " + page + ", it will be retried when scrolled to");
+            return;
+        }
+        mPages.put(page, store);
+        int end = page * PAGE_SIZE + store.size();
+        if (store.size() < PAGE_SIZE) {
+            // A short page is the last one
+            mEndReached = true;
+            mCount = end;
+        } else if (end > mCount) {
+            mCount = end;
+        }
+        notifyPagesChanged();
+    }
+
+    private void notifyPagesChanged() {
+        if (mListener != null) {
+            mListener.onPagesChanged();
+        }
+    }
+
+    /**
+     * Stop fetching pages. The pager cannot be used afterwards.
+     */
+    public void shutdown() {
+        mGeneration++;
+        mExecutor.shutdownNow();
+        mDiffExecutor.shutdownNow();
+        mSummaryExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,278 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Process-wide deduplication of identical queries. While a query is being fetched, every other
+ * request for the same query waits for that fetch and shares its result instead of starting its
+ * own, and a result stays available from memory for {@link #RECENT_MILLIS} after it arrived. A
+ * burst of identical requests, e.g. from re-entering {@link EarthquakeActivity} while a load is
+ * still running, so costs a single network round trip.
+ * <p>
+ * Queries are identified by their normalized URL, see {@link #normalize}. Results are shared
+ * between callers and must not be modified.
+ * <p>
+ * Thread-safe; fetches run on the thread of the first caller, without holding the lock.
+ */
+public final class EarthquakeQueryManager {
+
+    /**
+     * How long a result is served from memory to identical queries
+     */
+    static final long RECENT_MILLIS = 60 * 1000;
+    /**
+     * How many recent results are kept
+     */
+    static final int MAX_RECENT = 16;
+    /**
+     * How often a caller waiting for another caller's fetch checks whether it was canceled
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private static final Metrics.Counter COALESCED = Metrics.counter("query.coalesced");
+    private static final Metrics.Counter RECENT_HITS = Metrics.counter("query.recent_hits");
+
+    private static final EarthquakeQueryManager sInstance = new EarthquakeQueryManager();
+
+    /**
+     * Fetches in progress, by normalized URL
+     */
+    private final HashMap<String, InFlight> mInFlight = new HashMap<>();
+    /**
+     * Recent results by normalized URL, least recently used first
+     */
+    private final RecentResults mRecent = new RecentResults();
+
+    /**
+     * A fetch in progress. It is abandoned if it was canceled by the caller running it, which
+     * is recorded on that caller's thread before the task completes, so waiting callers see it.
+     */
+    private static final class InFlight {
+        final FutureTask<List<Earthquake>> task;
+        volatile boolean abandoned;
+
+        InFlight(final Callable<List<Earthquake>> fetch) {
+            task = new FutureTask<>(new Callable<List<Earthquake>>() {
+                @Override
+                public List<Earthquake> call() throws Exception {
+                    List<Earthquake> result = fetch.call();
+                    if (result == null && FetchCancellation.current().isCanceled()) {
+                        abandoned = true;
+                    }
+                    return result;
+                }
+            });
+        }
+    }
+
+    private static final class Recent {
+        final List<Earthquake> earthquakes;
+        final long fetchedAt;
+
+        Recent(List<Earthquake> earthquakes, long fetchedAt) {
+            this.earthquakes = earthquakes;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    /**
+     * The {@link #MAX_RECENT} most recently used results, least recently used first.
+     */
+    private static final class RecentResults extends LinkedHashMap<String, Recent> {
+        private static final long serialVersionUID = 1L;
+
+        RecentResults() {
+            super(MAX_RECENT, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Recent> eldest) {
+            return size() > MAX_RECENT;
+        }
+    }
+
+    /**
+     * Use {@link #getInstance()}; tests create their own manager so they start with nothing recent.
+     */
+    EarthquakeQueryManager() {
+    }
+
+    public static EarthquakeQueryManager getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the recent result of the given query, or null if there is none.
+     */
+    public synchronized List<Earthquake> getRecent(String requestUrl) {
+        List<Earthquake> recent = getRecentLocked(normalize(requestUrl));
+        if (Metrics.ENABLED && recent != null) {
+            RECENT_HITS.increment();
+        }
+        return recent;
+    }
+
+    /**
+     * Returns the result of the given query: the recent one if there is one, the one of the fetch
+     * in progress if there is one, or else the one of the given fetch, run on the calling thread.
+     * A null (failed) result is handed to the callers waiting for it, but not kept.
+     * <p>
+     * Waiting stops when the caller's {@link FetchCancellation} is canceled. If the fetch is
+     * canceled by its own caller instead, a waiting caller runs the fetch itself.
+     */
+    public List<Earthquake> load(String requestUrl, final Callable<List<Earthquake>> fetch) {
+        String key = normalize(requestUrl);
+        FetchCancellation cancellation = FetchCancellation.current();
+        while (!cancellation.isCanceled()) {
+            InFlight inFlight;
+            boolean owner = false;
+            synchronized (this) {
+                List<Earthquake> recent = getRecentLocked(key);
+                if (recent != null) {
+                    if (Metrics.ENABLED) {
+                        RECENT_HITS.increment();
+                    }
+                    return recent;
+                }
+                inFlight = mInFlight.get(key);
+                if (inFlight == null || inFlight.abandoned) {
+                    inFlight = new InFlight(fetch);
+                    mInFlight.put(key, inFlight);
+                    owner = true;
+                } else if (Metrics.ENABLED) {
+                    COALESCED.increment();
+                }
+            }
+
+            if (owner) {
+                return runFetch(key, inFlight);
+            }
+            List<Earthquake> result = await(inFlight.task, cancellation);
+            if (result != null || !inFlight.abandoned) {
+                return result;
+            }
+            // The fetch was canceled by the caller running it; run it ourselves
+        }
+        return null;
+    }
+
+    private List<Earthquake> runFetch(String key, InFlight inFlight) {
+        List<Earthquake> result = null;
+        try {
+            inFlight.task.run();
+            result = inFlight.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        } finally {
+            synchronized (this) {
+                if (mInFlight.get(key) == inFlight) {
+                    mInFlight.remove(key);
+                }
+                if (result != null) {
+                    mRecent.put(key, new Recent(result, SystemClock.elapsedRealtime()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Wait for another caller's fetch, checking for cancellation every {@link #POLL_MILLIS}.
+     */
+    private static List<Earthquake> await(FutureTask<List<Earthquake>> task, FetchCancellation cancellation) {
+        try {
+            while (!cancellation.isCanceled()) {
+                try {
+                    return task.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // check for cancellation and keep waiting
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        }
+        return null;
+    }
+
+    private static RuntimeException rethrow(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new RuntimeException(cause);
+    }
+
+    /**
+     * Forget all recent results, e.g. after a sync changed cached queries.
+     */
+    public synchronized void invalidate() {
+        mRecent.clear();
+    }
+
+    private List<Earthquake> getRecentLocked(String key) {
+        Recent recent = mRecent.get(key);
+        if (recent == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - recent.fetchedAt > RECENT_MILLIS) {
+            mRecent.remove(key);
+            return null;
+        }
+        return recent.earthquakes;
+    }
+
+    /**
+     * Returns the given URL with its query parameters sorted by name, minmagnitude spelled minmag,
+     * and scheme and host in lower case, so that requests for the same query compare equal
+     * however they were built.
+     */
+    static String normalize(String requestUrl) {
+        Uri uri = Uri.parse(requestUrl);
+        TreeMap<String, List<String>> parameters = new TreeMap<>();
+        for (String name : uri.getQueryParameterNames()) {
+            String key = "minmagnitude".equals(name) ? "minmag" : name;
+            List<String> values = parameters.get(key);
+            if (values == null) {
+                values = new ArrayList<>();
+                parameters.put(key, values);
+            }
+            values.addAll(uri.getQueryParameters(name));
+        }
+        Uri.Builder builder = uri.buildUpon().clearQuery();
+        String scheme = uri.getScheme();
+        if (scheme != null) {
+            builder.scheme(scheme.toLowerCase(Locale.US));
+        }
+        String authority = uri.getEncodedAuthority();
+        if (authority != null) {
+            builder.encodedAuthority(authority.toLowerCase(Locale.US));
+        }
+        for (Map.Entry<String, List<String>> parameter : parameters.entrySet()) {
+            for (String value : parameter.getValue()) {
+                builder.appendQueryParameter(parameter.getKey(), value);
+            }
+        }
+        return builder.build().toString();
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary snapshot of the result of a query, written in the column layout of
+ * {@link EarthquakeStore} so that it is mapped back as a store that reads its rows in place.
+ * <p>
+ * Opening a snapshot only maps the file and checks its header and string table; rows are read when
+ * EarthquakeAdapter.getView() binds them, so the cost of showing a cached result no longer grows
+ * with its size.
+ * <p>
+ * File layout (big-endian):
+ * <pre>
+ * int    MAGIC, int VERSION
+ * int    query URL length, byte[] query URL (UTF-8)
+ *        the rows, as written by EarthquakeStore.writeTo()
+ * </pre>
+ */
+public final class EarthquakeSnapshot {
+
+    private static final int MAGIC = 0x51524B53; // "QRKS"
+    /**
+     * Bump whenever the layout changes; older files are then ignored.
+     */
+    private static final int VERSION = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private EarthquakeSnapshot() {
+    }
+
+    /**
+     * Map the snapshot stored in the given file.
+     *
+     * @param requestUrl the query the snapshot is expected to hold
+     * @return a store reading the rows from the file, or null if the file is missing, from another
+     * version or for another query
+     * @throws IOException if the file cannot be read or is corrupt
+     */
+    public static EarthquakeStore open(File file, String requestUrl) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            // The mapping stays valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.limit() < 12 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            return null;
+        }
+        try {
+            int urlLength = buffer.getInt(8);
+            if (urlLength < 0 || urlLength > buffer.limit() - 12) {
+                throw new IOException("Corrupt snapshot " + file);
+            }
+            byte[] url = new byte[urlLength];
+            ByteBuffer header = buffer.duplicate();
+            header.position(12);
+            header.get(url);
+            if (!Arrays.equals(url, requestUrl.getBytes(UTF_8))) {
+                return null;
+            }
+            return EarthquakeStore.map(buffer, 12 + urlLength);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException("Corrupt snapshot " + file, e);
+        }
+    }
+
+    /**
+     * Write the given earthquakes as a snapshot of the given query. The file is written to a
+     * temporary file of its own next to its final location and renamed into place, so readers
+     * never see a partial snapshot and concurrent writers of the same query do not mix their data.
+     */
+    public static void write(File file, String requestUrl, List<Earthquake> earthquakes) throws IOException {
+        EarthquakeStore store = EarthquakeStore.from(earthquakes);
+        if (store == null) {
+            store = new EarthquakeStore();
+            store.addAll(earthquakes);
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        boolean written = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                byte[] url = requestUrl.getBytes(UTF_8);
+                out.writeInt(url.length);
+                out.write(url);
+                store.writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not move snapshot into place: " + file);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                tmp.delete();
+            }
+        }
+    }
+}
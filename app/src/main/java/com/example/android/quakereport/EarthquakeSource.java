@@ -0,0 +1,20 @@
+package com.example.android.quakereport;
+
+/**
+ * Where earthquakes are fetched from. The app uses {@link HttpEarthquakeSource}; tests use fakes
+ * so the paths built on fetches run without the USGS server. Debug builds replay feeds over HTTP
+ * with ReplayServer instead, so the connection and the stream are measured too.
+ */
+public interface EarthquakeSource {
+
+    /**
+     * Fetch the earthquakes of a query, handing each one to the callback as soon as it is parsed.
+     *
+     * @param requestUrl   the USGS query
+     * @param eTag         ETag of a cached response to revalidate, or null
+     * @param lastModified Last-Modified of a cached response to revalidate, or null
+     * @return the outcome of the fetch; never null
+     */
+    QueryUtils.FetchResult fetch(String requestUrl, String eTag, String lastModified,
+                                 QueryUtils.EarthquakeCallback callback);
+}
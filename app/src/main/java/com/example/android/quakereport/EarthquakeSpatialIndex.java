@@ -0,0 +1,263 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Grid index over the epicenters of a list of earthquakes, answering bounding-box and radius
+ * queries without going back to the network.
+ * <p>
+ * The globe is cut into {@link #CELL_DEGREES}-degree cells. Building the index is a counting sort
+ * of the rows by cell: {@code mCellStarts[c]..mCellStarts[c + 1]} is the range of {@code mRows}
+ * (and of the copied coordinates) falling into cell c, so a query only reads the cells it overlaps,
+ * in contiguous memory. Rows without coordinates are not indexed.
+ * <p>
+ * The index is immutable once built and can be shared between threads.
+ */
+public final class EarthquakeSpatialIndex {
+
+    /**
+     * Size of a grid cell in degrees (of latitude and longitude)
+     */
+    static final int CELL_DEGREES = 1;
+    private static final int COLUMNS = 360 / CELL_DEGREES;
+    private static final int ROWS = 180 / CELL_DEGREES;
+
+    /**
+     * Mean radius of the Earth, in kilometers
+     */
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+
+    private final List<Earthquake> mEarthquakes;
+    private final int[] mCellStarts = new int[COLUMNS * ROWS + 1];
+    /**
+     * Positions in mEarthquakes, grouped by cell
+     */
+    private final int[] mRows;
+    /**
+     * Coordinates of mRows, in the same order; longitudes are normalized to [-180, 180)
+     */
+    private final double[] mLongitudes;
+    private final double[] mLatitudes;
+
+    private EarthquakeSpatialIndex(List<Earthquake> earthquakes, double[] longitudes, double[] latitudes) {
+        mEarthquakes = earthquakes;
+        int size = longitudes.length;
+        int[] cells = new int[size];
+        int indexed = 0;
+        for (int i = 0; i < size; i++) {
+            if (Double.isNaN(longitudes[i]) || Double.isNaN(latitudes[i])) {
+                cells[i] = -1;
+                continue;
+            }
+            cells[i] = getCell(longitudes[i], latitudes[i]);
+            mCellStarts[cells[i] + 1]++;
+            indexed++;
+        }
+        for (int cell = 0; cell < COLUMNS * ROWS; cell++) {
+            mCellStarts[cell + 1] += mCellStarts[cell];
+        }
+
+        mRows = new int[indexed];
+        mLongitudes = new double[indexed];
+        mLatitudes = new double[indexed];
+        int[] next = Arrays.copyOf(mCellStarts, COLUMNS * ROWS);
+        for (int i = 0; i < size; i++) {
+            if (cells[i] < 0) {
+                continue;
+            }
+            int slot = next[cells[i]]++;
+            mRows[slot] = i;
+            mLongitudes[slot] = normalizeLongitude(longitudes[i]);
+            mLatitudes[slot] = latitudes[i];
+        }
+    }
+
+    /**
+     * Index the epicenters of the given earthquakes. Rows of an {@link EarthquakeStore} are read
+     * column by column, without creating objects.
+     */
+    public static EarthquakeSpatialIndex build(List<Earthquake> earthquakes) {
+        int size = earthquakes.size();
+        double[] longitudes = new double[size];
+        double[] latitudes = new double[size];
+        EarthquakeStore store = EarthquakeStore.from(earthquakes);
+        if (store != null) {
+            for (int i = 0; i < size; i++) {
+                longitudes[i] = store.getLongitude(i);
+                latitudes[i] = store.getLatitude(i);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                Earthquake earthquake = earthquakes.get(i);
+                longitudes[i] = earthquake.getLongitude();
+                latitudes[i] = earthquake.getLatitude();
+            }
+        }
+        return new EarthquakeSpatialIndex(earthquakes, longitudes, latitudes);
+    }
+
+    /**
+     * Returns the list the index was built over; query results are positions in it.
+     */
+    public List<Earthquake> getEarthquakes() {
+        return mEarthquakes;
+    }
+
+    /**
+     * Returns the number of indexed earthquakes, i.e. those with coordinates.
+     */
+    public int size() {
+        return mRows.length;
+    }
+
+    /**
+     * Returns the positions, in ascending order, of the earthquakes inside the given box.
+     * A box crossing the antimeridian is given with west > east (i.e. 170 to -170).
+     */
+    public int[] queryBox(double south, double west, double north, double east) {
+        IntBuffer result = new IntBuffer();
+        if (west <= east) {
+            collectBox(south, west, north, east, result);
+        } else {
+            collectBox(south, west, north, 180, result);
+            collectBox(south, -180, north, east, result);
+        }
+        return result.toSortedArray();
+    }
+
+    /**
+     * Returns the positions, in ascending order, of the earthquakes whose epicenter is within
+     * the given great-circle distance of a point.
+     */
+    public int[] queryRadius(double latitude, double longitude, double radiusKm) {
+        IntBuffer result = new IntBuffer();
+        double angularRadius = radiusKm / EARTH_RADIUS_KM;
+        double latDelta = Math.toDegrees(angularRadius);
+        double south = latitude - latDelta;
+        double north = latitude + latDelta;
+
+        // Bounding box of the circle; it spans all longitudes if it contains a pole
+        double west = -180;
+        double east = 180;
+        if (south > -90 && north < 90) {
+            double lonDelta = Math.toDegrees(Math.asin(
+                    Math.min(1, Math.sin(angularRadius) / Math.cos(Math.toRadians(latitude)))));
+            west = longitude - lonDelta;
+            east = longitude + lonDelta;
+        }
+
+        double centerLat = Math.toRadians(latitude);
+        double centerLon = Math.toRadians(longitude);
+        double cosCenterLat = Math.cos(centerLat);
+        // Compare haversine terms instead of distances, so no asin/sqrt per candidate
+        double maxHaversine = Math.pow(Math.sin(Math.min(angularRadius, Math.PI) / 2), 2);
+
+        int firstRow = getGridRow(Math.max(-90, south));
+        int lastRow = getGridRow(Math.min(90, north));
+        if (east - west >= 360) {
+            collectRadius(firstRow, lastRow, 0, COLUMNS - 1, centerLat, centerLon, cosCenterLat,
+                    maxHaversine, result);
+        } else {
+            int firstColumn = getGridColumn(normalizeLongitude(west));
+            int lastColumn = getGridColumn(normalizeLongitude(east));
+            if (firstColumn <= lastColumn) {
+                collectRadius(firstRow, lastRow, firstColumn, lastColumn, centerLat, centerLon,
+                        cosCenterLat, maxHaversine, result);
+            } else {
+                // The circle crosses the antimeridian
+                collectRadius(firstRow, lastRow, firstColumn, COLUMNS - 1, centerLat, centerLon,
+                        cosCenterLat, maxHaversine, result);
+                collectRadius(firstRow, lastRow, 0, lastColumn, centerLat, centerLon,
+                        cosCenterLat, maxHaversine, result);
+            }
+        }
+        return result.toSortedArray();
+    }
+
+    private void collectBox(double south, double west, double north, double east, IntBuffer result) {
+        if (south > north) {
+            return;
+        }
+        int firstRow = getGridRow(Math.max(-90, south));
+        int lastRow = getGridRow(Math.min(90, north));
+        int firstColumn = getGridColumn(Math.max(-180, west));
+        int lastColumn = getGridColumn(Math.min(180, east));
+        for (int row = firstRow; row <= lastRow; row++) {
+            // Cells of a grid row are contiguous, so the whole column range is one slice
+            int start = mCellStarts[row * COLUMNS + firstColumn];
+            int end = mCellStarts[row * COLUMNS + lastColumn + 1];
+            for (int i = start; i < end; i++) {
+                double lat = mLatitudes[i];
+                double lon = mLongitudes[i];
+                if (lat >= south && lat <= north && lon >= west && lon <= east) {
+                    result.add(mRows[i]);
+                }
+            }
+        }
+    }
+
+    private void collectRadius(int firstRow, int lastRow, int firstColumn, int lastColumn,
+                               double centerLat, double centerLon, double cosCenterLat,
+                               double maxHaversine, IntBuffer result) {
+        for (int row = firstRow; row <= lastRow; row++) {
+            int start = mCellStarts[row * COLUMNS + firstColumn];
+            int end = mCellStarts[row * COLUMNS + lastColumn + 1];
+            for (int i = start; i < end; i++) {
+                double lat = Math.toRadians(mLatitudes[i]);
+                double sinLat = Math.sin((lat - centerLat) / 2);
+                double sinLon = Math.sin((Math.toRadians(mLongitudes[i]) - centerLon) / 2);
+                double haversine = sinLat * sinLat + cosCenterLat * Math.cos(lat) * sinLon * sinLon;
+                if (haversine <= maxHaversine) {
+                    result.add(mRows[i]);
+                }
+            }
+        }
+    }
+
+    private static int getCell(double longitude, double latitude) {
+        return getGridRow(latitude) * COLUMNS + getGridColumn(normalizeLongitude(longitude));
+    }
+
+    private static int getGridRow(double latitude) {
+        int row = (int) Math.floor((latitude + 90) / CELL_DEGREES);
+        return Math.max(0, Math.min(ROWS - 1, row));
+    }
+
+    private static int getGridColumn(double longitude) {
+        int column = (int) Math.floor((longitude + 180) / CELL_DEGREES);
+        return Math.max(0, Math.min(COLUMNS - 1, column));
+    }
+
+    /**
+     * Bring a longitude into [-180, 180).
+     */
+    private static double normalizeLongitude(double longitude) {
+        if (longitude >= -180 && longitude < 180) {
+            return longitude;
+        }
+        double normalized = (longitude + 180) % 360;
+        return (normalized < 0 ? normalized + 360 : normalized) - 180;
+    }
+
+    /**
+     * Growable int array for query results.
+     */
+    private static final class IntBuffer {
+        private int[] mValues = new int[16];
+        private int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        int[] toSortedArray() {
+            int[] values = Arrays.copyOf(mValues, mSize);
+            Arrays.sort(values);
+            return values;
+        }
+    }
+}
@@ -0,0 +1,768 @@
+package com.example.android.quakereport;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Compact, column-oriented storage for a list of earthquakes.
+ * <p>
+ * Instead of one {@link Earthquake} object (plus its Strings) per event, every field is kept in a
+ * primitive array indexed by row, and place names, URLs and event ids are interned into a shared
+ * string table, so repeated values are stored once. A place is kept as its location offset and
+ * primary location (the latter also shared process-wide through {@link EarthquakeStrings}), and a
+ * URL that is the event's page is not kept at all but rebuilt from the event id. Rows are read
+ * with the per-column getters; {@link #asList()} offers a {@code List<Earthquake>} view for
+ * callers that still want objects.
+ * <p>
+ * A store can also be mapped from a file it was written to (see {@link EarthquakeSnapshot}): its
+ * columns are then read in place from the file, and only copied into arrays if rows are added.
+ * <p>
+ * Not thread-safe: a store is filled on one thread and then handed over to another.
+ */
+public final class EarthquakeStore {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Place or URL of a row that is not stored but derived from its other columns
+     */
+    private static final int DERIVED = -2;
+    /**
+     * Bytes of one row in a written store: four 8-byte columns and five string-table indexes
+     */
+    private static final int ROW_BYTES = 4 * 8 + 5 * 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private int mSize;
+    private double[] mMags = new double[INITIAL_CAPACITY];
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    /**
+     * Epicenter in degrees, NaN if unknown
+     */
+    private double[] mLongitudes = new double[INITIAL_CAPACITY];
+    private double[] mLatitudes = new double[INITIAL_CAPACITY];
+    /**
+     * String-table indexes, -1 for null. Places are {@link #DERIVED} if they are location offset +
+     * primary location, URLs if they are the event page of the id.
+     */
+    private int[] mPlaces = new int[INITIAL_CAPACITY];
+    private int[] mUrls = new int[INITIAL_CAPACITY];
+    private int[] mIds = new int[INITIAL_CAPACITY];
+    /**
+     * The place split for display ("74km NW of" / "Rumoi, Japan"), computed once when a row is added
+     */
+    private int[] mLocationOffsets = new int[INITIAL_CAPACITY];
+    private int[] mPrimaryLocations = new int[INITIAL_CAPACITY];
+
+    private final ArrayList<String> mStrings = new ArrayList<>();
+    private final HashMap<String, Integer> mStringIndexes = new HashMap<>();
+    /**
+     * The columns of a store mapped from a file, until rows are added; null for a store filled
+     * in memory
+     */
+    private Mapped mMapped;
+
+    /**
+     * Append an earthquake. Only its values are kept, not the object itself; its place is not
+     * split again.
+     */
+    public void add(Earthquake earthquake) {
+        if (earthquake instanceof RowView) {
+            RowView row = (RowView) earthquake;
+            add(row.mStore, row.mPosition);
+            return;
+        }
+        boolean urlFromId = earthquake.hasEventPageUrl();
+        addRow(earthquake.getMag(), earthquake.getTimeInMillSeconds(), earthquake.getLongitude(),
+                earthquake.getLatitude(), earthquake.getLocationOffset(), earthquake.getPrimaryLocation(),
+                earthquake.getIrregularPlace(), urlFromId ? null : earthquake.getUrl(), urlFromId,
+                earthquake.getId());
+    }
+
+    /**
+     * Append an earthquake given by its values.
+     */
+    public void add(double mag, String place, long timeInMillSeconds, String url, String id,
+                    double longitude, double latitude) {
+        boolean urlFromId = EarthquakeStrings.isEventPageUrl(url, id);
+        addPlace(mag, place, timeInMillSeconds, urlFromId ? null : url, urlFromId, id, longitude, latitude);
+    }
+
+    /**
+     * Append an earthquake whose URL is the USGS event page of its id, without building the URL,
+     * i.e. one imported from a USGS CSV catalogue (which has no URL column).
+     */
+    void addWithEventPageUrl(double mag, String place, long timeInMillSeconds, String id,
+                             double longitude, double latitude) {
+        addPlace(mag, place, timeInMillSeconds, null, id != null, id, longitude, latitude);
+    }
+
+    /**
+     * Append a row, splitting its place into location offset and primary location.
+     */
+    private void addPlace(double mag, String place, long timeInMillSeconds, String url, boolean urlFromId,
+                          String id, double longitude, double latitude) {
+        String offset = null;
+        String primary = null;
+        String irregular = null;
+        if (place != null) {
+            int primaryStart = EarthquakeStrings.getPrimaryLocationStart(place);
+            int primaryEnd = EarthquakeStrings.getPrimaryLocationEnd(place, primaryStart);
+            if (primaryStart > 0) {
+                // Shared by the rows of this store only, see EarthquakeStrings
+                offset = place.substring(0, primaryStart);
+            }
+            primary = EarthquakeStrings.intern(primaryStart == 0 && primaryEnd == place.length()
+                    ? place : place.substring(primaryStart, primaryEnd));
+            if (primaryEnd < place.length()) {
+                irregular = place;
+            }
+        }
+        addRow(mag, timeInMillSeconds, longitude, latitude, offset, primary, irregular, url, urlFromId, id);
+    }
+
+    /**
+     * Append a row given by its stored values.
+     *
+     * @param place     the place if it is not offset + primary location, else null
+     * @param urlFromId true if the URL is the event page of the id, and not given
+     */
+    private void addRow(double mag, long timeInMillSeconds, double longitude, double latitude,
+                        String offset, String primary, String place, String url, boolean urlFromId, String id) {
+        ensureCapacity(mSize + 1);
+        mMags[mSize] = mag;
+        mTimes[mSize] = timeInMillSeconds;
+        mLongitudes[mSize] = longitude;
+        mLatitudes[mSize] = latitude;
+        mLocationOffsets[mSize] = intern(offset);
+        mPrimaryLocations[mSize] = intern(primary);
+        mPlaces[mSize] = place != null || primary == null ? intern(place) : DERIVED;
+        mUrls[mSize] = urlFromId ? DERIVED : intern(url);
+        mIds[mSize] = intern(id);
+        mSize++;
+    }
+
+    /**
+     * Append all earthquakes of the given list. Rows of another store are copied column by column,
+     * without creating {@link Earthquake} objects.
+     */
+    public void addAll(List<Earthquake> earthquakes) {
+        ensureCapacity(mSize + earthquakes.size());
+        if (earthquakes instanceof StoreList) {
+            addAll(((StoreList) earthquakes).mStore);
+        } else {
+            for (int i = 0; i < earthquakes.size(); i++) {
+                add(earthquakes.get(i));
+            }
+        }
+    }
+
+    /**
+     * Append all rows of another store with bulk array copies, interning each of its strings
+     * once rather than once per row that refers to it.
+     */
+    private void addAll(EarthquakeStore other) {
+        int count = other.mSize;
+        ensureCapacity(mSize + count);
+        int[] indexes = new int[other.getStringCount()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = intern(other.getString(i));
+        }
+        Mapped mapped = other.mMapped;
+        if (mapped == null) {
+            System.arraycopy(other.mMags, 0, mMags, mSize, count);
+            System.arraycopy(other.mTimes, 0, mTimes, mSize, count);
+            System.arraycopy(other.mLongitudes, 0, mLongitudes, mSize, count);
+            System.arraycopy(other.mLatitudes, 0, mLatitudes, mSize, count);
+            copyIndexes(IntBuffer.wrap(other.mPlaces), mPlaces, indexes, count);
+            copyIndexes(IntBuffer.wrap(other.mUrls), mUrls, indexes, count);
+            copyIndexes(IntBuffer.wrap(other.mIds), mIds, indexes, count);
+            copyIndexes(IntBuffer.wrap(other.mLocationOffsets), mLocationOffsets, indexes, count);
+            copyIndexes(IntBuffer.wrap(other.mPrimaryLocations), mPrimaryLocations, indexes, count);
+        } else {
+            mapped.mags.duplicate().get(mMags, mSize, count);
+            mapped.times.duplicate().get(mTimes, mSize, count);
+            mapped.longitudes.duplicate().get(mLongitudes, mSize, count);
+            mapped.latitudes.duplicate().get(mLatitudes, mSize, count);
+            copyIndexes(mapped.places, mPlaces, indexes, count);
+            copyIndexes(mapped.urls, mUrls, indexes, count);
+            copyIndexes(mapped.ids, mIds, indexes, count);
+            copyIndexes(mapped.locationOffsets, mLocationOffsets, indexes, count);
+            copyIndexes(mapped.primaryLocations, mPrimaryLocations, indexes, count);
+        }
+        mSize += count;
+    }
+
+    /**
+     * Append count string-table indexes of another store, translated to this store's table.
+     * Null and {@link #DERIVED} are kept as they are.
+     */
+    private void copyIndexes(IntBuffer from, int[] to, int[] indexes, int count) {
+        for (int i = 0; i < count; i++) {
+            int index = from.get(i);
+            to[mSize + i] = index < 0 ? index : indexes[index];
+        }
+    }
+
+    /**
+     * Append a copy of a row of another store.
+     */
+    public void add(EarthquakeStore other, int position) {
+        other.checkPosition(position);
+        int place = other.placeAt(position);
+        boolean urlFromId = other.urlAt(position) == DERIVED;
+        addRow(other.magAt(position), other.timeAt(position), other.longitudeAt(position),
+                other.latitudeAt(position), other.getString(other.locationOffsetAt(position)),
+                other.getString(other.primaryLocationAt(position)),
+                place == DERIVED ? null : other.getString(place),
+                urlFromId ? null : other.getString(other.urlAt(position)), urlFromId, other.getId(position));
+    }
+
+    /**
+     * Remove all rows. The arrays are kept for reuse.
+     */
+    public void clear() {
+        mMapped = null;
+        mSize = 0;
+        mStrings.clear();
+        mStringIndexes.clear();
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public double getMag(int position) {
+        checkPosition(position);
+        return magAt(position);
+    }
+
+    public long getTimeInMillSeconds(int position) {
+        checkPosition(position);
+        return timeAt(position);
+    }
+
+    public String getName(int position) {
+        checkPosition(position);
+        int place = placeAt(position);
+        if (place != DERIVED) {
+            return getString(place);
+        }
+        String offset = getString(locationOffsetAt(position));
+        String primary = getString(primaryLocationAt(position));
+        return offset == null ? primary : offset + primary;
+    }
+
+    public String getUrl(int position) {
+        checkPosition(position);
+        int url = urlAt(position);
+        return url == DERIVED ? EarthquakeStrings.getEventPageUrl(getString(idAt(position))) : getString(url);
+    }
+
+    /**
+     * Returns true if the given rows have the same place and URL, without building either.
+     */
+    boolean sameNameAndUrl(int position, EarthquakeStore other, int otherPosition) {
+        checkPosition(position);
+        other.checkPosition(otherPosition);
+        int place = placeAt(position);
+        int otherPlace = other.placeAt(otherPosition);
+        boolean samePlace;
+        if (place == DERIVED && otherPlace == DERIVED) {
+            samePlace = equal(getString(locationOffsetAt(position)),
+                    other.getString(other.locationOffsetAt(otherPosition)))
+                    && equal(getString(primaryLocationAt(position)),
+                    other.getString(other.primaryLocationAt(otherPosition)));
+        } else if (place != DERIVED && otherPlace != DERIVED) {
+            samePlace = equal(getString(place), other.getString(otherPlace));
+        } else {
+            samePlace = equal(getName(position), other.getName(otherPosition));
+        }
+        if (!samePlace) {
+            return false;
+        }
+        int url = urlAt(position);
+        int otherUrl = other.urlAt(otherPosition);
+        if (url == DERIVED && otherUrl == DERIVED) {
+            return equal(getString(idAt(position)), other.getString(other.idAt(otherPosition)));
+        } else if (url != DERIVED && otherUrl != DERIVED) {
+            return equal(getString(url), other.getString(otherUrl));
+        }
+        return equal(getUrl(position), other.getUrl(otherPosition));
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public String getId(int position) {
+        checkPosition(position);
+        return getString(idAt(position));
+    }
+
+    /**
+     * Returns the longitude of the epicenter in degrees, or NaN if unknown.
+     */
+    public double getLongitude(int position) {
+        checkPosition(position);
+        return longitudeAt(position);
+    }
+
+    /**
+     * Returns the latitude of the epicenter in degrees, or NaN if unknown.
+     */
+    public double getLatitude(int position) {
+        checkPosition(position);
+        return latitudeAt(position);
+    }
+
+    /**
+     * Returns the distance and direction part of the place (i.e. "74km NW of "),
+     * or null if the place does not have one.
+     */
+    public String getLocationOffset(int position) {
+        checkPosition(position);
+        return getString(locationOffsetAt(position));
+    }
+
+    /**
+     * Returns the place without its location offset (i.e. "Rumoi, Japan").
+     */
+    public String getPrimaryLocation(int position) {
+        checkPosition(position);
+        return getString(primaryLocationAt(position));
+    }
+
+    /**
+     * Returns a read-only {@code List<Earthquake>} view of this store. Its elements are
+     * flyweights that read their values from the store on every call.
+     */
+    public List<Earthquake> asList() {
+        return new StoreList(this);
+    }
+
+    /**
+     * Returns the store behind a list returned by {@link #asList()}, or null for any other list.
+     */
+    public static EarthquakeStore from(List<Earthquake> earthquakes) {
+        return earthquakes instanceof StoreList ? ((StoreList) earthquakes).mStore : null;
+    }
+
+    private int intern(String string) {
+        if (string == null) {
+            return -1;
+        }
+        Integer index = mStringIndexes.get(string);
+        if (index == null) {
+            index = mStrings.size();
+            mStrings.add(string);
+            mStringIndexes.put(string, index);
+        }
+        return index;
+    }
+
+    private String getString(int index) {
+        if (index < 0) {
+            return null;
+        }
+        return mMapped == null ? mStrings.get(index) : mMapped.getString(index);
+    }
+
+    private int getStringCount() {
+        return mMapped == null ? mStrings.size() : mMapped.strings.length;
+    }
+
+    // Column reads, from the arrays or, for a mapped store, from the file
+
+    private double magAt(int position) {
+        return mMapped == null ? mMags[position] : mMapped.mags.get(position);
+    }
+
+    private long timeAt(int position) {
+        return mMapped == null ? mTimes[position] : mMapped.times.get(position);
+    }
+
+    private double longitudeAt(int position) {
+        return mMapped == null ? mLongitudes[position] : mMapped.longitudes.get(position);
+    }
+
+    private double latitudeAt(int position) {
+        return mMapped == null ? mLatitudes[position] : mMapped.latitudes.get(position);
+    }
+
+    private int placeAt(int position) {
+        return mMapped == null ? mPlaces[position] : mMapped.places.get(position);
+    }
+
+    private int urlAt(int position) {
+        return mMapped == null ? mUrls[position] : mMapped.urls.get(position);
+    }
+
+    private int idAt(int position) {
+        return mMapped == null ? mIds[position] : mMapped.ids.get(position);
+    }
+
+    private int locationOffsetAt(int position) {
+        return mMapped == null ? mLocationOffsets[position] : mMapped.locationOffsets.get(position);
+    }
+
+    private int primaryLocationAt(int position) {
+        return mMapped == null ? mPrimaryLocations[position] : mMapped.primaryLocations.get(position);
+    }
+
+    /**
+     * Write the rows in the layout {@link #map} reads back (big-endian):
+     * <pre>
+     * int       string count S, int[S + 1] offsets into the UTF-8 blob, byte[offsets[S]] blob
+     * int       row count N, zero padding up to a multiple of 8 bytes from the start of the stream
+     * double[N] magnitudes, long[N] times, double[N] longitudes, double[N] latitudes
+     * int[N]    place, URL, event id, location offset and primary location (string indexes,
+     *           -1 for null, -2 if derived from the other columns)
+     * </pre>
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        int stringCount = getStringCount();
+        byte[][] strings = new byte[stringCount][];
+        out.writeInt(stringCount);
+        int offset = 0;
+        out.writeInt(offset);
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = getString(i).getBytes(UTF_8);
+            offset += strings[i].length;
+            out.writeInt(offset);
+        }
+        for (byte[] string : strings) {
+            out.write(string);
+        }
+        out.writeInt(mSize);
+        while (out.size() % 8 != 0) {
+            out.writeByte(0);
+        }
+        for (int i = 0; i < mSize; i++) {
+            out.writeDouble(magAt(i));
+        }
+        for (int i = 0; i < mSize; i++) {
+            out.writeLong(timeAt(i));
+        }
+        for (int i = 0; i < mSize; i++) {
+            out.writeDouble(longitudeAt(i));
+        }
+        for (int i = 0; i < mSize; i++) {
+            out.writeDouble(latitudeAt(i));
+        }
+        for (int i = 0; i < mSize; i++) {
+            out.writeInt(placeAt(i));
+        }
+        for (int i = 0; i < mSize; i++) {
+            out.writeInt(urlAt(i));
+        }
+        for (int i = 0; i < mSize; i++) {
+            out.writeInt(idAt(i));
+        }
+        for (int i = 0; i < mSize; i++) {
+            out.writeInt(locationOffsetAt(i));
+        }
+        for (int i = 0; i < mSize; i++) {
+            out.writeInt(primaryLocationAt(i));
+        }
+    }
+
+    /**
+     * Returns a store reading its rows in place from rows written by {@link #writeTo}, starting at
+     * the given position of the buffer. Only the string table and the string indexes are checked
+     * here, the rows are read when asked for.
+     *
+     * @throws IOException if the data is truncated or inconsistent
+     */
+    static EarthquakeStore map(ByteBuffer buffer, int position) throws IOException {
+        long limit = buffer.limit();
+        int stringCount = buffer.getInt(position);
+        int offsetsPos = position + 4;
+        if (stringCount < 0 || offsetsPos + (stringCount + 1L) * 4 > limit) {
+            throw new IOException("Invalid string count " + stringCount);
+        }
+        int blobPos = offsetsPos + (stringCount + 1) * 4;
+        int previous = buffer.getInt(offsetsPos);
+        if (previous != 0) {
+            throw new IOException("Invalid string table");
+        }
+        for (int i = 1; i <= stringCount; i++) {
+            int offset = buffer.getInt(offsetsPos + i * 4);
+            if (offset < previous || blobPos + (long) offset > limit) {
+                throw new IOException("Invalid string table");
+            }
+            previous = offset;
+        }
+        int sizePos = blobPos + previous;
+        if (sizePos + 4L > limit) {
+            throw new IOException("Truncated store");
+        }
+        int size = buffer.getInt(sizePos);
+        int columnsPos = (sizePos + 4 + 7) & ~7;
+        if (size < 0 || columnsPos + (long) size * ROW_BYTES > limit) {
+            throw new IOException("Invalid row count " + size);
+        }
+
+        Mapped mapped = new Mapped(buffer, offsetsPos, blobPos, stringCount, columnsPos, size);
+        for (int i = 0; i < size; i++) {
+            int id = mapped.ids.get(i);
+            int url = mapped.urls.get(i);
+            if (!isIndex(mapped.places.get(i), stringCount, true) || !isIndex(url, stringCount, true)
+                    || !isIndex(id, stringCount, false) || url == DERIVED && id < 0
+                    || !isIndex(mapped.locationOffsets.get(i), stringCount, false)
+                    || !isIndex(mapped.primaryLocations.get(i), stringCount, false)) {
+                throw new IOException("Invalid string index in row " + i);
+            }
+        }
+
+        EarthquakeStore store = new EarthquakeStore();
+        store.mMapped = mapped;
+        store.mSize = size;
+        return store;
+    }
+
+    /**
+     * Returns true if the value is a valid string-table index of a column, or null.
+     */
+    private static boolean isIndex(int index, int stringCount, boolean derivable) {
+        return index >= -1 && index < stringCount || derivable && index == DERIVED;
+    }
+
+    /**
+     * Copy the columns of a mapped store into arrays, before rows are added to it.
+     */
+    private void materialize() {
+        Mapped mapped = mMapped;
+        if (mapped == null) {
+            return;
+        }
+        int capacity = Math.max(mSize, INITIAL_CAPACITY);
+        mMags = new double[capacity];
+        mTimes = new long[capacity];
+        mLongitudes = new double[capacity];
+        mLatitudes = new double[capacity];
+        mPlaces = new int[capacity];
+        mUrls = new int[capacity];
+        mIds = new int[capacity];
+        mLocationOffsets = new int[capacity];
+        mPrimaryLocations = new int[capacity];
+        mapped.mags.duplicate().get(mMags, 0, mSize);
+        mapped.times.duplicate().get(mTimes, 0, mSize);
+        mapped.longitudes.duplicate().get(mLongitudes, 0, mSize);
+        mapped.latitudes.duplicate().get(mLatitudes, 0, mSize);
+        mapped.places.duplicate().get(mPlaces, 0, mSize);
+        mapped.urls.duplicate().get(mUrls, 0, mSize);
+        mapped.ids.duplicate().get(mIds, 0, mSize);
+        mapped.locationOffsets.duplicate().get(mLocationOffsets, 0, mSize);
+        mapped.primaryLocations.duplicate().get(mPrimaryLocations, 0, mSize);
+        mStrings.clear();
+        mStringIndexes.clear();
+        for (int i = 0; i < mapped.strings.length; i++) {
+            String string = mapped.getString(i);
+            mStrings.add(string);
+            if (!mStringIndexes.containsKey(string)) {
+                mStringIndexes.put(string, i);
+            }
+        }
+        mMapped = null;
+    }
+
+    private void ensureCapacity(int capacity) {
+        materialize();
+        if (capacity <= mMags.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mMags.length + (mMags.length >> 1));
+        mMags = Arrays.copyOf(mMags, newCapacity);
+        mTimes = Arrays.copyOf(mTimes, newCapacity);
+        mLongitudes = Arrays.copyOf(mLongitudes, newCapacity);
+        mLatitudes = Arrays.copyOf(mLatitudes, newCapacity);
+        mPlaces = Arrays.copyOf(mPlaces, newCapacity);
+        mUrls = Arrays.copyOf(mUrls, newCapacity);
+        mIds = Arrays.copyOf(mIds, newCapacity);
+        mLocationOffsets = Arrays.copyOf(mLocationOffsets, newCapacity);
+        mPrimaryLocations = Arrays.copyOf(mPrimaryLocations, newCapacity);
+    }
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("Invalid position " + position + ", size is " + mSize);
+        }
+    }
+
+    /**
+     * List view over a store, see {@link #asList()}.
+     */
+    private static final class StoreList extends AbstractList<Earthquake> implements RandomAccess {
+        private final EarthquakeStore mStore;
+
+        StoreList(EarthquakeStore store) {
+            mStore = store;
+        }
+
+        @Override
+        public Earthquake get(int position) {
+            mStore.checkPosition(position);
+            return new RowView(mStore, position);
+        }
+
+        @Override
+        public int size() {
+            return mStore.size();
+        }
+    }
+
+    /**
+     * Flyweight {@link Earthquake} that holds no values of its own, only its row in the store.
+     */
+    private static final class RowView extends Earthquake {
+        private final EarthquakeStore mStore;
+        private final int mPosition;
+
+        RowView(EarthquakeStore store, int position) {
+            super(0, null, 0, null);
+            mStore = store;
+            mPosition = position;
+        }
+
+        @Override
+        public String getId() {
+            return mStore.getId(mPosition);
+        }
+
+        @Override
+        public double getMag() {
+            return mStore.getMag(mPosition);
+        }
+
+        @Override
+        public String getName() {
+            return mStore.getName(mPosition);
+        }
+
+        @Override
+        public String getLocationOffset() {
+            return mStore.getLocationOffset(mPosition);
+        }
+
+        @Override
+        public String getPrimaryLocation() {
+            return mStore.getPrimaryLocation(mPosition);
+        }
+
+        @Override
+        String getIrregularPlace() {
+            int place = mStore.placeAt(mPosition);
+            return place == DERIVED ? null : mStore.getString(place);
+        }
+
+        @Override
+        boolean hasEventPageUrl() {
+            return mStore.urlAt(mPosition) == DERIVED;
+        }
+
+        @Override
+        public long getTimeInMillSeconds() {
+            return mStore.getTimeInMillSeconds(mPosition);
+        }
+
+        @Override
+        public String getUrl() {
+            return mStore.getUrl(mPosition);
+        }
+
+        @Override
+        public double getLongitude() {
+            return mStore.getLongitude(mPosition);
+        }
+
+        @Override
+        public double getLatitude() {
+            return mStore.getLatitude(mPosition);
+        }
+    }
+
+    /**
+     * Columns of a store mapped from a file, read with absolute gets only, so any number of
+     * threads can read them at once.
+     */
+    private static final class Mapped {
+        private final ByteBuffer mBuffer;
+        private final int mStringOffsetsPos;
+        private final int mStringBlobPos;
+        /**
+         * Decoded strings, filled lazily
+         */
+        final String[] strings;
+        final DoubleBuffer mags;
+        final LongBuffer times;
+        final DoubleBuffer longitudes;
+        final DoubleBuffer latitudes;
+        final IntBuffer places;
+        final IntBuffer urls;
+        final IntBuffer ids;
+        final IntBuffer locationOffsets;
+        final IntBuffer primaryLocations;
+
+        Mapped(ByteBuffer buffer, int stringOffsetsPos, int stringBlobPos, int stringCount,
+               int columnsPos, int size) {
+            mBuffer = buffer;
+            mStringOffsetsPos = stringOffsetsPos;
+            mStringBlobPos = stringBlobPos;
+            strings = new String[stringCount];
+            int pos = columnsPos;
+            mags = slice(buffer, pos, size * 8).asDoubleBuffer();
+            pos += size * 8;
+            times = slice(buffer, pos, size * 8).asLongBuffer();
+            pos += size * 8;
+            longitudes = slice(buffer, pos, size * 8).asDoubleBuffer();
+            pos += size * 8;
+            latitudes = slice(buffer, pos, size * 8).asDoubleBuffer();
+            pos += size * 8;
+            places = slice(buffer, pos, size * 4).asIntBuffer();
+            pos += size * 4;
+            urls = slice(buffer, pos, size * 4).asIntBuffer();
+            pos += size * 4;
+            ids = slice(buffer, pos, size * 4).asIntBuffer();
+            pos += size * 4;
+            locationOffsets = slice(buffer, pos, size * 4).asIntBuffer();
+            pos += size * 4;
+            primaryLocations = slice(buffer, pos, size * 4).asIntBuffer();
+        }
+
+        private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(position);
+            slice.limit(position + length);
+            return slice.slice();
+        }
+
+        String getString(int index) {
+            String string = strings[index];
+            if (string == null) {
+                int start = mBuffer.getInt(mStringOffsetsPos + index * 4);
+                int end = mBuffer.getInt(mStringOffsetsPos + (index + 1) * 4);
+                byte[] bytes = new byte[end - start];
+                // Read through a duplicate so the shared buffer's position is never touched
+                ByteBuffer blob = mBuffer.duplicate();
+                blob.position(mStringBlobPos + start);
+                blob.get(bytes);
+                string = new String(bytes, UTF_8);
+                strings[index] = string;
+            }
+            return string;
+        }
+    }
+}
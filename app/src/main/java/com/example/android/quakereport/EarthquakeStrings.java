@@ -0,0 +1,95 @@
+package com.example.android.quakereport;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide dictionary of the strings that thousands of earthquakes share: the primary
+ * locations ("Rumoi, Japan", "Alaska") of their places. The parser interns them as it reads them,
+ * so every distinct value is retained once however many events and queries refer to it.
+ * <p>
+ * Location offsets ("74km NW of ") are not kept here: distances and directions combine into
+ * about as many distinct offsets as the dictionary holds, each shared by a few events only, and
+ * they would fill it before the primary locations. Each {@link EarthquakeStore} shares them among
+ * its own rows instead.
+ * <p>
+ * Also knows the USGS event page URL scheme, so URLs can be stored as the event id alone.
+ * <p>
+ * Thread-safe; shards are parsed in parallel.
+ */
+public final class EarthquakeStrings {
+
+    /**
+     * The dictionary stops growing at this many strings; later strings are simply not shared
+     */
+    static final int MAX_ENTRIES = 16384;
+
+    /**
+     * Separates the location offset from the primary location of a place
+     */
+    static final String LOCATION_SEPARATOR = " of ";
+
+    /**
+     * URL of an event's page is this prefix followed by the event id
+     */
+    static final String EVENT_PAGE_URL_PREFIX = "https://earthquake.usgs.gov/earthquakes/eventpage/";
+
+    private static final ConcurrentHashMap<String, String> sStrings = new ConcurrentHashMap<>(1024);
+
+    private EarthquakeStrings() {
+    }
+
+    /**
+     * Returns the shared instance of the given string, or the string itself if the dictionary is full.
+     */
+    public static String intern(String string) {
+        if (string == null) {
+            return null;
+        }
+        String shared = sStrings.get(string);
+        if (shared != null) {
+            return shared;
+        }
+        if (sStrings.size() >= MAX_ENTRIES) {
+            return string;
+        }
+        shared = sStrings.putIfAbsent(string, string);
+        return shared != null ? shared : string;
+    }
+
+    /**
+     * Returns the index in the place where its primary location starts (after " of "), or 0 if
+     * the place has no location offset.
+     */
+    static int getPrimaryLocationStart(String place) {
+        int separator = place.indexOf(LOCATION_SEPARATOR);
+        return separator < 0 ? 0 : separator + LOCATION_SEPARATOR.length();
+    }
+
+    /**
+     * Returns the index in the place where its primary location ends: like split(" of ")[1], at a
+     * second separator if there is one.
+     */
+    static int getPrimaryLocationEnd(String place, int primaryStart) {
+        if (primaryStart == 0) {
+            return place.length();
+        }
+        int end = place.indexOf(LOCATION_SEPARATOR, primaryStart);
+        return end < 0 ? place.length() : end;
+    }
+
+    /**
+     * Returns true if the URL is the USGS event page of the given event id.
+     */
+    static boolean isEventPageUrl(String url, String id) {
+        return url != null && id != null
+                && url.length() == EVENT_PAGE_URL_PREFIX.length() + id.length()
+                && url.startsWith(EVENT_PAGE_URL_PREFIX) && url.endsWith(id);
+    }
+
+    /**
+     * Returns the USGS event page URL of the given event id.
+     */
+    static String getEventPageUrl(String id) {
+        return EVENT_PAGE_URL_PREFIX + id;
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.android.quakereport;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Periodically brings every cached query up to date in the background with
+ * {@link EarthquakeCache#sync}, which only downloads the events updated since the last sync,
+ * instead of fetching whole queries again.
+ * <p>
+ * The sync is scheduled with an inexact, non-waking alarm, so it runs when the device is awake
+ * anyway and can be batched with other apps' alarms.
+ */
+public class EarthquakeSyncService extends IntentService {
+
+    private static final String LOG_TAG = EarthquakeSyncService.class.getSimpleName();
+
+    /**
+     * How often the cached queries are synced
+     */
+    static final long SYNC_INTERVAL_MILLIS = AlarmManager.INTERVAL_HOUR;
+
+    /**
+     * Notified on the main thread when a sync found changes to a query.
+     */
+    public interface OnSyncListener {
+        /**
+         * @param result the new result of the query, if it changed, and the changes found
+         */
+        void onQuerySynced(String requestUrl, EarthquakeCache.SyncResult result);
+    }
+
+    private static volatile OnSyncListener sListener;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    public EarthquakeSyncService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Schedule the periodic sync. Scheduling again replaces the previous alarm, so this can be
+     * called every time the app starts.
+     */
+    public static void schedule(Context context) {
+        PendingIntent operation = PendingIntent.getService(context, 0,
+                new Intent(context, EarthquakeSyncService.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, operation);
+    }
+
+    /**
+     * Set the listener for changes found by a sync, or null to stop listening.
+     */
+    public static void setOnSyncListener(OnSyncListener listener) {
+        sListener = listener;
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (!isConnected()) {
+            return;
+        }
+        EarthquakeCache cache = EarthquakeCache.getInstance(this);
+        EarthquakeSource source = new HttpEarthquakeSource();
+        for (final String requestUrl : cache.getCachedQueries()) {
+            final EarthquakeCache.SyncResult result = cache.sync(requestUrl, source);
+            if (result == null) {
+                Log.i(LOG_TAG, "Could not sync " + requestUrl + ", it will be fetched again when loaded");
+                continue;
+            }
+            if (!result.changed && !result.hasChanges()) {
+                continue;
+            }
+            // Results answered from memory may now be out of date, even beyond the cached ones
+            EarthquakeIndex.getInstance().invalidate();
+            EarthquakeQueryManager.getInstance().invalidate();
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    OnSyncListener listener = sListener;
+                    if (listener != null) {
+                        listener.onQuerySynced(requestUrl, result);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns true if the device currently has a network connection.
+     */
+    private boolean isConnected() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        return activeNetwork != null && activeNetwork.isConnectedOrConnecting();
+    }
+}
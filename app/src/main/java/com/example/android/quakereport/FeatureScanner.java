@@ -0,0 +1,178 @@
+package com.example.android.quakereport;
+
+import android.util.MalformedJsonException;
+
+import java.io.IOException;
+
+/**
+ * Locates the elements of the "features" array of a GeoJSON document, fed to it in pieces, and
+ * groups runs of whole elements into chunks of about a given size that can be parsed
+ * independently (see {@link QueryUtils#extractFeatureElementsFromStream}).
+ * <p>
+ * It only tracks nesting and strings, which is much cheaper than parsing, so one thread can
+ * keep several parsing threads busy. The rest of the document is not validated, but a document
+ * without a features array, or that ends inside it, fails {@link #finish()}.
+ * <p>
+ * Not thread-safe.
+ */
+final class FeatureScanner {
+
+    private static final byte[] FEATURES_KEY = {'f', 'e', 'a', 't', 'u', 'r', 'e', 's'};
+
+    /**
+     * The first characters of the last key of the root object, and how many it has
+     */
+    private final byte[] mKey = new byte[FEATURES_KEY.length];
+    private int mKeyLength;
+    private boolean mInString;
+    private boolean mEscaped;
+    /**
+     * True between the "features" key and its value
+     */
+    private boolean mExpectFeatures;
+    private boolean mInFeatures;
+    /**
+     * True once the features array was closed
+     */
+    private boolean mFeaturesEnded;
+    private int mDepth;
+    /**
+     * Document offsets of the first element of the current chunk (-1 if none was seen yet), and
+     * of the end of its last complete element
+     */
+    private long mChunkStart = -1;
+    private long mElementEnd = -1;
+    private boolean mChunkComplete;
+
+    /**
+     * Scan bytes, stopping early after the element that makes the current chunk at least
+     * minChunkBytes long, or after the end of the features array; {@link #takeChunk()} then
+     * returns the chunk.
+     *
+     * @param position document offset of bytes[offset]
+     * @return the number of bytes scanned
+     */
+    int scan(byte[] bytes, int offset, int length, long position, long minChunkBytes) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = bytes[i];
+            if (mInString) {
+                if (mEscaped) {
+                    mEscaped = false;
+                } else if (b == '\\') {
+                    mEscaped = true;
+                } else if (b == '"') {
+                    mInString = false;
+                } else if (mDepth == 1) {
+                    if (mKeyLength < mKey.length) {
+                        mKey[mKeyLength] = b;
+                    }
+                    mKeyLength++;
+                }
+                continue;
+            }
+            switch (b) {
+                case '"':
+                    mInString = true;
+                    mKeyLength = 0;
+                    break;
+                case ':':
+                    mExpectFeatures = mDepth == 1 && isFeaturesKey();
+                    break;
+                case '{':
+                case '[':
+                    mDepth++;
+                    if (mExpectFeatures && b == '[' && mDepth == 2) {
+                        mInFeatures = true;
+                    } else if (mInFeatures && mDepth == 3 && mChunkStart < 0) {
+                        mChunkStart = position + i - offset;
+                    }
+                    mExpectFeatures = false;
+                    break;
+                case '}':
+                case ']':
+                    mDepth--;
+                    if (mInFeatures && mDepth == 2 && mChunkStart >= 0) {
+                        mElementEnd = position + i - offset + 1;
+                        if (mElementEnd - mChunkStart >= minChunkBytes) {
+                            mChunkComplete = true;
+                            return i - offset + 1;
+                        }
+                    } else if (mInFeatures && mDepth == 1) {
+                        mInFeatures = false;
+                        mFeaturesEnded = true;
+                        if (mChunkStart >= 0) {
+                            mChunkComplete = true;
+                            return i - offset + 1;
+                        }
+                    }
+                    break;
+                case ' ':
+                case '\t':
+                case '\n':
+                case '\r':
+                    break;
+                default:
+                    mExpectFeatures = false;
+                    break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the {start, end} document offsets of the chunk completed by the last scan, or null
+     * if it did not complete one.
+     */
+    long[] takeChunk() {
+        if (!mChunkComplete) {
+            return null;
+        }
+        long[] chunk = {mChunkStart, mElementEnd};
+        mChunkComplete = false;
+        mChunkStart = -1;
+        return chunk;
+    }
+
+    /**
+     * Returns the document offset of the first element of the chunk being scanned, or -1 if
+     * it has none yet; bytes before it are no longer needed.
+     */
+    long getChunkStart() {
+        return mChunkStart;
+    }
+
+    /**
+     * Returns true if the scanner is not inside the features array, i.e. the chunk just taken
+     * was its last one.
+     */
+    boolean isFeaturesEnded() {
+        return !mInFeatures;
+    }
+
+    /**
+     * Check that the document is complete, after its last byte was scanned.
+     *
+     * @throws MalformedJsonException if it has no features array, or ended inside a value
+     */
+    void finish() throws IOException {
+        if (mDepth != 0 || mInString) {
+            throw new MalformedJsonException("Truncated GeoJSON document");
+        }
+        if (!mFeaturesEnded) {
+            throw new MalformedJsonException("No features array in the GeoJSON document");
+        }
+    }
+
+    private boolean isFeaturesKey() {
+        if (mKeyLength != FEATURES_KEY.length) {
+            return false;
+        }
+        for (int i = 0; i < FEATURES_KEY.length; i++) {
+            if (mKey[i] != FEATURES_KEY[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.android.quakereport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+
+/**
+ * Cancellation of the fetch running on a thread, like android.os.CancellationSignal (which
+ * needs API 16).
+ * <p>
+ * A loader makes its cancellation the current one of its background thread with
+ * {@link #setCurrent}, and everything below it (sources, {@link QueryUtils}) picks it up with
+ * {@link #current()} instead of taking it as a parameter. Fetches check it between network reads
+ * and between parsed features, and register a listener to abort their connection, so a canceled
+ * fetch stops downloading and parsing promptly.
+ */
+public final class FetchCancellation {
+
+    /**
+     * Never canceled; current on threads that did not set one
+     */
+    private static final FetchCancellation NONE = new FetchCancellation();
+
+    private static final ThreadLocal<FetchCancellation> sCurrent = new ThreadLocal<>();
+
+    private volatile boolean mCanceled;
+    private final ArrayList<Runnable> mListeners = new ArrayList<>();
+
+    /**
+     * Returns the cancellation of the calling thread, never null.
+     */
+    public static FetchCancellation current() {
+        FetchCancellation cancellation = sCurrent.get();
+        return cancellation != null ? cancellation : NONE;
+    }
+
+    /**
+     * Make the given cancellation the calling thread's current one, or clear it with null.
+     */
+    public static void setCurrent(FetchCancellation cancellation) {
+        if (cancellation != null) {
+            sCurrent.set(cancellation);
+        } else {
+            sCurrent.remove();
+        }
+    }
+
+    /**
+     * Cancel, and run the listeners on the calling thread. Does nothing if already canceled.
+     */
+    public void cancel() {
+        if (this == NONE) {
+            throw new IllegalStateException("Cannot cancel the default cancellation");
+        }
+        ArrayList<Runnable> listeners;
+        synchronized (this) {
+            if (mCanceled) {
+                return;
+            }
+            mCanceled = true;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Throws an {@link InterruptedIOException} if canceled, which fetches handle like any other
+     * failed read.
+     */
+    public void throwIfCanceled() throws InterruptedIOException {
+        if (mCanceled) {
+            throw new InterruptedIOException("Fetch canceled");
+        }
+    }
+
+    /**
+     * Run the listener when canceled, right away if already canceled. Remove it with
+     * {@link #removeOnCancelListener} once the work it aborts is done.
+     */
+    public void addOnCancelListener(Runnable listener) {
+        if (this == NONE) {
+            return;
+        }
+        synchronized (this) {
+            if (!mCanceled) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public synchronized void removeOnCancelListener(Runnable listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Returns the stream, failing every read once this is canceled.
+     */
+    InputStream wrap(InputStream inputStream) {
+        if (this == NONE) {
+            return inputStream;
+        }
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                throwIfCanceled();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                throwIfCanceled();
+                return super.read(buffer, offset, count);
+            }
+
+            @Override
+            public long skip(long count) throws IOException {
+                throwIfCanceled();
+                return super.skip(count);
+            }
+        };
+    }
+}
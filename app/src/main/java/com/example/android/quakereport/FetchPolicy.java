@@ -0,0 +1,188 @@
+package com.example.android.quakereport;
+
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Process-wide timeout and retry policy of {@link QueryUtils}, adapted to the latencies observed
+ * on recent requests.
+ * <p>
+ * Timeouts are a multiple of the p95 connect time and time to first byte of the last
+ * {@link #SAMPLE_COUNT} requests (the fixed defaults until enough requests were made), doubled on
+ * every retry of a request that timed out. Transient failures (network errors, timeouts, 408,
+ * 429 and 5xx responses) are retried with exponential backoff and full jitter, and a request
+ * still waiting for its response headers after the p95 time to first byte can be hedged with a
+ * second, identical request.
+ * <p>
+ * Thread-safe.
+ */
+public final class FetchPolicy {
+
+    /**
+     * Timeouts used until {@link #MIN_SAMPLES} requests were measured
+     */
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+    static final int DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+    /**
+     * Bounds of the adaptive timeouts
+     */
+    static final int MIN_CONNECT_TIMEOUT_MILLIS = 2000;
+    static final int MAX_CONNECT_TIMEOUT_MILLIS = 15000;
+    static final int MIN_READ_TIMEOUT_MILLIS = 5000;
+    static final int MAX_READ_TIMEOUT_MILLIS = 30000;
+    /**
+     * Timeouts are this many times the observed p95
+     */
+    static final int TIMEOUT_MULTIPLIER = 4;
+
+    /**
+     * Number of recent requests the percentiles are computed from, and how many are needed
+     */
+    static final int SAMPLE_COUNT = 64;
+    static final int MIN_SAMPLES = 8;
+
+    /**
+     * Attempts of a request, including the first one
+     */
+    static final int MAX_ATTEMPTS = 3;
+    /**
+     * Backoff before the n-th retry is a random time up to BASE * 2^n, capped at MAX
+     */
+    static final long BACKOFF_BASE_MILLIS = 500;
+    static final long MAX_BACKOFF_MILLIS = 8000;
+    /**
+     * Hedged requests are never sent sooner than this
+     */
+    static final long MIN_HEDGE_DELAY_MILLIS = 200;
+
+    private static final FetchPolicy sInstance = new FetchPolicy();
+
+    private final long[] mConnectSamples = new long[SAMPLE_COUNT];
+    private final long[] mTtfbSamples = new long[SAMPLE_COUNT];
+    private int mSampleCount;
+    private int mNextSample;
+    private final Random mRandom = new Random();
+    private volatile boolean mHedgingEnabled = true;
+
+    /**
+     * Use {@link #getInstance()}; tests create their own policy so they start without samples.
+     */
+    FetchPolicy() {
+    }
+
+    public static FetchPolicy getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Record the connect time and time to first byte of a request that received its response headers.
+     */
+    public synchronized void recordLatency(long connectNanos, long ttfbNanos) {
+        mConnectSamples[mNextSample] = connectNanos;
+        mTtfbSamples[mNextSample] = ttfbNanos;
+        mNextSample = (mNextSample + 1) % SAMPLE_COUNT;
+        mSampleCount = Math.min(mSampleCount + 1, SAMPLE_COUNT);
+    }
+
+    /**
+     * Returns the connect timeout of the given attempt (0 for the first one).
+     *
+     * @param timedOut true if the previous attempt timed out
+     */
+    public int getConnectTimeoutMillis(int attempt, boolean timedOut) {
+        long p95 = getP95Millis(mConnectSamples);
+        int timeout = p95 < 0 ? DEFAULT_CONNECT_TIMEOUT_MILLIS
+                : clamp(p95 * TIMEOUT_MULTIPLIER, MIN_CONNECT_TIMEOUT_MILLIS, MAX_CONNECT_TIMEOUT_MILLIS);
+        return timedOut ? clamp((long) timeout << attempt, timeout, MAX_CONNECT_TIMEOUT_MILLIS) : timeout;
+    }
+
+    /**
+     * Returns the read timeout of the given attempt (0 for the first one).
+     *
+     * @param timedOut true if the previous attempt timed out
+     */
+    public int getReadTimeoutMillis(int attempt, boolean timedOut) {
+        long p95 = getP95Millis(mTtfbSamples);
+        int timeout = p95 < 0 ? DEFAULT_READ_TIMEOUT_MILLIS
+                : clamp(p95 * TIMEOUT_MULTIPLIER, MIN_READ_TIMEOUT_MILLIS, MAX_READ_TIMEOUT_MILLIS);
+        return timedOut ? clamp((long) timeout << attempt, timeout, MAX_READ_TIMEOUT_MILLIS) : timeout;
+    }
+
+    /**
+     * Returns how long to wait for the response headers before sending a hedged request, or -1
+     * if requests are not hedged (disabled, or not enough requests measured yet).
+     */
+    public long getHedgeDelayMillis() {
+        if (!mHedgingEnabled) {
+            return -1;
+        }
+        long connectP95 = getP95Millis(mConnectSamples);
+        long ttfbP95 = getP95Millis(mTtfbSamples);
+        if (connectP95 < 0 || ttfbP95 < 0) {
+            return -1;
+        }
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, connectP95 + ttfbP95);
+    }
+
+    public void setHedgingEnabled(boolean enabled) {
+        mHedgingEnabled = enabled;
+    }
+
+    /**
+     * Returns true if a request that ended with the given result should be tried again.
+     *
+     * @param attempt the attempt that ended, 0 for the first one
+     */
+    public boolean shouldRetry(QueryUtils.FetchResult result, int attempt) {
+        if (attempt + 1 >= MAX_ATTEMPTS) {
+            return false;
+        }
+        switch (result.error) {
+            case NETWORK:
+            case TIMEOUT:
+                return true;
+            case HTTP:
+                int code = result.responseCode;
+                return code == HttpURLConnection.HTTP_CLIENT_TIMEOUT || code == 429
+                        || code >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns how long to wait before the retry following the given attempt: the server's
+     * Retry-After if it sent one (up to {@link #MAX_BACKOFF_MILLIS}), otherwise a random time up
+     * to the exponential backoff of the attempt.
+     */
+    public long getBackoffMillis(QueryUtils.FetchResult result, int attempt) {
+        if (result.retryAfterSeconds > 0) {
+            return Math.min(result.retryAfterSeconds * 1000L, MAX_BACKOFF_MILLIS);
+        }
+        long cap = Math.min(MAX_BACKOFF_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt, 16));
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * cap);
+        }
+    }
+
+    /**
+     * Returns the 95th percentile of the recorded samples in milliseconds, or -1 if there are
+     * fewer than {@link #MIN_SAMPLES}.
+     */
+    private long getP95Millis(long[] samples) {
+        long[] sorted;
+        synchronized (this) {
+            if (mSampleCount < MIN_SAMPLES) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, mSampleCount);
+        }
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(sorted.length * 0.95) - 1] / 1000000;
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+}
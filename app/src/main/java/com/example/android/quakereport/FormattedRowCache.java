@@ -0,0 +1,202 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+
+/**
+ * The magnitude, date and time text of the most recently shown list rows, so that a row scrolled
+ * back into view, or formatted ahead of time by {@link #prefetch}, is bound by copying chars
+ * instead of going through the Calendar again.
+ * <p>
+ * Rows are cached by list position, together with the page and row they were formatted from: an
+ * entry whose page was replaced since (a new result, a refetched page) is simply formatted again,
+ * so the cache never needs to be told about changes. The least recently used row is evicted when
+ * it is full. Everything is allocated up front; getting a row never allocates.
+ * <p>
+ * Not thread-safe; EarthquakeAdapter uses it on the main thread.
+ */
+final class FormattedRowCache {
+
+    private static final int NONE = -1;
+
+    private static final Metrics.Counter HITS = Metrics.counter("adapter.rows.cached");
+    private static final Metrics.Counter MISSES = Metrics.counter("adapter.rows.formatted");
+
+    private final EarthquakeFormatter mFormatter;
+    private final int mCapacity;
+
+    /**
+     * What each slot holds: the row's position, and the page and row it was formatted from
+     */
+    private final int[] mPositions;
+    private final EarthquakeStore[] mPages;
+    private final int[] mRows;
+    private final char[][] mMagChars;
+    private final char[][] mDateChars;
+    private final char[][] mTimeChars;
+    private final int[] mMagLengths;
+    private final int[] mDateLengths;
+    private final int[] mTimeLengths;
+
+    /**
+     * Slots by position: the first slot of each hash bucket, and the next slot of the same bucket
+     */
+    private final int[] mBuckets;
+    private final int[] mBucketNext;
+    /**
+     * Slots from the most to the least recently used
+     */
+    private final int[] mNewer;
+    private final int[] mOlder;
+    private int mNewest = NONE;
+    private int mOldest = NONE;
+    private int mSize;
+
+    FormattedRowCache(EarthquakeFormatter formatter, int capacity) {
+        mFormatter = formatter;
+        mCapacity = capacity;
+        mPositions = new int[capacity];
+        mPages = new EarthquakeStore[capacity];
+        mRows = new int[capacity];
+        mMagChars = new char[capacity][EarthquakeFormatter.SHORT_BUFFER_SIZE];
+        mDateChars = new char[capacity][formatter.getDateBufferSize()];
+        mTimeChars = new char[capacity][EarthquakeFormatter.SHORT_BUFFER_SIZE];
+        mMagLengths = new int[capacity];
+        mDateLengths = new int[capacity];
+        mTimeLengths = new int[capacity];
+        int buckets = Integer.highestOneBit(Math.max(1, capacity - 1)) * 2;
+        mBuckets = new int[buckets];
+        Arrays.fill(mBuckets, NONE);
+        mBucketNext = new int[capacity];
+        mNewer = new int[capacity];
+        mOlder = new int[capacity];
+    }
+
+    /**
+     * Returns the slot holding the formatted row at the given position, formatting it from the
+     * page if it is not cached (or was formatted from another page). The slot is valid until the
+     * next call.
+     */
+    int get(int position, EarthquakeStore page, int row) {
+        int slot = find(position);
+        if (slot != NONE) {
+            if (mPages[slot] == page && mRows[slot] == row) {
+                if (Metrics.ENABLED) {
+                    HITS.increment();
+                }
+                touch(slot);
+                return slot;
+            }
+            unlink(slot);
+        } else if (mSize < mCapacity) {
+            slot = mSize++;
+            addToBucket(slot, position);
+        } else {
+            slot = mOldest;
+            unlink(slot);
+            removeFromBucket(slot);
+            addToBucket(slot, position);
+        }
+        if (Metrics.ENABLED) {
+            MISSES.increment();
+        }
+        mPositions[slot] = position;
+        mPages[slot] = page;
+        mRows[slot] = row;
+        double mag = page.getMag(row);
+        long time = page.getTimeInMillSeconds(row);
+        mMagLengths[slot] = mFormatter.formatMag(mag, mMagChars[slot]);
+        mDateLengths[slot] = mFormatter.formatDate(time, mDateChars[slot]);
+        mTimeLengths[slot] = mFormatter.formatTime(time, mTimeChars[slot]);
+        linkNewest(slot);
+        return slot;
+    }
+
+    /**
+     * Format the row at the given position ahead of it being shown, unless it is cached.
+     */
+    void prefetch(int position, EarthquakeStore page, int row) {
+        get(position, page, row);
+    }
+
+    /**
+     * Copy the formatted magnitude of a slot into the buffer.
+     *
+     * @return the number of chars copied
+     */
+    int copyMag(int slot, char[] out) {
+        System.arraycopy(mMagChars[slot], 0, out, 0, mMagLengths[slot]);
+        return mMagLengths[slot];
+    }
+
+    int copyDate(int slot, char[] out) {
+        System.arraycopy(mDateChars[slot], 0, out, 0, mDateLengths[slot]);
+        return mDateLengths[slot];
+    }
+
+    int copyTime(int slot, char[] out) {
+        System.arraycopy(mTimeChars[slot], 0, out, 0, mTimeLengths[slot]);
+        return mTimeLengths[slot];
+    }
+
+    private int find(int position) {
+        for (int slot = mBuckets[position & (mBuckets.length - 1)]; slot != NONE; slot = mBucketNext[slot]) {
+            if (mPositions[slot] == position) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    private void addToBucket(int slot, int position) {
+        int bucket = position & (mBuckets.length - 1);
+        mBucketNext[slot] = mBuckets[bucket];
+        mBuckets[bucket] = slot;
+    }
+
+    private void removeFromBucket(int slot) {
+        int bucket = mPositions[slot] & (mBuckets.length - 1);
+        if (mBuckets[bucket] == slot) {
+            mBuckets[bucket] = mBucketNext[slot];
+            return;
+        }
+        int previous = mBuckets[bucket];
+        while (mBucketNext[previous] != slot) {
+            previous = mBucketNext[previous];
+        }
+        mBucketNext[previous] = mBucketNext[slot];
+    }
+
+    private void touch(int slot) {
+        if (slot != mNewest) {
+            unlink(slot);
+            linkNewest(slot);
+        }
+    }
+
+    private void linkNewest(int slot) {
+        mNewer[slot] = NONE;
+        mOlder[slot] = mNewest;
+        if (mNewest != NONE) {
+            mNewer[mNewest] = slot;
+        }
+        mNewest = slot;
+        if (mOldest == NONE) {
+            mOldest = slot;
+        }
+    }
+
+    private void unlink(int slot) {
+        int newer = mNewer[slot];
+        int older = mOlder[slot];
+        if (newer != NONE) {
+            mOlder[newer] = older;
+        } else {
+            mNewest = older;
+        }
+        if (older != NONE) {
+            mNewer[older] = newer;
+        } else {
+            mOldest = newer;
+        }
+    }
+}
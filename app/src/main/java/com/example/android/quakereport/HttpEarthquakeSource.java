@@ -0,0 +1,13 @@
+package com.example.android.quakereport;
+
+/**
+ * Fetches earthquakes from the USGS web service (or any server speaking the same API).
+ */
+public class HttpEarthquakeSource implements EarthquakeSource {
+
+    @Override
+    public QueryUtils.FetchResult fetch(String requestUrl, String eTag, String lastModified,
+                                        QueryUtils.EarthquakeCallback callback) {
+        return QueryUtils.fetchEarthquakeData(requestUrl, eTag, lastModified, callback);
+    }
+}
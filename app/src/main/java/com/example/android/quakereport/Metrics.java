@@ -0,0 +1,219 @@
+package com.example.android.quakereport;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters and histograms for the hot paths (fetch, parse, load, bind).
+ * <p>
+ * Every call site is guarded by {@code if (Metrics.ENABLED)}. ENABLED is a compile-time constant
+ * (a buildConfigField, false in release builds), so the compiler drops the instrumentation there
+ * entirely. When enabled, recording a value is a few atomic adds and never allocates or locks.
+ * <p>
+ * Metrics are created once, in static fields of the classes using them, and exported with
+ * {@link #dump(File)}.
+ */
+public final class Metrics {
+
+    /**
+     * True if instrumentation is compiled in
+     */
+    public static final boolean ENABLED = BuildConfig.METRICS_ENABLED;
+
+    private static final ConcurrentHashMap<String, Counter> sCounters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Histogram> sHistograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the counter with the given name, creating it on first use.
+     */
+    public static Counter counter(String name) {
+        Counter counter = sCounters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = sCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it on first use. Histograms of
+     * durations record nanoseconds and are dumped in milliseconds; their name ends in ".nanos".
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = sHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Write every metric to the given file as text, one line per metric, sorted by name.
+     */
+    public static void dump(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            dump(out);
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Could not write " + file);
+        }
+    }
+
+    /**
+     * Write every metric to the given writer as text, one line per metric, sorted by name.
+     */
+    public static void dump(PrintWriter out) {
+        ArrayList<String> names = new ArrayList<>(sCounters.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            out.println(name + " count=" + sCounters.get(name).get());
+        }
+        names = new ArrayList<>(sHistograms.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            Histogram histogram = sHistograms.get(name);
+            if (name.endsWith(".nanos")) {
+                out.println(String.format(Locale.US, "%s count=%d mean=%.3fms p50=%.3fms p90=%.3fms"
+                                + " p99=%.3fms max=%.3fms",
+                        name.substring(0, name.length() - ".nanos".length()), histogram.getCount(),
+                        histogram.getMean() / 1e6, histogram.getPercentile(50) / 1e6,
+                        histogram.getPercentile(90) / 1e6, histogram.getPercentile(99) / 1e6,
+                        histogram.getMax() / 1e6));
+            } else {
+                out.println(String.format(Locale.US, "%s count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+                        name, histogram.getCount(), histogram.getMean(), histogram.getPercentile(50),
+                        histogram.getPercentile(90), histogram.getPercentile(99), histogram.getMax()));
+            }
+        }
+    }
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static final class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values, in log-linear buckets: every power of two is split
+     * into {@link #SUB_BUCKETS} buckets, so percentiles are accurate to within 1/SUB_BUCKETS
+     * (12.5%) of the value whatever its magnitude.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(getBucket(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        /**
+         * Record the time elapsed since the given {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public double getMean() {
+            long count = mCount.get();
+            return count == 0 ? 0 : (double) mSum.get() / count;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile (0-100) of the recorded values.
+         */
+        public long getPercentile(double percentile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < mBuckets.length(); bucket++) {
+                seen += mBuckets.get(bucket);
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(getBucketUpperBound(bucket), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        /**
+         * Values below SUB_BUCKETS get a bucket each; above, the bucket is given by the position
+         * of the highest bit and the SUB_BUCKET_BITS bits below it.
+         */
+        private static int getBucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int highestBit = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long getBucketUpperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int highestBit = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = bucket % SUB_BUCKETS;
+            long lowerBound = (1L << highestBit) | (subBucket << (highestBit - SUB_BUCKET_BITS));
+            return lowerBound + (1L << (highestBit - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.android.quakereport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a USGS GeoJSON response on several cores. The calling thread reads the stream and cuts
+ * its features array into chunks of {@link #CHUNK_BYTES} of whole features with a
+ * {@link FeatureScanner}, a shared pool parses the chunks, and the earthquakes are handed to the
+ * callback on the calling thread, in their original order, while the rest of the stream is still
+ * being read and parsed.
+ * <p>
+ * A feed whose features fit in a single chunk is parsed on the calling thread, like
+ * {@link QueryUtils#extractFeaturesFromStream} does. Only the features array is parsed; the rest
+ * of the document is skipped without being validated, but a body with no features array, or that
+ * ends inside it, fails with a {@link android.util.MalformedJsonException} like a parse error.
+ */
+public final class ParallelFeatureParser {
+
+    /**
+     * Size of the chunks of features parsed by one thread
+     */
+    static final int CHUNK_BYTES = 256 * 1024;
+    /**
+     * Chunks read ahead per parsing thread before the reader waits for the oldest one to be delivered
+     */
+    static final int CHUNKS_IN_FLIGHT_PER_THREAD = 2;
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static final Metrics.Counter CHUNKS = Metrics.counter("parse.chunks");
+
+    /**
+     * Parses the chunks of every parallel parse in the process; idle threads go away
+     */
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(CPU_COUNT, CPU_COUNT,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private ParallelFeatureParser() {
+    }
+
+    /**
+     * Returns how many threads a parse uses by default: one per core.
+     */
+    public static int getDefaultParallelism() {
+        return CPU_COUNT;
+    }
+
+    /**
+     * Parse the response on all cores. See {@link #parse(InputStream, int, QueryUtils.EarthquakeCallback)}.
+     */
+    public static void parse(InputStream inputStream, QueryUtils.EarthquakeCallback callback) throws IOException {
+        parse(inputStream, CPU_COUNT, callback);
+    }
+
+    /**
+     * Parse the response, handing every earthquake to the callback on the calling thread in
+     * document order. The stream is left open for the caller to drain and close.
+     *
+     * @param parallelism at most how many chunks are parsed at the same time; 1 parses the
+     *                    stream sequentially with {@link QueryUtils#extractFeaturesFromStream}
+     */
+    public static void parse(InputStream inputStream, int parallelism, QueryUtils.EarthquakeCallback callback)
+            throws IOException {
+        if (parallelism <= 1) {
+            QueryUtils.extractFeaturesFromStream(inputStream, callback);
+            return;
+        }
+        final FetchCancellation cancellation = FetchCancellation.current();
+        FeatureScanner scanner = new FeatureScanner();
+        ArrayDeque<Future<List<Earthquake>>> pending = new ArrayDeque<>();
+        int maxPending = parallelism * CHUNKS_IN_FLIGHT_PER_THREAD;
+        // The bytes from the start of the chunk being scanned to the last one read
+        byte[] buffer = new byte[2 * CHUNK_BYTES];
+        long bufferPosition = 0;
+        int length = 0;
+        int scanned = 0;
+        try {
+            while (true) {
+                if (scanned == length) {
+                    long chunkStart = scanner.getChunkStart();
+                    int keep = chunkStart < 0 ? 0 : (int) (bufferPosition + length - chunkStart);
+                    if (keep < length) {
+                        // Drop what is before the chunk
+                        System.arraycopy(buffer, length - keep, buffer, 0, keep);
+                        bufferPosition += length - keep;
+                        length = keep;
+                        scanned = keep;
+                    }
+                    if (length == buffer.length) {
+                        // A single feature larger than the buffer
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                    int read = inputStream.read(buffer, length, buffer.length - length);
+                    if (read == -1) {
+                        break;
+                    }
+                    length += read;
+                }
+                scanned += scanner.scan(buffer, scanned, length - scanned, bufferPosition + scanned, CHUNK_BYTES);
+                long[] chunk = scanner.takeChunk();
+                if (chunk == null) {
+                    continue;
+                }
+                int start = (int) (chunk[0] - bufferPosition);
+                int end = (int) (chunk[1] - bufferPosition);
+                if (scanner.isFeaturesEnded() && pending.isEmpty()) {
+                    // The only chunk: not worth a thread switch
+                    deliver(parseChunk(buffer, start, end), callback);
+                    continue;
+                }
+                final byte[] bytes = Arrays.copyOfRange(buffer, start, end);
+                pending.add(sExecutor.submit(new Callable<List<Earthquake>>() {
+                    @Override
+                    public List<Earthquake> call() throws IOException {
+                        FetchCancellation.setCurrent(cancellation);
+                        try {
+                            return parseChunk(bytes, 0, bytes.length);
+                        } finally {
+                            FetchCancellation.setCurrent(null);
+                        }
+                    }
+                }));
+                if (Metrics.ENABLED) {
+                    CHUNKS.increment();
+                }
+                // Hand over what is parsed, waiting for the oldest chunk if enough are read ahead
+                while (!pending.isEmpty() && (pending.size() >= maxPending || pending.peekFirst().isDone())) {
+                    deliver(get(pending.pollFirst()), callback);
+                }
+            }
+            scanner.finish();
+            while (!pending.isEmpty()) {
+                deliver(get(pending.pollFirst()), callback);
+            }
+        } finally {
+            for (Future<List<Earthquake>> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static List<Earthquake> parseChunk(byte[] bytes, int start, int end) throws IOException {
+        final ArrayList<Earthquake> earthquakes = new ArrayList<>();
+        QueryUtils.extractFeatureElementsFromStream(new ByteArrayInputStream(bytes, start, end - start),
+                new QueryUtils.EarthquakeCallback() {
+                    @Override
+                    public void onEarthquake(Earthquake earthquake) {
+                        earthquakes.add(earthquake);
+                    }
+                });
+        return earthquakes;
+    }
+
+    private static void deliver(List<Earthquake> earthquakes, QueryUtils.EarthquakeCallback callback) {
+        for (int i = 0; i < earthquakes.size(); i++) {
+            callback.onEarthquake(earthquakes.get(i));
+        }
+    }
+
+    private static List<Earthquake> get(Future<List<Earthquake>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Parse interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
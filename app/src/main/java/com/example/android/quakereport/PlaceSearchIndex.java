@@ -0,0 +1,588 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds earthquakes by place name without scanning every place: the primary locations of the
+ * events ("Rumoi, Japan"; the location offsets are only distances and directions) are indexed by
+ * their trigrams, and by the first one and two characters of each of their words. Since thousands
+ * of events share a location, only the distinct locations are indexed, when the first event of a
+ * location is put; the events of a location are then listed under it.
+ * <p>
+ * A query is split into words, and matches the locations containing all of them; words shorter
+ * than three characters only match the start of a word. Matches are ranked by how well the
+ * location matches each word (as its first word, as another of its words, as the start of one of
+ * its words, or merely inside one), then by magnitude and time, largest and most recent first.
+ * <p>
+ * Like {@link EarthquakeAggregates}, events are identified by their id, so putting an event again
+ * updates it, and events without an id are ignored. The index does not copy the events, it refers
+ * to the rows of the stores they were put from (the latest one, for an event put again), so it
+ * holds no more than its caller: the events of a store that is dropped should be removed with
+ * {@link #removeAll}. Locations that have no event left are dropped too.
+ * <p>
+ * Not thread-safe.
+ */
+public final class PlaceSearchIndex {
+
+    /**
+     * The rows (and locations) are compacted when more of them than this, and than live ones, were
+     * replaced or removed
+     */
+    static final int MIN_COMPACT_ROWS = 1024;
+
+    /**
+     * How well a location matches one word of a query
+     */
+    private static final int QUALITY_CONTAINS = 1;
+    private static final int QUALITY_WORD_PREFIX = 2;
+    private static final int QUALITY_WORD = 3;
+    private static final int QUALITY_FIRST_WORD = 4;
+
+    /**
+     * Tags of the keys of word prefixes, above the 48 bits of the three chars of a trigram
+     */
+    private static final long PREFIX_1 = 1L << 48;
+    private static final long PREFIX_2 = 2L << 48;
+
+    private static final Metrics.Histogram SEARCH_NANOS = Metrics.histogram("search.nanos");
+
+    /**
+     * Ascending ints without duplicates, appended in order.
+     */
+    private static final class Postings {
+        int[] items = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size > 0 && items[size - 1] == value) {
+                return;
+            }
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = value;
+        }
+    }
+
+    /**
+     * Distinct primary locations by number, lower-cased, and the locations of every trigram and
+     * word prefix
+     */
+    private final HashMap<String, Integer> mLocationNumbers = new HashMap<>();
+    private final ArrayList<String> mLowerCaseLocations = new ArrayList<>();
+    private final HashMap<Long, Postings> mPostings = new HashMap<>();
+
+    /**
+     * The events by row: the store and position each was put from and its location (null and -1
+     * if it was replaced or removed); the row of each id, the rows of each location and how many
+     * of them are live
+     */
+    private EarthquakeStore[] mRowStores = new EarthquakeStore[16];
+    private int[] mRowPositions = new int[16];
+    private int[] mRowLocations = new int[16];
+    private int mRowCount;
+    private final HashMap<String, Integer> mRowsById = new HashMap<>();
+    private final ArrayList<Postings> mRowsByLocation = new ArrayList<>();
+    private int[] mLiveRowsByLocation = new int[16];
+    private int mDeadRows;
+    private int mDeadLocations;
+
+    /**
+     * Add the earthquake, or update it if an earthquake with the same id was put before.
+     */
+    public void put(Earthquake earthquake) {
+        EarthquakeStore store = new EarthquakeStore();
+        store.add(earthquake);
+        put(store, 0);
+    }
+
+    /**
+     * Add or update the earthquake at the given position of a store.
+     */
+    public void put(EarthquakeStore store, int position) {
+        String id = store.getId(position);
+        if (id == null) {
+            return;
+        }
+        Integer existing = mRowsById.get(id);
+        if (existing != null) {
+            int row = existing;
+            if (EarthquakeListDiff.sameValues(mRowStores[row], mRowPositions[row], store, position)) {
+                // Refer to the latest store, so that the previous one is not kept alive by the index
+                mRowStores[row] = store;
+                mRowPositions[row] = position;
+                return;
+            }
+            killRow(row);
+            mRowsById.remove(id);
+        }
+        String primaryLocation = store.getPrimaryLocation(position);
+        if (primaryLocation == null || primaryLocation.isEmpty()) {
+            // Nothing to find it by
+            compactIfNeeded();
+            return;
+        }
+        addRow(id, store, position, getLocationNumber(primaryLocation));
+        compactIfNeeded();
+    }
+
+    /**
+     * Add or update every earthquake of the store.
+     */
+    public void putAll(EarthquakeStore store) {
+        for (int i = 0; i < store.size(); i++) {
+            put(store, i);
+        }
+    }
+
+    /**
+     * Add or update every earthquake of the list.
+     */
+    public void putAll(List<Earthquake> earthquakes) {
+        EarthquakeStore store = EarthquakeStore.from(earthquakes);
+        if (store == null) {
+            store = new EarthquakeStore();
+            store.addAll(earthquakes);
+        }
+        putAll(store);
+    }
+
+    /**
+     * Remove every earthquake of the store.
+     */
+    public void removeAll(EarthquakeStore store) {
+        for (int i = 0; i < store.size(); i++) {
+            String id = store.getId(i);
+            if (id != null) {
+                remove(id);
+            }
+        }
+    }
+
+    /**
+     * Apply a new version of a set of earthquakes: the earthquakes of the old version that are not
+     * in the new one are removed, the others are added or updated.
+     */
+    public void replace(EarthquakeStore oldEarthquakes, EarthquakeStore newEarthquakes) {
+        HashSet<String> newIds = new HashSet<>();
+        for (int i = 0; i < newEarthquakes.size(); i++) {
+            String id = newEarthquakes.getId(i);
+            if (id != null) {
+                newIds.add(id);
+            }
+        }
+        for (int i = 0; i < oldEarthquakes.size(); i++) {
+            String id = oldEarthquakes.getId(i);
+            if (id != null && !newIds.contains(id)) {
+                remove(id);
+            }
+        }
+        putAll(newEarthquakes);
+    }
+
+    /**
+     * Remove the earthquake with the given id, if it was put.
+     */
+    public void remove(String id) {
+        Integer row = mRowsById.remove(id);
+        if (row != null) {
+            killRow(row);
+            compactIfNeeded();
+        }
+    }
+
+    public void clear() {
+        clearLocations();
+        mRowStores = new EarthquakeStore[16];
+        mRowPositions = new int[16];
+        mRowLocations = new int[16];
+        mRowCount = 0;
+        mRowsById.clear();
+        mDeadRows = 0;
+    }
+
+    /**
+     * Returns the number of earthquakes that can be found.
+     */
+    public int size() {
+        return mRowsById.size();
+    }
+
+    /**
+     * Returns the best matches of the query, best first.
+     *
+     * @param limit at most how many earthquakes are returned
+     */
+    public List<Earthquake> search(String query, int limit) {
+        long searchStart = Metrics.ENABLED ? System.nanoTime() : 0;
+        EarthquakeStore result = new EarthquakeStore();
+        String[] words = splitWords(query);
+        if (words.length == 0 || limit <= 0) {
+            return result.asList();
+        }
+
+        // Locations containing every word, ranked by how well they match
+        int[] candidates = null;
+        for (String word : words) {
+            int[] locations = getCandidates(word);
+            candidates = candidates == null ? locations : intersect(candidates, locations);
+            if (candidates.length == 0) {
+                return result.asList();
+            }
+        }
+        long[] ranked = new long[candidates.length];
+        int rankedCount = 0;
+        for (int location : candidates) {
+            String lowerCaseLocation = mLowerCaseLocations.get(location);
+            int score = 0;
+            for (String word : words) {
+                int quality = getMatchQuality(lowerCaseLocation, word);
+                if (quality == 0) {
+                    score = 0;
+                    break;
+                }
+                score += quality;
+            }
+            if (score > 0) {
+                // Best score first, then in location order
+                ranked[rankedCount++] = ((long) (Integer.MAX_VALUE - score) << 32) | location;
+            }
+        }
+        Arrays.sort(ranked, 0, rankedCount);
+
+        // The best events of the best locations, a score at a time: once enough events were
+        // found, locations with a lower score cannot contribute
+        int[] heapRows = new int[limit];
+        int[] heapScores = new int[limit];
+        int heapSize = 0;
+        int previousScore = -1;
+        for (int i = 0; i < rankedCount; i++) {
+            int score = Integer.MAX_VALUE - (int) (ranked[i] >>> 32);
+            int location = (int) ranked[i];
+            if (score != previousScore && heapSize == limit) {
+                break;
+            }
+            previousScore = score;
+            Postings rows = mRowsByLocation.get(location);
+            for (int j = 0; j < rows.size; j++) {
+                int row = rows.items[j];
+                if (mRowLocations[row] != location) {
+                    continue;
+                }
+                if (heapSize < limit) {
+                    heapRows[heapSize] = row;
+                    heapScores[heapSize] = score;
+                    siftUp(heapRows, heapScores, heapSize++);
+                } else if (isBetter(row, score, heapRows[0], heapScores[0])) {
+                    heapRows[0] = row;
+                    heapScores[0] = score;
+                    siftDown(heapRows, heapScores, heapSize);
+                }
+            }
+        }
+
+        // Popping the worst match first fills the result from its end
+        int[] best = new int[heapSize];
+        for (int i = heapSize - 1; i >= 0; i--) {
+            best[i] = heapRows[0];
+            heapRows[0] = heapRows[i];
+            heapScores[0] = heapScores[i];
+            siftDown(heapRows, heapScores, i);
+        }
+        for (int row : best) {
+            result.add(mRowStores[row], mRowPositions[row]);
+        }
+        if (Metrics.ENABLED) {
+            SEARCH_NANOS.recordSince(searchStart);
+        }
+        return result.asList();
+    }
+
+    /**
+     * Returns the locations that may contain the word: those having all its trigrams, or for a
+     * shorter word, a word starting with it.
+     */
+    private int[] getCandidates(String word) {
+        if (word.length() < 3) {
+            Postings postings = mPostings.get(getPrefixKey(word, 0, word.length()));
+            return postings == null ? new int[0] : Arrays.copyOf(postings.items, postings.size);
+        }
+        int count = word.length() - 2;
+        Postings[] lists = new Postings[count];
+        for (int i = 0; i < count; i++) {
+            lists[i] = mPostings.get(getTrigramKey(word, i));
+            if (lists[i] == null) {
+                return new int[0];
+            }
+        }
+        // Shortest first, so the intersection shrinks as soon as possible
+        Arrays.sort(lists, new Comparator<Postings>() {
+            @Override
+            public int compare(Postings a, Postings b) {
+                return a.size < b.size ? -1 : (a.size == b.size ? 0 : 1);
+            }
+        });
+        int[] candidates = Arrays.copyOf(lists[0].items, lists[0].size);
+        for (int i = 1; i < count && candidates.length > 0; i++) {
+            candidates = intersect(candidates, Arrays.copyOf(lists[i].items, lists[i].size));
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns the number of a primary location, indexing it the first time it is seen.
+     */
+    private int getLocationNumber(String primaryLocation) {
+        Integer number = mLocationNumbers.get(primaryLocation);
+        if (number != null) {
+            return number;
+        }
+        int location = mLowerCaseLocations.size();
+        String lowerCase = primaryLocation.toLowerCase(Locale.US);
+        mLocationNumbers.put(primaryLocation, location);
+        mLowerCaseLocations.add(lowerCase);
+        mRowsByLocation.add(new Postings());
+        if (location == mLiveRowsByLocation.length) {
+            mLiveRowsByLocation = Arrays.copyOf(mLiveRowsByLocation, location * 2);
+        }
+        // Without rows until the row it is created for is added
+        mLiveRowsByLocation[location] = 0;
+        mDeadLocations++;
+        for (int i = 0; i + 3 <= lowerCase.length(); i++) {
+            getPostings(getTrigramKey(lowerCase, i)).add(location);
+        }
+        for (int i = 0; i < lowerCase.length(); i++) {
+            if (isWordStart(lowerCase, i)) {
+                getPostings(getPrefixKey(lowerCase, i, 1)).add(location);
+                if (i + 1 < lowerCase.length()) {
+                    getPostings(getPrefixKey(lowerCase, i, 2)).add(location);
+                }
+            }
+        }
+        return location;
+    }
+
+    private Postings getPostings(long key) {
+        Postings postings = mPostings.get(key);
+        if (postings == null) {
+            postings = new Postings();
+            mPostings.put(key, postings);
+        }
+        return postings;
+    }
+
+    private void addRow(String id, EarthquakeStore store, int position, int location) {
+        int row = mRowCount++;
+        if (row == mRowLocations.length) {
+            mRowStores = Arrays.copyOf(mRowStores, row * 2);
+            mRowPositions = Arrays.copyOf(mRowPositions, row * 2);
+            mRowLocations = Arrays.copyOf(mRowLocations, row * 2);
+        }
+        mRowStores[row] = store;
+        mRowPositions[row] = position;
+        mRowLocations[row] = location;
+        mRowsByLocation.get(location).add(row);
+        if (mLiveRowsByLocation[location]++ == 0) {
+            mDeadLocations--;
+        }
+        mRowsById.put(id, row);
+    }
+
+    private void killRow(int row) {
+        int location = mRowLocations[row];
+        mRowStores[row] = null;
+        mRowLocations[row] = -1;
+        mDeadRows++;
+        if (--mLiveRowsByLocation[location] == 0) {
+            mDeadLocations++;
+        }
+    }
+
+    private void clearLocations() {
+        mLocationNumbers.clear();
+        mLowerCaseLocations.clear();
+        mPostings.clear();
+        mRowsByLocation.clear();
+        mLiveRowsByLocation = new int[16];
+        mDeadLocations = 0;
+    }
+
+    /**
+     * Index the live rows again once the replaced and removed rows, or the locations without rows,
+     * outnumber the live ones, so updates take amortized constant time and the index stays at most
+     * about twice the size of the live events.
+     */
+    private void compactIfNeeded() {
+        int liveRows = mRowCount - mDeadRows;
+        int liveLocations = mLowerCaseLocations.size() - mDeadLocations;
+        if ((mDeadRows < MIN_COMPACT_ROWS || mDeadRows < liveRows)
+                && (mDeadLocations < MIN_COMPACT_ROWS || mDeadLocations < liveLocations)) {
+            return;
+        }
+        EarthquakeStore[] rowStores = mRowStores;
+        int[] rowPositions = mRowPositions;
+        int[] rowLocations = mRowLocations;
+        int rowCount = mRowCount;
+        clearLocations();
+        int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, liveRows)) * 2);
+        mRowStores = new EarthquakeStore[capacity];
+        mRowPositions = new int[capacity];
+        mRowLocations = new int[capacity];
+        mRowCount = 0;
+        mDeadRows = 0;
+        // Rows keep their order and locations are numbered again as they are met, so the postings
+        // stay ascending
+        for (int row = 0; row < rowCount; row++) {
+            if (rowLocations[row] < 0) {
+                continue;
+            }
+            EarthquakeStore store = rowStores[row];
+            int position = rowPositions[row];
+            addRow(store.getId(position), store, position, getLocationNumber(store.getPrimaryLocation(position)));
+        }
+    }
+
+    /**
+     * Returns true if the first event ranks before the second.
+     */
+    private boolean isBetter(int row, int score, int otherRow, int otherScore) {
+        if (score != otherScore) {
+            return score > otherScore;
+        }
+        int byMag = Double.compare(mRowStores[row].getMag(mRowPositions[row]),
+                mRowStores[otherRow].getMag(mRowPositions[otherRow]));
+        if (byMag != 0) {
+            return byMag > 0;
+        }
+        return mRowStores[row].getTimeInMillSeconds(mRowPositions[row])
+                > mRowStores[otherRow].getTimeInMillSeconds(mRowPositions[otherRow]);
+    }
+
+    /**
+     * Restore the heap (worst event at the root) after adding the element at the given index.
+     */
+    private void siftUp(int[] rows, int[] scores, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!isBetter(rows[parent], scores[parent], rows[index], scores[index])) {
+                return;
+            }
+            swap(rows, scores, parent, index);
+            index = parent;
+        }
+    }
+
+    /**
+     * Restore the heap of the given size after replacing its root.
+     */
+    private void siftDown(int[] rows, int[] scores, int size) {
+        int index = 0;
+        while (true) {
+            int worst = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && isBetter(rows[worst], scores[worst], rows[left], scores[left])) {
+                worst = left;
+            }
+            if (right < size && isBetter(rows[worst], scores[worst], rows[right], scores[right])) {
+                worst = right;
+            }
+            if (worst == index) {
+                return;
+            }
+            swap(rows, scores, worst, index);
+            index = worst;
+        }
+    }
+
+    private static void swap(int[] rows, int[] scores, int i, int j) {
+        int row = rows[i];
+        rows[i] = rows[j];
+        rows[j] = row;
+        int score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+
+    /**
+     * Returns the lower-cased words of a query; anything but letters and digits separates them.
+     */
+    static String[] splitWords(String query) {
+        ArrayList<String> words = new ArrayList<>();
+        String lowerCase = query.toLowerCase(Locale.US);
+        int start = -1;
+        for (int i = 0; i <= lowerCase.length(); i++) {
+            boolean inWord = i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(lowerCase.substring(start, i));
+                start = -1;
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * Returns how well a lower-cased location matches a word of a query, 0 if it does not contain it.
+     */
+    static int getMatchQuality(String location, String word) {
+        int best = 0;
+        for (int index = location.indexOf(word); index >= 0; index = location.indexOf(word, index + 1)) {
+            int quality = QUALITY_CONTAINS;
+            if (isWordStart(location, index)) {
+                int end = index + word.length();
+                boolean wholeWord = end == location.length() || !Character.isLetterOrDigit(location.charAt(end));
+                quality = !wholeWord ? QUALITY_WORD_PREFIX : index == 0 ? QUALITY_FIRST_WORD : QUALITY_WORD;
+            }
+            if (quality == QUALITY_FIRST_WORD) {
+                return quality;
+            }
+            best = Math.max(best, quality);
+        }
+        return best;
+    }
+
+    private static boolean isWordStart(String string, int index) {
+        return Character.isLetterOrDigit(string.charAt(index))
+                && (index == 0 || !Character.isLetterOrDigit(string.charAt(index - 1)));
+    }
+
+    private static long getTrigramKey(String string, int index) {
+        return ((long) string.charAt(index) << 32) | ((long) string.charAt(index + 1) << 16)
+                | string.charAt(index + 2);
+    }
+
+    private static long getPrefixKey(String string, int index, int length) {
+        return length == 1 ? PREFIX_1 | string.charAt(index)
+                : PREFIX_2 | ((long) string.charAt(index) << 16) | string.charAt(index + 1);
+    }
+
+    /**
+     * Returns the values in both ascending arrays.
+     */
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+}
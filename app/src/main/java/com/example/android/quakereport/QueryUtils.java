@@ -1,21 +1,49 @@
 package com.example.android.quakereport;
 
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Helper methods related to requesting and receiving earthquake data from USGS.
@@ -27,6 +55,20 @@ public final class QueryUtils {
      */
     public static final String LOG_TAG = QueryUtils.class.getSimpleName();
 
+    private static final Metrics.Counter CANCELED = Metrics.counter("fetch.canceled");
+    private static final Metrics.Counter RETRIES = Metrics.counter("fetch.retries");
+    private static final Metrics.Counter HEDGES = Metrics.counter("fetch.hedges");
+    private static final Metrics.Counter HEDGE_WINS = Metrics.counter("fetch.hedge_wins");
+
+    /**
+     * Runs the requests of a hedged fetch; threads only live while requests are racing
+     */
+    private static final ExecutorService sHedgeExecutor = Executors.newCachedThreadPool();
+    /**
+     * How often a hedged fetch checks for cancellation while both requests are in flight
+     */
+    private static final long HEDGE_POLL_MILLIS = 100;
+
     /**
      * Create a private constructor because no one should ever create a {@link QueryUtils} object.
      * This class is only meant to hold static variables and methods, which can be accessed
@@ -44,33 +86,370 @@ public final class QueryUtils {
      * make all other helper methods in QueryUtils “private”
      */
     public static ArrayList<Earthquake> fetchEarthquakeData(String requestUrl) {
-        Log.i("inside QueryUtils", "fetchEarthquakeData()");
+        // Create an empty ArrayList that the streaming parser can add earthquakes to
+        final ArrayList<Earthquake> earthquakes = new ArrayList<>();
+
+        boolean success = fetchEarthquakeData(requestUrl, new EarthquakeCallback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        });
+
+        // Return the list of {@link Earthquake}s, or null if nothing could be downloaded
+        return success ? earthquakes : null;
+    }
+
+    /**
+     * Query the USGS dataset and hand every {@link Earthquake} to the given callback as soon as
+     * its feature has been parsed off the network stream.
+     *
+     * @return true if the server answered with a response that could be parsed
+     */
+    public static boolean fetchEarthquakeData(String requestUrl, EarthquakeCallback callback) {
+        return fetchEarthquakeData(requestUrl, null, null, callback).isSuccessful();
+    }
+
+    /**
+     * Conditional variant of {@link #fetchEarthquakeData(String, EarthquakeCallback)}: the
+     * validators of a previous response are sent as If-None-Match / If-Modified-Since, so an
+     * unchanged result costs a 304 without a body.
+     *
+     * @param eTag         ETag of the cached response, or null
+     * @param lastModified Last-Modified of the cached response, or null
+     */
+    public static FetchResult fetchEarthquakeData(String requestUrl, String eTag, String lastModified,
+                                                  EarthquakeCallback callback) {
         // Create URL object
         URL url = createUrl(requestUrl);
 
-        // Perform HTTP request to the URL and receive a JSON response back
-        String jsonResponse = null;
-        try {
-            jsonResponse = makeHttpRequest(url);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error closing input stream", e);
+        // Perform HTTP request to the URL and parse the JSON response while it is being received
+        return makeHttpRequest(url, eTag, lastModified, callback);
+    }
+
+    /**
+     * Outcome of a request: the response code and the validators needed to revalidate it later,
+     * or why it failed.
+     */
+    public static final class FetchResult {
+        static final FetchResult FAILED = new FetchResult(-1, null, null, null, Error.NETWORK, 0);
+        static final FetchResult CANCELED = new FetchResult(-1, null, null, null, Error.CANCELED, 0);
+
+        /**
+         * Why a request failed
+         */
+        public enum Error {
+            NONE,
+            /**
+             * The fetch was canceled; nobody wants its result
+             */
+            CANCELED,
+            /**
+             * No connection to the server could be made, or it broke
+             */
+            NETWORK,
+            /**
+             * The server did not answer in time
+             */
+            TIMEOUT,
+            /**
+             * The server answered with an error status, see responseCode
+             */
+            HTTP,
+            /**
+             * The response could not be parsed
+             */
+            MALFORMED
         }
+
+        public final int responseCode;
+        public final String eTag;
+        public final String lastModified;
+        /**
+         * Measurements of the request, or null if it failed
+         */
+        public final RequestMetrics metrics;
+        public final Error error;
         /**
-         * Force the background thread to sleep for 2 seconds
-         * to check that the loading indicator will lead to the list of earthquake results
-
-         try {
-         Thread.sleep(2000);
-         } catch (InterruptedException e) {
-         e.printStackTrace();
-         }
+         * How long the server asked us to wait before trying again, 0 if it did not say
          */
+        public final int retryAfterSeconds;
 
-        // Extract relevant fields from the JSON response and create an {@link Earthquake}s
-        ArrayList<Earthquake> earthquake = extractFeatureFromJson(jsonResponse);
+        FetchResult(int responseCode, String eTag, String lastModified) {
+            this(responseCode, eTag, lastModified, null);
+        }
 
-        // Return the list of {@link Earthquake}s
-        return earthquake;
+        FetchResult(int responseCode, String eTag, String lastModified, RequestMetrics metrics) {
+            this(responseCode, eTag, lastModified, metrics,
+                    responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                            ? Error.NONE : Error.HTTP, 0);
+        }
+
+        private FetchResult(int responseCode, String eTag, String lastModified, RequestMetrics metrics,
+                            Error error, int retryAfterSeconds) {
+            this.responseCode = responseCode;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.metrics = metrics;
+            this.error = error;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        static FetchResult httpError(int responseCode, int retryAfterSeconds) {
+            return new FetchResult(responseCode, null, null, null, Error.HTTP, retryAfterSeconds);
+        }
+
+        /**
+         * Returns the result of a request that failed with the given exception.
+         */
+        static FetchResult failure(IOException e) {
+            Error error = Error.NETWORK;
+            if (e instanceof SocketTimeoutException) {
+                error = Error.TIMEOUT;
+            } else if (e instanceof MalformedJsonException || e.getCause() instanceof IllegalStateException) {
+                error = Error.MALFORMED;
+            }
+            return new FetchResult(-1, null, null, null, error, 0);
+        }
+
+        /**
+         * The response body was received and parsed completely.
+         */
+        public boolean isSuccessful() {
+            return responseCode == HttpURLConnection.HTTP_OK;
+        }
+
+        /**
+         * The server confirmed that the cached response is still current.
+         */
+        public boolean isNotModified() {
+            return responseCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+    }
+
+    /**
+     * Number of time windows a large query is split into
+     */
+    public static final int SHARD_COUNT = 4;
+    /**
+     * Number of shards fetched at the same time
+     */
+    public static final int SHARD_CONCURRENCY = 4;
+    /**
+     * Only queries asking for at least this many earthquakes (or for all of them) are sharded:
+     * every shard may return up to "limit" earthquakes, which is wasted work for small limits.
+     */
+    private static final int SHARD_MIN_LIMIT = 2000;
+    /**
+     * Only queries covering at least this much time are sharded
+     */
+    private static final long SHARD_MIN_SPAN_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    /**
+     * Time window USGS searches when the query has no starttime
+     */
+    private static final long DEFAULT_SPAN_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Returns true if the query is large enough for {@link #fetchEarthquakeDataSharded} to pay off.
+     */
+    public static boolean shouldShard(String requestUrl) {
+        Uri uri = Uri.parse(requestUrl);
+        if (uri.getQueryParameter("offset") != null) {
+            // Shards cannot skip rows of the merged result
+            return false;
+        }
+        String limit = uri.getQueryParameter("limit");
+        try {
+            if (limit != null && Integer.parseInt(limit) < SHARD_MIN_LIMIT) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        long[] range = getTimeRange(uri);
+        return range != null && range[1] - range[0] >= SHARD_MIN_SPAN_MILLIS;
+    }
+
+    /**
+     * Query the source by splitting the query's time range into shardCount windows
+     * (starttime/endtime), fetching and parsing them in parallel on at most concurrency threads, and
+     * merging the results in the query's "orderby" order. Every shard keeps the query's "limit", so
+     * the merged result, cut to that limit, is the same as the one of the unsharded query.
+     *
+     * @return the merged earthquakes, or null if the query has no usable time range or a shard failed
+     */
+    public static List<Earthquake> fetchEarthquakeDataSharded(final EarthquakeSource source, String requestUrl,
+                                                              int shardCount, int concurrency) {
+        Uri uri = Uri.parse(requestUrl);
+        long[] range = getTimeRange(uri);
+        if (range == null) {
+            return null;
+        }
+
+        // Shard windows are inclusive on both ends, like starttime/endtime, and must not overlap
+        long shardSpan = (range[1] - range[0]) / shardCount + 1;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, shardCount)));
+        // The shards run on other threads, hand them the caller's cancellation
+        final FetchCancellation cancellation = FetchCancellation.current();
+        List<Future<EarthquakeStore>> futures = new ArrayList<>();
+        for (long start = range[0]; start <= range[1]; start += shardSpan) {
+            final String shardUrl = withTimeRange(uri, start, Math.min(start + shardSpan - 1, range[1]));
+            futures.add(executor.submit(new Callable<EarthquakeStore>() {
+                @Override
+                public EarthquakeStore call() {
+                    final EarthquakeStore store = new EarthquakeStore();
+                    FetchCancellation.setCurrent(cancellation);
+                    try {
+                        FetchResult result = source.fetch(shardUrl, null, null, new EarthquakeCallback() {
+                            @Override
+                            public void onEarthquake(Earthquake earthquake) {
+                                store.add(earthquake);
+                            }
+                        });
+                        return result.isSuccessful() ? store : null;
+                    } finally {
+                        FetchCancellation.setCurrent(null);
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+
+        List<EarthquakeStore> shards = new ArrayList<>();
+        try {
+            for (Future<EarthquakeStore> future : futures) {
+                EarthquakeStore shard = future.get();
+                if (shard == null) {
+                    executor.shutdownNow();
+                    return null;
+                }
+                shards.add(shard);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            Log.e(LOG_TAG, "Problem fetching a shard of the earthquake query", e);
+            return null;
+        }
+
+        int limit = Integer.MAX_VALUE;
+        String limitParameter = uri.getQueryParameter("limit");
+        if (limitParameter != null) {
+            limit = Integer.parseInt(limitParameter);
+        }
+        return mergeShards(shards, uri.getQueryParameter("orderby"), limit).asList();
+    }
+
+    /**
+     * Merge shards that are each sorted by orderby into one sorted store of at most limit rows,
+     * with a k-way merge over a heap of shard cursors.
+     */
+    static EarthquakeStore mergeShards(final List<EarthquakeStore> shards, String orderBy, int limit) {
+        final boolean byMagnitude = orderBy != null && orderBy.startsWith("magnitude");
+        final boolean ascending = orderBy != null && orderBy.endsWith("-asc");
+        // Each heap entry is {shard, row}
+        PriorityQueue<int[]> heap = new PriorityQueue<>(Math.max(1, shards.size()), new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                EarthquakeStore storeA = shards.get(a[0]);
+                EarthquakeStore storeB = shards.get(b[0]);
+                int result;
+                if (byMagnitude) {
+                    result = Double.compare(storeA.getMag(a[1]), storeB.getMag(b[1]));
+                } else {
+                    long timeA = storeA.getTimeInMillSeconds(a[1]);
+                    long timeB = storeB.getTimeInMillSeconds(b[1]);
+                    result = timeA < timeB ? -1 : (timeA == timeB ? 0 : 1);
+                }
+                return ascending ? result : -result;
+            }
+        });
+        for (int i = 0; i < shards.size(); i++) {
+            if (shards.get(i).size() > 0) {
+                heap.add(new int[]{i, 0});
+            }
+        }
+
+        EarthquakeStore merged = new EarthquakeStore();
+        while (!heap.isEmpty() && merged.size() < limit) {
+            int[] cursor = heap.poll();
+            EarthquakeStore shard = shards.get(cursor[0]);
+            int row = cursor[1];
+            merged.add(shard, row);
+            if (row + 1 < shard.size()) {
+                cursor[1] = row + 1;
+                heap.add(cursor);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns {start, end} of the query in milliseconds, applying the USGS defaults
+     * (the last 30 days) for missing bounds, or null if a bound cannot be parsed.
+     */
+    static long[] getTimeRange(Uri uri) {
+        long end = System.currentTimeMillis();
+        String endTime = uri.getQueryParameter("endtime");
+        if (endTime != null) {
+            end = parseTime(endTime);
+        }
+        long start = end - DEFAULT_SPAN_MILLIS;
+        String startTime = uri.getQueryParameter("starttime");
+        if (startTime != null) {
+            start = parseTime(startTime);
+        }
+        if (start < 0 || end < 0 || start > end) {
+            return null;
+        }
+        return new long[]{start, end};
+    }
+
+    /**
+     * Parse an ISO8601 time as accepted by USGS (UTC unless stated otherwise), or return -1.
+     */
+    private static long parseTime(String time) {
+        String[] patterns = {"yyyy-MM-dd'T'HH:mm:ss.SSS", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd"};
+        for (String pattern : patterns) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            format.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(time, position);
+            if (date != null && position.getIndex() == time.length()) {
+                return date.getTime();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the query with its starttime/endtime replaced by the given window.
+     */
+    private static String withTimeRange(Uri uri, long start, long end) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Uri.Builder builder = uri.buildUpon().clearQuery();
+        for (String name : uri.getQueryParameterNames()) {
+            if (!"starttime".equals(name) && !"endtime".equals(name)) {
+                for (String value : uri.getQueryParameters(name)) {
+                    builder.appendQueryParameter(name, value);
+                }
+            }
+        }
+        builder.appendQueryParameter("starttime", format.format(new Date(start)));
+        builder.appendQueryParameter("endtime", format.format(new Date(end)));
+        return builder.build().toString();
+    }
+
+    /**
+     * Receives the earthquakes produced by the streaming parser, one feature at a time.
+     */
+    public interface EarthquakeCallback {
+        void onEarthquake(Earthquake earthquake);
     }
 
     /**
@@ -87,79 +466,587 @@ public final class QueryUtils {
     }
 
     /**
-     * Make an HTTP request to the given URL and return a String as the response.
+     * Make an HTTP request to the given URL and stream the response through the parser.
+     * The body is never buffered as a whole; every feature is handed to the callback as it arrives.
+     * Transient failures are retried as decided by {@link FetchPolicy}, but only as long as no
+     * earthquake was handed to the callback yet.
      */
 
-    private static String makeHttpRequest(URL url) throws IOException {
-        String jsonResponse = "";
-
+    private static FetchResult makeHttpRequest(URL url, String eTag, String lastModified,
+                                               EarthquakeCallback callback) {
         // If the URL is null, then return early.
         if (url == null) {
-            return jsonResponse;
+            return FetchResult.FAILED;
         }
 
-        HttpURLConnection urlConnection = null;
+        FetchCancellation cancellation = FetchCancellation.current();
+        FetchPolicy policy = FetchPolicy.getInstance();
+        CountingCallback counting = new CountingCallback(callback);
+        FetchResult result = FetchResult.FAILED;
+        for (int attempt = 0; attempt < FetchPolicy.MAX_ATTEMPTS; attempt++) {
+            if (cancellation.isCanceled()) {
+                return FetchResult.CANCELED;
+            }
+            boolean timedOut = result.error == FetchResult.Error.TIMEOUT;
+            result = makeHttpRequestOnce(url, eTag, lastModified, counting,
+                    policy.getConnectTimeoutMillis(attempt, timedOut), policy.getReadTimeoutMillis(attempt, timedOut));
+            if (counting.mCount > 0 || !policy.shouldRetry(result, attempt)) {
+                break;
+            }
+            if (Metrics.ENABLED) {
+                RETRIES.increment();
+            }
+            if (!sleep(policy.getBackoffMillis(result, attempt), cancellation)) {
+                return FetchResult.CANCELED;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sleep for the given time unless canceled meanwhile; returns false if canceled.
+     */
+    private static boolean sleep(long millis, FetchCancellation cancellation) {
+        long end = SystemClock.elapsedRealtime() + millis;
+        long remaining = millis;
+        while (remaining > 0 && !cancellation.isCanceled()) {
+            SystemClock.sleep(Math.min(remaining, 100));
+            remaining = end - SystemClock.elapsedRealtime();
+        }
+        return !cancellation.isCanceled();
+    }
+
+    /**
+     * Counts the earthquakes handed to the callback, which makes a failed request unsafe to retry.
+     */
+    private static final class CountingCallback implements EarthquakeCallback {
+        private final EarthquakeCallback mCallback;
+        private int mCount;
+
+        CountingCallback(EarthquakeCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void onEarthquake(Earthquake earthquake) {
+            mCount++;
+            mCallback.onEarthquake(earthquake);
+        }
+    }
+
+    /**
+     * One attempt of {@link #makeHttpRequest}. Never throws: failures are described by the result.
+     */
+    private static FetchResult makeHttpRequestOnce(URL url, String eTag, String lastModified,
+                                                   EarthquakeCallback callback, int connectTimeoutMillis,
+                                                   int readTimeoutMillis) {
+        final FetchCancellation cancellation = FetchCancellation.current();
+        FetchResult result = FetchResult.FAILED;
+        final Exchange[] exchanges = new Exchange[2];
+        Exchange exchange = null;
         InputStream inputStream = null;
+        boolean reusable = false;
+        // Canceling closes the sockets, which also unblocks a read in progress
+        Runnable abort = new Runnable() {
+            @Override
+            public void run() {
+                for (Exchange exchange : exchanges) {
+                    if (exchange != null) {
+                        exchange.abort();
+                    }
+                }
+            }
+        };
 
         try {
             //1. this is about setting up the connection request
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setReadTimeout(10000 /* milliseconds */);
-            urlConnection.setConnectTimeout(15000 /* milliseconds */);
-            urlConnection.setRequestMethod("GET");
-
-            Log.e("inside query utils", "before connect method");
-            urlConnection.connect(); //2. Here we actually establish HTTP connection with the server
-            Log.e("inside query utils", "after connect method");
+            exchanges[0] = new Exchange(url, eTag, lastModified, connectTimeoutMillis, readTimeoutMillis);
+            cancellation.addOnCancelListener(abort);
+            //2. Here we actually establish HTTP connection with the server (or reuse a pooled one),
+            // hedged with a second request if the response takes unusually long
+            long hedgeDelayMillis = FetchPolicy.getInstance().getHedgeDelayMillis();
+            if (hedgeDelayMillis > 0) {
+                exchanges[1] = new Exchange(url, eTag, lastModified, connectTimeoutMillis, readTimeoutMillis);
+                exchange = exchangeHedged(exchanges[0], exchanges[1], hedgeDelayMillis, cancellation);
+            } else {
+                exchange = exchanges[0].call();
+            }
+            HttpURLConnection urlConnection = exchange.mConnection;
+            RequestMetrics metrics = exchange.mMetrics;
             //3. If the request was successful (response code 200),
-            // then read the input stream and parse the response.
-            if (urlConnection.getResponseCode() == 200) {
+            // then parse the input stream while it is being read.
+            int responseCode = exchange.mResponseCode;
+            if (responseCode == HttpURLConnection.HTTP_OK) {
                 inputStream = urlConnection.getInputStream();//HTTPURLConnection class returns server response via input stream.(So, read the input stream)
-                jsonResponse = readFromStream(inputStream); //extract the JSON response. (helper method to read data from input stream)
+                RequestMetrics.MeteredInputStream wire = new RequestMetrics.MeteredInputStream(inputStream);
+                RequestMetrics.MeteredInputStream decoded = null;
+                // Every network read checks for cancellation first
+                InputStream body = cancellation.wrap(wire);
+                if ("gzip".equalsIgnoreCase(urlConnection.getContentEncoding())) {
+                    decoded = new RequestMetrics.MeteredInputStream(new GZIPInputStream(body, BUFFER_SIZE));
+                    body = decoded;
+                }
+                long parseStart = System.nanoTime();
+                // Pull the features straight off the stream, parsing large responses on several cores
+                ParallelFeatureParser.parse(body, callback);
+                drain(wire);
+                metrics.setBody(wire, decoded, System.nanoTime() - parseStart);
+                if (Metrics.ENABLED) {
+                    metrics.record();
+                }
+                result = new FetchResult(responseCode, urlConnection.getHeaderField("ETag"),
+                        urlConnection.getHeaderField("Last-Modified"), metrics);
+                reusable = true;
+            } else if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                if (Metrics.ENABLED) {
+                    metrics.record();
+                }
+                result = new FetchResult(responseCode, eTag, lastModified, metrics);
+                reusable = true;
             } else {
-                Log.e(LOG_TAG, "Error response code: " + urlConnection.getResponseCode());
+                Log.e(LOG_TAG, "Error response code: " + responseCode);
+                result = FetchResult.httpError(responseCode, parseRetryAfter(urlConnection.getHeaderField("Retry-After")));
             }
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Problem retrieving the earthquake JSON results.", e);
+            if (cancellation.isCanceled()) {
+                // Not an error, whoever canceled the fetch no longer wants its result
+                result = FetchResult.CANCELED;
+                if (Metrics.ENABLED) {
+                    CANCELED.increment();
+                }
+            } else {
+                Log.e(LOG_TAG, "Problem retrieving the earthquake JSON results.", e);
+                result = FetchResult.failure(e);
+            }
         } finally {
+            cancellation.removeOnCancelListener(abort);
+            // A canceled connection has been (or is now) disconnected, closing its stream could throw
+            boolean canceled = cancellation.isCanceled();
             //It helps to clean up & release scarce system resources
-            if (urlConnection != null) {
-                urlConnection.disconnect();//Disconnect once the response body has been read
+            if (inputStream != null && !canceled) {
+                try {
+                    // A fully read and closed body hands the connection back to the keep-alive pool
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing input stream", e);
+                }
+            }
+            if (exchange != null && (!reusable || canceled)) {
+                // Only give up the socket if something went wrong; disconnect() defeats keep-alive
+                exchange.mConnection.disconnect();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Run the primary exchange, and if it has no response after the given delay, also the hedge;
+     * the first one to receive its response headers wins and the other one is aborted.
+     */
+    private static Exchange exchangeHedged(Exchange primary, Exchange hedge, long hedgeDelayMillis,
+                                           FetchCancellation cancellation) throws IOException {
+        ExecutorCompletionService<Exchange> completion = new ExecutorCompletionService<>(sHedgeExecutor);
+        completion.submit(primary);
+        int running = 1;
+        boolean hedged = false;
+        IOException failure = null;
+        try {
+            while (running > 0) {
+                cancellation.throwIfCanceled();
+                Future<Exchange> done = completion.poll(hedged ? HEDGE_POLL_MILLIS : hedgeDelayMillis,
+                        TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (!hedged) {
+                        // The primary is slower than usual, race it with a second request
+                        hedged = true;
+                        running++;
+                        completion.submit(hedge);
+                        if (Metrics.ENABLED) {
+                            HEDGES.increment();
+                        }
+                    }
+                    continue;
+                }
+                running--;
+                try {
+                    Exchange winner = done.get();
+                    Exchange loser = winner == primary ? hedge : primary;
+                    if (hedged) {
+                        loser.abort();
+                        if (Metrics.ENABLED && winner == hedge) {
+                            HEDGE_WINS.increment();
+                        }
+                    }
+                    return winner;
+                } catch (ExecutionException e) {
+                    // Wait for the other request, if there is one
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : new IOException(e.getCause());
+                    if (!hedged) {
+                        // Failed fast, not slow: leave it to the retry policy
+                        throw failure;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            primary.abort();
+            hedge.abort();
+            throw new InterruptedIOException("Interrupted while waiting for a response");
+        }
+        throw failure;
+    }
+
+    /**
+     * Returns the delay of a Retry-After header given in seconds, or 0 if there is none
+     * (HTTP dates are not supported).
+     */
+    private static int parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Sends a request and waits for its response headers. Runs on the fetching thread or, when
+     * hedged, on {@link #sHedgeExecutor}.
+     */
+    private static final class Exchange implements Callable<Exchange> {
+        private final URL mUrl;
+        private final String mETag;
+        private final String mLastModified;
+        private final int mConnectTimeoutMillis;
+        private final int mReadTimeoutMillis;
+        final RequestMetrics mMetrics = new RequestMetrics();
+        volatile HttpURLConnection mConnection;
+        volatile boolean mAborted;
+        int mResponseCode;
+
+        Exchange(URL url, String eTag, String lastModified, int connectTimeoutMillis, int readTimeoutMillis) {
+            mUrl = url;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mConnectTimeoutMillis = connectTimeoutMillis;
+            mReadTimeoutMillis = readTimeoutMillis;
+        }
+
+        @Override
+        public Exchange call() throws IOException {
+            HttpURLConnection urlConnection = (HttpURLConnection) mUrl.openConnection();
+            mConnection = urlConnection;
+            checkAborted(urlConnection);
+            urlConnection.setReadTimeout(mReadTimeoutMillis);
+            urlConnection.setConnectTimeout(mConnectTimeoutMillis);
+            urlConnection.setRequestMethod("GET");
+            // Ask for a compressed body. Setting the header ourselves means we also decompress it
+            // ourselves, which lets us measure the bytes on the wire and the time spent inflating.
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip");
+            // Let the server answer 304 Not Modified if our cached copy is still current
+            if (mETag != null) {
+                urlConnection.setRequestProperty("If-None-Match", mETag);
+            }
+            if (mLastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", mLastModified);
+            }
+
+            if (Metrics.ENABLED) {
+                // Resolve the host up front to time the lookup on its own; the connection then
+                // finds the address in the resolver's cache, so connect() measures only the handshake
+                long dnsStart = System.nanoTime();
+                InetAddress.getByName(mUrl.getHost());
+                mMetrics.setDnsNanos(System.nanoTime() - dnsStart);
+            }
+            long connectStart = System.nanoTime();
+            urlConnection.connect();
+            long connectEnd = System.nanoTime();
+            // abort() may have disconnected the connection before it was connected, which does
+            // nothing: check again now that there is a socket to close
+            checkAborted(urlConnection);
+            mResponseCode = urlConnection.getResponseCode();
+            long ttfbNanos = System.nanoTime() - connectEnd;
+            checkAborted(urlConnection);
+            mMetrics.setConnectNanos(connectEnd - connectStart);
+            mMetrics.setTtfbNanos(ttfbNanos);
+            FetchPolicy.getInstance().recordLatency(connectEnd - connectStart, ttfbNanos);
+            return this;
+        }
+
+        /**
+         * Close the connection on this (background) thread and give up if the exchange was aborted.
+         */
+        private void checkAborted(HttpURLConnection urlConnection) throws InterruptedIOException {
+            if (mAborted) {
+                urlConnection.disconnect();
+                throw new InterruptedIOException("Request aborted");
+            }
+        }
+
+        /**
+         * Close the connection from another thread, off the main thread where loaders are
+         * canceled and closing a (TLS) socket must not happen.
+         */
+        void abort() {
+            mAborted = true;
+            final HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.disconnect();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Size of the reusable read buffers, and of the GZIP inflater's input buffer
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * One read buffer per thread, reused by every request made on it
+     */
+    private static final ThreadLocal<byte[]> sReadBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Read whatever the parser left unread (e.g. trailing whitespace), so the connection can be reused.
+     */
+    private static void drain(InputStream inputStream) throws IOException {
+        byte[] buffer = sReadBuffer.get();
+        while (inputStream.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    /**
+     * Parse a USGS GeoJSON response with a pull parser, handing each {@link Earthquake} to the
+     * callback as soon as its feature is complete. Only the "features" array, the four
+     * properties we display and the epicenter are read; everything else (metadata, depth, unused
+     * properties) is skipped without being materialized. The stream is left open for the caller to drain and close.
+     *
+     * @throws MalformedJsonException if the document has no features array
+     */
+    static void extractFeaturesFromStream(InputStream inputStream, EarthquakeCallback callback)
+            throws IOException {
+        FetchCancellation cancellation = FetchCancellation.current();
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+        boolean hasFeatures = false;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("features".equals(reader.nextName())) {
+                    readFeatures(reader, callback, cancellation);
+                    hasFeatures = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (!hasFeatures) {
+                throw new MalformedJsonException("No features array in the GeoJSON document");
+            }
+        } catch (IllegalStateException e) {
+            // JsonReader reports malformed documents with an IllegalStateException
+            throw new IOException("Problem parsing the earthquake JSON results", e);
+        }
+    }
+
+    /**
+     * Parse a run of comma-separated GeoJSON features cut from the "features" array of a document
+     * (see {@link FeatureScanner}), as {@link ParallelFeatureParser} and {@link EarthquakeDataset}
+     * hand them to their threads. The stream is left open for the caller to close.
+     */
+    static void extractFeatureElementsFromStream(InputStream inputStream, EarthquakeCallback callback)
+            throws IOException {
+        FetchCancellation cancellation = FetchCancellation.current();
+        // Parse the elements as an array of their own
+        InputStream array = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(new byte[]{'['}), inputStream, new ByteArrayInputStream(new byte[]{']'}))));
+        JsonReader reader = new JsonReader(new InputStreamReader(array, Charset.forName("UTF-8")));
+        try {
+            readFeatures(reader, callback, cancellation);
+        } catch (IllegalStateException e) {
+            throw new IOException("Problem parsing the earthquake JSON results", e);
+        }
+    }
+
+    /**
+     * Read an array of features, handing each earthquake to the callback. Elements that are not
+     * objects are skipped.
+     */
+    private static void readFeatures(JsonReader reader, EarthquakeCallback callback,
+                                     FetchCancellation cancellation) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            cancellation.throwIfCanceled();
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
             }
-            if (inputStream != null) {
-                // function must handle java.io.IOException here
-                inputStream.close();
+            Earthquake earthquake = readFeature(reader);
+            if (earthquake != null) {
+                callback.onEarthquake(earthquake);
             }
         }
-        return jsonResponse;
+        reader.endArray();
+    }
+
+    /**
+     * Read a single GeoJSON feature, returning null if it has no "properties" object.
+     */
+    private static Earthquake readFeature(JsonReader reader) throws IOException {
+        String id = null;
+        Earthquake earthquake = null;
+        double[] coordinates = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("id".equals(name) && reader.peek() == JsonToken.STRING) {
+                id = reader.nextString();
+            } else if ("properties".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                earthquake = readProperties(reader);
+            } else if ("geometry".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                coordinates = readGeometry(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        // The event id and geometry may come before or after the properties, so attach them at the end
+        if (earthquake != null) {
+            earthquake.setId(id);
+            if (coordinates != null) {
+                earthquake.setCoordinates(coordinates[0], coordinates[1]);
+            }
+        }
+        return earthquake;
+    }
+
+    /**
+     * Read the "geometry" object of a feature, returning {longitude, latitude} of its Point,
+     * or null if it has none. The depth (third coordinate) is skipped.
+     */
+    private static double[] readGeometry(JsonReader reader) throws IOException {
+        double[] coordinates = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("coordinates".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    double longitude = reader.nextDouble();
+                    if (reader.hasNext()) {
+                        coordinates = new double[]{longitude, reader.nextDouble()};
+                    }
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return coordinates;
+    }
+
+    /**
+     * Read the "properties" object of a feature, keeping only mag, place, time, url and whether
+     * the event was deleted.
+     */
+    private static Earthquake readProperties(JsonReader reader) throws IOException {
+        double mag = 0;
+        String place = "";
+        long time = 0;
+        String url = null;
+        boolean deleted = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            // USGS sends null for values it does not know yet, so keep the defaults in that case
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "mag":
+                    mag = reader.nextDouble();
+                    break;
+                case "place":
+                    place = reader.nextString();
+                    break;
+                case "time":
+                    time = reader.nextLong();
+                    break;
+                case "url":
+                    url = reader.nextString();
+                    break;
+                case "status":
+                    deleted = "deleted".equals(reader.nextString());
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        Earthquake earthquake = new Earthquake(mag, place, time, url);
+        earthquake.setDeleted(deleted);
+        return earthquake;
     }
 
     /**
      * Convert the {@link InputStream} into a String which contains the
      * whole JSON response from the server.
+     * No longer used by fetchEarthquakeData(); kept together with extractFeatureFromJson() as the
+     * reference whole-document path to compare the streaming parser against.
      */
-    private static String readFromStream(InputStream inputStream/*bcoz our data is just text*/) throws IOException {
-        StringBuilder output = new StringBuilder(); //setup StringBuilder.
-        //inputStream wrapped into InputStreamReader wrapped into BufferedReader
-        if (inputStream != null) {
-            //handle translation form raw data to Human readable characters
-            InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charset.forName("UTF-8"));
-            //wrap inputStreamReader into BufferedReader because InputStreamReader only allows to read a single character at a time
-            BufferedReader reader = new BufferedReader(inputStreamReader);
-            String line = reader.readLine();
-            while (line != null) {
-                output.append(line);
-                line = reader.readLine();
+    static String readFromStream(InputStream inputStream/*bcoz our data is just text*/) throws IOException {
+        return readFromStream(inputStream, -1);
+    }
+
+    /**
+     * Like {@link #readFromStream(InputStream)}, but reads raw bytes through the thread's reusable
+     * buffer instead of line by line, and decodes them once at the end.
+     *
+     * @param expectedLength the Content-Length of the response if known, or -1; used to size the
+     *                       result up front so it never has to be copied while growing
+     */
+    static String readFromStream(InputStream inputStream, int expectedLength) throws IOException {
+        if (inputStream == null) {
+            return "";
+        }
+        byte[] output = new byte[expectedLength > 0 ? expectedLength : BUFFER_SIZE];
+        int length = 0;
+        byte[] buffer = sReadBuffer.get();
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            if (length + read > output.length) {
+                output = Arrays.copyOf(output, Math.max(length + read, output.length * 2));
             }
+            System.arraycopy(buffer, 0, output, length, read);
+            length += read;
         }
-        return output.toString(); //return final output string
+        return new String(output, 0, length, Charset.forName("UTF-8")); //return final output string
     }
 
     /**
      * Return an {@link Earthquake} object by parsing out information
      * about the first earthquake from the input earthquakeJSON string.
      */
-    private static ArrayList<Earthquake> extractFeatureFromJson(String earthquakeJSON) {
+    static ArrayList<Earthquake> extractFeatureFromJson(String earthquakeJSON) {
         // If the JSON string is empty or null, then return early.
         if (TextUtils.isEmpty(earthquakeJSON)) {
             return null;
@@ -199,6 +1086,14 @@ public final class QueryUtils {
                  * and url from the JSON response.
                  */
                 Earthquake eq = new Earthquake(mag, place, time, url);
+                // Extract the USGS event id, which identifies the earthquake across queries
+                eq.setId(currentEarthquake.optString("id", null));
+                // Extract the epicenter, "coordinates" is [longitude, latitude, depth]
+                JSONObject geometry = currentEarthquake.optJSONObject("geometry");
+                JSONArray coordinates = geometry == null ? null : geometry.optJSONArray("coordinates");
+                if (coordinates != null && coordinates.length() >= 2) {
+                    eq.setCoordinates(coordinates.getDouble(0), coordinates.getDouble(1));
+                }
                 earthquakes.add(eq);
             }
         } catch (JSONException e) {
@@ -0,0 +1,201 @@
+package com.example.android.quakereport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Measurements of a single request made by {@link QueryUtils}: how many bytes came over the wire,
+ * how many after decompression, and how the time was split between resolving the host, connecting,
+ * waiting for the first byte, downloading, decompressing and parsing.
+ * <p>
+ * {@link #record()} adds the request to the process-wide {@link Metrics}.
+ */
+public final class RequestMetrics {
+
+    private static final Metrics.Counter REQUESTS = Metrics.counter("fetch.requests");
+    private static final Metrics.Counter NOT_MODIFIED = Metrics.counter("fetch.not_modified");
+    private static final Metrics.Counter BYTES_ON_WIRE = Metrics.counter("fetch.bytes.wire");
+    private static final Metrics.Counter BYTES_DECODED = Metrics.counter("fetch.bytes.decoded");
+    private static final Metrics.Histogram DNS = Metrics.histogram("fetch.dns.nanos");
+    private static final Metrics.Histogram CONNECT = Metrics.histogram("fetch.connect.nanos");
+    private static final Metrics.Histogram TTFB = Metrics.histogram("fetch.ttfb.nanos");
+    private static final Metrics.Histogram DOWNLOAD = Metrics.histogram("fetch.download.nanos");
+    private static final Metrics.Histogram DECOMPRESS = Metrics.histogram("fetch.decompress.nanos");
+    private static final Metrics.Histogram PARSE = Metrics.histogram("fetch.parse.nanos");
+
+    private long mDnsNanos;
+    private long mConnectNanos;
+    private long mTtfbNanos;
+    private long mBytesOnWire;
+    private long mBytesDecoded;
+    private long mNetworkNanos;
+    private long mDecompressNanos;
+    private long mParseNanos;
+    private boolean mGzip;
+    private boolean mHasBody;
+
+    /**
+     * Record the time spent resolving the host name.
+     */
+    void setDnsNanos(long dnsNanos) {
+        mDnsNanos = dnsNanos;
+    }
+
+    /**
+     * Record the time spent establishing the connection (nothing if a pooled one was reused).
+     */
+    void setConnectNanos(long connectNanos) {
+        mConnectNanos = connectNanos;
+    }
+
+    /**
+     * Record the time from sending the request to receiving the response headers.
+     */
+    void setTtfbNanos(long ttfbNanos) {
+        mTtfbNanos = ttfbNanos;
+    }
+
+    /**
+     * Record a fully read response body.
+     *
+     * @param wire       the stream as received from the connection
+     * @param decoded    the decompressed stream, or null if the body was not compressed
+     * @param totalNanos time spent consuming the body, including reading and decompressing it
+     */
+    void setBody(MeteredInputStream wire, MeteredInputStream decoded, long totalNanos) {
+        mHasBody = true;
+        mBytesOnWire = wire.getBytes();
+        mNetworkNanos = wire.getNanos();
+        mGzip = decoded != null;
+        if (decoded != null) {
+            mBytesDecoded = decoded.getBytes();
+            // Reading the decompressed stream includes reading the wire underneath it
+            mDecompressNanos = Math.max(0, decoded.getNanos() - wire.getNanos());
+            mParseNanos = Math.max(0, totalNanos - decoded.getNanos());
+        } else {
+            mBytesDecoded = mBytesOnWire;
+            mParseNanos = Math.max(0, totalNanos - wire.getNanos());
+        }
+    }
+
+    public long getDnsMillis() {
+        return mDnsNanos / 1000000;
+    }
+
+    public long getConnectMillis() {
+        return mConnectNanos / 1000000;
+    }
+
+    public long getTtfbMillis() {
+        return mTtfbNanos / 1000000;
+    }
+
+    public long getBytesOnWire() {
+        return mBytesOnWire;
+    }
+
+    public long getBytesDecoded() {
+        return mBytesDecoded;
+    }
+
+    public long getNetworkMillis() {
+        return mNetworkNanos / 1000000;
+    }
+
+    public long getDecompressMillis() {
+        return mDecompressNanos / 1000000;
+    }
+
+    public long getParseMillis() {
+        return mParseNanos / 1000000;
+    }
+
+    public boolean isGzip() {
+        return mGzip;
+    }
+
+    /**
+     * Add this request to the process-wide metrics. A request without a body (304 Not Modified)
+     * only counts towards the connection timings.
+     */
+    void record() {
+        REQUESTS.increment();
+        DNS.record(mDnsNanos);
+        CONNECT.record(mConnectNanos);
+        TTFB.record(mTtfbNanos);
+        if (!mHasBody) {
+            NOT_MODIFIED.increment();
+            return;
+        }
+        BYTES_ON_WIRE.add(mBytesOnWire);
+        BYTES_DECODED.add(mBytesDecoded);
+        DOWNLOAD.record(mNetworkNanos);
+        if (mGzip) {
+            DECOMPRESS.record(mDecompressNanos);
+        }
+        PARSE.record(mParseNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "dns=" + getDnsMillis() + "ms"
+                + " connect=" + getConnectMillis() + "ms"
+                + " ttfb=" + getTtfbMillis() + "ms"
+                + " wire=" + mBytesOnWire + "B" + (mGzip ? " (gzip, " + mBytesDecoded + "B decoded)" : "")
+                + " network=" + getNetworkMillis() + "ms"
+                + " decompress=" + getDecompressMillis() + "ms"
+                + " parse=" + getParseMillis() + "ms";
+    }
+
+    /**
+     * Counts the bytes read through it and the time spent in its read calls.
+     */
+    static final class MeteredInputStream extends FilterInputStream {
+        private long mBytes;
+        private long mNanos;
+
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            mNanos += System.nanoTime() - start;
+            if (b >= 0) {
+                mBytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long start = System.nanoTime();
+            int read = super.read(buffer, offset, count);
+            mNanos += System.nanoTime() - start;
+            if (read > 0) {
+                mBytes += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long start = System.nanoTime();
+            long skipped = super.skip(count);
+            mNanos += System.nanoTime() - start;
+            mBytes += skipped;
+            return skipped;
+        }
+
+        long getBytes() {
+            return mBytes;
+        }
+
+        long getNanos() {
+            return mNanos;
+        }
+    }
+}
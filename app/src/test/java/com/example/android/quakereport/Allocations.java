@@ -0,0 +1,43 @@
+package com.example.android.quakereport;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counts the bytes allocated by the current thread, the JVM counterpart of the
+ * Debug.startAllocCounting() measurements of HotPathBenchmark.
+ */
+final class Allocations {
+
+    private Allocations() {
+    }
+
+    /**
+     * Returns the bytes allocated so far by the current thread, or -1 if the JVM cannot tell.
+     */
+    static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean counters = (com.sun.management.ThreadMXBean) threads;
+        return counters.isThreadAllocatedMemorySupported()
+                ? counters.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    /**
+     * Returns the bytes allocated by the operation, once it has run enough times to be compiled,
+     * or -1 if the JVM cannot tell.
+     */
+    static long measure(Runnable operation) {
+        for (int i = 0; i < 2000; i++) {
+            operation.run();
+        }
+        // Reading the counter allocates too: take what one read costs out of the result
+        long before = getAllocatedBytes();
+        long start = getAllocatedBytes();
+        operation.run();
+        long end = getAllocatedBytes();
+        return start < 0 ? -1 : end - start - (start - before);
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.android.quakereport;
+
+import android.view.View;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that {@link EarthquakeAdapter} binds a recycled row to the earthquake of its new
+ * position, as the list does for every row scrolled into view. What binding allocates is measured
+ * on a device by HotPathBenchmark: under Robolectric, TextView.setText allocates in the shadows.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EarthquakeAdapterTest {
+
+    private static final long START = 1500000000000L;
+
+    private EarthquakeStore mPage;
+    private EarthquakeAdapter mAdapter;
+    private ListView mListView;
+
+    @Before
+    public void setUp() {
+        mPage = new EarthquakeStore();
+        mPage.addAll(FakeEarthquakeSource.randomEarthquakes(new Random(6), EarthquakePager.PAGE_SIZE - 1,
+                START, START + 86400000L));
+        mPage.add(4.5, "74km NW of Rumoi, Japan", START, null, "us1", 141, 44);
+        EarthquakePager pager = new EarthquakePager();
+        pager.setFirstPage(mPage.asList(), true);
+        mAdapter = new EarthquakeAdapter(RuntimeEnvironment.application, pager);
+        mListView = new ListView(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void recycledRowShowsItsNewEarthquake() {
+        View row = mAdapter.getView(0, null, mListView);
+        int last = mPage.size() - 1;
+        assertSame(row, mAdapter.getView(last, row, mListView));
+
+        assertEquals(mAdapter.formatMag(4.5), getText(row, R.id.magnitude));
+        assertEquals("74km NW of ", getText(row, R.id.location_offset));
+        assertEquals("Rumoi, Japan", getText(row, R.id.primary_location));
+        assertEquals(mAdapter.formatDate(new Date(START)), getText(row, R.id.date));
+        assertEquals(mAdapter.formatTime(new Date(START)), getText(row, R.id.time));
+    }
+
+    @Test
+    public void recycledRowsAreNotInflatedAgain() {
+        Metrics.Counter inflates = Metrics.counter("adapter.inflates");
+        View row = mAdapter.getView(0, null, mListView);
+        long inflated = inflates.get();
+        for (int position = 1; position < mPage.size(); position++) {
+            assertSame(row, mAdapter.getView(position, row, mListView));
+            assertEquals(mAdapter.formatMag(mPage.getMag(position)), getText(row, R.id.magnitude));
+        }
+        assertEquals(inflated, inflates.get());
+    }
+
+    private static String getText(View row, int id) {
+        return ((TextView) row.findViewById(id)).getText().toString();
+    }
+}
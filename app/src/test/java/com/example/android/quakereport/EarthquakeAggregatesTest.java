@@ -0,0 +1,188 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link EarthquakeAggregates} against the same summary recomputed from every event.
+ */
+public class EarthquakeAggregatesTest {
+
+    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("America/Los_Angeles");
+    private static final long START = 1500000000000L;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final String[] LOCATIONS = {
+            "Rumoi, Japan", "Tokyo, Japan", "Alaska", "CA", "Pacific-Antarctic Ridge", "Anza, CA", null};
+
+    @Test
+    public void negativeMagnitudesHaveTheirOwnBand() {
+        EarthquakeAggregates aggregates = new EarthquakeAggregates(TIME_ZONE);
+        aggregates.put(newEarthquake("a", -0.3, START, "Anza, CA"));
+        aggregates.put(newEarthquake("b", -1.2, START, "Anza, CA"));
+        aggregates.put(newEarthquake("c", 0.4, START, "Anza, CA"));
+        aggregates.put(newEarthquake("d", 10.1, START, "Anza, CA"));
+
+        assertEquals(2, aggregates.getBandCount(0));
+        assertEquals(1, aggregates.getBandCount(1));
+        assertEquals(1, aggregates.getBandCount(10));
+        assertEquals(0, aggregates.getBandCount(-1));
+        assertEquals(0, aggregates.getBandCount(11));
+
+        aggregates.remove("b");
+        assertEquals(1, aggregates.getBandCount(0));
+    }
+
+    @Test
+    public void putAndRemoveMatchBruteForce() {
+        Random random = new Random(23);
+        EarthquakeAggregates aggregates = new EarthquakeAggregates(TIME_ZONE);
+        HashMap<String, Earthquake> expected = new HashMap<>();
+        for (int step = 0; step < 50000; step++) {
+            String id = "id" + random.nextInt(2000);
+            if (random.nextInt(5) == 0) {
+                aggregates.remove(id);
+                expected.remove(id);
+                continue;
+            }
+            Earthquake earthquake = randomEarthquake(random, id);
+            aggregates.put(earthquake);
+            expected.put(id, earthquake);
+            if (step % 10000 == 0) {
+                checkAggregates(aggregates, expected);
+            }
+        }
+        checkAggregates(aggregates, expected);
+
+        aggregates.clear();
+        expected.clear();
+        checkAggregates(aggregates, expected);
+    }
+
+    @Test
+    public void replaceAndRemoveAllFollowTheStores() {
+        Random random = new Random(24);
+        EarthquakeAggregates aggregates = new EarthquakeAggregates(TIME_ZONE);
+        EarthquakeStore first = new EarthquakeStore();
+        EarthquakeStore second = new EarthquakeStore();
+        for (int i = 0; i < 500; i++) {
+            first.add(randomEarthquake(random, "first" + i));
+            second.add(randomEarthquake(random, "second" + i));
+        }
+        aggregates.putAll(first);
+        aggregates.putAll(second);
+
+        EarthquakeStore replacement = new EarthquakeStore();
+        for (int i = 0; i < 500; i += 2) {
+            replacement.add(i % 4 == 0 ? first.asList().get(i) : randomEarthquake(random, "first" + i));
+        }
+        aggregates.replace(first, replacement);
+        HashMap<String, Earthquake> expected = new HashMap<>();
+        for (Earthquake earthquake : replacement.asList()) {
+            expected.put(earthquake.getId(), earthquake);
+        }
+        for (Earthquake earthquake : second.asList()) {
+            expected.put(earthquake.getId(), earthquake);
+        }
+        checkAggregates(aggregates, expected);
+
+        aggregates.removeAll(second);
+        for (Earthquake earthquake : second.asList()) {
+            expected.remove(earthquake.getId());
+        }
+        checkAggregates(aggregates, expected);
+    }
+
+    private static void checkAggregates(EarthquakeAggregates aggregates, Map<String, Earthquake> expected) {
+        assertEquals(expected.size(), aggregates.getCount());
+
+        int[] bands = new int[11];
+        HashMap<String, Double> maxMagnitudes = new HashMap<>();
+        for (Earthquake earthquake : expected.values()) {
+            bands[EarthquakeFormatter.getMagnitudeBand(earthquake.getMag())]++;
+            String location = earthquake.getPrimaryLocation();
+            if (location != null && !location.isEmpty()) {
+                int comma = location.lastIndexOf(',');
+                String region = comma < 0 ? location : location.substring(comma + 1).trim();
+                double mag = Math.round(earthquake.getMag() * 10) / 10.0;
+                Double max = maxMagnitudes.get(region);
+                if (max == null || mag > max) {
+                    maxMagnitudes.put(region, mag);
+                }
+            }
+        }
+        for (int band = 0; band < bands.length; band++) {
+            assertEquals("band " + band, bands[band], aggregates.getBandCount(band));
+        }
+        for (Map.Entry<String, Double> entry : maxMagnitudes.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue(), aggregates.getMaxMagnitude(entry.getKey()), 1e-9);
+        }
+        assertEquals(maxMagnitudes.keySet(), new HashSet<>(aggregates.getRegionsByMaxMagnitude()));
+
+        Calendar at = newCalendar();
+        Calendar event = newCalendar();
+        for (int k = 0; k < 30; k++) {
+            long time = START + k * 2 * DAY_MILLIS + k * 60 * 60 * 1000L;
+            at.setTimeInMillis(time);
+            int hour = 0;
+            int day = 0;
+            int week = 0;
+            for (Earthquake earthquake : expected.values()) {
+                event.setTimeInMillis(earthquake.getTimeInMillSeconds());
+                boolean sameDay = event.get(Calendar.YEAR) == at.get(Calendar.YEAR)
+                        && event.get(Calendar.DAY_OF_YEAR) == at.get(Calendar.DAY_OF_YEAR);
+                if (sameDay) {
+                    day++;
+                    if (event.get(Calendar.HOUR_OF_DAY) == at.get(Calendar.HOUR_OF_DAY)) {
+                        hour++;
+                    }
+                }
+                if (getMonday(event) == getMonday(at)) {
+                    week++;
+                }
+            }
+            assertEquals(hour, aggregates.getEventCount(EarthquakeAggregates.Period.HOUR, time));
+            assertEquals(day, aggregates.getEventCount(EarthquakeAggregates.Period.DAY, time));
+            assertEquals(week, aggregates.getEventCount(EarthquakeAggregates.Period.WEEK, time));
+            assertEquals(day, aggregates.getEventCounts(EarthquakeAggregates.Period.DAY, time, 3)[2]);
+        }
+    }
+
+    private static Calendar newCalendar() {
+        Calendar calendar = Calendar.getInstance(TIME_ZONE);
+        calendar.setFirstDayOfWeek(Calendar.MONDAY);
+        return calendar;
+    }
+
+    /**
+     * Returns a key for the Monday starting the week of the given date.
+     */
+    private static long getMonday(Calendar date) {
+        Calendar monday = (Calendar) date.clone();
+        monday.add(Calendar.DAY_OF_MONTH, -((monday.get(Calendar.DAY_OF_WEEK) + 5) % 7));
+        return monday.get(Calendar.YEAR) * 1000L + monday.get(Calendar.DAY_OF_YEAR);
+    }
+
+    private static Earthquake randomEarthquake(Random random, String id) {
+        double mag = random.nextInt(10) == 0
+                ? -1.5 + random.nextInt(3)
+                : Math.round((random.nextDouble() * 11 - 0.5) * 100) / 100.0;
+        long time = START + (long) (random.nextDouble() * 70 * DAY_MILLIS);
+        String location = LOCATIONS[random.nextInt(LOCATIONS.length)];
+        String place = location == null || random.nextBoolean() ? location : "12km N of " + location;
+        return newEarthquake(id, mag, time, place);
+    }
+
+    private static Earthquake newEarthquake(String id, double mag, long time, String place) {
+        Earthquake earthquake = new Earthquake(mag, place, time, "https://earthquake.usgs.gov/" + id);
+        earthquake.setId(id);
+        return earthquake;
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.android.quakereport;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link EarthquakeDataset} imports back exactly the rows it exported, in both
+ * formats and however the file is cut into chunks, and reads USGS catalogues.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EarthquakeDatasetTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long START = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void csvImportsBackEveryColumn() throws IOException {
+        checkRoundTrip(FakeEarthquakeSource.randomStore(new Random(21), 2000, START), "events.csv", 1);
+    }
+
+    @Test
+    public void geoJsonImportsBackEveryColumn() throws IOException {
+        checkRoundTrip(FakeEarthquakeSource.randomStore(new Random(22), 2000, START), "events.geojson", 1);
+    }
+
+    @Test
+    public void chunksOfACsvFileKeepEveryRowOnce() throws IOException {
+        File file = checkRoundTrip(FakeEarthquakeSource.randomStore(new Random(23), 100000, START), "events.csv", 4);
+        // Large enough to be cut into a chunk per thread and more
+        assertTrue(file.length() > 4 * EarthquakeDataset.CHUNKS_PER_THREAD * EarthquakeDataset.MIN_CHUNK_BYTES);
+    }
+
+    @Test
+    public void chunksOfAGeoJsonFileKeepEveryRowOnce() throws IOException {
+        File file = checkRoundTrip(FakeEarthquakeSource.randomStore(new Random(24), 40000, START), "events.geojson", 4);
+        assertTrue(file.length() > 4 * EarthquakeDataset.CHUNKS_PER_THREAD * EarthquakeDataset.MIN_CHUNK_BYTES);
+    }
+
+    @Test
+    public void usgsCatalogueIsImported() throws IOException {
+        File file = mFolder.newFile("catalogue.csv");
+        write(file, "\uFEFFtime,latitude,longitude,depth,mag,magType,nst,gap,dmin,rms,net,id,updated,place,"
+                + "type,horizontalError,depthError,magError,magNst,status,locationSource,magSource\r\n"
+                + "2017-03-06T08:13:42.560Z,33.6418333,-116.7428333,12.09,1.52,ml,50,50,0.04582,0.22,ci,"
+                + "ci37586280,2017-03-06T08:17:28.040Z,\"10km SSW of Idyllwild, CA\",earthquake,0.3,0.61,"
+                + "0.22,24,automatic,ci,ci\r\n"
+                + "2017-03-06T07:59:01Z,61.2,-150.1,40,3.1,ml,,,,0.5,ak,ak15366170,2017-03-06T08:10:00.000Z,"
+                + "\"Southern Alaska\",earthquake,,,,,deleted,ak,ak\r\n"
+                + "2017-03-06T07:58:00.1Z,,,10,-0.4,md,,,,,nc,nc72774396,2017-03-06T08:00:00.000Z,"
+                + "\"The \"\"Geysers\"\", CA\",earthquake,,,,,reviewed,nc,nc\r\n"
+                + "\r\n");
+
+        EarthquakeStore store = EarthquakeDataset.importFile(file, EarthquakeDataset.Format.CSV, 2);
+        // The deleted event is skipped
+        assertEquals(2, store.size());
+
+        assertEquals(1488788022560L, store.getTimeInMillSeconds(0));
+        assertEquals(33.6418333, store.getLatitude(0), 0);
+        assertEquals(-116.7428333, store.getLongitude(0), 0);
+        assertEquals(1.52, store.getMag(0), 0);
+        assertEquals("ci37586280", store.getId(0));
+        assertEquals("10km SSW of Idyllwild, CA", store.getName(0));
+        assertEquals("10km SSW of ", store.getLocationOffset(0));
+        assertEquals("Idyllwild, CA", store.getPrimaryLocation(0));
+        // There is no url column, the event page of the id is the URL
+        assertEquals("https://earthquake.usgs.gov/earthquakes/eventpage/ci37586280", store.getUrl(0));
+
+        assertEquals(1488787080100L, store.getTimeInMillSeconds(1));
+        assertTrue(Double.isNaN(store.getLatitude(1)));
+        assertTrue(Double.isNaN(store.getLongitude(1)));
+        assertEquals(-0.4, store.getMag(1), 0);
+        assertEquals("The \"Geysers\", CA", store.getName(1));
+    }
+
+    @Test
+    public void importedRowsWithoutAnIdHaveNoEventPage() throws IOException {
+        File file = mFolder.newFile("catalogue.csv");
+        write(file, "time,latitude,longitude,depth,mag,magType,nst,gap,dmin,rms,net,id,updated,place\n"
+                + "2017-03-06T08:13:42.560Z,33.6,-116.7,12.09,1.52,ml,,,,,ci,ci37586280,,Idyllwild\n"
+                + "2017-03-06T08:10:00Z,61.2,-150.1,40,3.1,ml,,,,,ak,,,Southern Alaska\n");
+
+        EarthquakeStore store = EarthquakeDataset.importFile(file, EarthquakeDataset.Format.CSV, 1);
+        assertEquals(2, store.size());
+        assertEquals("https://earthquake.usgs.gov/earthquakes/eventpage/ci37586280",
+                EarthquakeActivity.getEventPageIntent(store.asList().get(0)).getDataString());
+        // Clicking the row must not crash on the missing URL
+        assertNull(store.getUrl(1));
+        assertNull(EarthquakeActivity.getEventPageIntent(store.asList().get(1)));
+    }
+
+    @Test
+    public void quotedCommasStayInTheirField() throws IOException {
+        EarthquakeStore store = new EarthquakeStore();
+        store.add(4.5, "5km S of Town of Pines, IN", START, "https://example.com/a,b", "us1", 1, 2);
+        store.add(5.5, "\"Quoted\", with \"\"doubled\"\" quotes", START + 1, null, null, 3, 4);
+        store.add(6.5, ",,,", START + 2, null, "us,3", Double.NaN, Double.NaN);
+        File file = checkRoundTrip(store, "commas.csv", 1);
+
+        EarthquakeStore imported = EarthquakeDataset.importFile(file, EarthquakeDataset.Format.CSV, 1);
+        assertEquals("https://example.com/a,b", imported.getUrl(0));
+        assertNull(imported.getId(1));
+        assertEquals("us,3", imported.getId(2));
+    }
+
+    /**
+     * Export the store to a file of the given name, import it back on the given number of
+     * threads, and check that every column came back.
+     *
+     * @return the exported file
+     */
+    private File checkRoundTrip(EarthquakeStore store, String fileName, int parallelism) throws IOException {
+        File file = new File(mFolder.getRoot(), fileName);
+        assertEquals(store.size(), EarthquakeDataset.exportFile(store.asList(), file));
+        EarthquakeStore imported = EarthquakeDataset.importFile(file, EarthquakeDataset.Format.of(file), parallelism);
+
+        assertEquals(store.size(), imported.size());
+        for (int i = 0; i < store.size(); i++) {
+            String row = fileName + " row " + i;
+            assertEquals(row, store.getMag(i), imported.getMag(i), 0);
+            assertEquals(row, store.getTimeInMillSeconds(i), imported.getTimeInMillSeconds(i));
+            assertEquals(row, store.getLongitude(i), imported.getLongitude(i), 0);
+            assertEquals(row, store.getLatitude(i), imported.getLatitude(i), 0);
+            assertEquals(row, store.getName(i), imported.getName(i));
+            assertEquals(row, store.getLocationOffset(i), imported.getLocationOffset(i));
+            assertEquals(row, store.getPrimaryLocation(i), imported.getPrimaryLocation(i));
+            assertEquals(row, store.getUrl(i), imported.getUrl(i));
+            assertEquals(row, store.getId(i), imported.getId(i));
+        }
+        return file;
+    }
+
+    private static void write(File file, String text) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+}
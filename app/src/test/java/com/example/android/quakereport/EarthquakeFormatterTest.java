@@ -0,0 +1,117 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that {@link EarthquakeFormatter} prints what the SimpleDateFormat and DecimalFormat it
+ * replaced printed, and that it does not allocate once set up.
+ */
+public class EarthquakeFormatterTest {
+
+    private Locale mDefaultLocale;
+    private TimeZone mDefaultTimeZone;
+
+    @Before
+    public void setUp() {
+        mDefaultLocale = Locale.getDefault();
+        mDefaultTimeZone = TimeZone.getDefault();
+        Locale.setDefault(Locale.US);
+        TimeZone.setDefault(TimeZone.getTimeZone("America/Los_Angeles"));
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(mDefaultLocale);
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    @Test
+    public void formatMagRoundsToOneDecimal() {
+        EarthquakeFormatter formatter = new EarthquakeFormatter();
+        char[] out = new char[EarthquakeFormatter.SHORT_BUFFER_SIZE];
+        assertEquals("0.0", format(formatter.formatMag(0, out), out));
+        assertEquals("3.2", format(formatter.formatMag(3.2, out), out));
+        assertEquals("7.0", format(formatter.formatMag(6.96, out), out));
+        assertEquals("10.1", format(formatter.formatMag(10.14, out), out));
+        assertEquals("-0.4", format(formatter.formatMag(-0.38, out), out));
+        assertEquals("-1.2", format(formatter.formatMag(-1.21, out), out));
+
+        Random random = new Random(6);
+        for (int i = 0; i < 10000; i++) {
+            // Away from ties, where String.format rounds half-even, and from "-0.0"
+            double mag = random.nextInt(1200) / 100.0 - 2 + 0.003;
+            if (Math.round(mag * 10) == 0) {
+                continue;
+            }
+            assertEquals(String.format(Locale.US, "%.1f", mag), format(formatter.formatMag(mag, out), out));
+        }
+    }
+
+    @Test
+    public void formatDateAndTimeMatchSimpleDateFormat() {
+        EarthquakeFormatter formatter = new EarthquakeFormatter();
+        SimpleDateFormat date = new SimpleDateFormat(" MMM d, yyyy");
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm");
+        char[] dateOut = new char[formatter.getDateBufferSize()];
+        char[] timeOut = new char[EarthquakeFormatter.SHORT_BUFFER_SIZE];
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            long millis = 1000000000000L + (long) (random.nextDouble() * 1000000000000L);
+            assertEquals(date.format(new Date(millis)), format(formatter.formatDate(millis, dateOut), dateOut));
+            assertEquals(time.format(new Date(millis)), format(formatter.formatTime(millis, timeOut), timeOut));
+        }
+        assertEquals(" Mar 3, 1984", format(formatter.formatDate(447206400000L, dateOut), dateOut));
+    }
+
+    @Test
+    public void getMagnitudeBand() {
+        assertEquals(0, EarthquakeFormatter.getMagnitudeBand(-0.1));
+        assertEquals(0, EarthquakeFormatter.getMagnitudeBand(-2.5));
+        assertEquals(1, EarthquakeFormatter.getMagnitudeBand(0));
+        assertEquals(1, EarthquakeFormatter.getMagnitudeBand(1.99));
+        assertEquals(2, EarthquakeFormatter.getMagnitudeBand(2));
+        assertEquals(9, EarthquakeFormatter.getMagnitudeBand(9.99));
+        assertEquals(10, EarthquakeFormatter.getMagnitudeBand(10));
+        assertEquals(10, EarthquakeFormatter.getMagnitudeBand(12.3));
+    }
+
+    @Test
+    public void formattingDoesNotAllocate() {
+        final EarthquakeFormatter formatter = new EarthquakeFormatter();
+        final char[] magOut = new char[EarthquakeFormatter.SHORT_BUFFER_SIZE];
+        final char[] dateOut = new char[formatter.getDateBufferSize()];
+        final char[] timeOut = new char[EarthquakeFormatter.SHORT_BUFFER_SIZE];
+        final long[] times = new long[1000];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = 1500000000000L + i * 3600000L * 7;
+        }
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < times.length; i++) {
+                    formatter.formatMag(i / 100.0, magOut);
+                    formatter.formatDate(times[i], dateOut);
+                    formatter.formatTime(times[i], timeOut);
+                    EarthquakeFormatter.getMagnitudeBand(i / 100.0);
+                }
+            }
+        });
+        assumeTrue("The JVM counts allocations", allocated >= 0);
+        assertEquals("bytes allocated formatting 1000 rows", 0, allocated);
+    }
+
+    private static String format(int length, char[] out) {
+        return new String(out, 0, length);
+    }
+}
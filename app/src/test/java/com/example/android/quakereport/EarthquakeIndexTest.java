@@ -0,0 +1,128 @@
+package com.example.android.quakereport;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link EarthquakeIndex} answers re-sorted and re-filtered queries exactly as the
+ * server would, and fetches only the missing magnitude band for a lower minimum magnitude.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EarthquakeIndexTest {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long START = 1500000000000L;
+    private static final long END = START + 30 * DAY_MILLIS;
+    private static final String[] ORDERS = {"time", "time-asc", "magnitude", "magnitude-asc"};
+
+    private FakeEarthquakeSource mServer;
+    private EarthquakeIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mServer = new FakeEarthquakeSource(FakeEarthquakeSource.randomEarthquakes(new Random(13), 5000, START, END));
+        mIndex = new EarthquakeIndex();
+    }
+
+    @Test
+    public void queriesMatchTheServer() {
+        String loaded = query("4.0", "time", 20000, 0);
+        mIndex.update(loaded, mServer.query(loaded));
+
+        for (String orderBy : ORDERS) {
+            for (String minMag : new String[]{"4.0", "4.5", "6", "7.9", "9"}) {
+                checkQuery(query(minMag, orderBy, 20000, 0));
+                checkQuery(query(minMag, orderBy, 100, 0));
+                checkQuery(query(minMag, orderBy, 100, 251));
+                checkQuery(query(minMag, orderBy, 0, 0));
+            }
+        }
+        // Nothing below what was loaded
+        assertNull(mIndex.query(query("3.9", "time", 100, 0)));
+        // Nor for another query
+        assertNull(mIndex.query(query("4.0", "time", 100, 0).replace("format=geojson", "format=geojson&eventtype=explosion")));
+        assertNull(mIndex.query(query("4.0", "depth", 100, 0)));
+    }
+
+    @Test
+    public void truncatedResultsAreNotIndexed() {
+        String loaded = query("4.0", "time", 100, 0);
+        mIndex.update(loaded, mServer.query(loaded));
+        assertNull(mIndex.query(query("4.0", "magnitude", 100, 0)));
+
+        String secondPage = query("4.0", "time", 20000, 101);
+        mIndex.update(secondPage, mServer.query(secondPage));
+        assertNull(mIndex.query(query("4.0", "magnitude", 100, 0)));
+    }
+
+    @Test
+    public void lowerMinimumFetchesOnlyTheMissingBand() {
+        String loaded = query("5.0", "time", 20000, 0);
+        mIndex.update(loaded, mServer.query(loaded));
+
+        String lower = query("2.5", "magnitude", 100, 0);
+        assertNull(mIndex.query(lower));
+        assertTrue(mIndex.extend(lower, mServer));
+        assertEquals(1, mServer.getRequestCount());
+        String delta = mServer.getRequests().get(0);
+        assertTrue(delta, delta.contains("minmag=2.5") && delta.contains("maxmagnitude=5.0"));
+
+        for (String orderBy : ORDERS) {
+            for (String minMag : new String[]{"2.5", "3", "5.0", "7"}) {
+                checkQuery(query(minMag, orderBy, 20000, 0));
+                checkQuery(query(minMag, orderBy, 50, 1001));
+            }
+        }
+        // Already covered, nothing to fetch
+        assertTrue(mIndex.extend(query("3", "time", 100, 0), mServer));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void failedDeltaLeavesTheIndexAsItWas() {
+        String loaded = query("5.0", "time", 20000, 0);
+        mIndex.update(loaded, mServer.query(loaded));
+        FakeEarthquakeSource failing = new FakeEarthquakeSource(mServer.query(loaded)) {
+            @Override
+            public QueryUtils.FetchResult fetch(String requestUrl, String eTag, String lastModified,
+                                                QueryUtils.EarthquakeCallback callback) {
+                return QueryUtils.FetchResult.httpError(503, 0);
+            }
+        };
+
+        assertFalse(mIndex.extend(query("2.5", "time", 100, 0), failing));
+        assertNull(mIndex.query(query("2.5", "time", 100, 0)));
+        checkQuery(query("5.0", "magnitude", 20000, 0));
+    }
+
+    private void checkQuery(String requestUrl) {
+        List<Earthquake> expected = mServer.query(requestUrl);
+        List<Earthquake> actual = mIndex.query(requestUrl);
+        assertNotNull(requestUrl, actual);
+        assertEquals(requestUrl, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(requestUrl + " at " + i, expected.get(i).getId(), actual.get(i).getId());
+        }
+    }
+
+    private static String query(String minMag, String orderBy, int limit, int offset) {
+        return "https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson"
+                + "&starttime=" + FakeEarthquakeSource.formatTime(START)
+                + "&endtime=" + FakeEarthquakeSource.formatTime(END)
+                + "&minmag=" + minMag + "&orderby=" + orderBy + "&limit=" + limit
+                + (offset > 0 ? "&offset=" + offset : "");
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link EarthquakeListDiff} against the row mapping recomputed by id. How long applying
+ * a 10k-row diff takes on the main thread is measured by HotPathBenchmark.
+ */
+public class EarthquakeListDiffTest {
+
+    private static final int ROWS = 10000;
+
+    @Test
+    public void identicalListsHaveNoChanges() {
+        EarthquakeStore rows = randomRows(new Random(15), ROWS);
+        EarthquakeStore copy = new EarthquakeStore();
+        copy.addAll(rows.asList());
+
+        EarthquakeListDiff diff = EarthquakeListDiff.compute(rows, copy);
+        assertTrue(diff.isEmpty());
+        assertFalse(diff.isStructural());
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(i, diff.getNewPosition(i));
+            assertEquals(i, diff.getOldPosition(i));
+        }
+    }
+
+    @Test
+    public void changedValuesAreNotStructural() {
+        EarthquakeStore oldRows = new EarthquakeStore();
+        oldRows.add(4.5, "Rumoi, Japan", 1000, "u1", "a", 141.6, 43.9);
+        oldRows.add(5.0, "Anza, CA", 2000, "u2", "b", -116.7, 33.6);
+        oldRows.add(6.1, "Alaska", 3000, "u3", "c", -150, 61);
+        EarthquakeStore newRows = new EarthquakeStore();
+        newRows.add(4.5, "Rumoi, Japan", 1000, "u1", "a", 141.6, 43.9);
+        newRows.add(5.2, "Anza, CA", 2000, "u2", "b", -116.7, 33.6);
+        newRows.add(6.1, "Central Alaska", 3000, "u3", "c", -150, 61);
+
+        EarthquakeListDiff diff = EarthquakeListDiff.compute(oldRows, newRows);
+        assertFalse(diff.isEmpty());
+        assertFalse(diff.isStructural());
+        assertArrayEquals(new int[]{1, 2}, diff.getChangedPositions());
+    }
+
+    @Test
+    public void insertsRemovalsAndMovesMatchIds() {
+        Random random = new Random(16);
+        for (int round = 0; round < 50; round++) {
+            EarthquakeStore oldRows = randomRows(random, 1 + random.nextInt(2000));
+            EarthquakeStore newRows = edit(random, oldRows);
+            checkDiff(oldRows, newRows, EarthquakeListDiff.compute(oldRows, newRows));
+        }
+    }
+
+    @Test
+    public void movingOneRowIsStructural() {
+        EarthquakeStore oldRows = randomRows(new Random(17), 100);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < oldRows.size(); i++) {
+            order.add(i);
+        }
+        order.add(0, order.remove(50));
+        EarthquakeStore newRows = new EarthquakeStore();
+        for (int position : order) {
+            newRows.add(oldRows, position);
+        }
+
+        EarthquakeListDiff diff = EarthquakeListDiff.compute(oldRows, newRows);
+        assertTrue(diff.isStructural());
+        assertEquals("0 inserted, 0 removed, 1 moved, 0 changed", diff.toString());
+        assertEquals(0, diff.getNewPosition(50));
+        assertEquals(50, diff.getOldPosition(0));
+    }
+
+    @Test
+    public void rowsWithoutIdsOnlyMatchTheSamePosition() {
+        EarthquakeStore oldRows = new EarthquakeStore();
+        oldRows.add(1.0, "A", 1, null, null, 0, 0);
+        oldRows.add(2.0, "B", 2, null, "b", 0, 0);
+        EarthquakeStore newRows = new EarthquakeStore();
+        newRows.add(2.0, "B", 2, null, "b", 0, 0);
+        newRows.add(1.0, "A", 1, null, null, 0, 0);
+
+        EarthquakeListDiff diff = EarthquakeListDiff.compute(oldRows, newRows);
+        assertEquals(-1, diff.getOldPosition(1));
+        assertEquals(-1, diff.getNewPosition(0));
+        assertEquals(0, diff.getNewPosition(1));
+        assertEquals("1 inserted, 1 removed, 0 moved, 0 changed", diff.toString());
+    }
+
+    private static void checkDiff(EarthquakeStore oldRows, EarthquakeStore newRows, EarthquakeListDiff diff) {
+        HashMap<String, Integer> oldPositions = new HashMap<>();
+        for (int i = 0; i < oldRows.size(); i++) {
+            oldPositions.put(oldRows.getId(i), i);
+        }
+        int matched = 0;
+        boolean inOrder = true;
+        int lastOld = -1;
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < newRows.size(); i++) {
+            Integer oldPosition = oldPositions.get(newRows.getId(i));
+            int expected = oldPosition == null ? -1 : oldPosition;
+            assertEquals(expected, diff.getOldPosition(i));
+            if (oldPosition != null) {
+                assertEquals(i, diff.getNewPosition(oldPosition));
+                matched++;
+                inOrder &= oldPosition > lastOld;
+                lastOld = oldPosition;
+                if (!EarthquakeListDiff.sameValues(oldRows, oldPosition, newRows, i)) {
+                    changed.add(i);
+                }
+            }
+        }
+        int[] changedPositions = new int[changed.size()];
+        for (int i = 0; i < changedPositions.length; i++) {
+            changedPositions[i] = changed.get(i);
+        }
+        assertArrayEquals(changedPositions, diff.getChangedPositions());
+        boolean structural = matched < newRows.size() || matched < oldRows.size() || !inOrder;
+        assertEquals(structural, diff.isStructural());
+        assertEquals(!structural && changed.isEmpty(), diff.isEmpty());
+        assertEquals(-1, diff.getNewPosition(-1));
+        assertEquals(-1, diff.getOldPosition(newRows.size()));
+    }
+
+    /**
+     * Returns the rows after a sync-like edit: some removed, some inserted, some changed, and
+     * sometimes a few moved.
+     */
+    private static EarthquakeStore edit(Random random, EarthquakeStore oldRows) {
+        List<Integer> kept = new ArrayList<>();
+        for (int i = 0; i < oldRows.size(); i++) {
+            if (random.nextInt(50) != 0) {
+                kept.add(i);
+            }
+        }
+        if (random.nextBoolean() && kept.size() > 10) {
+            for (int i = 0; i < 5; i++) {
+                Collections.swap(kept, random.nextInt(kept.size()), random.nextInt(kept.size()));
+            }
+        }
+        EarthquakeStore newRows = new EarthquakeStore();
+        int inserted = 0;
+        for (int position : kept) {
+            if (random.nextInt(40) == 0) {
+                newRows.add(random.nextInt(80) / 10.0, "New place", position, null, "new" + inserted++, 0, 0);
+            }
+            if (random.nextInt(30) == 0) {
+                newRows.add(oldRows.getMag(position) + 0.1, oldRows.getPrimaryLocation(position),
+                        oldRows.getTimeInMillSeconds(position), null, oldRows.getId(position),
+                        oldRows.getLongitude(position), oldRows.getLatitude(position));
+            } else {
+                newRows.add(oldRows, position);
+            }
+        }
+        return newRows;
+    }
+
+    private static EarthquakeStore randomRows(Random random, int count) {
+        EarthquakeStore rows = new EarthquakeStore();
+        for (int i = 0; i < count; i++) {
+            rows.add(random.nextInt(80) / 10.0, "Place " + random.nextInt(500), 1500000000000L - i * 60000L,
+                    "https://earthquake.usgs.gov/earthquakes/eventpage/id" + i, "id" + i,
+                    random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.android.quakereport;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the summary and the place search of {@link EarthquakePager} cover the complete result
+ * of the query, not only the pages in memory, and are updated in place by new first pages and syncs.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EarthquakePagerTest {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long START = 1500000000000L;
+    private static final String QUERY = "https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson"
+            + "&limit=" + EarthquakePager.PAGE_SIZE + "&minmag=0&orderby=time";
+    private static final int EVENTS = 1000;
+
+    private FakeEarthquakeSource mServer;
+    private EarthquakePager mPager;
+
+    @Before
+    public void setUp() {
+        // The pager answers from the process-wide index and recent results
+        EarthquakeIndex.getInstance().invalidate();
+        EarthquakeQueryManager.getInstance().invalidate();
+        mServer = new FakeEarthquakeSource(FakeEarthquakeSource.randomEarthquakes(new Random(17), EVENTS,
+                START, START + 30 * DAY_MILLIS));
+        mPager = new EarthquakePager();
+    }
+
+    @Test
+    public void searchCoversTheCompleteResult() {
+        mPager.setQuery(QUERY, mServer);
+        mPager.setFirstPage(mServer.query(QUERY), true);
+
+        Summaries summaries = loadSummaries();
+        assertEquals(EVENTS, summaries.count);
+        assertEquals(EVENTS, summaries.searchable);
+        assertEquals(1, mServer.getRequestCount());
+        // The complete result was fetched at once, and now answers the following pages
+        assertNotNull(EarthquakeIndex.getInstance().query(QUERY + "&offset=501"));
+
+        // Kept for the following requests
+        assertSame(summaries.searchIndex, loadSummaries().searchIndex);
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void completeResultLargerThanARequestIsFetchedWhole() {
+        int events = EarthquakePager.COMPLETE_RESULT_PAGE_SIZE + 500;
+        FakeEarthquakeSource server = new FakeEarthquakeSource(FakeEarthquakeSource.randomEarthquakes(
+                new Random(18), events, START, START + 30 * DAY_MILLIS));
+        mPager.setQuery(QUERY, server);
+        mPager.setFirstPage(server.query(QUERY), true);
+
+        Summaries summaries = loadSummaries();
+        assertEquals(events, summaries.count);
+        assertEquals(events, summaries.searchable);
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void pagesAreFetchedWhileTheCompleteResultIs() throws InterruptedException {
+        final CountDownLatch pageLoaded = new CountDownLatch(1);
+        FakeEarthquakeSource server = new FakeEarthquakeSource(FakeEarthquakeSource.randomEarthquakes(
+                new Random(19), EVENTS, START, START + 30 * DAY_MILLIS)) {
+            @Override
+            public QueryUtils.FetchResult fetch(String requestUrl, String eTag, String lastModified,
+                                                QueryUtils.EarthquakeCallback callback) {
+                if (requestUrl.contains("limit=" + EarthquakePager.COMPLETE_RESULT_PAGE_SIZE)) {
+                    try {
+                        // Answers only once the next page is on screen
+                        pageLoaded.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        return QueryUtils.FetchResult.CANCELED;
+                    }
+                }
+                return super.fetch(requestUrl, eTag, lastModified, callback);
+            }
+        };
+        mPager.setQuery(QUERY, server);
+        mPager.setFirstPage(server.query(QUERY), true);
+        final CountDownLatch summariesLoaded = new CountDownLatch(1);
+        mPager.loadSummaries(new EarthquakePager.OnSummariesLoadedListener() {
+            @Override
+            public void onSummariesLoaded(EarthquakeAggregates aggregates, PlaceSearchIndex searchIndex) {
+                summariesLoaded.countDown();
+            }
+        });
+
+        mPager.onVisibleRangeChanged(0, EarthquakePager.PAGE_SIZE - 1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mPager.getPageForPosition(EarthquakePager.PAGE_SIZE) == null) {
+            assertTrue("Next page waited for the complete result", System.currentTimeMillis() < deadline);
+            ShadowLooper.runUiThreadTasks();
+            Thread.yield();
+        }
+        pageLoaded.countDown();
+        assertTrue(summariesLoaded.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void newFirstPageUpdatesTheSummariesInPlace() {
+        mPager.setQuery(QUERY, mServer);
+        List<Earthquake> firstPage = mServer.query(QUERY);
+        mPager.setFirstPage(firstPage, true);
+        Summaries before = loadSummaries();
+        assertEquals(0, before.bandNineCount);
+
+        // A new event on top pushes the last one to the next page, and the second one is revised
+        List<Earthquake> newPage = new ArrayList<>(firstPage.subList(0, firstPage.size() - 1));
+        newPage.add(0, earthquake("new1", 5.5, "Newplace, Chile", START + 31 * DAY_MILLIS));
+        Earthquake revised = firstPage.get(1);
+        newPage.set(2, earthquake(revised.getId(), 9.1, revised.getName(), revised.getTimeInMillSeconds()));
+        mPager.setFirstPage(newPage, true);
+
+        Summaries after = loadSummaries();
+        assertSame(before.aggregates, after.aggregates);
+        assertSame(before.searchIndex, after.searchIndex);
+        // The event pushed out of the first page is still part of the result
+        assertEquals(EVENTS + 1, after.count);
+        assertEquals(EVENTS + 1, after.searchable);
+        assertEquals(1, after.bandNineCount);
+        assertEquals(1, after.newplaceMatches);
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void syncChangesBeyondTheFirstPageUpdateTheSummaries() {
+        mPager.setQuery(QUERY, mServer);
+        mPager.setFirstPage(mServer.query(QUERY), true);
+        loadSummaries();
+
+        // The oldest events are far beyond the first page
+        EarthquakeStore updated = new EarthquakeStore();
+        updated.add(earthquake("fake5", 9.3, "Newplace, Chile", START + DAY_MILLIS));
+        mPager.applySyncChanges(updated.asList(), Arrays.asList("fake6", "unknown"));
+
+        Summaries summaries = loadSummaries();
+        assertEquals(EVENTS - 1, summaries.count);
+        assertEquals(EVENTS - 1, summaries.searchable);
+        assertEquals(1, summaries.bandNineCount);
+        assertEquals(1, summaries.newplaceMatches);
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void pagesInMemoryAreSummarizedIfTheQueryCannotBeFetched() {
+        mPager.setQuery(QUERY, new EarthquakeSource() {
+            @Override
+            public QueryUtils.FetchResult fetch(String requestUrl, String eTag, String lastModified,
+                                                QueryUtils.EarthquakeCallback callback) {
+                return QueryUtils.FetchResult.FAILED;
+            }
+        });
+        List<Earthquake> firstPage = mServer.query(QUERY);
+        mPager.setFirstPage(firstPage, true);
+
+        Summaries summaries = loadSummaries();
+        assertEquals(firstPage.size(), summaries.count);
+        assertEquals(firstPage.size(), summaries.searchable);
+    }
+
+    private static Earthquake earthquake(String id, double mag, String place, long time) {
+        Earthquake earthquake = new Earthquake(mag, place, time, null);
+        earthquake.setId(id);
+        return earthquake;
+    }
+
+    /**
+     * What the listener read from the summaries, on the pager's thread
+     */
+    private static final class Summaries {
+        EarthquakeAggregates aggregates;
+        PlaceSearchIndex searchIndex;
+        int count;
+        int searchable;
+        int bandNineCount;
+        int newplaceMatches;
+    }
+
+    /**
+     * Load the summaries and wait until they are delivered.
+     */
+    private Summaries loadSummaries() {
+        final Summaries summaries = new Summaries();
+        final CountDownLatch loaded = new CountDownLatch(1);
+        mPager.loadSummaries(new EarthquakePager.OnSummariesLoadedListener() {
+            @Override
+            public void onSummariesLoaded(EarthquakeAggregates aggregates, PlaceSearchIndex searchIndex) {
+                summaries.aggregates = aggregates;
+                summaries.searchIndex = searchIndex;
+                summaries.count = aggregates.getCount();
+                summaries.searchable = searchIndex.size();
+                summaries.bandNineCount = aggregates.getBandCount(9);
+                summaries.newplaceMatches = searchIndex.search("newplace", 10).size();
+                loaded.countDown();
+            }
+        });
+        try {
+            assertTrue("Summaries not loaded", loaded.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        return summaries;
+    }
+}
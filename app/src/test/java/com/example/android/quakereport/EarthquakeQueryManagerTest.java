@@ -0,0 +1,212 @@
+package com.example.android.quakereport;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link EarthquakeQueryManager} answers concurrent identical queries with a single
+ * fetch, keeps the result for the following ones, and recovers from failed or canceled fetches.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EarthquakeQueryManagerTest {
+
+    private static final int CONCURRENT_REQUESTS = 8;
+    private static final long LATENCY_MILLIS = 300;
+    /**
+     * The same query, built in different ways
+     */
+    private static final String[] SAME_QUERY = {
+            "https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson&limit=100&minmag=4&orderby=time",
+            "https://earthquake.usgs.gov/fdsnws/event/1/query?orderby=time&minmag=4&format=geojson&limit=100",
+            "https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson&limit=100&minmagnitude=4&orderby=time",
+            "HTTPS://Earthquake.USGS.gov/fdsnws/event/1/query?limit=100&format=geojson&orderby=time&minmag=4",
+    };
+
+    private FakeEarthquakeSource mServer;
+    private EarthquakeQueryManager mQueries;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        long start = 1500000000000L;
+        mServer = new FakeEarthquakeSource(FakeEarthquakeSource.randomEarthquakes(new Random(17), 1000, start,
+                start + 30 * 24 * 60 * 60 * 1000L)) {
+            @Override
+            long getLatencyMillis(String requestUrl) {
+                return LATENCY_MILLIS;
+            }
+        };
+        mQueries = new EarthquakeQueryManager();
+        mExecutor = Executors.newFixedThreadPool(CONCURRENT_REQUESTS);
+    }
+
+    @Test
+    public void concurrentIdenticalQueriesShareOneFetch() throws Exception {
+        List<Future<List<Earthquake>>> results = loadConcurrently(CONCURRENT_REQUESTS);
+        List<Earthquake> first = results.get(0).get(5, TimeUnit.SECONDS);
+        assertEquals(100, first.size());
+        for (Future<List<Earthquake>> result : results) {
+            assertSame(first, result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, mServer.getRequestCount());
+
+        // Served from memory afterwards, however the query is spelled
+        for (String requestUrl : SAME_QUERY) {
+            assertSame(first, mQueries.getRecent(requestUrl));
+            assertSame(first, mQueries.load(requestUrl, fetch(requestUrl)));
+        }
+        assertEquals(1, mServer.getRequestCount());
+
+        mQueries.invalidate();
+        assertNull(mQueries.getRecent(SAME_QUERY[0]));
+    }
+
+    @Test
+    public void differentQueriesAreNotShared() throws Exception {
+        String other = SAME_QUERY[0].replace("minmag=4", "minmag=5");
+        Future<List<Earthquake>> first = load(SAME_QUERY[0]);
+        Future<List<Earthquake>> second = load(other);
+        assertEquals(mServer.query(SAME_QUERY[0]).get(99).getId(), first.get(5, TimeUnit.SECONDS).get(99).getId());
+        assertEquals(mServer.query(other).get(99).getId(), second.get(5, TimeUnit.SECONDS).get(99).getId());
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void failedFetchIsSharedButNotKept() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        Callable<List<Earthquake>> failing = new Callable<List<Earthquake>>() {
+            @Override
+            public List<Earthquake> call() throws Exception {
+                fetches.incrementAndGet();
+                Thread.sleep(LATENCY_MILLIS);
+                return null;
+            }
+        };
+        List<Future<List<Earthquake>>> results = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+            results.add(load(SAME_QUERY[i % SAME_QUERY.length], failing));
+        }
+        for (Future<List<Earthquake>> result : results) {
+            assertNull(result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, fetches.get());
+
+        assertEquals(100, mQueries.load(SAME_QUERY[0], fetch(SAME_QUERY[0])).size());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void waiterFetchesItselfWhenTheOwnerIsCanceled() throws Exception {
+        final FetchCancellation ownerCancellation = new FetchCancellation();
+        final CountDownLatch ownerStarted = new CountDownLatch(1);
+        Future<List<Earthquake>> owner = mExecutor.submit(new Callable<List<Earthquake>>() {
+            @Override
+            public List<Earthquake> call() {
+                FetchCancellation.setCurrent(ownerCancellation);
+                try {
+                    return mQueries.load(SAME_QUERY[0], new Callable<List<Earthquake>>() {
+                        @Override
+                        public List<Earthquake> call() throws Exception {
+                            ownerStarted.countDown();
+                            // A fetch noticing its cancellation gives up without a result
+                            while (!ownerCancellation.isCanceled()) {
+                                Thread.sleep(10);
+                            }
+                            return null;
+                        }
+                    });
+                } finally {
+                    FetchCancellation.setCurrent(null);
+                }
+            }
+        });
+        assertTrue(ownerStarted.await(5, TimeUnit.SECONDS));
+        Future<List<Earthquake>> waiter = load(SAME_QUERY[1]);
+        Thread.sleep(50);
+        ownerCancellation.cancel();
+
+        assertNull(owner.get(5, TimeUnit.SECONDS));
+        assertEquals(100, waiter.get(5, TimeUnit.SECONDS).size());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void normalizeIgnoresHowTheQueryIsBuilt() {
+        String normalized = EarthquakeQueryManager.normalize(SAME_QUERY[0]);
+        for (String requestUrl : SAME_QUERY) {
+            assertEquals(normalized, EarthquakeQueryManager.normalize(requestUrl));
+        }
+    }
+
+    /**
+     * Start the given number of loads of the same query at the same time, from as many threads.
+     */
+    private List<Future<List<Earthquake>>> loadConcurrently(int count) {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<Earthquake>>> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final String requestUrl = SAME_QUERY[i % SAME_QUERY.length];
+            results.add(mExecutor.submit(new Callable<List<Earthquake>>() {
+                @Override
+                public List<Earthquake> call() throws Exception {
+                    start.await();
+                    return mQueries.load(requestUrl, fetch(requestUrl));
+                }
+            }));
+        }
+        start.countDown();
+        return results;
+    }
+
+    private Future<List<Earthquake>> load(String requestUrl) {
+        return load(requestUrl, fetch(requestUrl));
+    }
+
+    private Future<List<Earthquake>> load(final String requestUrl, final Callable<List<Earthquake>> fetch) {
+        return mExecutor.submit(new Callable<List<Earthquake>>() {
+            @Override
+            public List<Earthquake> call() {
+                return mQueries.load(requestUrl, fetch);
+            }
+        });
+    }
+
+    /**
+     * Returns a fetch of the query from the fake server.
+     */
+    private Callable<List<Earthquake>> fetch(final String requestUrl) {
+        return new Callable<List<Earthquake>>() {
+            @Override
+            public List<Earthquake> call() {
+                final EarthquakeStore store = new EarthquakeStore();
+                QueryUtils.FetchResult result = mServer.fetch(requestUrl, null, null, new QueryUtils.EarthquakeCallback() {
+                    @Override
+                    public void onEarthquake(Earthquake earthquake) {
+                        store.add(earthquake);
+                    }
+                });
+                return result.isSuccessful() ? store.asList() : null;
+            }
+        };
+    }
+}
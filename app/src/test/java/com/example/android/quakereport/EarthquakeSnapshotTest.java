@@ -0,0 +1,196 @@
+package com.example.android.quakereport;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a store mapped from its {@link EarthquakeSnapshot} reads back every column, that
+ * corrupt files are reported instead of crashing, and that concurrent writers of the same query
+ * never leave a mixed file behind.
+ */
+public class EarthquakeSnapshotTest {
+
+    private static final long START = 1500000000000L;
+    private static final String QUERY = "https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson&limit=100";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void mappedStoreReadsEveryColumn() throws IOException {
+        EarthquakeStore store = FakeEarthquakeSource.randomStore(new Random(41), 500, START);
+        // A place the feed left out, which the dataset files cannot tell from an empty one
+        store.add(2.5, null, START + 500 * 1000L, null, "noplace", Double.NaN, Double.NaN);
+        File file = mFolder.newFile("query.snapshot");
+        EarthquakeSnapshot.write(file, QUERY, store.asList());
+
+        EarthquakeStore mapped = EarthquakeSnapshot.open(file, QUERY);
+        checkSameRows(store, mapped);
+        // Copies and rows appended to a mapped store read the same values
+        EarthquakeStore copy = new EarthquakeStore();
+        copy.addAll(mapped.asList());
+        checkSameRows(store, copy);
+        mapped.add(6.5, "12km N of Somewhere, Chile", START, null, "new", -70, -30);
+        store.add(6.5, "12km N of Somewhere, Chile", START, null, "new", -70, -30);
+        checkSameRows(store, mapped);
+    }
+
+    @Test
+    public void otherQueriesAndMissingFilesAreMisses() throws IOException {
+        File file = mFolder.newFile("query.snapshot");
+        EarthquakeSnapshot.write(file, QUERY, FakeEarthquakeSource.randomStore(new Random(42), 10, START).asList());
+
+        assertNull(EarthquakeSnapshot.open(file, QUERY + "&minmag=5"));
+        assertNull(EarthquakeSnapshot.open(new File(mFolder.getRoot(), "missing.snapshot"), QUERY));
+        assertEquals(10, EarthquakeSnapshot.open(file, QUERY).size());
+    }
+
+    @Test
+    public void corruptFilesAreReported() throws IOException {
+        int rows = 50;
+        File file = mFolder.newFile("query.snapshot");
+        EarthquakeSnapshot.write(file, QUERY, FakeEarthquakeSource.randomStore(new Random(43), rows, START).asList());
+        byte[] original = read(file);
+        int stringCountPos = 12 + QUERY.length();
+
+        // Negative string count
+        write(file, original);
+        patchInt(file, stringCountPos, -5);
+        checkCorrupt(file);
+
+        // Place index beyond the string table, in the first of the five index columns at the end
+        write(file, original);
+        patchInt(file, original.length - 5 * rows * 4, 1000000);
+        checkCorrupt(file);
+
+        // Index below null that is not "derived"
+        write(file, original);
+        patchInt(file, original.length - 3 * rows * 4, -7);
+        checkCorrupt(file);
+
+        // Truncated columns
+        write(file, original);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(original.length - 4);
+        } finally {
+            raf.close();
+        }
+        checkCorrupt(file);
+
+        // Truncated header
+        write(file, original);
+        patchInt(file, 8, Integer.MAX_VALUE);
+        checkCorrupt(file);
+    }
+
+    @Test
+    public void concurrentWritersDoNotMixTheirFiles() throws Exception {
+        final File file = new File(mFolder.getRoot(), "query.snapshot");
+        final List<EarthquakeStore> versions = new ArrayList<>();
+        versions.add(FakeEarthquakeSource.randomStore(new Random(44), 2000, START));
+        versions.add(FakeEarthquakeSource.randomStore(new Random(45), 3000, START));
+        final List<Exception> failures = new ArrayList<>();
+        List<Thread> writers = new ArrayList<>();
+        for (final EarthquakeStore version : versions) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            EarthquakeSnapshot.write(file, QUERY, version.asList());
+                        }
+                    } catch (IOException e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        EarthquakeStore mapped = EarthquakeSnapshot.open(file, QUERY);
+        assertNotNull(mapped);
+        checkSameRows(mapped.size() == 2000 ? versions.get(0) : versions.get(1), mapped);
+        // No temporary file is left behind
+        assertEquals(1, mFolder.getRoot().listFiles().length);
+    }
+
+    private static void checkCorrupt(File file) {
+        try {
+            EarthquakeSnapshot.open(file, QUERY);
+            fail("Corrupt snapshot opened");
+        } catch (IOException expected) {
+            // The cache then reads the database instead
+        }
+    }
+
+    private static void checkSameRows(EarthquakeStore expected, EarthquakeStore actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            String row = "row " + i;
+            assertEquals(row, expected.getMag(i), actual.getMag(i), 0);
+            assertEquals(row, expected.getTimeInMillSeconds(i), actual.getTimeInMillSeconds(i));
+            assertEquals(row, expected.getLongitude(i), actual.getLongitude(i), 0);
+            assertEquals(row, expected.getLatitude(i), actual.getLatitude(i), 0);
+            assertEquals(row, expected.getName(i), actual.getName(i));
+            assertEquals(row, expected.getLocationOffset(i), actual.getLocationOffset(i));
+            assertEquals(row, expected.getPrimaryLocation(i), actual.getPrimaryLocation(i));
+            assertEquals(row, expected.getUrl(i), actual.getUrl(i));
+            assertEquals(row, expected.getId(i), actual.getId(i));
+            assertEquals(row, expected.getName(i), actual.asList().get(i).getName());
+        }
+    }
+
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void patchInt(File file, int position, int value) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            raf.writeInt(value);
+        } finally {
+            raf.close();
+        }
+    }
+}
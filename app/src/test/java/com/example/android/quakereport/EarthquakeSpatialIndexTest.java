@@ -0,0 +1,185 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link EarthquakeSpatialIndex} against a brute-force scan of every epicenter, including
+ * boxes and circles crossing the antimeridian or reaching a pole.
+ */
+public class EarthquakeSpatialIndexTest {
+
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+    /**
+     * Points this close to the edge of a circle may fall on either side of it
+     */
+    private static final double EDGE_KM = 1e-6;
+
+    @Test
+    public void queryBoxMatchesBruteForce() {
+        Random random = new Random(12);
+        EarthquakeStore store = randomEpicenters(random, 10000);
+        EarthquakeSpatialIndex index = EarthquakeSpatialIndex.build(store.asList());
+        double[][] boxes = {
+                // {south, west, north, east}
+                {30, 130, 40, 145},
+                {-90, -180, 90, 180},
+                // Across the antimeridian
+                {-25, 170, -10, -170},
+                {-5, 179.5, 5, -179.5},
+                // Up to the poles
+                {80, -180, 90, 180},
+                {-90, -30, -85, 30},
+                {85, 160, 90, -160},
+                // A single line of latitude and of longitude
+                {12.5, -180, 12.5, 180},
+                {-90, 45.25, 90, 45.25},
+        };
+        for (double[] box : boxes) {
+            assertArrayEquals(describe(box), bruteForceBox(store, box[0], box[1], box[2], box[3]),
+                    index.queryBox(box[0], box[1], box[2], box[3]));
+        }
+        for (int i = 0; i < 500; i++) {
+            double south = random.nextDouble() * 180 - 90;
+            double north = Math.min(90, south + random.nextDouble() * 40);
+            double west = random.nextDouble() * 360 - 180;
+            double east = random.nextDouble() * 360 - 180;
+            assertArrayEquals(describe(new double[]{south, west, north, east}),
+                    bruteForceBox(store, south, west, north, east), index.queryBox(south, west, north, east));
+        }
+    }
+
+    @Test
+    public void queryRadiusMatchesBruteForce() {
+        Random random = new Random(13);
+        EarthquakeStore store = randomEpicenters(random, 10000);
+        EarthquakeSpatialIndex index = EarthquakeSpatialIndex.build(store.asList());
+        double[][] circles = {
+                // {latitude, longitude, radius in km}
+                {35.7, 139.7, 300},
+                // Across the antimeridian
+                {-17.5, 179.5, 500},
+                {60, -179.9, 1000},
+                // Containing a pole, or close to one
+                {89.5, 0, 300},
+                {-88, 120, 500},
+                {84, -60, 800},
+                // Half the Earth
+                {0, 0, 10000},
+        };
+        for (double[] circle : circles) {
+            checkRadius(store, index, circle[0], circle[1], circle[2]);
+        }
+        for (int i = 0; i < 200; i++) {
+            checkRadius(store, index, random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180,
+                    random.nextDouble() * 3000);
+        }
+    }
+
+    @Test
+    public void rowsWithoutCoordinatesAreNotIndexed() {
+        EarthquakeStore store = new EarthquakeStore();
+        store.add(5.0, "Tokyo, Japan", 0, null, "a", 139.7, 35.7);
+        store.add(5.0, "Unknown", 0, null, "b", Double.NaN, Double.NaN);
+        store.add(5.0, "Osaka, Japan", 0, null, "c", 135.5, 34.7);
+        EarthquakeSpatialIndex index = EarthquakeSpatialIndex.build(store.asList());
+
+        assertEquals(2, index.size());
+        assertArrayEquals(new int[]{0, 2}, index.queryBox(-90, -180, 90, 180));
+    }
+
+    @Test
+    public void longitudesOutOfRangeAreNormalized() {
+        EarthquakeStore store = new EarthquakeStore();
+        store.add(5.0, "Fiji", 0, null, "a", 190, -17);
+        store.add(5.0, "Alaska", 0, null, "b", -190, 52);
+        EarthquakeSpatialIndex index = EarthquakeSpatialIndex.build(store.asList());
+
+        assertArrayEquals(new int[]{0}, index.queryBox(-20, -175, -15, -165));
+        assertArrayEquals(new int[]{1}, index.queryBox(50, 165, 55, 175));
+        assertArrayEquals(new int[]{0}, index.queryRadius(-17, -170, 10));
+    }
+
+    private static void checkRadius(EarthquakeStore store, EarthquakeSpatialIndex index, double latitude,
+                                    double longitude, double radiusKm) {
+        int[] found = index.queryRadius(latitude, longitude, radiusKm);
+        boolean[] isFound = new boolean[store.size()];
+        for (int row : found) {
+            isFound[row] = true;
+        }
+        for (int i = 0; i < store.size(); i++) {
+            double distance = distanceKm(latitude, longitude, store.getLatitude(i), store.getLongitude(i));
+            String message = latitude + "," + longitude + " r=" + radiusKm + ": row " + i + " at " + distance + " km";
+            if (distance < radiusKm - EDGE_KM) {
+                assertTrue(message, isFound[i]);
+            } else if (distance > radiusKm + EDGE_KM) {
+                assertFalse(message, isFound[i]);
+            }
+        }
+    }
+
+    private static int[] bruteForceBox(EarthquakeStore store, double south, double west, double north, double east) {
+        List<Integer> rows = new ArrayList<>();
+        for (int i = 0; i < store.size(); i++) {
+            double lat = store.getLatitude(i);
+            double lon = store.getLongitude(i);
+            boolean inLongitudes = west <= east ? lon >= west && lon <= east : lon >= west || lon <= east;
+            if (lat >= south && lat <= north && inLongitudes) {
+                rows.add(i);
+            }
+        }
+        int[] result = new int[rows.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = rows.get(i);
+        }
+        return result;
+    }
+
+    private static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double sinLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double a = sinLat * sinLat
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Returns epicenters spread over the globe, a tenth of them on the edges of the grid: the
+     * poles, the antimeridian and whole degrees.
+     */
+    private static EarthquakeStore randomEpicenters(Random random, int count) {
+        EarthquakeStore store = new EarthquakeStore();
+        for (int i = 0; i < count; i++) {
+            double lon;
+            double lat;
+            switch (random.nextInt(20)) {
+                case 0:
+                    lon = random.nextInt(360) - 180;
+                    lat = random.nextInt(181) - 90;
+                    break;
+                case 1:
+                    lon = random.nextBoolean() ? -180 : 179.999999;
+                    lat = random.nextDouble() * 180 - 90;
+                    break;
+                default:
+                    lon = random.nextDouble() * 360 - 180;
+                    lat = Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1));
+                    break;
+            }
+            store.add(random.nextInt(80) / 10.0, "Somewhere", i, null, "id" + i, lon, lat);
+        }
+        return store;
+    }
+
+    private static String describe(double[] box) {
+        return box[0] + "," + box[1] + " to " + box[2] + "," + box[3];
+    }
+}
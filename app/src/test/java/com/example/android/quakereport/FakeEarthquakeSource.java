@@ -0,0 +1,188 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory stand-in for the USGS query API, for tests that need a server without the network.
+ * It answers starttime, endtime, minmag (or minmagnitude), maxmagnitude, orderby, limit and
+ * offset over a fixed set of earthquakes, optionally after a delay, and counts its requests.
+ * <p>
+ * Equal magnitudes are ordered by time, in the direction of the magnitude order.
+ */
+class FakeEarthquakeSource implements EarthquakeSource {
+
+    private final List<Earthquake> mEarthquakes;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+
+    FakeEarthquakeSource(List<Earthquake> earthquakes) {
+        mEarthquakes = earthquakes;
+    }
+
+    /**
+     * Returns how long to wait before answering the given request; none by default.
+     */
+    long getLatencyMillis(String requestUrl) {
+        return 0;
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    List<String> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    @Override
+    public QueryUtils.FetchResult fetch(String requestUrl, String eTag, String lastModified,
+                                        QueryUtils.EarthquakeCallback callback) {
+        mRequestCount.incrementAndGet();
+        mRequests.add(requestUrl);
+        long latency = getLatencyMillis(requestUrl);
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return QueryUtils.FetchResult.CANCELED;
+            }
+        }
+        for (Earthquake earthquake : query(requestUrl)) {
+            callback.onEarthquake(earthquake);
+        }
+        return new QueryUtils.FetchResult(200, null, null);
+    }
+
+    /**
+     * Returns what the server answers to the given request.
+     */
+    List<Earthquake> query(String requestUrl) {
+        Uri uri = Uri.parse(requestUrl);
+        long start = parseTime(uri.getQueryParameter("starttime"), Long.MIN_VALUE);
+        long end = parseTime(uri.getQueryParameter("endtime"), Long.MAX_VALUE);
+        String minMagParameter = uri.getQueryParameter("minmag");
+        if (minMagParameter == null) {
+            minMagParameter = uri.getQueryParameter("minmagnitude");
+        }
+        double minMag = minMagParameter == null ? Double.NEGATIVE_INFINITY : Double.parseDouble(minMagParameter);
+        String maxMagParameter = uri.getQueryParameter("maxmagnitude");
+        double maxMag = maxMagParameter == null ? Double.POSITIVE_INFINITY : Double.parseDouble(maxMagParameter);
+
+        List<Earthquake> result = new ArrayList<>();
+        for (Earthquake earthquake : mEarthquakes) {
+            long time = earthquake.getTimeInMillSeconds();
+            if (time >= start && time <= end && earthquake.getMag() >= minMag && earthquake.getMag() <= maxMag) {
+                result.add(earthquake);
+            }
+        }
+        String orderBy = uri.getQueryParameter("orderby");
+        final boolean byMagnitude = orderBy != null && orderBy.startsWith("magnitude");
+        final boolean ascending = orderBy != null && orderBy.endsWith("-asc");
+        Collections.sort(result, new Comparator<Earthquake>() {
+            @Override
+            public int compare(Earthquake a, Earthquake b) {
+                int order = byMagnitude ? Double.compare(a.getMag(), b.getMag()) : 0;
+                if (order == 0) {
+                    order = Long.compare(a.getTimeInMillSeconds(), b.getTimeInMillSeconds());
+                }
+                return ascending ? order : -order;
+            }
+        });
+
+        String offset = uri.getQueryParameter("offset");
+        String limit = uri.getQueryParameter("limit");
+        int from = Math.min(result.size(), offset == null ? 0 : Integer.parseInt(offset) - 1);
+        int to = Math.min(result.size(), from + (limit == null ? 20000 : Integer.parseInt(limit)));
+        return new ArrayList<>(result.subList(from, to));
+    }
+
+    /**
+     * Returns random earthquakes over the given time range, with distinct times and magnitudes
+     * to the tenth (so many share a magnitude).
+     */
+    static List<Earthquake> randomEarthquakes(Random random, int count, long start, long end) {
+        List<Earthquake> earthquakes = new ArrayList<>();
+        long step = (end - start) / count;
+        for (int i = 0; i < count; i++) {
+            long time = start + i * step + random.nextInt((int) Math.max(1, Math.min(step, Integer.MAX_VALUE)));
+            Earthquake earthquake = new Earthquake(random.nextInt(80) / 10.0, "Place " + random.nextInt(200),
+                    time, "https://earthquake.usgs.gov/earthquakes/eventpage/fake" + i);
+            earthquake.setId("fake" + i);
+            earthquake.setCoordinates(random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90);
+            earthquakes.add(earthquake);
+        }
+        return earthquakes;
+    }
+
+    /**
+     * Returns a time in the format of the USGS starttime and endtime parameters.
+     */
+    static String formatTime(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static long parseTime(String time, long defaultTime) {
+        if (time == null) {
+            return defaultTime;
+        }
+        for (String pattern : new String[]{"yyyy-MM-dd'T'HH:mm:ss.SSS", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd"}) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(time, position);
+            if (date != null && position.getIndex() == time.length()) {
+                return date.getTime();
+            }
+        }
+        throw new IllegalArgumentException("Bad time " + time);
+    }
+
+    /**
+     * Returns a store of random rows in time order from the given time on, with every kind of
+     * place the store keeps differently (offset + primary location, a second " of ", no offset,
+     * empty) and places that need quoting or escaping, event page, other and missing URLs
+     * and ids, missing coordinates, and magnitudes and coordinates of every precision.
+     */
+    static EarthquakeStore randomStore(Random random, int count, long start) {
+        String[] places = {"74km NW of Rumoi, Japan", "Alaska", "5km S of Town of Pines, IN",
+                "Near the coast of \"Peru\"", "12km N of \u00d1u\u00f1oa, Chile", "Back\\slash, Fiji", ""};
+        EarthquakeStore store = new EarthquakeStore();
+        for (int i = 0; i < count; i++) {
+            String id = random.nextInt(20) == 0 ? null : "us" + random.nextInt(1000000);
+            String url;
+            switch (random.nextInt(3)) {
+                case 0:
+                    url = id == null ? null : EarthquakeStrings.EVENT_PAGE_URL_PREFIX + id;
+                    break;
+                case 1:
+                    url = "https://example.com/?event=" + i;
+                    break;
+                default:
+                    url = null;
+            }
+            boolean located = random.nextInt(10) != 0;
+            double mag = random.nextBoolean() ? random.nextInt(100) / 10.0 - 1 : random.nextDouble() * 9;
+            store.add(mag, places[random.nextInt(places.length)], start + i * 1000L + random.nextInt(1000),
+                    url, id, located ? random.nextDouble() * 360 - 180 : Double.NaN,
+                    located ? random.nextDouble() * 180 - 90 : Double.NaN);
+        }
+        return store;
+    }
+}
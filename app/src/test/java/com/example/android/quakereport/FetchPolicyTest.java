@@ -0,0 +1,111 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the adaptive timeouts, retries and backoff of {@link FetchPolicy}.
+ */
+public class FetchPolicyTest {
+
+    private static final long MILLIS = 1000000;
+
+    @Test
+    public void defaultsAreUsedUntilEnoughSamples() {
+        FetchPolicy policy = new FetchPolicy();
+        for (int i = 0; i < FetchPolicy.MIN_SAMPLES - 1; i++) {
+            policy.recordLatency(100 * MILLIS, 100 * MILLIS);
+        }
+        assertEquals(FetchPolicy.DEFAULT_CONNECT_TIMEOUT_MILLIS, policy.getConnectTimeoutMillis(0, false));
+        assertEquals(FetchPolicy.DEFAULT_READ_TIMEOUT_MILLIS, policy.getReadTimeoutMillis(0, false));
+        assertEquals(-1, policy.getHedgeDelayMillis());
+    }
+
+    @Test
+    public void timeoutsFollowTheP95() {
+        FetchPolicy policy = new FetchPolicy();
+        // 95 fast requests and 5 slow ones: the last 64 samples hold 3 slow ones, under the p95
+        for (int i = 0; i < 100; i++) {
+            boolean slow = i % 20 == 0;
+            policy.recordLatency((slow ? 5000 : 600) * MILLIS, (slow ? 9000 : 1500) * MILLIS);
+        }
+        assertEquals(600 * FetchPolicy.TIMEOUT_MULTIPLIER, policy.getConnectTimeoutMillis(0, false));
+        assertEquals(1500 * FetchPolicy.TIMEOUT_MULTIPLIER, policy.getReadTimeoutMillis(0, false));
+        assertEquals(600 + 1500, policy.getHedgeDelayMillis());
+
+        // Retries after a timeout double it, up to the maximum
+        assertEquals(600 * FetchPolicy.TIMEOUT_MULTIPLIER * 2, policy.getConnectTimeoutMillis(1, true));
+        assertEquals(FetchPolicy.MAX_READ_TIMEOUT_MILLIS, policy.getReadTimeoutMillis(3, true));
+        assertEquals(1500 * FetchPolicy.TIMEOUT_MULTIPLIER, policy.getReadTimeoutMillis(1, false));
+    }
+
+    @Test
+    public void timeoutsAndHedgeDelayAreBounded() {
+        FetchPolicy policy = new FetchPolicy();
+        for (int i = 0; i < FetchPolicy.SAMPLE_COUNT; i++) {
+            policy.recordLatency(MILLIS, MILLIS);
+        }
+        assertEquals(FetchPolicy.MIN_CONNECT_TIMEOUT_MILLIS, policy.getConnectTimeoutMillis(0, false));
+        assertEquals(FetchPolicy.MIN_READ_TIMEOUT_MILLIS, policy.getReadTimeoutMillis(0, false));
+        assertEquals(FetchPolicy.MIN_HEDGE_DELAY_MILLIS, policy.getHedgeDelayMillis());
+
+        for (int i = 0; i < FetchPolicy.SAMPLE_COUNT; i++) {
+            policy.recordLatency(60000 * MILLIS, 60000 * MILLIS);
+        }
+        assertEquals(FetchPolicy.MAX_CONNECT_TIMEOUT_MILLIS, policy.getConnectTimeoutMillis(0, false));
+        assertEquals(FetchPolicy.MAX_READ_TIMEOUT_MILLIS, policy.getReadTimeoutMillis(0, false));
+
+        policy.setHedgingEnabled(false);
+        assertEquals(-1, policy.getHedgeDelayMillis());
+    }
+
+    @Test
+    public void onlyTransientFailuresAreRetried() {
+        FetchPolicy policy = new FetchPolicy();
+        assertTrue(policy.shouldRetry(QueryUtils.FetchResult.FAILED, 0));
+        assertTrue(policy.shouldRetry(QueryUtils.FetchResult.failure(new SocketTimeoutException()), 0));
+        assertTrue(policy.shouldRetry(QueryUtils.FetchResult.httpError(503, 0), 0));
+        assertTrue(policy.shouldRetry(QueryUtils.FetchResult.httpError(429, 0), 0));
+        assertTrue(policy.shouldRetry(QueryUtils.FetchResult.httpError(408, 0), 0));
+
+        assertFalse(policy.shouldRetry(QueryUtils.FetchResult.httpError(404, 0), 0));
+        assertFalse(policy.shouldRetry(QueryUtils.FetchResult.httpError(400, 0), 0));
+        assertFalse(policy.shouldRetry(QueryUtils.FetchResult.CANCELED, 0));
+        assertFalse(policy.shouldRetry(new QueryUtils.FetchResult(200, null, null), 0));
+        assertFalse(policy.shouldRetry(new QueryUtils.FetchResult(304, "\"etag\"", null), 0));
+
+        // The last attempt is never retried
+        assertTrue(policy.shouldRetry(QueryUtils.FetchResult.failure(new IOException()),
+                FetchPolicy.MAX_ATTEMPTS - 2));
+        assertFalse(policy.shouldRetry(QueryUtils.FetchResult.failure(new IOException()),
+                FetchPolicy.MAX_ATTEMPTS - 1));
+    }
+
+    @Test
+    public void backoffIsJitteredUnderTheCapOrFollowsRetryAfter() {
+        FetchPolicy policy = new FetchPolicy();
+        for (int attempt = 0; attempt < 6; attempt++) {
+            long cap = Math.min(FetchPolicy.MAX_BACKOFF_MILLIS, FetchPolicy.BACKOFF_BASE_MILLIS << attempt);
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = 0; i < 1000; i++) {
+                long backoff = policy.getBackoffMillis(QueryUtils.FetchResult.FAILED, attempt);
+                assertTrue(backoff >= 0 && backoff < cap);
+                min = Math.min(min, backoff);
+                max = Math.max(max, backoff);
+            }
+            // Full jitter spreads the retries over the whole window
+            assertTrue(min < cap / 4);
+            assertTrue(max > cap * 3 / 4);
+        }
+        assertEquals(3000, policy.getBackoffMillis(QueryUtils.FetchResult.httpError(503, 3), 0));
+        assertEquals(FetchPolicy.MAX_BACKOFF_MILLIS,
+                policy.getBackoffMillis(QueryUtils.FetchResult.httpError(503, 3600), 0));
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks {@link FormattedRowCache} against formatting every row directly, its eviction order
+ * against a LinkedHashMap in access order, and that getting a row does not allocate.
+ */
+public class FormattedRowCacheTest {
+
+    private static final int CAPACITY = 64;
+
+    @Test
+    public void rowsMatchTheFormatter() {
+        EarthquakeFormatter formatter = new EarthquakeFormatter();
+        FormattedRowCache cache = new FormattedRowCache(formatter, CAPACITY);
+        EarthquakeStore page = randomPage(new Random(25), 500);
+        Random random = new Random(26);
+        for (int i = 0; i < 20000; i++) {
+            int position = random.nextInt(page.size());
+            checkRow(formatter, cache, cache.get(position, page, position), page, position);
+        }
+    }
+
+    @Test
+    public void replacedPagesAreFormattedAgain() {
+        EarthquakeFormatter formatter = new EarthquakeFormatter();
+        FormattedRowCache cache = new FormattedRowCache(formatter, CAPACITY);
+        EarthquakeStore oldPage = randomPage(new Random(27), 10);
+        EarthquakeStore newPage = randomPage(new Random(28), 10);
+        cache.get(3, oldPage, 3);
+
+        checkRow(formatter, cache, cache.get(3, newPage, 3), newPage, 3);
+        // Same page, another row at that position (rows of the first page shifted)
+        checkRow(formatter, cache, cache.get(3, newPage, 4), newPage, 4);
+    }
+
+    @Test
+    public void leastRecentlyUsedRowIsEvicted() {
+        EarthquakeFormatter formatter = new EarthquakeFormatter();
+        FormattedRowCache cache = new FormattedRowCache(formatter, CAPACITY);
+        EarthquakeStore page = randomPage(new Random(29), 1000);
+        LruSlots expected = new LruSlots();
+        Random random = new Random(30);
+        int position = 0;
+        for (int i = 0; i < 20000; i++) {
+            // Mostly scrolling back and forth, sometimes jumping
+            position = random.nextInt(10) == 0 ? random.nextInt(page.size())
+                    : Math.max(0, Math.min(page.size() - 1, position + random.nextInt(21) - 10));
+            Integer slot = expected.get(position);
+            int actual = cache.get(position, page, position);
+            if (slot != null) {
+                assertEquals("position " + position, slot.intValue(), actual);
+            } else if (expected.size() == CAPACITY) {
+                // The slot of the least recently used row is reused
+                assertEquals(expected.values().iterator().next().intValue(), actual);
+            }
+            expected.put(position, actual);
+        }
+    }
+
+    @Test
+    public void gettingRowsDoesNotAllocate() {
+        EarthquakeFormatter formatter = new EarthquakeFormatter();
+        final FormattedRowCache cache = new FormattedRowCache(formatter, CAPACITY);
+        final EarthquakeStore page = randomPage(new Random(31), 1000);
+        final char[] magOut = new char[EarthquakeFormatter.SHORT_BUFFER_SIZE];
+        final char[] dateOut = new char[formatter.getDateBufferSize()];
+        final char[] timeOut = new char[EarthquakeFormatter.SHORT_BUFFER_SIZE];
+        long allocated = Allocations.measure(new Runnable() {
+            private int mPosition;
+
+            @Override
+            public void run() {
+                // Cache hits while scrolling a few rows, misses when moving on
+                for (int i = 0; i < 100; i++) {
+                    int position = (mPosition + i % 20) % page.size();
+                    int next = (position + 1) % page.size();
+                    cache.prefetch(next, page, next);
+                    int slot = cache.get(position, page, position);
+                    cache.copyMag(slot, magOut);
+                    cache.copyDate(slot, dateOut);
+                    cache.copyTime(slot, timeOut);
+                }
+                mPosition = (mPosition + 7) % page.size();
+            }
+        });
+        assumeTrue("The JVM counts allocations", allocated >= 0);
+        assertEquals("bytes allocated binding 100 rows", 0, allocated);
+    }
+
+    private static void checkRow(EarthquakeFormatter formatter, FormattedRowCache cache, int slot,
+                                 EarthquakeStore page, int row) {
+        char[] expected = new char[formatter.getDateBufferSize()];
+        char[] actual = new char[formatter.getDateBufferSize()];
+        long time = page.getTimeInMillSeconds(row);
+        assertEquals(new String(expected, 0, formatter.formatMag(page.getMag(row), expected)),
+                new String(actual, 0, cache.copyMag(slot, actual)));
+        assertEquals(new String(expected, 0, formatter.formatDate(time, expected)),
+                new String(actual, 0, cache.copyDate(slot, actual)));
+        assertEquals(new String(expected, 0, formatter.formatTime(time, expected)),
+                new String(actual, 0, cache.copyTime(slot, actual)));
+    }
+
+    private static EarthquakeStore randomPage(Random random, int count) {
+        EarthquakeStore page = new EarthquakeStore();
+        for (int i = 0; i < count; i++) {
+            page.add(random.nextInt(90) / 10.0, "Place " + i, 1500000000000L + random.nextInt(1000000000),
+                    null, "id" + i, 0, 0);
+        }
+        return page;
+    }
+
+    /**
+     * The slots the cache should hold, by position, least recently used first.
+     */
+    private static final class LruSlots extends LinkedHashMap<Integer, Integer> {
+        private static final long serialVersionUID = 1L;
+
+        LruSlots() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+            return size() > CAPACITY;
+        }
+    }
+}
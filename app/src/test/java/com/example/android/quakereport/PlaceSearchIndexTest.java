@@ -0,0 +1,217 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the results of {@link PlaceSearchIndex} against scoring every event's place, as events
+ * are put, updated, removed and replaced page by page.
+ */
+public class PlaceSearchIndexTest {
+
+    private static final String[] REGIONS = {
+            "Japan", "CA", "Alaska", "Chile", "Indonesia", "Papua New Guinea", "Tonga", "Nevada", "Puerto Rico"};
+    private static final String[] PLACES = {
+            "Rumoi", "Anza", "Ocotillo", "Tokyo", "Cabo", "Ca", "Japan Trench", "San Juan", "Nikolski", "Can"};
+    private static final String[] QUERIES = {
+            "japan", "ca", "can", "anza ca", "trench", "ville1", "c", "new guinea", "xyz", "Puerto", "o", "  "};
+    private static final int LIMIT = 50;
+
+    /**
+     * What the index should know of each event: its primary location, magnitude and time
+     */
+    private final HashMap<String, String> mLocations = new HashMap<>();
+    private final HashMap<String, double[]> mValues = new HashMap<>();
+
+    @Test
+    public void searchMatchesBruteForce() {
+        Random random = new Random(24);
+        List<String> locations = randomLocations(random, 2000);
+        PlaceSearchIndex index = new PlaceSearchIndex();
+        EarthquakeStore store = new EarthquakeStore();
+        for (int i = 0; i < 20000; i++) {
+            addRandom(random, store, locations, "id" + i);
+        }
+        index.putAll(store);
+        checkQueries(index);
+
+        // Updated and removed events, enough of them to compact the rows
+        for (int i = 0; i < 30000; i++) {
+            String id = "id" + random.nextInt(20000);
+            if (random.nextInt(10) == 0) {
+                index.remove(id);
+                mLocations.remove(id);
+                mValues.remove(id);
+            } else {
+                EarthquakeStore update = new EarthquakeStore();
+                addRandom(random, update, locations, id);
+                index.putAll(update);
+            }
+        }
+        assertEquals(mLocations.size(), index.size());
+        checkQueries(index);
+    }
+
+    @Test
+    public void replaceAndRemoveAllFollowThePages() {
+        Random random = new Random(25);
+        List<String> locations = randomLocations(random, 300);
+        PlaceSearchIndex index = new PlaceSearchIndex();
+        List<EarthquakeStore> pages = new ArrayList<>();
+        for (int page = 0; page < 10; page++) {
+            EarthquakeStore store = new EarthquakeStore();
+            for (int i = 0; i < 500; i++) {
+                addRandom(random, store, locations, "id" + (page * 500 + i));
+            }
+            index.putAll(store);
+            pages.add(store);
+        }
+        // A new first page: a few events are gone, a few are new, the others may have changed
+        EarthquakeStore firstPage = pages.get(0);
+        EarthquakeStore newFirstPage = new EarthquakeStore();
+        for (int i = 0; i < firstPage.size(); i++) {
+            String id = firstPage.getId(i);
+            int action = random.nextInt(10);
+            if (action == 0) {
+                mLocations.remove(id);
+                mValues.remove(id);
+            } else if (action == 1) {
+                addRandom(random, newFirstPage, locations, id);
+            } else {
+                newFirstPage.add(firstPage, i);
+            }
+            if (action == 2) {
+                addRandom(random, newFirstPage, locations, "new" + i);
+            }
+        }
+        index.replace(firstPage, newFirstPage);
+        assertEquals(mLocations.size(), index.size());
+        checkQueries(index);
+
+        // Pages scrolled out of memory
+        for (int page = 5; page < 10; page++) {
+            index.removeAll(pages.get(page));
+            for (int i = 0; i < pages.get(page).size(); i++) {
+                mLocations.remove(pages.get(page).getId(i));
+                mValues.remove(pages.get(page).getId(i));
+            }
+        }
+        assertEquals(mLocations.size(), index.size());
+        checkQueries(index);
+
+        index.clear();
+        mLocations.clear();
+        mValues.clear();
+        checkQueries(index);
+    }
+
+    private void checkQueries(PlaceSearchIndex index) {
+        for (String query : QUERIES) {
+            List<double[]> expected = bruteForce(query);
+            List<Earthquake> results = index.search(query, LIMIT);
+            assertEquals(query, Math.min(LIMIT, expected.size()), results.size());
+            for (int i = 0; i < results.size(); i++) {
+                Earthquake earthquake = results.get(i);
+                String message = query + " at " + i;
+                assertEquals(message, mLocations.get(earthquake.getId()), earthquake.getPrimaryLocation());
+                double[] values = mValues.get(earthquake.getId());
+                assertEquals(message, expected.get(i)[1], values[0], 0);
+                assertEquals(message, expected.get(i)[2], values[1], 0);
+                assertEquals(message, expected.get(i)[0], score(query, earthquake.getPrimaryLocation()), 0);
+            }
+        }
+    }
+
+    /**
+     * Returns the {score, magnitude, time} of every matching event, best first.
+     */
+    private List<double[]> bruteForce(String query) {
+        List<double[]> matches = new ArrayList<>();
+        for (String id : mLocations.keySet()) {
+            int score = score(query, mLocations.get(id));
+            if (score > 0) {
+                double[] values = mValues.get(id);
+                matches.add(new double[]{score, values[0], values[1]});
+            }
+        }
+        Collections.sort(matches, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                for (int k = 0; k < a.length; k++) {
+                    int result = Double.compare(b[k], a[k]);
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return 0;
+            }
+        });
+        return matches;
+    }
+
+    /**
+     * Sums the best match of each word of the query in the location: 4 as its first word, 3 as
+     * another word, 2 as the start of a word, 1 inside a word (for words of 3 chars or more).
+     * Returns 0 if a word does not match, or if there is no word.
+     */
+    private static int score(String query, String location) {
+        String[] words = query.toLowerCase(Locale.US).split("[^\\p{L}\\p{N}]+");
+        String lowerCase = location.toLowerCase(Locale.US);
+        int score = 0;
+        for (String word : words) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            int best = 0;
+            for (int i = lowerCase.indexOf(word); i >= 0; i = lowerCase.indexOf(word, i + 1)) {
+                int end = i + word.length();
+                boolean wordStart = i == 0 || !Character.isLetterOrDigit(lowerCase.charAt(i - 1));
+                boolean wordEnd = end == lowerCase.length() || !Character.isLetterOrDigit(lowerCase.charAt(end));
+                int quality = !wordStart ? (word.length() < 3 ? 0 : 1) : !wordEnd ? 2 : i == 0 ? 4 : 3;
+                best = Math.max(best, quality);
+            }
+            if (best == 0) {
+                return 0;
+            }
+            score += best;
+        }
+        return score;
+    }
+
+    private void addRandom(Random random, EarthquakeStore store, List<String> locations, String id) {
+        String location = locations.get(random.nextInt(locations.size()));
+        double mag = random.nextInt(800) / 100.0;
+        long time = 1500000000000L + random.nextInt(1000000000);
+        String place = random.nextBoolean() ? "10km N of " + location : location;
+        store.add(mag, place, time, null, id, 0, 0);
+        mLocations.put(id, location);
+        mValues.put(id, new double[]{mag, time});
+    }
+
+    private static List<String> randomLocations(Random random, int count) {
+        List<String> locations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(12);
+            String region = REGIONS[random.nextInt(REGIONS.length)];
+            if (kind < 2) {
+                locations.add(region);
+            } else {
+                String place = PLACES[random.nextInt(PLACES.length)];
+                if (kind >= 6) {
+                    place += " " + (char) ('a' + random.nextInt(26)) + "ville" + random.nextInt(300);
+                }
+                locations.add(place + ", " + region);
+            }
+        }
+        return locations;
+    }
+}
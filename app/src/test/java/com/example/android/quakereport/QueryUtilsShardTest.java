@@ -0,0 +1,196 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a query fetched as time-window shards gives the same result as the unsharded
+ * query, and that shards are fetched in parallel, at most as many at once as asked for.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class QueryUtilsShardTest {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long START = 1500000000000L;
+    private static final long END = START + 30 * DAY_MILLIS;
+    private static final String[] ORDERS = {"time", "time-asc", "magnitude", "magnitude-asc"};
+
+    @Test
+    public void mergeShardsMatchesSortingEverything() {
+        Random random = new Random(8);
+        for (String orderBy : ORDERS) {
+            for (int round = 0; round < 20; round++) {
+                List<Earthquake> all = FakeEarthquakeSource.randomEarthquakes(random, random.nextInt(3000), START, END);
+                FakeEarthquakeSource server = new FakeEarthquakeSource(all);
+                // Shards over disjoint windows, each sorted like the server sorts it
+                List<EarthquakeStore> shards = new ArrayList<>();
+                int shardCount = 1 + random.nextInt(6);
+                long span = (END - START) / shardCount + 1;
+                for (long start = START; start <= END; start += span) {
+                    EarthquakeStore shard = new EarthquakeStore();
+                    shard.addAll(server.query(query(start, Math.min(start + span - 1, END), orderBy, 20000)));
+                    shards.add(shard);
+                }
+                int limit = random.nextBoolean() ? Integer.MAX_VALUE : random.nextInt(500);
+
+                EarthquakeStore merged = QueryUtils.mergeShards(shards, orderBy, limit);
+                checkSameOrder(orderBy, server.query(query(START, END, orderBy, limit)), merged.asList());
+            }
+        }
+    }
+
+    @Test
+    public void shardedFetchMatchesTheUnshardedQuery() {
+        List<Earthquake> all = FakeEarthquakeSource.randomEarthquakes(new Random(9), 10000, START, END);
+        FakeEarthquakeSource server = new FakeEarthquakeSource(all);
+        for (String orderBy : ORDERS) {
+            for (int limit : new int[]{2000, 20000}) {
+                String requestUrl = query(START, END, orderBy, limit);
+                assertTrue(QueryUtils.shouldShard(requestUrl));
+                List<Earthquake> sharded = QueryUtils.fetchEarthquakeDataSharded(server, requestUrl,
+                        QueryUtils.SHARD_COUNT, QueryUtils.SHARD_CONCURRENCY);
+                checkSameOrder(orderBy, server.query(requestUrl), sharded);
+            }
+        }
+    }
+
+    /**
+     * Every shard waits at the server until all of them arrived, which only happens if they are
+     * fetched in parallel; one after the other, the first would give up waiting and fail.
+     */
+    @Test
+    public void shardsAreFetchedInParallel() {
+        List<Earthquake> all = FakeEarthquakeSource.randomEarthquakes(new Random(10), 4000, START, END);
+        final CountDownLatch allArrived = new CountDownLatch(4);
+        ConcurrentSource server = new ConcurrentSource(all) {
+            @Override
+            void whileInFlight() throws InterruptedException {
+                allArrived.countDown();
+                if (!allArrived.await(10, TimeUnit.SECONDS)) {
+                    throw new InterruptedException("Shards fetched one after the other");
+                }
+            }
+        };
+
+        List<Earthquake> sharded = QueryUtils.fetchEarthquakeDataSharded(server,
+                query(START, END, "time", 20000), 4, 4);
+        assertNotNull(sharded);
+        assertEquals(all.size(), sharded.size());
+        assertEquals(4, server.getRequestCount());
+        assertEquals(4, server.getMaxInFlight());
+    }
+
+    @Test
+    public void shardConcurrencyIsCapped() {
+        List<Earthquake> all = FakeEarthquakeSource.randomEarthquakes(new Random(12), 4000, START, END);
+        ConcurrentSource server = new ConcurrentSource(all) {
+            @Override
+            void whileInFlight() throws InterruptedException {
+                Thread.sleep(50);
+            }
+        };
+
+        List<Earthquake> sharded = QueryUtils.fetchEarthquakeDataSharded(server,
+                query(START, END, "time", 20000), 4, 2);
+        assertNotNull(sharded);
+        assertEquals(all.size(), sharded.size());
+        assertEquals(4, server.getRequestCount());
+        assertTrue(server.getMaxInFlight() + " in flight", server.getMaxInFlight() <= 2);
+    }
+
+    @Test
+    public void failedShardFailsTheQuery() {
+        List<Earthquake> all = FakeEarthquakeSource.randomEarthquakes(new Random(11), 1000, START, END);
+        FakeEarthquakeSource server = new FakeEarthquakeSource(all) {
+            @Override
+            public QueryUtils.FetchResult fetch(String requestUrl, String eTag, String lastModified,
+                                                QueryUtils.EarthquakeCallback callback) {
+                // Shards are fetched one at a time below, the third one fails
+                if (getRequestCount() == 2) {
+                    return QueryUtils.FetchResult.httpError(503, 0);
+                }
+                return super.fetch(requestUrl, eTag, lastModified, callback);
+            }
+        };
+        assertNull(QueryUtils.fetchEarthquakeDataSharded(server, query(START, END, "time", 20000), 4, 1));
+    }
+
+    /**
+     * Counts how many requests are in flight at once, each of them holding in
+     * {@link #whileInFlight()} before it is answered.
+     */
+    private abstract static class ConcurrentSource extends FakeEarthquakeSource {
+
+        private final AtomicInteger mInFlight = new AtomicInteger();
+        private final AtomicInteger mMaxInFlight = new AtomicInteger();
+
+        ConcurrentSource(List<Earthquake> earthquakes) {
+            super(earthquakes);
+        }
+
+        abstract void whileInFlight() throws InterruptedException;
+
+        int getMaxInFlight() {
+            return mMaxInFlight.get();
+        }
+
+        @Override
+        public QueryUtils.FetchResult fetch(String requestUrl, String eTag, String lastModified,
+                                            QueryUtils.EarthquakeCallback callback) {
+            int inFlight = mInFlight.incrementAndGet();
+            try {
+                int max;
+                do {
+                    max = mMaxInFlight.get();
+                } while (inFlight > max && !mMaxInFlight.compareAndSet(max, inFlight));
+                whileInFlight();
+                return super.fetch(requestUrl, eTag, lastModified, callback);
+            } catch (InterruptedException e) {
+                return QueryUtils.FetchResult.FAILED;
+            } finally {
+                mInFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private static String query(long start, long end, String orderBy, int limit) {
+        StringBuilder query = new StringBuilder("https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson")
+                .append("&starttime=").append(FakeEarthquakeSource.formatTime(start))
+                .append("&endtime=").append(FakeEarthquakeSource.formatTime(end))
+                .append("&orderby=").append(orderBy);
+        if (limit != Integer.MAX_VALUE) {
+            query.append("&limit=").append(limit);
+        }
+        return query.toString();
+    }
+
+    /**
+     * Checks that the results list the same events in the same order, where the order is
+     * defined: events of equal magnitude may come in any order when sorting by magnitude.
+     */
+    private static void checkSameOrder(String orderBy, List<Earthquake> expected, List<Earthquake> actual) {
+        assertEquals(orderBy, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            String message = orderBy + " at " + i;
+            assertEquals(message, expected.get(i).getMag(), actual.get(i).getMag(), 0);
+            if (orderBy.startsWith("time")) {
+                assertEquals(message, expected.get(i).getId(), actual.get(i).getId());
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.android.quakereport;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link EarthquakeCache} keeps the results of queries fresh, expires and evicts them,
+ * and serves them from their snapshot.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EarthquakeCacheTest {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final String QUERY = "https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson"
+            + "&limit=100&minmag=4&orderby=time";
+
+    private FakeEarthquakeSource mServer;
+    private EarthquakeCache mCache;
+    private EarthquakeDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        // Within the default time window of a query, 30 days back
+        long now = System.currentTimeMillis();
+        mServer = new FakeEarthquakeSource(FakeEarthquakeSource.randomEarthquakes(new Random(31), 1000,
+                now - 5 * DAY_MILLIS, now - DAY_MILLIS));
+        mCache = new EarthquakeCache(RuntimeEnvironment.application);
+        mDbHelper = new EarthquakeDbHelper(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+    }
+
+    @Test
+    public void expiredQueriesAreMissesAndDroppedByTheNextFetch() {
+        assertNotNull(mCache.refresh(QUERY, mServer, null));
+        setFetchedAt(QUERY, System.currentTimeMillis() - EarthquakeCache.TTL_MILLIS - 60000);
+        assertNull(mCache.load(QUERY));
+        assertTrue(mCache.getCachedQueries().contains(QUERY));
+
+        String other = QUERY.replace("minmag=4", "minmag=5");
+        assertNotNull(mCache.refresh(other, mServer, null));
+        List<String> queries = mCache.getCachedQueries();
+        assertFalse(queries.contains(QUERY));
+        assertTrue(queries.contains(other));
+    }
+
+    @Test
+    public void leastRecentlyFetchedQueryIsEvictedFirst() {
+        // Three disjoint results of 8000 events, more than MAX_EVENTS together. The offsets also
+        // keep the queries from being fetched as shards.
+        long now = System.currentTimeMillis();
+        FakeEarthquakeSource server = new FakeEarthquakeSource(FakeEarthquakeSource.randomEarthquakes(
+                new Random(32), 24000, now - 5 * DAY_MILLIS, now - DAY_MILLIS));
+        String base = "https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson&limit=8000&orderby=time";
+        String first = base + "&offset=1";
+        String second = base + "&offset=8001";
+        String third = base + "&offset=16001";
+        assertEquals(8000, mCache.refresh(first, server, null).size());
+        assertEquals(8000, mCache.refresh(second, server, null).size());
+        // The first query was used more recently than the second
+        setFetchedAt(first, now - 1000);
+        setFetchedAt(second, now - DAY_MILLIS);
+
+        assertEquals(8000, mCache.refresh(third, server, null).size());
+        List<String> queries = mCache.getCachedQueries();
+        assertTrue(queries.contains(first));
+        assertFalse(queries.contains(second));
+        assertTrue(queries.contains(third));
+        assertNull(mCache.load(second));
+        assertEquals(16000, DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                EarthquakeDbHelper.TABLE_EVENTS));
+    }
+
+    @Test
+    public void notModifiedResponseKeepsTheQueryFresh() throws Exception {
+        ReplayServer server = new ReplayServer(SyntheticFeed.build(500), 0);
+        try {
+            String query = server.getUrl() + "?format=geojson&limit=500&orderby=time";
+            HttpEarthquakeSource source = new HttpEarthquakeSource();
+            assertEquals(500, mCache.refresh(query, source, null).size());
+            long fetchedAt = System.currentTimeMillis() - EarthquakeCache.TTL_MILLIS / 2;
+            setFetchedAt(query, fetchedAt);
+            long bodyBytes = server.getBodyBytesSent();
+
+            assertEquals(500, mCache.refresh(query, source, null).size());
+            // Revalidated without a body
+            assertEquals(2, server.getRequests().size());
+            assertEquals(server.getETag(), server.getRequests().get(1).get("if-none-match"));
+            assertEquals(bodyBytes, server.getBodyBytesSent());
+            assertTrue(getFetchedAt(query) > fetchedAt);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void snapshotIsPreferredOverTheDatabase() {
+        List<Earthquake> fetched = mCache.refresh(QUERY, mServer, null);
+        ContentValues values = new ContentValues();
+        values.put(EarthquakeDbHelper.COLUMN_EVENT_PLACE, "Only in the database");
+        mDbHelper.getWritableDatabase().update(EarthquakeDbHelper.TABLE_EVENTS, values, null, null);
+
+        List<Earthquake> loaded = mCache.load(QUERY);
+        assertEquals(fetched.size(), loaded.size());
+        for (int i = 0; i < fetched.size(); i++) {
+            assertEquals(fetched.get(i).getName(), loaded.get(i).getName());
+        }
+
+        // Without the snapshot, the rows come from the database
+        File[] snapshots = new File(RuntimeEnvironment.application.getCacheDir(), "snapshots").listFiles();
+        assertNotNull(snapshots);
+        for (File snapshot : snapshots) {
+            assertTrue(snapshot.delete());
+        }
+        loaded = mCache.load(QUERY);
+        assertEquals(fetched.size(), loaded.size());
+        assertEquals("Only in the database", loaded.get(0).getName());
+    }
+
+    @Test
+    public void syncWithoutChangesKeepsTheQueryFresh() {
+        assertNotNull(mCache.refresh(QUERY, mServer, null));
+        long fetchedAt = System.currentTimeMillis() - EarthquakeCache.TTL_MILLIS / 2;
+        setFetchedAt(QUERY, fetchedAt);
+
+        EarthquakeCache.SyncResult result = mCache.sync(QUERY, mServer);
+        assertNotNull(result);
+        assertFalse(result.changed);
+        assertEquals(100, result.earthquakes.size());
+        assertTrue(getFetchedAt(QUERY) > fetchedAt);
+    }
+
+    @Test
+    public void syncReportsChangesBeyondTheCachedResult() {
+        List<Earthquake> cached = mCache.refresh(QUERY, mServer, null);
+        // The oldest event of the query is far beyond the cached first page
+        List<Earthquake> matching = mServer.query(QUERY.replace("&limit=100", ""));
+        Earthquake oldest = matching.get(matching.size() - 1);
+        List<Earthquake> events = new ArrayList<>(matching);
+        Earthquake deleted = new Earthquake(oldest.getMag(), oldest.getName(), oldest.getTimeInMillSeconds(), null);
+        deleted.setId(oldest.getId());
+        deleted.setDeleted(true);
+        events.set(events.size() - 1, deleted);
+
+        EarthquakeCache.SyncResult result = mCache.sync(QUERY, new FakeEarthquakeSource(events));
+        assertNotNull(result);
+        assertFalse(result.changed);
+        assertEquals(cached.size(), result.earthquakes.size());
+        assertTrue(result.hasChanges());
+        assertEquals(Collections.singletonList(oldest.getId()), result.removedIds);
+        assertEquals(matching.size() - 1, result.updated.size());
+    }
+
+    @Test
+    public void syncDropsEventsRevisedFarBelowMinmag() {
+        List<Earthquake> cached = mCache.refresh(QUERY, mServer, null);
+        Earthquake newest = cached.get(0);
+        List<Earthquake> events = new ArrayList<>(mServer.query(QUERY.replace("&limit=100&minmag=4", "")));
+        // Revised from at least minmag 4 down to 0.5
+        Earthquake revised = new Earthquake(0.5, newest.getName(), newest.getTimeInMillSeconds(), null);
+        revised.setId(newest.getId());
+        for (int i = 0; i < events.size(); i++) {
+            if (newest.getId().equals(events.get(i).getId())) {
+                events.set(i, revised);
+            }
+        }
+
+        EarthquakeCache.SyncResult result = mCache.sync(QUERY, new FakeEarthquakeSource(events));
+        assertNotNull(result);
+        assertTrue(result.changed);
+        for (Earthquake earthquake : result.earthquakes) {
+            assertFalse(newest.getId().equals(earthquake.getId()));
+        }
+        assertTrue(result.removedIds.contains(newest.getId()));
+    }
+
+    private void setFetchedAt(String requestUrl, long fetchedAt) {
+        ContentValues values = new ContentValues();
+        values.put(EarthquakeDbHelper.COLUMN_QUERY_FETCHED_AT, fetchedAt);
+        mDbHelper.getWritableDatabase().update(EarthquakeDbHelper.TABLE_QUERIES, values,
+                EarthquakeDbHelper.COLUMN_QUERY_URL + "=?", new String[]{requestUrl});
+    }
+
+    private long getFetchedAt(String requestUrl) {
+        Cursor cursor = mDbHelper.getReadableDatabase().query(EarthquakeDbHelper.TABLE_QUERIES,
+                new String[]{EarthquakeDbHelper.COLUMN_QUERY_FETCHED_AT},
+                EarthquakeDbHelper.COLUMN_QUERY_URL + "=?", new String[]{requestUrl}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the work a canceled fetch wastes: a large feed is trickled from a
+ * {@link ReplayServer} and canceled from another thread, as the main thread cancels a loader,
+ * once a few features arrived. The download, the parse and the fetching thread must all stop
+ * promptly, without spending more CPU on the canceled work.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class FetchCancellationTest {
+
+    private static final int FEED_SIZE = 50000;
+    private static final int CANCEL_AFTER_FEATURES = 1000;
+    /**
+     * How long the fetch may take to return once canceled
+     */
+    private static final long MAX_STOP_MILLIS = 500;
+
+    private ReplayServer mServer;
+    private int mFeedBytes;
+
+    @Before
+    public void setUp() throws Exception {
+        long start = 1488787200000L;
+        byte[] feed = SyntheticFeed.build(
+                FakeEarthquakeSource.randomEarthquakes(new Random(18), FEED_SIZE, start, start + 86400000L));
+        mFeedBytes = feed.length;
+        mServer = new ReplayServer(feed, 0);
+        // Trickle the body at about 800 KB/s, so the cancel lands in the middle of it
+        mServer.setChunkDelayMillis(10);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void canceledFetchStopsDownloadingAndParsing() throws Exception {
+        final FetchCancellation cancellation = new FetchCancellation();
+        final CountDownLatch enoughFeatures = new CountDownLatch(1);
+        final AtomicInteger features = new AtomicInteger();
+        final AtomicLong cpuNanos = new AtomicLong();
+        final QueryUtils.FetchResult[] result = new QueryUtils.FetchResult[1];
+        Thread fetching = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                FetchCancellation.setCurrent(cancellation);
+                try {
+                    result[0] = QueryUtils.fetchEarthquakeData(mServer.getUrl(), null, null,
+                            new QueryUtils.EarthquakeCallback() {
+                                @Override
+                                public void onEarthquake(Earthquake earthquake) {
+                                    if (features.incrementAndGet() == CANCEL_AFTER_FEATURES) {
+                                        enoughFeatures.countDown();
+                                    }
+                                }
+                            });
+                } finally {
+                    FetchCancellation.setCurrent(null);
+                }
+                cpuNanos.set(ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime());
+            }
+        });
+        fetching.start();
+        assertTrue("No features received", enoughFeatures.await(10, TimeUnit.SECONDS));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long canceledAt = System.nanoTime();
+        long cpuAtCancel = threads.getThreadCpuTime(fetching.getId());
+        cancellation.cancel();
+        int featuresAtCancel = features.get();
+        long bytesAtCancel = mServer.getBodyBytesSent();
+        fetching.join(MAX_STOP_MILLIS);
+        long stopMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - canceledAt);
+        assertTrue("Still fetching " + stopMillis + " ms after the cancel", !fetching.isAlive());
+        assertEquals(QueryUtils.FetchResult.Error.CANCELED, result[0].error);
+
+        // Give the server time to notice that the client went away
+        Thread.sleep(300);
+        long bytesAfterCancel = mServer.getBodyBytesSent() - bytesAtCancel;
+        int featuresAfterCancel = features.get() - featuresAtCancel;
+        // At most the chunks that were already parsed when canceled are handed over
+        assertTrue(featuresAfterCancel + " features after the cancel", featuresAfterCancel < FEED_SIZE / 10);
+        // At most a couple of chunks that were already on their way
+        assertTrue(bytesAfterCancel + " bytes after the cancel", bytesAfterCancel <= 4 * 8 * 1024);
+        assertTrue(features.get() < FEED_SIZE);
+        assertTrue(mServer.getBodyBytesSent() < mFeedBytes);
+        if (cpuAtCancel >= 0) {
+            // The fetching thread does not keep parsing in the background once canceled
+            long cpuMillisAfterCancel = TimeUnit.NANOSECONDS.toMillis(cpuNanos.get() - cpuAtCancel);
+            assertTrue(cpuMillisAfterCancel + " ms CPU after the cancel", cpuMillisAfterCancel <= MAX_STOP_MILLIS);
+        }
+    }
+
+    @Test
+    public void fetchCanceledBeforeStartingSendsNoRequest() {
+        FetchCancellation cancellation = new FetchCancellation();
+        cancellation.cancel();
+        final AtomicInteger features = new AtomicInteger();
+        FetchCancellation.setCurrent(cancellation);
+        QueryUtils.FetchResult result;
+        try {
+            result = QueryUtils.fetchEarthquakeData(mServer.getUrl(), null, null,
+                    new QueryUtils.EarthquakeCallback() {
+                        @Override
+                        public void onEarthquake(Earthquake earthquake) {
+                            features.incrementAndGet();
+                        }
+                    });
+        } finally {
+            FetchCancellation.setCurrent(null);
+        }
+
+        assertEquals(QueryUtils.FetchResult.Error.CANCELED, result.error);
+        assertEquals(0, features.get());
+        assertTrue(mServer.getRequests().isEmpty());
+    }
+}
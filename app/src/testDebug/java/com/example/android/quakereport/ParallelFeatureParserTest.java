@@ -0,0 +1,97 @@
+package com.example.android.quakereport;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link ParallelFeatureParser} hands over the earthquakes of a feed cut into
+ * several chunks in document order, and that a body it cannot take the features of fails as
+ * malformed, whether it is parsed in chunks or sequentially.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ParallelFeatureParserTest {
+
+    private static final long START = 1488787200000L;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private List<Earthquake> mEarthquakes;
+    private byte[] mFeed;
+
+    @Before
+    public void setUp() {
+        mEarthquakes = FakeEarthquakeSource.randomEarthquakes(new Random(22), 5000, START, START + 86400000L);
+        mFeed = SyntheticFeed.build(mEarthquakes);
+        // Large enough to be cut into several chunks
+        assertTrue(mFeed.length > 4 * ParallelFeatureParser.CHUNK_BYTES);
+    }
+
+    @Test
+    public void chunkedFeedIsHandedOverInOrder() throws IOException {
+        List<Earthquake> received = parse(mFeed, 4);
+        assertEquals(mEarthquakes.size(), received.size());
+        for (int i = 0; i < mEarthquakes.size(); i++) {
+            assertEquals(mEarthquakes.get(i).getId(), received.get(i).getId());
+        }
+    }
+
+    @Test
+    public void truncatedFeedIsMalformed() {
+        checkMalformed(Arrays.copyOf(mFeed, mFeed.length / 2), 4);
+    }
+
+    @Test
+    public void nonJsonBodyIsMalformed() {
+        StringBuilder page = new StringBuilder("<html><body>");
+        while (page.length() < 2 * ParallelFeatureParser.CHUNK_BYTES) {
+            page.append("<p>Service temporarily unavailable, please try again later.</p>\n");
+        }
+        page.append("</body></html>");
+        byte[] body = page.toString().getBytes(UTF_8);
+        checkMalformed(body, 4);
+        checkMalformed(body, 1);
+    }
+
+    @Test
+    public void documentWithoutFeaturesIsMalformed() {
+        byte[] body = "{\"type\":\"FeatureCollection\",\"metadata\":{\"status\":200,\"count\":0}}".getBytes(UTF_8);
+        checkMalformed(body, 4);
+        checkMalformed(body, 1);
+    }
+
+    private static void checkMalformed(byte[] body, int parallelism) {
+        try {
+            parse(body, parallelism);
+            fail("Parsed a malformed body on " + parallelism + " threads");
+        } catch (IOException e) {
+            assertEquals(QueryUtils.FetchResult.Error.MALFORMED, QueryUtils.FetchResult.failure(e).error);
+        }
+    }
+
+    private static List<Earthquake> parse(byte[] body, int parallelism) throws IOException {
+        final List<Earthquake> received = new ArrayList<>();
+        ParallelFeatureParser.parse(new ByteArrayInputStream(body), parallelism,
+                new QueryUtils.EarthquakeCallback() {
+                    @Override
+                    public void onEarthquake(Earthquake earthquake) {
+                        received.add(earthquake);
+                    }
+                });
+        return received;
+    }
+}
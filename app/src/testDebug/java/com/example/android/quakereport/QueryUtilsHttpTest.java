@@ -0,0 +1,129 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fetches from a {@link ReplayServer} to check the HTTP side of {@link QueryUtils}: the gzip
+ * body is parsed, the validators are returned, and sending them back revalidates an unchanged
+ * feed with a 304 that carries no body.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class QueryUtilsHttpTest {
+
+    private static final long START = 1488787200000L;
+
+    private List<Earthquake> mEarthquakes;
+    private ReplayServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mEarthquakes = FakeEarthquakeSource.randomEarthquakes(new Random(3), 500, START, START + 86400000L);
+        mServer = new ReplayServer(SyntheticFeed.build(mEarthquakes), 0);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void firstFetchParsesTheBodyAndReturnsTheValidators() {
+        List<Earthquake> received = new ArrayList<>();
+        QueryUtils.FetchResult result = fetch(null, null, received);
+
+        assertTrue(result.isSuccessful());
+        assertEquals(mServer.getETag(), result.eTag);
+        assertEquals(mServer.getLastModified(), result.lastModified);
+        checkSameEarthquakes(mEarthquakes, received);
+
+        Map<String, String> request = mServer.getRequests().get(0);
+        assertEquals("gzip", request.get("accept-encoding"));
+        assertNull(request.get("if-none-match"));
+        assertNull(request.get("if-modified-since"));
+    }
+
+    @Test
+    public void unchangedFeedIsRevalidatedWithoutABody() {
+        QueryUtils.FetchResult first = fetch(null, null, new ArrayList<Earthquake>());
+        long bodyBytes = mServer.getBodyBytesSent();
+
+        List<Earthquake> received = new ArrayList<>();
+        QueryUtils.FetchResult second = fetch(first.eTag, first.lastModified, received);
+
+        assertTrue(second.isNotModified());
+        assertFalse(second.isSuccessful());
+        assertEquals(mServer.getETag(), second.eTag);
+        assertEquals(mServer.getLastModified(), second.lastModified);
+        assertTrue(received.isEmpty());
+        assertEquals(bodyBytes, mServer.getBodyBytesSent());
+
+        Map<String, String> request = mServer.getRequests().get(1);
+        assertEquals(mServer.getETag(), request.get("if-none-match"));
+        assertEquals(mServer.getLastModified(), request.get("if-modified-since"));
+    }
+
+    @Test
+    public void lastModifiedAloneRevalidates() {
+        QueryUtils.FetchResult result = fetch(null, mServer.getLastModified(), new ArrayList<Earthquake>());
+
+        assertTrue(result.isNotModified());
+        Map<String, String> request = mServer.getRequests().get(0);
+        assertNull(request.get("if-none-match"));
+        assertEquals(mServer.getLastModified(), request.get("if-modified-since"));
+    }
+
+    @Test
+    public void changedFeedIsFetchedAgain() throws Exception {
+        QueryUtils.FetchResult first = fetch(null, null, new ArrayList<Earthquake>());
+        List<Earthquake> changed = FakeEarthquakeSource.randomEarthquakes(new Random(4), 300, START, START + 86400000L);
+        String firstETag = mServer.getETag();
+        mServer.setFeed(SyntheticFeed.build(changed));
+
+        List<Earthquake> received = new ArrayList<>();
+        QueryUtils.FetchResult second = fetch(first.eTag, null, received);
+
+        assertTrue(second.isSuccessful());
+        assertEquals(mServer.getETag(), second.eTag);
+        assertFalse(firstETag.equals(second.eTag));
+        checkSameEarthquakes(changed, received);
+    }
+
+    private QueryUtils.FetchResult fetch(String eTag, String lastModified, final List<Earthquake> received) {
+        return QueryUtils.fetchEarthquakeData(mServer.getUrl(), eTag, lastModified,
+                new QueryUtils.EarthquakeCallback() {
+                    @Override
+                    public void onEarthquake(Earthquake earthquake) {
+                        received.add(earthquake);
+                    }
+                });
+    }
+
+    private static void checkSameEarthquakes(List<Earthquake> expected, List<Earthquake> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Earthquake want = expected.get(i);
+            Earthquake got = actual.get(i);
+            assertEquals(want.getId(), got.getId());
+            assertEquals(want.getMag(), got.getMag(), 0);
+            assertEquals(want.getName(), got.getName());
+            assertEquals(want.getTimeInMillSeconds(), got.getTimeInMillSeconds());
+            assertEquals(want.getUrl(), got.getUrl());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Putting {@link #SIZE} events into {@link EarthquakeAggregates}, and updating all of them as a
+ * refresh that changed every magnitude would. Times are per event, and should not depend on how
+ * many events are summarized.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AggregatesBenchmark {
+
+    private static final int SIZE = 100000;
+
+    private EarthquakeStore mStore;
+    private EarthquakeStore mUpdated;
+    private EarthquakeAggregates mAggregates;
+    private boolean mIsUpdated;
+
+    @Setup
+    public void setUp() {
+        mStore = BenchmarkData.store(SIZE);
+        mUpdated = new EarthquakeStore();
+        for (int i = 0; i < mStore.size(); i++) {
+            mUpdated.add(mStore.getMag(i) + 0.5, mStore.getName(i), mStore.getTimeInMillSeconds(i), mStore.getUrl(i),
+                    mStore.getId(i), mStore.getLongitude(i), mStore.getLatitude(i));
+        }
+        mAggregates = new EarthquakeAggregates();
+        mAggregates.putAll(mStore);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int insert() {
+        EarthquakeAggregates aggregates = new EarthquakeAggregates();
+        aggregates.putAll(mStore);
+        return aggregates.getBandCount(5);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int update() {
+        // Alternate between the two versions, so every put changes the event
+        mIsUpdated = !mIsUpdated;
+        mAggregates.putAll(mIsUpdated ? mUpdated : mStore);
+        return mAggregates.getBandCount(5);
+    }
+}
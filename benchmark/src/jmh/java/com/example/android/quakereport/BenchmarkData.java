@@ -0,0 +1,32 @@
+package com.example.android.quakereport;
+
+import java.util.Locale;
+
+/**
+ * The data the benchmarks run against: the earthquakes of the {@link SyntheticFeed}s the device
+ * benchmarks parse.
+ */
+final class BenchmarkData {
+
+    private static final String[] REGIONS = {"Alaska", "CA", "Japan", "Indonesia", "Chile", "Nevada", "Hawaii", "Tonga"};
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Returns a store of the given number of synthetic earthquakes, with the magnitudes, places,
+     * times and coordinates of {@link SyntheticFeed#build(int)}.
+     */
+    static EarthquakeStore store(int featureCount) {
+        EarthquakeStore store = new EarthquakeStore();
+        long time = 1488787200000L;
+        for (int i = 0; i < featureCount; i++) {
+            String id = String.format(Locale.US, "us%08d", i);
+            time -= 60000 + i % 7 * 1000;
+            store.add((i * 37 % 80) / 10.0, (i % 50 + 1) + "km ESE of Somewhere, " + REGIONS[i % REGIONS.length],
+                    time, "https://earthquake.usgs.gov/earthquakes/eventpage/" + id, id,
+                    (i * 7 % 360) - 180 + 0.25, (i * 3 % 180) - 90 + 0.5);
+        }
+        return store;
+    }
+}
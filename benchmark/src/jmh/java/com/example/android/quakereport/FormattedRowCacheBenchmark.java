@@ -0,0 +1,85 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binding the text of list rows through {@link FormattedRowCache}, as EarthquakeAdapter does:
+ * scrolling a list down and back up one row at a time with the prefetch window, and binding a row
+ * that is cached. Times are per bound row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FormattedRowCacheBenchmark {
+
+    private static final int SCROLL_ROWS = 1000;
+    private static final int VISIBLE_ROWS = 12;
+    /**
+     * EarthquakeAdapter.FORMATTED_ROWS and PREFETCH_ROWS
+     */
+    private static final int FORMATTED_ROWS = 128;
+    private static final int PREFETCH_ROWS = 16;
+    private static final int SCROLL_STEPS = 2 * (SCROLL_ROWS - VISIBLE_ROWS) + 1;
+
+    private EarthquakeStore mStore;
+    private EarthquakeFormatter mFormatter;
+    private FormattedRowCache mCache;
+    private char[] mMagBuffer;
+    private char[] mDateBuffer;
+    private char[] mTimeBuffer;
+
+    @Setup
+    public void setUp() {
+        mStore = BenchmarkData.store(SCROLL_ROWS);
+        mFormatter = new EarthquakeFormatter();
+        mCache = new FormattedRowCache(mFormatter, FORMATTED_ROWS);
+        mMagBuffer = new char[EarthquakeFormatter.SHORT_BUFFER_SIZE];
+        mDateBuffer = new char[mFormatter.getDateBufferSize()];
+        mTimeBuffer = new char[EarthquakeFormatter.SHORT_BUFFER_SIZE];
+    }
+
+    /**
+     * Every row is formatted once on the way down; the way back up only copies the rows still
+     * cached.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SCROLL_STEPS)
+    public long scrollBind() {
+        FormattedRowCache cache = new FormattedRowCache(mFormatter, FORMATTED_ROWS);
+        long checksum = 0;
+        int last = mStore.size() - VISIBLE_ROWS;
+        for (int step = 0; step <= 2 * last; step++) {
+            int first = step <= last ? step : 2 * last - step;
+            // The row scrolling into view, then the prefetch window ahead of it
+            int shown = step <= last ? first + VISIBLE_ROWS - 1 : first;
+            checksum += bind(cache, shown);
+            for (int i = 1; i <= PREFETCH_ROWS; i++) {
+                int ahead = step <= last ? shown + i : shown - i;
+                if (ahead >= 0 && ahead < mStore.size()) {
+                    cache.prefetch(ahead, mStore, ahead);
+                }
+            }
+        }
+        return checksum;
+    }
+
+    @Benchmark
+    public long bindCachedRow() {
+        return bind(mCache, 0);
+    }
+
+    private long bind(FormattedRowCache cache, int position) {
+        int slot = cache.get(position, mStore, position);
+        return cache.copyMag(slot, mMagBuffer) + cache.copyDate(slot, mDateBuffer)
+                + cache.copyTime(slot, mTimeBuffer);
+    }
+}
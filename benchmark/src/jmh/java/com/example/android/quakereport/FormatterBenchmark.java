@@ -0,0 +1,82 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting the magnitude, date and time text of a list row with {@link EarthquakeFormatter},
+ * per row. None of these should allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FormatterBenchmark {
+
+    private static final int ROWS = 1000;
+
+    private EarthquakeStore mStore;
+    private EarthquakeFormatter mFormatter;
+    private char[] mMagBuffer;
+    private char[] mDateBuffer;
+    private char[] mTimeBuffer;
+
+    @Setup
+    public void setUp() {
+        mStore = BenchmarkData.store(ROWS);
+        mFormatter = new EarthquakeFormatter();
+        mMagBuffer = new char[EarthquakeFormatter.SHORT_BUFFER_SIZE];
+        mDateBuffer = new char[mFormatter.getDateBufferSize()];
+        mTimeBuffer = new char[EarthquakeFormatter.SHORT_BUFFER_SIZE];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long formatMag() {
+        long checksum = 0;
+        for (int i = 0; i < ROWS; i++) {
+            checksum += mFormatter.formatMag(mStore.getMag(i), mMagBuffer);
+        }
+        return checksum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long formatDate() {
+        long checksum = 0;
+        for (int i = 0; i < ROWS; i++) {
+            checksum += mFormatter.formatDate(mStore.getTimeInMillSeconds(i), mDateBuffer);
+        }
+        return checksum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long formatTime() {
+        long checksum = 0;
+        for (int i = 0; i < ROWS; i++) {
+            checksum += mFormatter.formatTime(mStore.getTimeInMillSeconds(i), mTimeBuffer);
+        }
+        return checksum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long formatRow() {
+        long checksum = 0;
+        for (int i = 0; i < ROWS; i++) {
+            checksum += mFormatter.formatMag(mStore.getMag(i), mMagBuffer);
+            checksum += mFormatter.formatDate(mStore.getTimeInMillSeconds(i), mDateBuffer);
+            checksum += mFormatter.formatTime(mStore.getTimeInMillSeconds(i), mTimeBuffer);
+            checksum += EarthquakeFormatter.getMagnitudeBand(mStore.getMag(i));
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diffing a refresh of {@link #ROWS} rows in which a few events were added at the top, a few
+ * removed and a few updated: the work EarthquakePager does off the main thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ListDiffBenchmark {
+
+    private static final int ROWS = 10000;
+
+    private EarthquakeStore mOldRows;
+    private EarthquakeStore mNewRows;
+
+    @Setup
+    public void setUp() {
+        EarthquakeStore all = BenchmarkData.store(ROWS + 10);
+        mOldRows = new EarthquakeStore();
+        mNewRows = new EarthquakeStore();
+        for (int i = 10; i < all.size(); i++) {
+            mOldRows.add(all, i);
+        }
+        for (int i = 0; i < all.size() - 5; i++) {
+            if (i % 500 == 0) {
+                // An updated event
+                mNewRows.add(all.getMag(i) + 0.1, all.getName(i), all.getTimeInMillSeconds(i), all.getUrl(i),
+                        all.getId(i), all.getLongitude(i), all.getLatitude(i));
+            } else {
+                mNewRows.add(all, i);
+            }
+        }
+    }
+
+    @Benchmark
+    public int compute() {
+        return EarthquakeListDiff.compute(mOldRows, mNewRows).getChangedPositions().length;
+    }
+}
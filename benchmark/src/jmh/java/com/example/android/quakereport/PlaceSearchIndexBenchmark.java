@@ -0,0 +1,52 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexing the places of {@link #SIZE} events with {@link PlaceSearchIndex}, and searching it.
+ * Every synthetic event shares its place with an eighth of the feed, so each query has to rank
+ * thousands of matching events; "alaksa" is a typo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlaceSearchIndexBenchmark {
+
+    private static final int SIZE = 100000;
+    private static final int LIMIT = 50;
+
+    @Param({"japan", "ca", "some", "where hawaii", "alaksa"})
+    public String query;
+
+    private EarthquakeStore mStore;
+    private PlaceSearchIndex mIndex;
+
+    @Setup
+    public void setUp() {
+        mStore = BenchmarkData.store(SIZE);
+        mIndex = new PlaceSearchIndex();
+        mIndex.putAll(mStore);
+    }
+
+    @Benchmark
+    public int search() {
+        return mIndex.search(query, LIMIT).size();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int build() {
+        PlaceSearchIndex index = new PlaceSearchIndex();
+        index.putAll(mStore);
+        return index.size();
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexing the epicenters of {@link #SIZE} events with {@link EarthquakeSpatialIndex}, and
+ * querying a box and a circle around an area. The antimeridian and the pole read more cells; each
+ * query should still take well under a millisecond.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SpatialIndexBenchmark {
+
+    private static final int SIZE = 100000;
+    private static final int RADIUS_KM = 300;
+
+    @Param({"tokyo", "antimeridian", "pole"})
+    public String area;
+
+    private List<Earthquake> mEarthquakes;
+    private EarthquakeSpatialIndex mIndex;
+    /**
+     * {south, west, north, east} and {latitude, longitude} of the area
+     */
+    private double[] mBox;
+    private double[] mCenter;
+
+    @Setup
+    public void setUp() {
+        mEarthquakes = BenchmarkData.store(SIZE).asList();
+        mIndex = EarthquakeSpatialIndex.build(mEarthquakes);
+        switch (area) {
+            case "tokyo":
+                mBox = new double[]{30, 130, 40, 145};
+                mCenter = new double[]{35.7, 139.7};
+                break;
+            case "antimeridian":
+                mBox = new double[]{-25, 170, -10, -170};
+                mCenter = new double[]{-17.5, 179.5};
+                break;
+            default:
+                mBox = new double[]{80, -180, 90, 180};
+                mCenter = new double[]{89.5, 0};
+                break;
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int build() {
+        return EarthquakeSpatialIndex.build(mEarthquakes).size();
+    }
+
+    @Benchmark
+    public int queryBox() {
+        return mIndex.queryBox(mBox[0], mBox[1], mBox[2], mBox[3]).length;
+    }
+
+    @Benchmark
+    public int queryRadius() {
+        return mIndex.queryRadius(mCenter[0], mCenter[1], RADIUS_KM).length;
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.android.quakereport;
+
+/**
+ * Stands in for the BuildConfig that the Android plugin generates for the app, which this JVM
+ * module does not have. Metrics are off, as in release builds, so the benchmarks measure the code
+ * users run.
+ */
+public final class BuildConfig {
+    public static final boolean METRICS_ENABLED = false;
+
+    private BuildConfig() {
+    }
+}